@@ -0,0 +1,116 @@
+package com.nico;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+// Сообщения пишутся и читаются во всех состояниях журнала: выключен, включён, но ещё
+// не открыт (история в SQLite), и уже перенесён (SQLite пуст, журнал открывается лениво).
+// Своя база, настройки и каталог журнала - данные приложения не трогаем
+@RunWith(AndroidJUnit4.class)
+public class DatabaseHelperMessageLogTest {
+    private static final String DATABASE = "nico_test_messagelog.db";
+    private static final String PREFS = "nico_test_prefs";
+    private static final String CHAT = "Test chat";
+
+    private Context context;
+    private SharedPreferences prefs;
+    private File logDirectory;
+    private DatabaseHelper helper;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        logDirectory = new File(context.getFilesDir(), "test_messagelog");
+        clear();
+    }
+
+    @After
+    public void tearDown() {
+        if (helper != null) {
+            helper.close();
+        }
+        clear();
+    }
+
+    @Test
+    public void disabledStoresInSqlite() {
+        helper = open();
+
+        long id = helper.addMessage(CHAT, "You", "hello", "9:00 AM", true);
+
+        assertTrue(id > 0);
+        assertFalse(helper.isMessageLogEnabled());
+        assertTexts(helper.getMessagesForChat(CHAT), "hello");
+    }
+
+    @Test
+    public void pendingUsesSqliteUntilMigrated() {
+        helper = open();
+        helper.addMessage(CHAT, "You", "before", "9:00 AM", true);
+        prefs.edit().putBoolean("message_log", true).commit();
+        helper.close();
+
+        helper = open();
+        assertTrue(helper.isMessageLogEnabled());
+        helper.addMessage(CHAT, "You", "pending", "9:01 AM", true);
+        assertTexts(helper.getMessagesForChat(CHAT), "before", "pending");
+
+        // Как первая задача потока записи AsyncDatabase
+        helper.openPendingMessageLog();
+        assertTrue(prefs.getBoolean("message_log_migrated", false));
+        helper.addMessage(CHAT, "You", "after", "9:02 AM", true);
+        assertTexts(helper.getMessagesForChat(CHAT), "before", "pending", "after");
+    }
+
+    @Test
+    public void migratedOpensLogOnFirstUse() throws Exception {
+        helper = open();
+        long first = helper.addMessage(CHAT, "You", "old", "9:00 AM", true);
+        helper.enableMessageLog();
+        helper.close();
+
+        helper = open();
+        long second = helper.addMessage(CHAT, "You", "new", "9:01 AM", true);
+
+        assertTrue(second > first);
+        assertTexts(helper.getMessagesForChat(CHAT), "old", "new");
+    }
+
+    private DatabaseHelper open() {
+        DatabaseHelper opened = new DatabaseHelper(context, DATABASE, prefs, logDirectory);
+        opened.loadMessageLogState();
+        return opened;
+    }
+
+    private static void assertTexts(List<DatabaseHelper.Message> messages, String... texts) {
+        assertEquals(texts.length, messages.size());
+        for (int i = 0; i < texts.length; i++) {
+            assertEquals(texts[i], messages.get(i).text);
+        }
+    }
+
+    private void clear() {
+        context.deleteDatabase(DATABASE);
+        prefs.edit().clear().commit();
+        File[] files = logDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        logDirectory.delete();
+    }
+}
@@ -0,0 +1,131 @@
+package com.nico;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Асинхронный доступ к DatabaseHelper - диск никогда не трогается на UI потоке.
+// Все записи идут через один поток-писатель (SQLite всё равно пишет последовательно),
+// чтения - через небольшой пул, который в режиме WAL работает параллельно с записью.
+// Результат возвращается как Future или через Callback на главном потоке.
+public class AsyncDatabase {
+    private static final int READER_THREADS = 2;
+
+    private static AsyncDatabase instance;
+
+    // Запрос к базе, выполняется на фоновом потоке
+    public interface Query<T> {
+        T run(DatabaseHelper db);
+    }
+
+    // Результат запроса, вызывается на главном потоке
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private final DatabaseHelper dbHelper;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(namedThreads("nico-db-writer"));
+    private final ExecutorService readers = Executors.newFixedThreadPool(READER_THREADS, namedThreads("nico-db-reader"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private AsyncDatabase(Context context) {
+        this.dbHelper = DatabaseHelper.getInstance(context);
+        // Журнал сообщений открывается первой задачей записи - не на главном потоке
+        writer.execute(dbHelper::openPendingMessageLog);
+    }
+
+    // Один экземпляр на процесс - потоки и соединение общие для всех экранов
+    public static synchronized AsyncDatabase getInstance(Context context) {
+        if (instance == null) {
+            instance = new AsyncDatabase(context);
+        }
+        return instance;
+    }
+
+    public <T> Future<T> read(Query<T> query) {
+        return readers.submit(wrap(query));
+    }
+
+    public <T> Future<T> write(Query<T> query) {
+        return writer.submit(wrap(query));
+    }
+
+    public <T> void read(Query<T> query, Callback<T> callback) {
+        readers.execute(deliver(query, callback));
+    }
+
+    public <T> void write(Query<T> query, Callback<T> callback) {
+        writer.execute(deliver(query, callback));
+    }
+
+    // ===== Частые запросы экранов =====
+
+    public void getRecentChats(Callback<List<DatabaseHelper.Chat>> callback) {
+        read(DatabaseHelper::getRecentChats, callback);
+    }
+
+    public void getMessagesForChat(String chatName, Callback<List<DatabaseHelper.Message>> callback) {
+        read(db -> db.getMessagesForChat(chatName), callback);
+    }
+
+    public void getGroupMembers(String chatName, Callback<List<String>> callback) {
+        read(db -> db.getGroupMembers(chatName), callback);
+    }
+
+    // ===== Живые запросы (см. LiveQuery) =====
+
+    // chatName - какие изменения касаются запроса (null - любые)
+    public <T> LiveQuery<T> observe(String chatName, LiveQuery.Updater<T> updater, Callback<T> callback) {
+        LiveQuery<T> query = new LiveQuery<>(this, chatName, updater, callback);
+        query.start();
+        return query;
+    }
+
+    public LiveQuery<List<DatabaseHelper.Message>> observeMessages(String chatName,
+                                                                   Callback<List<DatabaseHelper.Message>> callback) {
+        return observe(chatName, LiveQuery.messages(chatName), callback);
+    }
+
+    public LiveQuery<List<DatabaseHelper.Chat>> observeRecentChats(Callback<List<DatabaseHelper.Chat>> callback) {
+        return observe(null, LiveQuery.recentChats(), callback);
+    }
+
+    // recipient - см. DatabaseHelper.addMessage
+    public void addMessage(String chatName, String sender, String message, String timestamp,
+                           boolean isOutgoing, String recipient, Callback<Long> callback) {
+        write(db -> db.addMessage(chatName, sender, message, timestamp, isOutgoing, recipient), callback);
+    }
+
+    private <T> Callable<T> wrap(Query<T> query) {
+        return () -> query.run(dbHelper);
+    }
+
+    private <T> Runnable deliver(Query<T> query, Callback<T> callback) {
+        return () -> {
+            try {
+                T result = query.run(dbHelper);
+                if (callback != null) {
+                    mainHandler.post(() -> callback.onResult(result));
+                }
+            } catch (RuntimeException e) {
+                System.out.println("❌ Nico: Database error - " + e.getMessage());
+            }
+        };
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        };
+    }
+}
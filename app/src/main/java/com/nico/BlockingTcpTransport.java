@@ -0,0 +1,120 @@
+package com.nico;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+// Классический java.net.Socket с потоками - для сравнения с NioTcpTransport
+// и для окружений, где SocketChannel недоступен.
+public class BlockingTcpTransport implements Transport {
+    private static final String FALLBACK_ADDRESS = "192.168.1.100";
+
+    static class BlockingConnection implements Connection {
+        final Socket socket;
+        private final ReadableByteChannel in;
+        private final OutputStream out;
+
+        BlockingConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = Channels.newChannel(socket.getInputStream());
+            this.out = socket.getOutputStream();
+            socket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getInetAddress().getHostAddress();
+        }
+
+        @Override
+        public void setReadTimeout(int timeoutMs) throws IOException {
+            socket.setSoTimeout(timeoutMs);
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            socket.shutdownOutput();
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            return in.read(buffer);
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            return (int) write(new ByteBuffer[]{buffer}, 0, 1);
+        }
+
+        // У потока нет записи из нескольких буферов - склеиваем в один массив и пишем разом
+        @Override
+        public long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += buffers[i].remaining();
+            }
+            byte[] data = new byte[(int) total];
+            int position = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int count = buffers[i].remaining();
+                buffers[i].get(data, position, count);
+                position += count;
+            }
+            out.write(data);
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] buffers) throws IOException {
+            return write(buffers, 0, buffers.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !socket.isClosed();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Override
+    public Connection connect(String address, int port, int timeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), timeoutMs);
+            return new BlockingConnection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Server listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        return new Server() {
+            @Override
+            public Connection accept() throws IOException {
+                return new BlockingConnection(server.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    @Override
+    public String getLocalAddress() {
+        return NioTcpTransport.findLocalAddress(FALLBACK_ADDRESS);
+    }
+}
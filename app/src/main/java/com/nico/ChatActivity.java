@@ -2,31 +2,54 @@ package com.nico;
 
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+import java.util.ArrayList;
 import java.util.List;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
 public class ChatActivity extends AppCompatActivity 
-    implements NetworkManager.NetworkListener {
+    implements EventBus.Subscriber {
+    
+    // Ширина пузыря и отступы текста в нём
+    private static final int BUBBLE_MAX_WIDTH = 800;
+    private static final int BUBBLE_PADDING = 20;
     
     private EditText messageInput;
     private Button sendButton;
     private TextView chatTitle;
     private LinearLayout messagesLayout;
-    private DatabaseHelper dbHelper;
+    private AsyncDatabase database;
     private NetworkManager networkManager;
     private String currentChatName;
     private String connectedIp;
+    // Участники, если это групповой чат
+    private List<String> groupMembers = new ArrayList<>();
+    // Сигналы собеседника (см. SignalChannel)
+    private boolean peerTyping;
+    private long peerReadUpTo;
+    private long lastOutgoingId;
+    private EventBus.Subscription subscription;
+    private LiveQuery<List<DatabaseHelper.Message>> messagesQuery;
+    // Разметка текста пузырей считается в фоне (см. MessageTextCache)
+    private final MessageTextCache textCache = MessageTextCache.getInstance();
+    private PrecomputedTextCompat.Params textParams;
+    // id сообщений на экране по порядку - новые дописываются, старые пузыри не пересоздаются
+    private final List<Long> displayedIds = new ArrayList<>();
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTrace.begin("ChatActivity.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_chat);
         
@@ -40,17 +63,23 @@ public class ChatActivity extends AppCompatActivity
         SharedPreferences prefs = getSharedPreferences("nico_prefs", MODE_PRIVATE);
         connectedIp = prefs.getString("connected_ip", "");
         
-        // Инициализируем базу данных
-        dbHelper = new DatabaseHelper(this);
+        // Инициализируем базу данных (запросы идут в фоне)
+        database = AsyncDatabase.getInstance(this);
+        database.getGroupMembers(currentChatName, members -> {
+            groupMembers = members;
+            updateConnectionStatus();
+        });
         
-        // Инициализируем сетевой менеджер
+        // Инициализируем сетевой менеджер; сокеты открываем после первого кадра
         networkManager = new NetworkManager(this);
-        networkManager.setListener(this);
-        networkManager.startServer();
+        subscription = EventBus.getInstance().subscribe(
+            EventBus.EVENT_MESSAGE | EventBus.EVENT_CONNECTION | EventBus.EVENT_SIGNAL | EventBus.EVENT_SYNC,
+            EventBus.DELIVERY_MAIN, this);
+        StartupTrace.afterFirstFrame(this, networkManager::startServer);
         
         setupiOSStyle();
         setupViews();
-        loadMessagesFromDatabase();
+        observeMessages();
         setupClickListeners();
         
         System.out.println("💬 Nico Chat Activity started for: " + currentChatName);
@@ -58,6 +87,7 @@ public class ChatActivity extends AppCompatActivity
         
         // Показываем статус подключения
         updateConnectionStatus();
+        StartupTrace.end();
     }
     
     private void setupiOSStyle() {
@@ -70,6 +100,8 @@ public class ChatActivity extends AppCompatActivity
         sendButton = findViewById(R.id.sendButton);
         chatTitle = findViewById(R.id.chatTitle);
         messagesLayout = findViewById(R.id.messagesLayout);
+        // Параметры стиля пузыря для фонового расчёта разметки
+        textParams = TextViewCompat.getTextMetricsParams(createBubbleTextView());
         
         // Устанавливаем заголовок чата
         if (chatTitle != null) {
@@ -82,24 +114,56 @@ public class ChatActivity extends AppCompatActivity
     
     private void updateConnectionStatus() {
         if (chatTitle != null) {
-            String status = connectedIp.isEmpty() ? " (Offline)" : " (Connected)";
+            String status = peerTyping ? " (typing...)"
+                : !groupMembers.isEmpty() ? " (" + groupMembers.size() + " members)"
+                : connectedIp.isEmpty() ? " (Offline)"
+                : lastOutgoingId > 0 && peerReadUpTo >= lastOutgoingId ? " (Read)" : " (Connected)";
             chatTitle.setText(currentChatName + status);
         }
     }
     
-    private void loadMessagesFromDatabase() {
-        // Загружаем сообщения из базы данных
-        List<DatabaseHelper.Message> messages = dbHelper.getMessagesForChat(currentChatName);
-        
-        // Очищаем layout сообщений
-        if (messagesLayout != null) {
-            messagesLayout.removeAllViews();
+    private void observeMessages() {
+        // Живой запрос: сообщения загружаются один раз, дальше дочитываются только новые
+        // после каждой записи в этот чат (своей, входящей, синхронизации).
+        // Разметка текста считается потом на потоке кэша; отображаем на главном потоке
+        PrecomputedTextCompat.Params params = textParams;
+        messagesQuery = database.observe(currentChatName, LiveQuery.messages(currentChatName), result ->
+            textCache.precompute(result, params, () -> runOnUiThread(() -> {
+                if (messagesQuery != null) {
+                    showMessages(result);
+                }
+            })));
+    }
+    
+    private void showMessages(List<DatabaseHelper.Message> messages) {
+        // Если на экране начало того же списка - только дописываем новые сообщения,
+        // иначе (удаление, очистка истории) перестраиваем всё
+        boolean append = messages.size() >= displayedIds.size();
+        for (int i = 0; append && i < displayedIds.size(); i++) {
+            append = messages.get(i).id == displayedIds.get(i);
+        }
+        if (!append) {
+            if (messagesLayout != null) {
+                messagesLayout.removeAllViews();
+            }
+            displayedIds.clear();
         }
         
         // Отображаем сообщения
+        for (int i = displayedIds.size(); i < messages.size(); i++) {
+            addMessageToLayout(messages.get(i));
+            displayedIds.add(messages.get(i).id);
+        }
+        lastOutgoingId = 0;
         for (DatabaseHelper.Message message : messages) {
-            addMessageToLayout(message);
+            if (message.isOutgoing) {
+                lastOutgoingId = Math.max(lastOutgoingId, message.id);
+            }
         }
+        updateConnectionStatus();
+        
+        // Чат на экране - всё полученное прочитано
+        networkManager.markChatRead(connectedIp, currentChatName);
         
         System.out.println("📨 Nico: Displayed " + messages.size() + " messages");
         
@@ -115,6 +179,22 @@ public class ChatActivity extends AppCompatActivity
         Button backButton = findViewById(R.id.backButton);
         backButton.setOnClickListener(v -> finish());
         
+        // Собеседник видит "печатает" (сигналы склеиваются, на каждое нажатие кадр не уходит)
+        messageInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+            
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+            
+            @Override
+            public void afterTextChanged(Editable s) {
+                setTyping(s.length() > 0);
+            }
+        });
+        
         // Отправка по Enter
         messageInput.setOnKeyListener((v, keyCode, event) -> {
             if (keyCode == 66) { // Enter key
@@ -128,7 +208,10 @@ public class ChatActivity extends AppCompatActivity
     private void sendMessage() {
         String text = messageInput.getText().toString().trim();
         if (!text.isEmpty()) {
-            if (connectedIp.isEmpty()) {
+            if (!groupMembers.isEmpty()) {
+                // Групповой чат - рассылаем всем участникам
+                sendGroupMessage(text);
+            } else if (connectedIp.isEmpty()) {
                 // Режим офлайн - сохраняем только локально
                 saveMessageLocally(text);
                 Toast.makeText(this, "Message saved (offline mode)", Toast.LENGTH_SHORT).show();
@@ -137,33 +220,53 @@ public class ChatActivity extends AppCompatActivity
                 sendMessageOverNetwork(text);
             }
             
-            // Очищаем поле ввода
+            // Очищаем поле ввода (сообщения на экране обновятся после записи в базу)
             messageInput.setText("");
-            
-            // Обновляем сообщения на экране
-            loadMessagesFromDatabase();
+        }
+    }
+    
+    private void setTyping(boolean typing) {
+        if (!groupMembers.isEmpty()) {
+            for (String ip : groupMembers) {
+                networkManager.setTyping(ip, currentChatName, typing);
+            }
+        } else {
+            networkManager.setTyping(connectedIp, currentChatName, typing);
         }
     }
     
     private void saveMessageLocally(String text) {
         String timestamp = getCurrentTime();
-        dbHelper.addMessage(currentChatName, "You", text, timestamp, true);
+        database.addMessage(currentChatName, "You", text, timestamp, true, null, null);
         System.out.println("💾 Nico: Message saved locally - " + text);
     }
     
     private void sendMessageOverNetwork(String text) {
         String timestamp = getCurrentTime();
         
-        // Сохраняем локально
-        dbHelper.addMessage(currentChatName, "You", text, timestamp, true);
-        
-        // Отправляем по сети
-        networkManager.sendMessage(connectedIp, currentChatName, "You", text);
+        // Сохраняем локально, затем отправляем по сети
+        // (id позволяет собеседнику не задвоить сообщение при синхронизации)
+        String ip = connectedIp;
+        database.addMessage(currentChatName, "You", text, timestamp, true, ip, id -> {
+            networkManager.sendStoredMessage(ip,
+                new DatabaseHelper.Message(id, currentChatName, "You", text, timestamp, true));
+        });
         
         Toast.makeText(this, "Message sent to " + connectedIp, Toast.LENGTH_SHORT).show();
         System.out.println("✈️ Nico: Message sent via network - " + text);
     }
     
+    private void sendGroupMessage(String text) {
+        String timestamp = getCurrentTime();
+        database.addMessage(currentChatName, "You", text, timestamp, true, DatabaseHelper.RECIPIENT_GROUP, id -> {
+            networkManager.sendStoredGroupMessage(
+                new DatabaseHelper.Message(id, currentChatName, "You", text, timestamp, true));
+        });
+        
+        Toast.makeText(this, "Message sent to " + groupMembers.size() + " members", Toast.LENGTH_SHORT).show();
+        System.out.println("👥 Nico: Group message sent - " + text);
+    }
+    
     private void addMessageToLayout(DatabaseHelper.Message message) {
         if (messagesLayout == null) return;
         
@@ -181,11 +284,8 @@ public class ChatActivity extends AppCompatActivity
         headerView.setPadding(0, 0, 0, 5);
         
         // Текст сообщения
-        TextView messageView = new TextView(this);
-        messageView.setText(message.text);
-        messageView.setTextSize(16);
-        messageView.setPadding(20, 15, 20, 15);
-        messageView.setMaxWidth(800); // Ограничиваем ширину для красоты
+        TextView messageView = createBubbleTextView();
+        setMessageText(messageView, message);
         
         // Стили для сообщений
         if (message.isOutgoing) {
@@ -213,6 +313,28 @@ public class ChatActivity extends AppCompatActivity
         messagesLayout.addView(messageContainer);
     }
     
+    // TextView пузыря без цвета и фона - от этих настроек зависят параметры разметки
+    private TextView createBubbleTextView() {
+        TextView messageView = new TextView(this);
+        messageView.setTextSize(16);
+        messageView.setPadding(BUBBLE_PADDING, 15, BUBBLE_PADDING, 15);
+        messageView.setMaxWidth(BUBBLE_MAX_WIDTH); // Ограничиваем ширину для красоты
+        return messageView;
+    }
+    
+    private void setMessageText(TextView messageView, DatabaseHelper.Message message) {
+        PrecomputedTextCompat precomputed = textCache.get(message.id);
+        if (precomputed != null) {
+            try {
+                TextViewCompat.setPrecomputedText(messageView, precomputed);
+                return;
+            } catch (IllegalArgumentException e) {
+                // Посчитано с другими параметрами стиля - ставим текст как обычно
+            }
+        }
+        messageView.setText(message.text);
+    }
+    
     private void scrollToBottom() {
         if (messagesLayout != null) {
             messagesLayout.post(() -> {
@@ -226,43 +348,71 @@ public class ChatActivity extends AppCompatActivity
         return sdf.format(new Date());
     }
     
-    // ===== NetworkListener Implementation =====
+    // ===== События сети (на главном потоке) =====
     
     @Override
-    public void onMessageReceived(String chatName, String sender, String message) {
-        runOnUiThread(() -> {
-            System.out.println("📨 Nico: Received message in chat - " + sender + ": " + message);
-            
-            // Показываем уведомление
-            Toast.makeText(this, "New message from " + sender, Toast.LENGTH_SHORT).show();
-            
-            // Обновляем сообщения
-            loadMessagesFromDatabase();
-            
-            // Прокручиваем к новому сообщению
-            scrollToBottom();
-        });
+    public void onEvent(EventBus.Event event) {
+        if (event.type == EventBus.EVENT_MESSAGE) {
+            onMessageReceived(event.sender, event.text);
+        } else if (event.type == EventBus.EVENT_SIGNAL) {
+            onSignal(event.peerIp, event.kind, event.chatName, event.value);
+        } else if (event.type == EventBus.EVENT_CONNECTION) {
+            onConnectionStatusChanged(event.value != 0);
+        } else if (event.type == EventBus.EVENT_SYNC && currentChatName.equals(event.chatName)) {
+            // Сами сообщения придут через живой запрос
+            Toast.makeText(this, "History synced with " + event.peerIp, Toast.LENGTH_SHORT).show();
+        }
+    }
+    
+    private void onMessageReceived(String sender, String message) {
+        System.out.println("📨 Nico: Received message in chat - " + sender + ": " + message);
+        
+        // Показываем уведомление; сами сообщения придут через живой запрос
+        Toast.makeText(this, "New message from " + sender, Toast.LENGTH_SHORT).show();
+    }
+    
+    private void onSignal(String peerIp, int kind, String chatName, long value) {
+        if (!currentChatName.equals(chatName)) return;
+        if (kind == SignalChannel.KIND_TYPING) {
+            peerTyping = value != 0;
+        } else if (kind == SignalChannel.KIND_READ && peerIp.equals(connectedIp)) {
+            peerReadUpTo = value;
+        }
+        updateConnectionStatus();
+    }
+    
+    private void onConnectionStatusChanged(boolean connected) {
+        if (!connected) {
+            connectedIp = "";
+            updateConnectionStatus();
+            Toast.makeText(this, "Connection lost", Toast.LENGTH_SHORT).show();
+        }
     }
     
     @Override
-    public void onDeviceDiscovered(String ip, String deviceName) {
-        // Не используется в чате
+    protected void onResume() {
+        super.onResume();
+        // Пока чат на экране, уведомления о нём не показываем
+        NotificationHelper.setActiveChat(this, currentChatName);
+        networkManager.setPresence(connectedIp, true);
     }
     
     @Override
-    public void onConnectionStatusChanged(boolean connected) {
-        runOnUiThread(() -> {
-            if (!connected) {
-                connectedIp = "";
-                updateConnectionStatus();
-                Toast.makeText(this, "Connection lost", Toast.LENGTH_SHORT).show();
-            }
-        });
+    protected void onPause() {
+        super.onPause();
+        NotificationHelper.setActiveChat(this, null);
+        setTyping(false);
+        networkManager.setPresence(connectedIp, false);
     }
     
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        EventBus.getInstance().unsubscribe(subscription);
+        if (messagesQuery != null) {
+            messagesQuery.close();
+            messagesQuery = null;
+        }
         if (networkManager != null) {
             networkManager.stopServer();
         }
@@ -0,0 +1,80 @@
+package com.nico;
+
+import android.content.Context;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Снимок списка чатов для первого кадра: главный экран рисуется из него сразу,
+// не дожидаясь открытия базы, и обновляется, когда придут данные из DatabaseHelper.
+// Маленький файл в filesDir (десятки чатов - единицы килобайт), читается одним обращением.
+// Формат: VERSION(1) | COUNT(4) | (NAME | LAST_MESSAGE | TIME)*, строки - writeUTF.
+public class ChatListSnapshot {
+    private static final String FILE_NAME = "chat_list.snapshot";
+    private static final int VERSION = 1;
+    private static final int MAX_CHATS = 50;
+    // В снимке только начало последнего сообщения - его всё равно обрезает кнопка
+    private static final int MAX_PREVIEW_CHARS = 100;
+
+    // Пустой список, если снимка ещё нет или он повреждён
+    public static List<DatabaseHelper.Chat> load(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readUnsignedByte() != VERSION) {
+                return Collections.emptyList();
+            }
+            int count = Math.min(in.readInt(), MAX_CHATS);
+            List<DatabaseHelper.Chat> chats = new ArrayList<>(Math.max(count, 0));
+            for (int i = 0; i < count; i++) {
+                chats.add(new DatabaseHelper.Chat(in.readUTF(), in.readUTF(), in.readUTF()));
+            }
+            return chats;
+        } catch (FileNotFoundException e) {
+            return Collections.emptyList();
+        } catch (IOException e) {
+            System.out.println("⚠️ Nico: Chat list snapshot unreadable - " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    // Вызывать с фонового потока. Запись во временный файл и rename - снимок не бывает наполовину записан.
+    public static void save(Context context, List<DatabaseHelper.Chat> chats) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File temp = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+        int count = Math.min(chats.size(), MAX_CHATS);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeByte(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                DatabaseHelper.Chat chat = chats.get(i);
+                out.writeUTF(nonNull(chat.name));
+                out.writeUTF(preview(chat.lastMessage));
+                out.writeUTF(nonNull(chat.time));
+            }
+        } catch (IOException e) {
+            System.out.println("❌ Nico: Cannot save chat list snapshot - " + e.getMessage());
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            System.out.println("❌ Nico: Cannot replace chat list snapshot");
+        }
+    }
+
+    private static String preview(String text) {
+        String value = nonNull(text);
+        return value.length() > MAX_PREVIEW_CHARS ? value.substring(0, MAX_PREVIEW_CHARS) : value;
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+}
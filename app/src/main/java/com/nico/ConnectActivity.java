@@ -12,23 +12,25 @@ import androidx.appcompat.app.AppCompatActivity;
 import java.util.Map;
 
 public class ConnectActivity extends AppCompatActivity 
-    implements NetworkManager.NetworkListener {
+    implements EventBus.Subscriber {
     
     private EditText ipInput;
     private TextView myIpText, deviceNameText, statusText, discoveredTitle;
     private LinearLayout devicesLayout;
     private NetworkManager networkManager;
     private String selectedIp = "";
+    private EventBus.Subscription subscription;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_connect);
         
-        // Инициализируем сетевой менеджер
+        // Инициализируем сетевой менеджер; сокеты открываем после первого кадра
         networkManager = new NetworkManager(this);
-        networkManager.setListener(this);
-        networkManager.startServer();
+        subscription = EventBus.getInstance().subscribe(
+            EventBus.EVENT_DEVICE | EventBus.EVENT_CONNECTION, EventBus.DELIVERY_MAIN, this);
+        StartupTrace.afterFirstFrame(this, networkManager::startServer);
         
         setupiOSStyle();
         setupViews();
@@ -102,6 +104,9 @@ public class ConnectActivity extends AppCompatActivity
                     
                     // Сохраняем IP для использования в чатах
                     saveConnectedIp(ip);
+                    
+                    // Догружаем пропущенную за время офлайна историю
+                    networkManager.syncHistory(ip);
                 });
                 
             } catch (Exception e) {
@@ -158,42 +163,40 @@ public class ConnectActivity extends AppCompatActivity
         });
     }
     
-    // ===== NetworkListener Implementation =====
+    // ===== События сети (на главном потоке) =====
     
     @Override
-    public void onMessageReceived(String chatName, String sender, String message) {
-        // Сообщения получаем в ChatActivity
+    public void onEvent(EventBus.Event event) {
+        if (event.type == EventBus.EVENT_DEVICE) {
+            onDeviceDiscovered(event.peerIp, event.text);
+        } else if (event.type == EventBus.EVENT_CONNECTION) {
+            onConnectionStatusChanged(event.value != 0);
+        }
     }
     
-    @Override
-    public void onDeviceDiscovered(String ip, String deviceName) {
-        runOnUiThread(() -> {
-            updateStatus("Found: " + deviceName + " at " + ip);
-            discoveredTitle.setVisibility(View.VISIBLE);
-            
-            // Убираем индикатор прогресса
-            if (devicesLayout.getChildCount() > 0 && 
-                devicesLayout.getChildAt(0) instanceof TextView) {
-                TextView firstChild = (TextView) devicesLayout.getChildAt(0);
-                if ("Scanning...".equals(firstChild.getText().toString())) {
-                    devicesLayout.removeViewAt(0);
-                }
+    private void onDeviceDiscovered(String ip, String deviceName) {
+        updateStatus("Found: " + deviceName + " at " + ip);
+        discoveredTitle.setVisibility(View.VISIBLE);
+        
+        // Убираем индикатор прогресса
+        if (devicesLayout.getChildCount() > 0 && 
+            devicesLayout.getChildAt(0) instanceof TextView) {
+            TextView firstChild = (TextView) devicesLayout.getChildAt(0);
+            if ("Scanning...".equals(firstChild.getText().toString())) {
+                devicesLayout.removeViewAt(0);
             }
-            
-            // Добавляем устройство в список
-            addDiscoveredDevice(ip, deviceName);
-        });
+        }
+        
+        // Добавляем устройство в список
+        addDiscoveredDevice(ip, deviceName);
     }
     
-    @Override
-    public void onConnectionStatusChanged(boolean connected) {
-        runOnUiThread(() -> {
-            if (connected) {
-                updateStatus("✅ Connection established");
-            } else {
-                updateStatus("❌ Connection lost");
-            }
-        });
+    private void onConnectionStatusChanged(boolean connected) {
+        if (connected) {
+            updateStatus("✅ Connection established");
+        } else {
+            updateStatus("❌ Connection lost");
+        }
     }
     
     private void addDiscoveredDevice(String ip, String deviceName) {
@@ -219,6 +222,7 @@ public class ConnectActivity extends AppCompatActivity
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        EventBus.getInstance().unsubscribe(subscription);
         if (networkManager != null) {
             networkManager.stopServer();
         }
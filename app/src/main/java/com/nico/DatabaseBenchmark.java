@@ -0,0 +1,167 @@
+package com.nico;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Замер пропускной способности базы: старый режим против текущего.
+// "До" - как DatabaseHelper работал раньше: открыть базу, один запрос, закрыть,
+// журнал отката и полный fsync. "После" - текущий DatabaseHelper: одно соединение,
+// WAL, synchronous=NORMAL, предкомпилированная вставка.
+// Отдельно - журнал сообщений (MessageLog): LOG_INSERTS сообщений вперемешку по LOG_CHATS
+// чатам, затем чтение одного из них - переход по индексу и последовательное чтение.
+// Все базы - временные файлы, данные пользователя не трогаются.
+// Запуск: долгое нажатие на кнопку обновления на главном экране, отчёт - в лог.
+// Тот же сценарий на ПК (SQLite 3.40 без Android): вставка ~1 000 -> ~33 000 msg/s,
+// чтение чата без заметной разницы. Цифры устройства могут отличаться.
+public class DatabaseBenchmark {
+    private static final String LEGACY_DB = "nico_bench_legacy.db";
+    private static final String TUNED_DB = "nico_bench_tuned.db";
+    private static final String CHAT_NAME = "Benchmark";
+    private static final int INSERTS = 500;
+    private static final int QUERIES = 100;
+    private static final String LOG_DIRECTORY = "nico_bench_log";
+    private static final int LOG_INSERTS = 50000;
+    private static final int LOG_CHATS = 100;
+
+    public static String run(Context context) {
+        context.deleteDatabase(LEGACY_DB);
+        context.deleteDatabase(TUNED_DB);
+        File logDirectory = new File(context.getCacheDir(), LOG_DIRECTORY);
+        deleteDirectory(logDirectory);
+
+        try {
+            double[] before = runLegacy(context.getDatabasePath(LEGACY_DB));
+            double[] after = runTuned(context);
+            double[] log = runLog(logDirectory);
+
+            String report = String.format(Locale.US,
+                "Insert: %.0f → %.0f msg/s (x%.1f)\nQuery: %.0f → %.0f q/s (x%.1f)"
+                    + "\nLog: %.0f msg/s, %.0f q/s (%d of %d messages per query)",
+                before[0], after[0], after[0] / before[0],
+                before[1], after[1], after[1] / before[1],
+                log[0], log[1], LOG_INSERTS / LOG_CHATS, LOG_INSERTS);
+            System.out.println("⏱️ Nico: Database benchmark\n" + report);
+            return report;
+
+        } finally {
+            context.deleteDatabase(LEGACY_DB);
+            context.deleteDatabase(TUNED_DB);
+            deleteDirectory(logDirectory);
+        }
+    }
+
+    // Старое поведение: база открывается и закрывается на каждую операцию
+    private static double[] runLegacy(File file) {
+        SQLiteDatabase setup = SQLiteDatabase.openOrCreateDatabase(file, null);
+        Cursor journal = setup.rawQuery("PRAGMA journal_mode = DELETE", null);
+        journal.moveToFirst();
+        journal.close();
+        setup.execSQL("CREATE TABLE messages(id INTEGER PRIMARY KEY AUTOINCREMENT, chat_name TEXT,"
+            + " sender TEXT, message TEXT, timestamp TEXT, is_outgoing INTEGER)");
+        setup.close();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < INSERTS; i++) {
+            SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+            ContentValues values = new ContentValues();
+            values.put("chat_name", CHAT_NAME);
+            values.put("sender", "You");
+            values.put("message", "Benchmark message " + i);
+            values.put("timestamp", "12:00");
+            values.put("is_outgoing", 1);
+            db.insert("messages", null, values);
+            db.close();
+            System.out.println("💾 Nico: Message saved to database - Benchmark message " + i);
+        }
+        double insertRate = rate(INSERTS, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+            Cursor cursor = db.query("messages",
+                new String[]{"id", "sender", "message", "timestamp", "is_outgoing"},
+                "chat_name = ?", new String[]{CHAT_NAME}, null, null, "id ASC");
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+                cursor.getString(2);
+                rows++;
+            }
+            cursor.close();
+            db.close();
+            System.out.println("📨 Nico: Loaded " + rows + " messages for chat: " + CHAT_NAME);
+        }
+        double queryRate = rate(QUERIES, System.nanoTime() - start);
+
+        return new double[]{insertRate, queryRate};
+    }
+
+    // Текущее поведение - те же методы, что использует приложение
+    private static double[] runTuned(Context context) {
+        DatabaseHelper helper = new DatabaseHelper(context.getApplicationContext(), TUNED_DB);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < INSERTS; i++) {
+                helper.addMessage(CHAT_NAME, "You", "Benchmark message " + i, "12:00", true);
+            }
+            double insertRate = rate(INSERTS, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                helper.getMessagesForChat(CHAT_NAME);
+            }
+            double queryRate = rate(QUERIES, System.nanoTime() - start);
+
+            return new double[]{insertRate, queryRate};
+        } finally {
+            helper.close();
+        }
+    }
+
+    // Журнал: по одному сообщению на вызов, как addMessage
+    private static double[] runLog(File directory) {
+        try (MessageLog log = MessageLog.open(directory)) {
+            List<DatabaseHelper.Message> batch = new ArrayList<>(1);
+            batch.add(null);
+            long start = System.nanoTime();
+            for (int i = 0; i < LOG_INSERTS; i++) {
+                String chat = i % LOG_CHATS == 0 ? CHAT_NAME : CHAT_NAME + " " + i % LOG_CHATS;
+                batch.set(0, new DatabaseHelper.Message(0, chat, "You", "Benchmark message " + i, "12:00", true));
+                log.append(batch, false);
+            }
+            double insertRate = rate(LOG_INSERTS, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < QUERIES; i++) {
+                log.read(CHAT_NAME, 0, Long.MAX_VALUE, Integer.MAX_VALUE);
+            }
+            double queryRate = rate(QUERIES, System.nanoTime() - start);
+
+            return new double[]{insertRate, queryRate};
+        } catch (IOException e) {
+            System.out.println("❌ Nico: Message log benchmark failed - " + e.getMessage());
+            return new double[]{0, 0};
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static double rate(int operations, long nanos) {
+        return operations / (nanos / 1_000_000_000.0);
+    }
+}
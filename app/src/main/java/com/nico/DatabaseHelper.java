@@ -2,17 +2,26 @@ package com.nico;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
     
     // Информация о базе данных
     private static final String DATABASE_NAME = "NicoMessenger.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 6;
     
     // Названия таблиц и колонок
     private static final String TABLE_MESSAGES = "messages";
@@ -22,9 +31,308 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String COLUMN_MESSAGE = "message";
     private static final String COLUMN_TIMESTAMP = "timestamp";
     private static final String COLUMN_IS_OUTGOING = "is_outgoing";
+    // Откуда пришло сообщение: IP собеседника и id строки на его устройстве (NULL - написано здесь)
+    private static final String COLUMN_ORIGIN = "origin";
+    private static final String COLUMN_ORIGIN_ID = "origin_id";
+    // Время сохранения (мс) - по нему работает HistoryRetention, timestamp только для показа
+    private static final String COLUMN_CREATED_AT = "created_at";
+    // Кому отправлено своё сообщение: IP собеседника или RECIPIENT_GROUP (см. getOutgoingMessagesAfter)
+    private static final String COLUMN_RECIPIENT = "recipient";
     
-    public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    // Водяные знаки синхронизации: до какого id мы уже забрали историю собеседника
+    private static final String TABLE_SYNC_STATE = "sync_state";
+    private static final String COLUMN_PEER = "peer";
+    private static final String COLUMN_LAST_REMOTE_ID = "last_remote_id";
+    
+    // Групповые чаты: участники и статус доставки каждому из них.
+    // Статусы есть и у личных сообщений - строки FAILED и есть очередь на повтор
+    // (чат нужен, чтобы найти сообщение в журнале - см. getUndeliveredMessages)
+    private static final String TABLE_GROUP_MEMBERS = "group_members";
+    private static final String COLUMN_MEMBER_IP = "member_ip";
+    private static final String TABLE_DELIVERY = "message_delivery";
+    private static final String COLUMN_MESSAGE_ID = "message_id";
+    private static final String COLUMN_STATUS = "status";
+    
+    // Получатели сообщения группового чата - текущие участники группы
+    public static final String RECIPIENT_GROUP = "*";
+    
+    // PENDING - ещё не подтверждено (в том числе уже записано в сокет),
+    // SENT - получатель подтвердил сохранение (TYPE_MESSAGES_ACK),
+    // FAILED - не удалось записать, NetworkManager повторит отправку
+    public static final int DELIVERY_PENDING = 0;
+    public static final int DELIVERY_SENT = 1;
+    public static final int DELIVERY_FAILED = 2;
+    
+    // Изменения, о которых сообщается в EventBus (EVENT_CHANGE) после commit каждой записи -
+    // по ним живые запросы (LiveQuery) дочитывают только новое вместо полного перезапроса
+    public static final int CHANGE_INSERT = 1;
+    public static final int CHANGE_DELETE = 2;
+    public static final int CHANGE_MEMBERS = 3;
+    
+    // Настройки соединения (см. onConfigure)
+    private static final int CACHE_SIZE_KB = 4 * 1024;
+    private static final long MMAP_SIZE_BYTES = 32L * 1024 * 1024;
+    private static final int SQL_CACHE_SIZE = 50;
+    
+    // Журнал сообщений (см. MessageLog): включён - сообщения хранятся в нём, а в SQLite
+    // остаются только метаданные (водяные знаки, группы, статусы доставки)
+    private static final String PREFS_NAME = "nico_prefs";
+    private static final String KEY_MESSAGE_LOG = "message_log";
+    private static final String KEY_MESSAGE_LOG_MIGRATED = "message_log_migrated";
+    private static final String MESSAGE_LOG_DIRECTORY = "messagelog";
+    private static final int LOG_PAGE_SIZE = 1000;
+    // Колонки полного сообщения (резервная копия, перенос в журнал)
+    private static final String[] FULL_MESSAGE_COLUMNS = {COLUMN_ID, COLUMN_CHAT_NAME, COLUMN_SENDER,
+            COLUMN_MESSAGE, COLUMN_TIMESTAMP, COLUMN_IS_OUTGOING, COLUMN_CREATED_AT, COLUMN_ORIGIN, COLUMN_ORIGIN_ID,
+            COLUMN_RECIPIENT};
+    
+    private static DatabaseHelper instance;
+    
+    // Предкомпилированные запросы для горячих путей. Привязка параметров не потокобезопасна,
+    // поэтому работаем с ними под statementLock (не под this - на this синхронизирован
+    // getReadableDatabase, и читатели ждали бы каждую вставку).
+    // Порядок всегда: сначала statementLock, потом соединение/транзакция.
+    private final Object statementLock = new Object();
+    private SQLiteStatement insertMessageStatement;
+    private SQLiteStatement insertPeerMessageStatement;
+    private SQLiteStatement importMessageStatement;
+    // null - сообщения в SQLite. Меняется один раз, под statementLock (см. enableMessageLog)
+    private volatile MessageLog messageLog;
+    // Журнал включён, но ещё не открыт (открывается при первом обращении, см. messageLog()).
+    // Порядок блокировок: messageLogLock, потом statementLock
+    private final Object messageLogLock = new Object();
+    private final SharedPreferences prefs;
+    private final File messageLogDirectory;
+    private volatile boolean messageLogPending;
+    // История уже перенесена - в SQLite сообщений нет, отступать туда нельзя
+    private volatile boolean messageLogMigrated;
+    private volatile String messageLogError;
+    
+    // Обход всей истории курсором (см. HistoryBackup)
+    public interface MessageVisitor {
+        void visit(Message message) throws IOException;
+    }
+    
+    // Одно долгоживущее соединение на процесс: вставка без открытия базы и fsync на каждую запись.
+    // Выигрыш - на записи; чтение чата в замере на ПК не ускорилось (см. DatabaseBenchmark)
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new DatabaseHelper(context.getApplicationContext(), DATABASE_NAME);
+            // Журнал здесь не открываем - открытие читает все сегменты, а getInstance
+            // зовут и с главного потока. Его откроет поток записи (см. AsyncDatabase)
+            instance.loadMessageLogState();
+        }
+        return instance;
+    }
+    
+    // Включён ли журнал и перенесена ли в него история - из настроек
+    void loadMessageLogState() {
+        messageLogPending = prefs.getBoolean(KEY_MESSAGE_LOG, false);
+        messageLogMigrated = prefs.getBoolean(KEY_MESSAGE_LOG_MIGRATED, false);
+    }
+    
+    // Переводит хранение сообщений в журнал. Один раз и обратно не переключается:
+    // история переносится из SQLite с теми же id (статусы доставки ссылаются на них).
+    // Перенос долгий - вызывать с фонового потока
+    public void enableMessageLog() throws IOException {
+        synchronized (messageLogLock) {
+            if (messageLog != null) {
+                return;
+            }
+            // Явное включение - ещё одна попытка после прошлой ошибки
+            messageLogError = null;
+            messageLogPending = true;
+            openPendingMessageLog();
+            if (messageLog == null) {
+                throw new IOException(messageLogError);
+            }
+        }
+        prefs.edit().putBoolean(KEY_MESSAGE_LOG, true).apply();
+    }
+    
+    // Включён, даже если ещё открывается в фоне
+    public boolean isMessageLogEnabled() {
+        return messageLog != null || messageLogPending;
+    }
+    
+    // Открывает включённый журнал; перенос доделывается, если прерывался.
+    // Ошибка до переноса - остаёмся на SQLite; после - запоминаем, и messageLog() отказывает
+    public void openPendingMessageLog() {
+        synchronized (messageLogLock) {
+            if (messageLog != null || !messageLogPending || messageLogError != null) {
+                return;
+            }
+            try {
+                openMessageLog();
+                messageLogPending = false;
+            } catch (IOException | SQLException e) {
+                messageLogError = "Message log not opened - " + e.getMessage();
+                if (messageLogMigrated) {
+                    System.out.println("❌ Nico: " + messageLogError + ", messages unavailable");
+                } else {
+                    messageLogPending = false;
+                    System.out.println("❌ Nico: " + messageLogError + ", using SQLite");
+                }
+            }
+        }
+    }
+    
+    // Журнал для операции с сообщениями; null - сообщения в SQLite.
+    // До конца переноса история в SQLite - не ждём открытия. После переноса SQLite пуст,
+    // поэтому ждём открытия, а если журнал не открылся - отказываем, а не пишем мимо него.
+    // Под statementLock вызывать можно: открытие без переноса statementLock не берёт
+    private MessageLog messageLog() {
+        MessageLog log = messageLog;
+        if (log != null || !messageLogPending || !messageLogMigrated) {
+            return log;
+        }
+        openPendingMessageLog();
+        log = messageLog;
+        if (log == null) {
+            throw new SQLException(messageLogError);
+        }
+        return log;
+    }
+    
+    private void openMessageLog() throws IOException {
+        MessageLog log = MessageLog.open(messageLogDirectory);
+        if (messageLogMigrated) {
+            messageLog = log;
+            return;
+        }
+        try {
+            // Основная часть - без блокировки, запись в SQLite продолжается
+            int moved = migrateToLog(log);
+            synchronized (statementLock) {
+                // Хвост, пришедший за время переноса; дальше все записи идут в журнал
+                moved += migrateToLog(log);
+                // Id, которые SQLite уже выдавал (в том числе удалённым сообщениям), журнал не повторит
+                log.reserveIds(getLastMessageId());
+                log.flush();
+                // Сначала удаляем перенесённое, потом отмечаем перенос: сбой между ними
+                // просто повторит перенос пустой таблицы
+                getWritableDatabase().delete(TABLE_MESSAGES, null, null);
+                messageLog = log;
+            }
+            prefs.edit().putBoolean(KEY_MESSAGE_LOG_MIGRATED, true).commit();
+            messageLogMigrated = true;
+            System.out.println("📚 Nico: Moved " + moved + " messages to the message log");
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+    
+    // Последний id, выданный таблицей messages (AUTOINCREMENT хранит его в sqlite_sequence)
+    private long getLastMessageId() {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT seq FROM sqlite_sequence WHERE name = ?", new String[]{TABLE_MESSAGES});
+        long lastId = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        cursor.close();
+        return lastId;
+    }
+    
+    // Переносит сообщения SQLite с id больше последнего в журнале - продолжается после сбоя
+    private int migrateToLog(MessageLog log) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        int moved = 0;
+        while (true) {
+            List<Message> page = new ArrayList<>();
+            Cursor cursor = db.query(TABLE_MESSAGES, FULL_MESSAGE_COLUMNS,
+                    COLUMN_ID + " >= ?", new String[]{String.valueOf(log.getNextId())},
+                    null, null, COLUMN_ID + " ASC", String.valueOf(LOG_PAGE_SIZE));
+            while (cursor.moveToNext()) {
+                page.add(readFullMessage(cursor));
+            }
+            cursor.close();
+            if (page.isEmpty()) {
+                return moved;
+            }
+            appendToLog(log, page, true);
+            moved += page.size();
+        }
+    }
+    
+    // Ошибка журнала - как ошибка SQLite: вызывающий код её уже так обрабатывает
+    private static long[] appendToLog(MessageLog log, List<Message> batch, boolean keepIds) {
+        try {
+            return log.append(batch, keepIds);
+        } catch (IOException e) {
+            throw new SQLException("Message log write failed: " + e.getMessage());
+        }
+    }
+    
+    // Копия входящего сообщения для журнала: id отправителя становится origin_id
+    private static Message fromPeer(String origin, Message message) {
+        Message copy = new Message(0, message.chatName, message.sender, message.text, message.time, false);
+        if (message.id > 0) {
+            copy.origin = origin;
+            copy.originId = message.id;
+        }
+        return copy;
+    }
+    
+    private static List<Message> fromPeer(String origin, List<Message> batch) {
+        List<Message> copies = new ArrayList<>(batch.size());
+        for (Message message : batch) {
+            copies.add(fromPeer(origin, message));
+        }
+        return copies;
+    }
+    
+    // Отдельный файл базы - только для DatabaseBenchmark
+    DatabaseHelper(Context context, String databaseName) {
+        this(context, databaseName, context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE),
+                new File(context.getFilesDir(), MESSAGE_LOG_DIRECTORY));
+    }
+    
+    // Свои настройки и каталог журнала - для тестов, чтобы не трогать данные приложения
+    DatabaseHelper(Context context, String databaseName, SharedPreferences prefs, File messageLogDirectory) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        this.prefs = prefs;
+        this.messageLogDirectory = messageLogDirectory;
+        // WAL: читатели не блокируют писателя и друг друга (см. AsyncDatabase).
+        // Поэтому соединение больше не закрываем после каждого запроса -
+        // close() посреди чужого запроса роняет параллельного читателя.
+        setWriteAheadLoggingEnabled(true);
+    }
+    
+    // Соединение приложения не закрывается (см. конструктор) - только отдельные базы тестов и замеров
+    @Override
+    public synchronized void close() {
+        MessageLog log = messageLog;
+        if (log != null) {
+            log.close();
+        }
+        super.close();
+    }
+    
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Для новой базы - освобождённые страницы можно вернуть через incremental_vacuum.
+        // На существующей базе вступает в силу только после VACUUM (см. enableIncrementalVacuum)
+        pragma(db, "auto_vacuum = INCREMENTAL");
+        // В WAL режиме NORMAL не теряет целостность, но не делает fsync на каждый коммит
+        pragma(db, "synchronous = NORMAL");
+        // Отрицательное значение - размер в килобайтах, а не в страницах
+        pragma(db, "cache_size = -" + CACHE_SIZE_KB);
+        pragma(db, "mmap_size = " + MMAP_SIZE_BYTES);
+    }
+    
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // Кэш скомпилированных запросов соединения (query/rawQuery с одинаковым SQL)
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+    }
+    
+    // PRAGMA с результатом нельзя выполнить через execSQL на Android
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
     
     @Override
@@ -36,9 +344,16 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 + COLUMN_SENDER + " TEXT,"
                 + COLUMN_MESSAGE + " TEXT,"
                 + COLUMN_TIMESTAMP + " TEXT,"
-                + COLUMN_IS_OUTGOING + " INTEGER" + ")";
+                + COLUMN_IS_OUTGOING + " INTEGER,"
+                + COLUMN_ORIGIN + " TEXT,"
+                + COLUMN_ORIGIN_ID + " INTEGER,"
+                + COLUMN_CREATED_AT + " INTEGER,"
+                + COLUMN_RECIPIENT + " TEXT" + ")";
         
         db.execSQL(CREATE_MESSAGES_TABLE);
+        createSyncSchema(db);
+        createGroupSchema(db);
+        createDeliveryIndex(db);
         
         System.out.println("🗃️ Nico: Database created successfully!");
         
@@ -48,9 +363,65 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // При обновлении базы удаляем старую таблицу
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGES);
-        onCreate(db);
+        // Миграции по шагам, чтобы не терять историю
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_ORIGIN + " TEXT");
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_ORIGIN_ID + " INTEGER");
+            createSyncSchema(db);
+        }
+        if (oldVersion < 3) {
+            createGroupSchema(db);
+        }
+        if (oldVersion < 4) {
+            // Старым сообщениям ставим время миграции - срок хранения считается от неё
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_CREATED_AT + " INTEGER");
+            db.execSQL("UPDATE " + TABLE_MESSAGES + " SET " + COLUMN_CREATED_AT + " = ?",
+                    new Object[]{System.currentTimeMillis()});
+        }
+        if (oldVersion < 5) {
+            // У старых исходящих получатель неизвестен - при синхронизации они никому не отдаются
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGES + " ADD COLUMN " + COLUMN_RECIPIENT + " TEXT");
+        }
+        if (oldVersion >= 3 && oldVersion < 6) {
+            // Старые строки без чата: в журнале их не найти, повтор их пропускает
+            db.execSQL("ALTER TABLE " + TABLE_DELIVERY + " ADD COLUMN " + COLUMN_CHAT_NAME + " TEXT");
+        }
+        if (oldVersion < 6) {
+            createDeliveryIndex(db);
+        }
+    }
+    
+    private void createGroupSchema(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_GROUP_MEMBERS + "("
+                + COLUMN_CHAT_NAME + " TEXT,"
+                + COLUMN_MEMBER_IP + " TEXT,"
+                + "PRIMARY KEY (" + COLUMN_CHAT_NAME + ", " + COLUMN_MEMBER_IP + "))");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_DELIVERY + "("
+                + COLUMN_MESSAGE_ID + " INTEGER,"
+                + COLUMN_MEMBER_IP + " TEXT,"
+                + COLUMN_STATUS + " INTEGER,"
+                + COLUMN_CHAT_NAME + " TEXT,"
+                + "PRIMARY KEY (" + COLUMN_MESSAGE_ID + ", " + COLUMN_MEMBER_IP + "))");
+    }
+    
+    // Очередь на повтор - выборка по статусу, без прохода по всей таблице
+    private void createDeliveryIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_delivery_status ON " + TABLE_DELIVERY
+                + "(" + COLUMN_STATUS + ")");
+    }
+    
+    // Таблица водяных знаков и индексы для синхронизации истории
+    private void createSyncSchema(SQLiteDatabase db) {
+        // Одно и то же сообщение собеседника не сохранится дважды
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS idx_messages_origin ON " + TABLE_MESSAGES
+                + "(" + COLUMN_ORIGIN + ", " + COLUMN_ORIGIN_ID + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_messages_chat ON " + TABLE_MESSAGES
+                + "(" + COLUMN_CHAT_NAME + ", " + COLUMN_ID + ")");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_SYNC_STATE + "("
+                + COLUMN_PEER + " TEXT,"
+                + COLUMN_CHAT_NAME + " TEXT,"
+                + COLUMN_LAST_REMOTE_ID + " INTEGER,"
+                + "PRIMARY KEY (" + COLUMN_PEER + ", " + COLUMN_CHAT_NAME + "))");
     }
     
     // Добавляем тестовые сообщения
@@ -67,21 +438,52 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     
     // Метод для добавления сообщения
     public long addMessage(String chatName, String sender, String message, String timestamp, boolean isOutgoing) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_CHAT_NAME, chatName);
-        values.put(COLUMN_SENDER, sender);
-        values.put(COLUMN_MESSAGE, message);
-        values.put(COLUMN_TIMESTAMP, timestamp);
-        values.put(COLUMN_IS_OUTGOING, isOutgoing ? 1 : 0);
-        
-        long result = db.insert(TABLE_MESSAGES, null, values);
-        db.close();
+        return addMessage(chatName, sender, message, timestamp, isOutgoing, null);
+    }
+    
+    // recipient - кому ушло своё сообщение (IP или RECIPIENT_GROUP); null - никому, только локально
+    public long addMessage(String chatName, String sender, String message, String timestamp, boolean isOutgoing,
+                           String recipient) {
+        long result;
+        synchronized (statementLock) {
+            MessageLog log = messageLog();
+            if (log != null) {
+                Message entry = new Message(0, chatName, sender, message, timestamp, isOutgoing);
+                entry.recipient = recipient;
+                result = appendToLog(log, Collections.singletonList(entry), false)[0];
+            } else {
+                result = insertMessage(getWritableDatabase(), chatName, sender, message, timestamp, isOutgoing,
+                        recipient);
+            }
+        }
+        if (result != -1) {
+            EventBus.getInstance().publishChange(chatName, CHANGE_INSERT, result, result);
+        }
         
         System.out.println("💾 Nico: Message saved to database - " + message);
         return result;
     }
     
+    // Вызывать только под statementLock
+    private long insertMessage(SQLiteDatabase db, String chatName, String sender, String message,
+                               String timestamp, boolean isOutgoing, String recipient) {
+        if (insertMessageStatement == null) {
+            insertMessageStatement = db.compileStatement(
+                    "INSERT INTO " + TABLE_MESSAGES + "("
+                    + COLUMN_CHAT_NAME + ", " + COLUMN_SENDER + ", " + COLUMN_MESSAGE + ", "
+                    + COLUMN_TIMESTAMP + ", " + COLUMN_IS_OUTGOING + ", "
+                    + COLUMN_CREATED_AT + ", " + COLUMN_RECIPIENT + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        }
+        bindText(insertMessageStatement, 1, chatName);
+        bindText(insertMessageStatement, 2, sender);
+        bindText(insertMessageStatement, 3, message);
+        bindText(insertMessageStatement, 4, timestamp);
+        insertMessageStatement.bindLong(5, isOutgoing ? 1 : 0);
+        insertMessageStatement.bindLong(6, System.currentTimeMillis());
+        bindText(insertMessageStatement, 7, recipient);
+        return insertMessageStatement.executeInsert();
+    }
+    
     // Внутренний метод для добавления тестовых сообщений
     private void addMessage(SQLiteDatabase db, String chatName, String sender, String message, String timestamp, int isOutgoing) {
         ContentValues values = new ContentValues();
@@ -90,12 +492,753 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         values.put(COLUMN_MESSAGE, message);
         values.put(COLUMN_TIMESTAMP, timestamp);
         values.put(COLUMN_IS_OUTGOING, isOutgoing);
+        values.put(COLUMN_CREATED_AT, System.currentTimeMillis());
         
         db.insert(TABLE_MESSAGES, null, values);
     }
     
+    // Пачка входящих сообщений одной транзакцией (см. InboundQueue).
+    // id <= 0 - сообщение по старому текстовому протоколу, без id отправителя.
+    // Водяные знаки сдвигаются в той же транзакции - синхронизация не запросит их повторно.
+    // Возвращает только новые сообщения - дубликаты отсеяны.
+    public List<Message> addPeerMessages(String origin, List<Message> batch) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        List<Message> inserted = new ArrayList<>();
+        Map<String, Long> watermarks = new HashMap<>();
+        Map<String, long[]> changes = new HashMap<>();
+        
+        synchronized (statementLock) {
+            // Журнал: id выдаются одной пачкой, транзакция SQLite остаётся пустой
+            MessageLog log = messageLog();
+            long[] logged = log != null ? appendToLog(log, fromPeer(origin, batch), false) : null;
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    Message message = batch.get(i);
+                    long result = logged != null ? logged[i]
+                            : message.id > 0
+                            ? insertPeerMessage(db, origin, message)
+                            : insertMessage(db, message.chatName, message.sender, message.text, message.time, false, null);
+                    if (result != -1) {
+                        inserted.add(message);
+                        trackInsert(changes, message.chatName, result);
+                    }
+                    if (message.id > 0) {
+                        trackWatermark(watermarks, message.chatName, message.id);
+                    }
+                }
+                advanceWatermarks(db, origin, watermarks);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        publishInserts(changes);
+        return inserted;
+    }
+    
+    // Пачка синхронизированных сообщений одной транзакцией + сдвиг водяных знаков
+    public int addSyncedMessages(String origin, List<Message> batch) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        Map<String, Long> watermarks = new HashMap<>();
+        Map<String, long[]> changes = new HashMap<>();
+        int inserted = 0;
+        
+        synchronized (statementLock) {
+            // Журнал: сообщения пишутся туда, в транзакции остаются только водяные знаки
+            MessageLog log = messageLog();
+            long[] logged = log != null ? appendToLog(log, fromPeer(origin, batch), false) : null;
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    Message message = batch.get(i);
+                    long result = logged != null ? logged[i] : insertPeerMessage(db, origin, message);
+                    if (result != -1) {
+                        inserted++;
+                        trackInsert(changes, message.chatName, result);
+                    }
+                    trackWatermark(watermarks, message.chatName, message.id);
+                }
+                advanceWatermarks(db, origin, watermarks);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        
+        publishInserts(changes);
+        System.out.println("🔄 Nico: Synced " + inserted + "/" + batch.size() + " messages from " + origin);
+        return inserted;
+    }
+    
+    private static void trackWatermark(Map<String, Long> watermarks, String chatName, long id) {
+        Long current = watermarks.get(chatName);
+        if (current == null || id > current) {
+            watermarks.put(chatName, id);
+        }
+    }
+    
+    // Вызывать внутри транзакции записи сообщений
+    private static void advanceWatermarks(SQLiteDatabase db, String origin, Map<String, Long> watermarks) {
+        for (Map.Entry<String, Long> entry : watermarks.entrySet()) {
+            // MAX() - водяной знак никогда не откатывается назад
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_SYNC_STATE
+                    + "(" + COLUMN_PEER + ", " + COLUMN_CHAT_NAME + ", " + COLUMN_LAST_REMOTE_ID + ")"
+                    + " VALUES (?, ?, MAX(?, COALESCE((SELECT " + COLUMN_LAST_REMOTE_ID
+                    + " FROM " + TABLE_SYNC_STATE + " WHERE " + COLUMN_PEER + " = ? AND "
+                    + COLUMN_CHAT_NAME + " = ?), 0)))",
+                    new Object[]{origin, entry.getKey(), entry.getValue(), origin, entry.getKey()});
+        }
+    }
+    
+    // Вызывать только под statementLock
+    private long insertPeerMessage(SQLiteDatabase db, String origin, Message message) {
+        if (insertPeerMessageStatement == null) {
+            insertPeerMessageStatement = db.compileStatement(
+                    "INSERT OR IGNORE INTO " + TABLE_MESSAGES + "("
+                    + COLUMN_CHAT_NAME + ", " + COLUMN_SENDER + ", " + COLUMN_MESSAGE + ", "
+                    + COLUMN_TIMESTAMP + ", " + COLUMN_IS_OUTGOING + ", "
+                    + COLUMN_ORIGIN + ", " + COLUMN_ORIGIN_ID + ", " + COLUMN_CREATED_AT
+                    + ") VALUES (?, ?, ?, ?, 0, ?, ?, ?)");
+        }
+        bindText(insertPeerMessageStatement, 1, message.chatName);
+        bindText(insertPeerMessageStatement, 2, message.sender);
+        bindText(insertPeerMessageStatement, 3, message.text);
+        bindText(insertPeerMessageStatement, 4, message.time);
+        bindText(insertPeerMessageStatement, 5, origin);
+        insertPeerMessageStatement.bindLong(6, message.id);
+        insertPeerMessageStatement.bindLong(7, System.currentTimeMillis());
+        // -1, если такое сообщение уже есть (OR IGNORE)
+        return insertPeerMessageStatement.executeInsert();
+    }
+    
+    // Диапазон id, добавленных в чат за транзакцию; публикуется после commit
+    private static void trackInsert(Map<String, long[]> changes, String chatName, long id) {
+        long[] range = changes.get(chatName);
+        if (range == null) {
+            changes.put(chatName, new long[]{id, id});
+        } else {
+            range[0] = Math.min(range[0], id);
+            range[1] = Math.max(range[1], id);
+        }
+    }
+    
+    private static void publishInserts(Map<String, long[]> changes) {
+        for (Map.Entry<String, long[]> entry : changes.entrySet()) {
+            EventBus.getInstance().publishChange(entry.getKey(), CHANGE_INSERT, entry.getValue()[0], entry.getValue()[1]);
+        }
+    }
+    
+    private static void bindText(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+    
+    // Водяные знаки собеседника по всем чатам
+    public Map<String, Long> getSyncWatermarks(String peer) {
+        Map<String, Long> watermarks = new HashMap<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        
+        Cursor cursor = db.query(TABLE_SYNC_STATE,
+                new String[]{COLUMN_CHAT_NAME, COLUMN_LAST_REMOTE_ID},
+                COLUMN_PEER + " = ?", new String[]{peer},
+                null, null, null);
+        while (cursor.moveToNext()) {
+            watermarks.put(cursor.getString(0), cursor.getLong(1));
+        }
+        
+        cursor.close();
+        return watermarks;
+    }
+    
+    // Самый большой id собеседника среди его сообщений, которые реально лежат в чате
+    // (водяной знак может уйти дальше - см. addPeerMessages); 0 - сообщений нет
+    public long getLastReceivedId(String chatName, String origin) {
+        MessageLog log = messageLog();
+        if (log != null) {
+            return log.getLastOriginId(chatName, origin);
+        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        
+        Cursor cursor = db.query(TABLE_MESSAGES, new String[]{"MAX(" + COLUMN_ORIGIN_ID + ")"},
+                COLUMN_CHAT_NAME + " = ? AND " + COLUMN_ORIGIN + " = ?",
+                new String[]{chatName, origin}, null, null, null);
+        long lastId = cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+        
+        cursor.close();
+        return lastId;
+    }
+    
+    // Чаты, где есть сообщения (все или только от указанного собеседника)
+    public List<String> getChatNames(String origin) {
+        MessageLog log = messageLog();
+        if (log != null) {
+            return log.getChatNames(origin);
+        }
+        List<String> names = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        
+        Cursor cursor = db.query(true, TABLE_MESSAGES, new String[]{COLUMN_CHAT_NAME},
+                origin == null ? null : COLUMN_ORIGIN + " = ?",
+                origin == null ? null : new String[]{origin},
+                null, null, null, null);
+        while (cursor.moveToNext()) {
+            names.add(cursor.getString(0));
+        }
+        
+        cursor.close();
+        return names;
+    }
+    
+    // Страница своих исходящих сообщений после водяного знака (память не растёт с историей).
+    // Только отправленные этому собеседнику: ему лично или в группу, где он сейчас участник -
+    // чужую переписку синхронизация не отдаёт.
+    public List<Message> getOutgoingMessagesAfter(String chatName, String peerIp, long afterId, int limit) {
+        List<Message> messages = new ArrayList<>();
+        boolean member = getGroupMembers(chatName).contains(peerIp);
+        MessageLog log = messageLog();
+        if (log != null) {
+            // В журнале нет выборки по полям - читаем чат страницами и фильтруем
+            while (messages.size() < limit) {
+                List<Message> page = log.read(chatName, afterId, Long.MAX_VALUE, LOG_PAGE_SIZE);
+                for (Message message : page) {
+                    boolean addressed = peerIp.equals(message.recipient)
+                            || member && RECIPIENT_GROUP.equals(message.recipient);
+                    if (message.isOutgoing && message.origin == null && addressed && messages.size() < limit) {
+                        messages.add(message);
+                    }
+                }
+                if (page.size() < LOG_PAGE_SIZE) {
+                    break;
+                }
+                afterId = page.get(page.size() - 1).id;
+            }
+            return messages;
+        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        
+        Cursor cursor = db.query(TABLE_MESSAGES,
+                new String[]{COLUMN_ID, COLUMN_SENDER, COLUMN_MESSAGE, COLUMN_TIMESTAMP},
+                COLUMN_CHAT_NAME + " = ? AND " + COLUMN_ID + " > ? AND "
+                        + COLUMN_IS_OUTGOING + " = 1 AND " + COLUMN_ORIGIN + " IS NULL AND "
+                        + COLUMN_RECIPIENT + " IN (?, ?)",
+                new String[]{chatName, String.valueOf(afterId), peerIp, member ? RECIPIENT_GROUP : peerIp},
+                null, null, COLUMN_ID + " ASC", String.valueOf(limit));
+        while (cursor.moveToNext()) {
+            messages.add(new Message(cursor.getLong(0), chatName, cursor.getString(1),
+                    cursor.getString(2), cursor.getString(3), true));
+        }
+        
+        cursor.close();
+        return messages;
+    }
+    
+    // Полностью заменяем состав группы
+    public void setGroupMembers(String chatName, List<String> memberIps) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_GROUP_MEMBERS, COLUMN_CHAT_NAME + " = ?", new String[]{chatName});
+            for (String ip : memberIps) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_CHAT_NAME, chatName);
+                values.put(COLUMN_MEMBER_IP, ip);
+                db.insertWithOnConflict(TABLE_GROUP_MEMBERS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        
+        EventBus.getInstance().publishChange(chatName, CHANGE_MEMBERS, 0, 0);
+        System.out.println("👥 Nico: Group " + chatName + " has " + memberIps.size() + " members");
+    }
+    
+    // Участники группы (пустой список - обычный чат один на один)
+    public List<String> getGroupMembers(String chatName) {
+        List<String> members = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        
+        Cursor cursor = db.query(TABLE_GROUP_MEMBERS, new String[]{COLUMN_MEMBER_IP},
+                COLUMN_CHAT_NAME + " = ?", new String[]{chatName},
+                null, null, COLUMN_MEMBER_IP + " ASC");
+        while (cursor.moveToNext()) {
+            members.add(cursor.getString(0));
+        }
+        
+        cursor.close();
+        return members;
+    }
+    
+    // Статусы доставки сообщения всем участникам одной транзакцией
+    public void setDeliveryStatuses(long messageId, String chatName, Map<String, Integer> statuses) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, Integer> entry : statuses.entrySet()) {
+                db.execSQL("INSERT OR REPLACE INTO " + TABLE_DELIVERY
+                        + "(" + COLUMN_MESSAGE_ID + ", " + COLUMN_MEMBER_IP + ", " + COLUMN_STATUS + ", "
+                        + COLUMN_CHAT_NAME + ") VALUES (?, ?, ?, ?)",
+                        new Object[]{messageId, entry.getKey(), entry.getValue(), chatName});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+    
+    // Один статус для пачки личных сообщений одному собеседнику
+    public void setDeliveryStatus(String memberIp, List<Message> messages, int status) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Message message : messages) {
+                db.execSQL("INSERT OR REPLACE INTO " + TABLE_DELIVERY
+                        + "(" + COLUMN_MESSAGE_ID + ", " + COLUMN_MEMBER_IP + ", " + COLUMN_STATUS + ", "
+                        + COLUMN_CHAT_NAME + ") VALUES (?, ?, ?, ?)",
+                        new Object[]{message.id, memberIp, status, message.chatName});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+    
+    // Участник подтвердил сообщения
+    public void markDelivered(String memberIp, List<Long> messageIds) {
+        updateDeliveryStatus(memberIp, messageIds, DELIVERY_SENT, null);
+    }
+    
+    // Повтор записан в сокет - снова ждём подтверждения. Только из FAILED:
+    // подтверждение, пришедшее раньше этого вызова, не затирается
+    public void markRetried(String memberIp, List<Long> messageIds) {
+        updateDeliveryStatus(memberIp, messageIds, DELIVERY_PENDING, DELIVERY_FAILED);
+    }
+    
+    private void updateDeliveryStatus(String memberIp, List<Long> messageIds, int status, Integer onlyFrom) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (long messageId : messageIds) {
+                if (onlyFrom == null) {
+                    db.execSQL("UPDATE " + TABLE_DELIVERY + " SET " + COLUMN_STATUS + " = ?"
+                            + " WHERE " + COLUMN_MESSAGE_ID + " = ? AND " + COLUMN_MEMBER_IP + " = ?",
+                            new Object[]{status, messageId, memberIp});
+                } else {
+                    db.execSQL("UPDATE " + TABLE_DELIVERY + " SET " + COLUMN_STATUS + " = ?"
+                            + " WHERE " + COLUMN_MESSAGE_ID + " = ? AND " + COLUMN_MEMBER_IP + " = ?"
+                            + " AND " + COLUMN_STATUS + " = ?",
+                            new Object[]{status, messageId, memberIp, onlyFrom});
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+    
+    // Очередь на повтор: до limit сообщений со статусом FAILED, по получателям.
+    // Строки сообщений, которых уже нет, из очереди убираются
+    public Map<String, List<Message>> getUndeliveredMessages(int limit) {
+        Map<String, List<Message>> outbox = new LinkedHashMap<>();
+        SQLiteDatabase db = this.getWritableDatabase();
+        MessageLog log = messageLog();
+        
+        Cursor cursor = db.query(TABLE_DELIVERY,
+                new String[]{COLUMN_MESSAGE_ID, COLUMN_MEMBER_IP, COLUMN_CHAT_NAME},
+                COLUMN_STATUS + " = ?", new String[]{String.valueOf(DELIVERY_FAILED)},
+                null, null, COLUMN_MESSAGE_ID + " ASC", String.valueOf(limit));
+        List<Object[]> rows = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            rows.add(new Object[]{cursor.getLong(0), cursor.getString(1), cursor.getString(2)});
+        }
+        cursor.close();
+        
+        for (Object[] row : rows) {
+            long id = (Long) row[0];
+            Message message = null;
+            if (log != null) {
+                if (row[2] != null) {
+                    List<Message> found = log.read((String) row[2], id - 1, id, 1);
+                    message = found.isEmpty() ? null : found.get(0);
+                }
+            } else {
+                Cursor messageCursor = db.query(TABLE_MESSAGES,
+                        new String[]{COLUMN_CHAT_NAME, COLUMN_SENDER, COLUMN_MESSAGE, COLUMN_TIMESTAMP},
+                        COLUMN_ID + " = ?", new String[]{String.valueOf(id)}, null, null, null);
+                if (messageCursor.moveToFirst()) {
+                    message = new Message(id, messageCursor.getString(0), messageCursor.getString(1),
+                            messageCursor.getString(2), messageCursor.getString(3), true);
+                }
+                messageCursor.close();
+            }
+            if (message == null) {
+                // Повторять нечего - строка не должна занимать место в очереди
+                db.execSQL("DELETE FROM " + TABLE_DELIVERY + " WHERE " + COLUMN_MESSAGE_ID + " = ? AND "
+                        + COLUMN_MEMBER_IP + " = ?", new Object[]{id, row[1]});
+                continue;
+            }
+            List<Message> messages = outbox.get((String) row[1]);
+            if (messages == null) {
+                messages = new ArrayList<>();
+                outbox.put((String) row[1], messages);
+            }
+            messages.add(message);
+        }
+        return outbox;
+    }
+    
+    public Map<String, Integer> getDeliveryStatuses(long messageId) {
+        Map<String, Integer> statuses = new HashMap<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        
+        Cursor cursor = db.query(TABLE_DELIVERY, new String[]{COLUMN_MEMBER_IP, COLUMN_STATUS},
+                COLUMN_MESSAGE_ID + " = ?", new String[]{String.valueOf(messageId)},
+                null, null, null);
+        while (cursor.moveToNext()) {
+            statuses.put(cursor.getString(0), cursor.getInt(1));
+        }
+        
+        cursor.close();
+        return statuses;
+    }
+    
+    // ===== Срок хранения истории (см. HistoryRetention) =====
+    
+    // Самый новый id, который уже не проходит политику хранения чата (-1 - удалять нечего).
+    // Старше maxAgeMillis или за пределами последних maxCount сообщений; 0 - без ограничения.
+    public long getRetentionCutoff(String chatName, long maxAgeMillis, int maxCount) {
+        MessageLog log = messageLog();
+        if (log != null) {
+            long cutoff = maxAgeMillis > 0
+                    ? log.getLastIdCreatedBefore(chatName, System.currentTimeMillis() - maxAgeMillis) : -1;
+            int count = log.count(chatName);
+            if (maxCount > 0 && count > maxCount) {
+                cutoff = Math.max(cutoff, log.getIdAt(chatName, count - maxCount - 1));
+            }
+            return cutoff;
+        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        long cutoff = -1;
+        
+        if (maxAgeMillis > 0) {
+            Cursor cursor = db.rawQuery("SELECT MAX(" + COLUMN_ID + ") FROM " + TABLE_MESSAGES
+                    + " WHERE " + COLUMN_CHAT_NAME + " = ? AND " + COLUMN_CREATED_AT + " < ?",
+                    new String[]{chatName, String.valueOf(System.currentTimeMillis() - maxAgeMillis)});
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                cutoff = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        if (maxCount > 0) {
+            // id сообщения, первого за пределами последних maxCount
+            Cursor cursor = db.query(TABLE_MESSAGES, new String[]{COLUMN_ID},
+                    COLUMN_CHAT_NAME + " = ?", new String[]{chatName},
+                    null, null, COLUMN_ID + " DESC", maxCount + ", 1");
+            if (cursor.moveToFirst()) {
+                cutoff = Math.max(cutoff, cursor.getLong(0));
+            }
+            cursor.close();
+        }
+        return cutoff;
+    }
+    
+    // Самые старые сообщения чата до upToId включительно - страница для архивации
+    public List<Message> getMessagesUpTo(String chatName, long upToId, int limit) {
+        MessageLog log = messageLog();
+        if (log != null) {
+            return log.read(chatName, 0, upToId, limit);
+        }
+        List<Message> messages = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        
+        Cursor cursor = db.query(TABLE_MESSAGES,
+                new String[]{COLUMN_ID, COLUMN_SENDER, COLUMN_MESSAGE, COLUMN_TIMESTAMP,
+                        COLUMN_IS_OUTGOING, COLUMN_CREATED_AT, COLUMN_ORIGIN, COLUMN_ORIGIN_ID},
+                COLUMN_CHAT_NAME + " = ? AND " + COLUMN_ID + " <= ?",
+                new String[]{chatName, String.valueOf(upToId)},
+                null, null, COLUMN_ID + " ASC", String.valueOf(limit));
+        while (cursor.moveToNext()) {
+            Message message = new Message(cursor.getLong(0), chatName, cursor.getString(1),
+                    cursor.getString(2), cursor.getString(3), cursor.getInt(4) == 1);
+            message.createdAt = cursor.getLong(5);
+            message.origin = cursor.getString(6);
+            message.originId = cursor.getLong(7);
+            messages.add(message);
+        }
+        
+        cursor.close();
+        return messages;
+    }
+    
+    // Удаляем диапазон сообщений чата одной короткой транзакцией
+    public int deleteMessageRange(String chatName, long fromId, long toId) {
+        int deleted;
+        // Под statementLock - не пересекается с переносом истории в журнал
+        synchronized (statementLock) {
+            MessageLog log = messageLog();
+            deleted = log != null
+                    ? deleteLoggedRange(log, chatName, fromId, toId)
+                    : deleteMessageRows(chatName, fromId, toId);
+        }
+        if (deleted > 0) {
+            EventBus.getInstance().publishChange(chatName, CHANGE_DELETE, fromId, toId);
+        }
+        return deleted;
+    }
+    
+    private int deleteMessageRows(String chatName, long fromId, long toId) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        String range = COLUMN_CHAT_NAME + " = ? AND " + COLUMN_ID + " BETWEEN ? AND ?";
+        Object[] args = {chatName, fromId, toId};
+        int deleted;
+        
+        db.beginTransaction();
+        try {
+            // Удалённые сообщения собеседника не должны вернуться при следующей синхронизации -
+            // сдвигаем водяной знак за них (MAX - назад он не откатывается)
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_SYNC_STATE
+                    + "(" + COLUMN_PEER + ", " + COLUMN_CHAT_NAME + ", " + COLUMN_LAST_REMOTE_ID + ")"
+                    + " SELECT m." + COLUMN_ORIGIN + ", m." + COLUMN_CHAT_NAME + ", MAX(m.last_id, COALESCE("
+                    + "(SELECT s." + COLUMN_LAST_REMOTE_ID + " FROM " + TABLE_SYNC_STATE + " s"
+                    + " WHERE s." + COLUMN_PEER + " = m." + COLUMN_ORIGIN
+                    + " AND s." + COLUMN_CHAT_NAME + " = m." + COLUMN_CHAT_NAME + "), 0))"
+                    + " FROM (SELECT " + COLUMN_ORIGIN + ", " + COLUMN_CHAT_NAME + ", MAX(" + COLUMN_ORIGIN_ID + ") AS last_id"
+                    + " FROM " + TABLE_MESSAGES + " WHERE " + range + " AND " + COLUMN_ORIGIN + " IS NOT NULL"
+                    + " GROUP BY " + COLUMN_ORIGIN + ") m", args);
+            db.execSQL("DELETE FROM " + TABLE_DELIVERY + " WHERE " + COLUMN_MESSAGE_ID + " IN (SELECT "
+                    + COLUMN_ID + " FROM " + TABLE_MESSAGES + " WHERE " + range + ")", args);
+            deleted = db.delete(TABLE_MESSAGES, range,
+                    new String[]{chatName, String.valueOf(fromId), String.valueOf(toId)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return deleted;
+    }
+    
+    // То же для журнала: водяные знаки и статусы доставки считаются по прочитанному диапазону
+    private int deleteLoggedRange(MessageLog log, String chatName, long fromId, long toId) {
+        Map<String, Long> watermarks = new HashMap<>();
+        // Статусы доставки есть только у своих исходящих
+        List<Long> ownIds = new ArrayList<>();
+        int found = 0;
+        long afterId = fromId - 1;
+        while (true) {
+            List<Message> page = log.read(chatName, afterId, toId, LOG_PAGE_SIZE);
+            found += page.size();
+            for (Message message : page) {
+                if (message.origin == null && message.isOutgoing) {
+                    ownIds.add(message.id);
+                } else if (message.origin != null) {
+                    Long current = watermarks.get(message.origin);
+                    if (current == null || message.originId > current) {
+                        watermarks.put(message.origin, message.originId);
+                    }
+                }
+            }
+            if (page.size() < LOG_PAGE_SIZE) {
+                break;
+            }
+            afterId = page.get(page.size() - 1).id;
+        }
+        if (found == 0) {
+            return 0;
+        }
+        
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, Long> entry : watermarks.entrySet()) {
+                db.execSQL("INSERT OR REPLACE INTO " + TABLE_SYNC_STATE
+                        + "(" + COLUMN_PEER + ", " + COLUMN_CHAT_NAME + ", " + COLUMN_LAST_REMOTE_ID + ")"
+                        + " VALUES (?, ?, MAX(?, COALESCE((SELECT " + COLUMN_LAST_REMOTE_ID
+                        + " FROM " + TABLE_SYNC_STATE + " WHERE " + COLUMN_PEER + " = ? AND "
+                        + COLUMN_CHAT_NAME + " = ?), 0)))",
+                        new Object[]{entry.getKey(), chatName, entry.getValue(), entry.getKey(), chatName});
+            }
+            // В диапазоне id есть и сообщения других чатов - удаляем по списку, частями
+            for (int i = 0; i < ownIds.size(); i += LOG_PAGE_SIZE) {
+                db.execSQL("DELETE FROM " + TABLE_DELIVERY + " WHERE " + COLUMN_MESSAGE_ID + " IN ("
+                        + joinIds(ownIds.subList(i, Math.min(ownIds.size(), i + LOG_PAGE_SIZE))) + ")");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        try {
+            return log.delete(chatName, fromId, toId);
+        } catch (IOException e) {
+            throw new SQLException("Message log delete failed: " + e.getMessage());
+        }
+    }
+    
+    private static String joinIds(List<Long> ids) {
+        StringBuilder builder = new StringBuilder();
+        for (Long id : ids) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(id);
+        }
+        return builder.toString();
+    }
+    
+    // Существующая база создавалась без auto_vacuum - переключаем один раз полным VACUUM
+    public void enableIncrementalVacuum() {
+        SQLiteDatabase db = this.getWritableDatabase();
+        Cursor cursor = db.rawQuery("PRAGMA auto_vacuum", null);
+        int mode = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        cursor.close();
+        
+        // 2 = INCREMENTAL
+        if (mode != 2) {
+            pragma(db, "auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            System.out.println("🧹 Nico: Database switched to incremental vacuum");
+        }
+    }
+    
+    // Возвращаем файлу до maxPages свободных страниц, остаток - в следующий раз
+    public int incrementalVacuum(int maxPages) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        Cursor cursor = db.rawQuery("PRAGMA freelist_count", null);
+        int free = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        cursor.close();
+        
+        int pages = Math.min(free, maxPages);
+        if (pages > 0) {
+            pragma(db, "incremental_vacuum(" + pages + ")");
+        }
+        return pages;
+    }
+    
+    // ===== Резервная копия (см. HistoryBackup) =====
+    
+    // Вся история по порядку - курсор не держит в памяти больше одного окна строк
+    public int forEachMessage(MessageVisitor visitor) throws IOException {
+        int count = 0;
+        MessageLog log = messageLog();
+        if (log != null) {
+            // Журнал - по чатам, внутри чата по порядку, страницами
+            for (String chatName : log.getChatNames(null)) {
+                long afterId = 0;
+                while (true) {
+                    List<Message> page = log.read(chatName, afterId, Long.MAX_VALUE, LOG_PAGE_SIZE);
+                    for (Message message : page) {
+                        visitor.visit(message);
+                        count++;
+                    }
+                    if (page.size() < LOG_PAGE_SIZE) {
+                        break;
+                    }
+                    afterId = page.get(page.size() - 1).id;
+                }
+            }
+            return count;
+        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        
+        Cursor cursor = db.query(TABLE_MESSAGES, FULL_MESSAGE_COLUMNS,
+                null, null, null, null, COLUMN_ID + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                visitor.visit(readFullMessage(cursor));
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+    
+    // Строка курсора по FULL_MESSAGE_COLUMNS
+    private static Message readFullMessage(Cursor cursor) {
+        Message message = new Message(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                cursor.getString(3), cursor.getString(4), cursor.getInt(5) == 1);
+        message.createdAt = cursor.getLong(6);
+        message.origin = cursor.getString(7);
+        message.originId = cursor.getLong(8);
+        message.recipient = cursor.getString(9);
+        return message;
+    }
+    
+    // Пачка из резервной копии одной транзакцией. Свои сообщения получают origin копии,
+    // поэтому повторный импорт того же файла ничего не дублирует.
+    public int addImportedMessages(String backupOrigin, List<Message> batch) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        Map<String, long[]> changes = new HashMap<>();
+        int inserted = 0;
+        
+        synchronized (statementLock) {
+            if (importMessageStatement == null) {
+                importMessageStatement = db.compileStatement(
+                        "INSERT OR IGNORE INTO " + TABLE_MESSAGES + "("
+                        + COLUMN_CHAT_NAME + ", " + COLUMN_SENDER + ", " + COLUMN_MESSAGE + ", "
+                        + COLUMN_TIMESTAMP + ", " + COLUMN_IS_OUTGOING + ", " + COLUMN_ORIGIN + ", "
+                        + COLUMN_ORIGIN_ID + ", " + COLUMN_CREATED_AT + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+            }
+            MessageLog log = messageLog();
+            long[] logged = log != null ? appendToLog(log, fromBackup(backupOrigin, batch), false) : null;
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    Message message = batch.get(i);
+                    long result;
+                    if (logged != null) {
+                        result = logged[i];
+                    } else {
+                        boolean own = message.origin == null;
+                        bindText(importMessageStatement, 1, message.chatName);
+                        bindText(importMessageStatement, 2, message.sender);
+                        bindText(importMessageStatement, 3, message.text);
+                        bindText(importMessageStatement, 4, message.time);
+                        importMessageStatement.bindLong(5, message.isOutgoing ? 1 : 0);
+                        bindText(importMessageStatement, 6, own ? backupOrigin : message.origin);
+                        importMessageStatement.bindLong(7, own ? message.id : message.originId);
+                        importMessageStatement.bindLong(8, message.createdAt);
+                        result = importMessageStatement.executeInsert();
+                    }
+                    if (result != -1) {
+                        inserted++;
+                        trackInsert(changes, message.chatName, result);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        publishInserts(changes);
+        return inserted;
+    }
+    
+    // Копии сообщений копии для журнала - с тем же origin, что получили бы в SQLite
+    private static List<Message> fromBackup(String backupOrigin, List<Message> batch) {
+        List<Message> copies = new ArrayList<>(batch.size());
+        for (Message message : batch) {
+            boolean own = message.origin == null;
+            Message copy = new Message(0, message.chatName, message.sender, message.text, message.time,
+                    message.isOutgoing);
+            copy.origin = own ? backupOrigin : message.origin;
+            copy.originId = own ? message.id : message.originId;
+            copy.createdAt = message.createdAt;
+            copies.add(copy);
+        }
+        return copies;
+    }
+    
     // Получаем все сообщения для конкретного чата
     public List<Message> getMessagesForChat(String chatName) {
+        MessageLog log = messageLog();
+        if (log != null) {
+            List<Message> messages = log.read(chatName, 0, Long.MAX_VALUE, Integer.MAX_VALUE);
+            System.out.println("📨 Nico: Loaded " + messages.size() + " messages for chat: " + chatName);
+            return messages;
+        }
         List<Message> messages = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
         
@@ -108,6 +1251,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         if (cursor.moveToFirst()) {
             do {
                 Message message = new Message(
+                    cursor.getLong(0), // id
+                    chatName,
                     cursor.getString(1), // sender
                     cursor.getString(2), // message
                     cursor.getString(3), // timestamp
@@ -118,14 +1263,57 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
         
         cursor.close();
-        db.close();
         
         System.out.println("📨 Nico: Loaded " + messages.size() + " messages for chat: " + chatName);
         return messages;
     }
     
+    // Сообщения чата с id больше afterId - дочитать добавленное после CHANGE_INSERT
+    public List<Message> getMessagesAfter(String chatName, long afterId) {
+        MessageLog log = messageLog();
+        if (log != null) {
+            return log.read(chatName, afterId, Long.MAX_VALUE, Integer.MAX_VALUE);
+        }
+        List<Message> messages = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        
+        Cursor cursor = db.query(TABLE_MESSAGES,
+                new String[]{COLUMN_ID, COLUMN_SENDER, COLUMN_MESSAGE, COLUMN_TIMESTAMP, COLUMN_IS_OUTGOING},
+                COLUMN_CHAT_NAME + " = ? AND " + COLUMN_ID + " > ?",
+                new String[]{chatName, String.valueOf(afterId)},
+                null, null, COLUMN_ID + " ASC");
+        while (cursor.moveToNext()) {
+            messages.add(new Message(cursor.getLong(0), chatName, cursor.getString(1),
+                    cursor.getString(2), cursor.getString(3), cursor.getInt(4) == 1));
+        }
+        
+        cursor.close();
+        return messages;
+    }
+    
+    // Последнее сообщение одного чата для главного экрана (null - чат пуст)
+    public Chat getChat(String chatName) {
+        MessageLog log = messageLog();
+        if (log != null) {
+            return log.getChat(chatName);
+        }
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_MESSAGES, new String[]{COLUMN_MESSAGE, COLUMN_TIMESTAMP},
+                COLUMN_CHAT_NAME + " = ?", new String[]{chatName},
+                null, null, COLUMN_ID + " DESC", "1");
+        Chat chat = cursor.moveToFirst() ? new Chat(chatName, cursor.getString(0), cursor.getString(1)) : null;
+        cursor.close();
+        return chat;
+    }
+    
     // Получаем последние сообщения для всех чатов (для главного экрана)
     public List<Chat> getRecentChats() {
+        MessageLog log = messageLog();
+        if (log != null) {
+            List<Chat> chats = log.getRecentChats();
+            System.out.println("💬 Nico: Loaded " + chats.size() + " recent chats");
+            return chats;
+        }
         List<Chat> chats = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
         
@@ -150,7 +1338,6 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
         
         cursor.close();
-        db.close();
         
         System.out.println("💬 Nico: Loaded " + chats.size() + " recent chats");
         return chats;
@@ -158,10 +1345,18 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     
     // Модель сообщения для базы данных
     public static class Message {
+        public long id;
+        public String chatName;
         public String sender;
         public String text;
         public String time;
         public boolean isOutgoing;
+        // Заполняются только для архивации и резервной копии
+        public long createdAt;
+        public String origin;
+        public long originId;
+        // Кому отправлено своё сообщение (COLUMN_RECIPIENT)
+        public String recipient;
         
         public Message(String sender, String text, String time, boolean isOutgoing) {
             this.sender = sender;
@@ -169,5 +1364,24 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             this.time = time;
             this.isOutgoing = isOutgoing;
         }
+        
+        public Message(long id, String chatName, String sender, String text, String time, boolean isOutgoing) {
+            this(sender, text, time, isOutgoing);
+            this.id = id;
+            this.chatName = chatName;
+        }
+    }
+    
+    // Модель чата для главного экрана
+    public static class Chat {
+        public String name;
+        public String lastMessage;
+        public String time;
+        
+        public Chat(String name, String lastMessage, String time) {
+            this.name = name;
+            this.lastMessage = lastMessage;
+            this.time = time;
+        }
     }
 }
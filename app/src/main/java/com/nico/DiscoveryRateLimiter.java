@@ -0,0 +1,79 @@
+package com.nico;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Защита discovery ответчика от шквала запросов, когда сеть сканируют сразу несколько устройств:
+// - token bucket на каждый IP источника: короткий всплеск разрешён, поток - нет;
+// - кэш недавно отвеченных: один и тот же сокет запрашивающего (unicast + multicast + broadcast
+//   одного поиска) получает один ответ.
+// Используется только с потока discovery сервера - без синхронизации.
+public class DiscoveryRateLimiter {
+    private static final int BUCKET_CAPACITY = 5;
+    private static final long REFILL_INTERVAL_MS = 1000;
+    private static final long DUPLICATE_WINDOW_MS = 2000;
+    // Не даём таблицам расти от поддельных адресов
+    private static final int MAX_TRACKED_SOURCES = 256;
+
+    private static class Bucket {
+        double tokens = BUCKET_CAPACITY;
+        long updatedAt;
+    }
+
+    private final Map<String, Bucket> buckets = new HashMap<>();
+    private final Map<String, Long> answered = new HashMap<>();
+
+    // requester - адрес и порт сокета запроса, sourceIp - только IP
+    public boolean allow(String requester, String sourceIp, long now) {
+        Long lastAnswer = answered.get(requester);
+        if (lastAnswer != null && now - lastAnswer < DUPLICATE_WINDOW_MS) {
+            return false;
+        }
+
+        Bucket bucket = buckets.get(sourceIp);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_TRACKED_SOURCES) {
+                evictStale(now);
+            }
+            bucket = new Bucket();
+            bucket.updatedAt = now;
+            buckets.put(sourceIp, bucket);
+        }
+        bucket.tokens = Math.min(BUCKET_CAPACITY,
+            bucket.tokens + (now - bucket.updatedAt) / (double) REFILL_INTERVAL_MS);
+        bucket.updatedAt = now;
+        if (bucket.tokens < 1) {
+            return false;
+        }
+        bucket.tokens -= 1;
+
+        if (answered.size() >= MAX_TRACKED_SOURCES) {
+            evictStale(now);
+        }
+        answered.put(requester, now);
+        return true;
+    }
+
+    // Полный bucket и старые ответы ничего не значат - их можно забыть
+    private void evictStale(long now) {
+        long bucketIdleMs = BUCKET_CAPACITY * REFILL_INTERVAL_MS;
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().updatedAt >= bucketIdleMs) {
+                it.remove();
+            }
+        }
+        for (Iterator<Long> it = answered.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() >= DUPLICATE_WINDOW_MS) {
+                it.remove();
+            }
+        }
+        // Все записи свежие (флуд) - сбрасываем, память важнее точности
+        if (buckets.size() >= MAX_TRACKED_SOURCES) {
+            buckets.clear();
+        }
+        if (answered.size() >= MAX_TRACKED_SOURCES) {
+            answered.clear();
+        }
+    }
+}
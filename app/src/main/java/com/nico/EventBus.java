@@ -0,0 +1,328 @@
+package com.nico;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// События сети для любого числа подписчиков (экраны, уведомления, сервисы).
+//
+// События пишутся в заранее выделенное кольцо RING_SIZE слотов: публикация - один
+// getAndIncrement и запись полей слота, без блокировок и без выделения памяти,
+// поэтому поток чтения сокета никогда не ждёт подписчиков.
+// У каждого подписчика свой курсор в кольце и свой поток доставки:
+// - DELIVERY_IO: поток шины "Nico-events" - для коротких неблокирующих обработчиков;
+// - DELIVERY_BACKGROUND: отдельный поток подписчика - можно ходить в базу и на диск;
+// - DELIVERY_MAIN: главный поток - для экранов, runOnUiThread не нужен.
+// Подписчик, отставший больше чем на кольцо, теряет самые старые события (пишется в лог) -
+// медленный экран не тормозит ни сеть, ни остальных подписчиков. Подписчик, которому
+// важна полнота (LiveQuery), реализует DropListener и узнаёт о потере раньше следующих событий.
+//
+// Event в обработчике переиспользуется - хранить его после возврата нельзя, только поля.
+public class EventBus {
+    public static final int EVENT_MESSAGE = 1;
+    public static final int EVENT_DEVICE = 2;
+    public static final int EVENT_CONNECTION = 4;
+    public static final int EVENT_SIGNAL = 8;
+    public static final int EVENT_CHANGE = 16;
+    public static final int EVENT_SYNC = 32;
+    public static final int EVENT_ALL = EVENT_MESSAGE | EVENT_DEVICE | EVENT_CONNECTION | EVENT_SIGNAL | EVENT_CHANGE
+        | EVENT_SYNC;
+
+    public static final int DELIVERY_IO = 0;
+    public static final int DELIVERY_BACKGROUND = 1;
+    public static final int DELIVERY_MAIN = 2;
+
+    private static final int RING_SIZE = 1024;
+    private static final int MASK = RING_SIZE - 1;
+    // Слот занят публикатором - поля ещё пишутся
+    private static final long WRITING = -1;
+
+    private static EventBus instance;
+
+    // Поля по типу события:
+    // EVENT_MESSAGE    - chatName, sender, text
+    // EVENT_DEVICE     - peerIp, text (имя устройства)
+    // EVENT_CONNECTION - value (1 - есть связь, 0 - потеряна)
+    // EVENT_SIGNAL     - peerIp, chatName, kind (SignalChannel.KIND_*), value
+    // EVENT_CHANGE     - chatName, kind (DatabaseHelper.CHANGE_*), value..upTo - диапазон id сообщений
+    // EVENT_SYNC       - peerIp, chatName (синхронизация истории добавила в чат сообщения)
+    public static class Event {
+        public int type;
+        public String peerIp;
+        public String chatName;
+        public String sender;
+        public String text;
+        public int kind;
+        public long value;
+        public long upTo;
+    }
+
+    public interface Subscriber {
+        void onEvent(Event event);
+    }
+
+    // Подписчик, которому нужно знать о потерянных событиях (например, чтобы перечитать всё)
+    public interface DropListener {
+        void onDropped(long count);
+    }
+
+    // Слот кольца. Поля volatile: читатель копирует их и перепроверяет номер -
+    // так видно, что слот перезаписали во время копирования
+    private static class Slot {
+        volatile long sequence = WRITING;
+        volatile int type;
+        volatile String peerIp;
+        volatile String chatName;
+        volatile String sender;
+        volatile String text;
+        volatile int kind;
+        volatile long value;
+        volatile long upTo;
+    }
+
+    public static class Subscription {
+        private final int types;
+        private final int delivery;
+        private final Subscriber subscriber;
+        // Только поток доставки этого подписчика читает и двигает курсор
+        private long next;
+        private final Event event = new Event();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean waiting;
+        private volatile boolean cancelled;
+        private Thread thread;
+        private Runnable drainTask;
+
+        Subscription(int types, int delivery, Subscriber subscriber, long next) {
+            this.types = types;
+            this.delivery = delivery;
+            this.subscriber = subscriber;
+            this.next = next;
+        }
+    }
+
+    private final Slot[] ring = new Slot[RING_SIZE];
+    // Следующий номер для публикации (выданные номера могут быть ещё не дописаны)
+    private final AtomicLong claimed = new AtomicLong();
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Thread dispatcher;
+    private volatile boolean dispatcherWaiting;
+    // Номер, до которого все слоты дописаны (двигает только поток шины)
+    private long dispatched;
+    private Handler mainHandler;
+
+    private EventBus() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Slot();
+        }
+        dispatcher = new Thread(this::dispatchLoop, "Nico-events");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    // Одна шина на процесс - на неё подписываются все экраны
+    public static synchronized EventBus getInstance() {
+        if (instance == null) {
+            instance = new EventBus();
+        }
+        return instance;
+    }
+
+    // types - маска EVENT_*; подписчик получает события, опубликованные после подписки
+    public Subscription subscribe(int types, int delivery, Subscriber subscriber) {
+        Subscription subscription = new Subscription(types, delivery, subscriber, claimed.get());
+        if (delivery == DELIVERY_MAIN) {
+            synchronized (this) {
+                if (mainHandler == null) {
+                    mainHandler = new Handler(Looper.getMainLooper());
+                }
+            }
+            subscription.drainTask = () -> {
+                subscription.scheduled.set(false);
+                drain(subscription);
+            };
+        } else if (delivery == DELIVERY_BACKGROUND) {
+            subscription.thread = new Thread(() -> backgroundLoop(subscription), "Nico-events-bg");
+            subscription.thread.setDaemon(true);
+        }
+        subscriptions.add(subscription);
+        if (subscription.thread != null) {
+            subscription.thread.start();
+        }
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        if (subscription == null) {
+            return;
+        }
+        subscription.cancelled = true;
+        subscriptions.remove(subscription);
+        if (subscription.thread != null) {
+            LockSupport.unpark(subscription.thread);
+        }
+    }
+
+    // ===== Публикация: без блокировок и выделения памяти =====
+
+    public void publishMessage(String chatName, String sender, String text) {
+        publish(EVENT_MESSAGE, null, chatName, sender, text, 0, 0);
+    }
+
+    public void publishDevice(String ip, String deviceName) {
+        publish(EVENT_DEVICE, ip, null, null, deviceName, 0, 0);
+    }
+
+    public void publishConnection(boolean connected) {
+        publish(EVENT_CONNECTION, null, null, null, null, 0, connected ? 1 : 0);
+    }
+
+    public void publishSignal(String peerIp, byte kind, String chatName, long value) {
+        publish(EVENT_SIGNAL, peerIp, chatName, null, null, kind, value);
+    }
+
+    // История чата догружена у собеседника - статус для экрана, не сообщение
+    public void publishSync(String peerIp, String chatName) {
+        publish(EVENT_SYNC, peerIp, chatName, null, null, 0, 0);
+    }
+
+    // Запись в базу закоммичена (см. DatabaseHelper.CHANGE_*)
+    public void publishChange(String chatName, int kind, long fromId, long toId) {
+        publish(EVENT_CHANGE, null, chatName, null, null, kind, fromId, toId);
+    }
+
+    private void publish(int type, String peerIp, String chatName, String sender, String text, int kind, long value) {
+        publish(type, peerIp, chatName, sender, text, kind, value, 0);
+    }
+
+    private void publish(int type, String peerIp, String chatName, String sender, String text, int kind,
+                         long value, long upTo) {
+        long sequence = claimed.getAndIncrement();
+        Slot slot = ring[(int) (sequence & MASK)];
+        slot.sequence = WRITING;
+        slot.type = type;
+        slot.peerIp = peerIp;
+        slot.chatName = chatName;
+        slot.sender = sender;
+        slot.text = text;
+        slot.kind = kind;
+        slot.value = value;
+        slot.upTo = upTo;
+        slot.sequence = sequence;
+        if (dispatcherWaiting) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    // ===== Доставка =====
+
+    // Поток шины: ждёт дописанных слотов, сам доставляет DELIVERY_IO и будит остальных
+    private void dispatchLoop() {
+        while (true) {
+            // Отстали на кольцо - догоняем, пропущенное разберут курсоры подписчиков
+            dispatched = Math.max(dispatched, claimed.get() - RING_SIZE);
+            if (!isWritten(dispatched)) {
+                dispatcherWaiting = true;
+                // Перепроверка после флага: публикатор либо увидит флаг, либо мы - его слот
+                if (!isWritten(dispatched)) {
+                    LockSupport.park(this);
+                }
+                dispatcherWaiting = false;
+                continue;
+            }
+            while (isWritten(dispatched)) {
+                dispatched++;
+            }
+
+            for (Subscription subscription : subscriptions) {
+                if (subscription.delivery == DELIVERY_IO) {
+                    drain(subscription);
+                } else if (subscription.delivery == DELIVERY_BACKGROUND) {
+                    if (subscription.waiting) {
+                        LockSupport.unpark(subscription.thread);
+                    }
+                } else if (subscription.scheduled.compareAndSet(false, true)) {
+                    mainHandler.post(subscription.drainTask);
+                }
+            }
+        }
+    }
+
+    private void backgroundLoop(Subscription subscription) {
+        while (!subscription.cancelled) {
+            drain(subscription);
+            subscription.waiting = true;
+            // Спим, только если следующий слот ещё не дописан (перезаписанный разберёт drain)
+            if (!subscription.cancelled && ring[(int) (subscription.next & MASK)].sequence < subscription.next) {
+                LockSupport.park(this);
+            }
+            subscription.waiting = false;
+        }
+    }
+
+    private boolean isWritten(long sequence) {
+        return ring[(int) (sequence & MASK)].sequence == sequence;
+    }
+
+    // Доставляем подписчику всё дописанное после его курсора
+    private void drain(Subscription subscription) {
+        Event event = subscription.event;
+        long dropped = 0;
+        while (!subscription.cancelled) {
+            long lag = claimed.get() - subscription.next;
+            if (lag > RING_SIZE) {
+                dropped += lag - RING_SIZE;
+                subscription.next += lag - RING_SIZE;
+                notifyDropped(subscription, lag - RING_SIZE);
+            }
+            Slot slot = ring[(int) (subscription.next & MASK)];
+            long sequence = slot.sequence;
+            if (sequence != subscription.next) {
+                // Ещё не дописан (или уже перезаписан - тогда выше догоним)
+                if (sequence > subscription.next) {
+                    continue;
+                }
+                break;
+            }
+            event.type = slot.type;
+            event.peerIp = slot.peerIp;
+            event.chatName = slot.chatName;
+            event.sender = slot.sender;
+            event.text = slot.text;
+            event.kind = slot.kind;
+            event.value = slot.value;
+            event.upTo = slot.upTo;
+            if (slot.sequence != sequence) {
+                // Слот перезаписали, пока копировали
+                continue;
+            }
+            subscription.next++;
+            if ((subscription.types & event.type) == 0) {
+                continue;
+            }
+            try {
+                subscription.subscriber.onEvent(event);
+            } catch (RuntimeException e) {
+                System.out.println("❌ Nico: Event subscriber failed - " + e.getMessage());
+            }
+        }
+        if (dropped > 0) {
+            System.out.println("⚠️ Nico: Slow event subscriber dropped " + dropped + " events");
+        }
+    }
+
+    // Сообщаем о потере до доставки следующих событий - в том же потоке доставки
+    private void notifyDropped(Subscription subscription, long count) {
+        if (!(subscription.subscriber instanceof DropListener)) {
+            return;
+        }
+        try {
+            ((DropListener) subscription.subscriber).onDropped(count);
+        } catch (RuntimeException e) {
+            System.out.println("❌ Nico: Event subscriber failed - " + e.getMessage());
+        }
+    }
+}
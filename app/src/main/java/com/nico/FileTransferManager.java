@@ -0,0 +1,329 @@
+package com.nico;
+
+import android.content.Context;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.UUID;
+
+// Потоковая передача файлов и картинок чанками.
+// Файл никогда не загружается в память целиком: отправитель пишет через
+// FileChannel.transferTo, получатель принимает через FileChannel.transferFrom.
+// Передача идёт внутри шифрованной сессии (FrameSession): получатель знает отправителя
+// по закреплённому ключу, а не по полям предложения.
+public class FileTransferManager {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Сколько неподтверждённых чанков может быть "в полёте"
+    private static final int WINDOW_CHUNKS = 4;
+    private static final int ACK_TIMEOUT_MS = 15000;
+    private static final int MAX_RESUME_ATTEMPTS = 5;
+    private static final long RESUME_BACKOFF_MS = 2000;
+    // Сколько чанк может ждать обычные сообщения - дольше не ждём, чтобы файл не стоял
+    private static final long MAX_YIELD_PER_CHUNK_MS = 50;
+    // Больше не принимаем, и после приёма на диске должно остаться хотя бы столько
+    private static final long MAX_FILE_SIZE = 2L * 1024 * 1024 * 1024;
+    private static final long MIN_FREE_SPACE = 64L * 1024 * 1024;
+    private static final String RECEIVED_DIR = "received";
+
+    // Callback о полностью принятом файле
+    public interface TransferListener {
+        void onFileReceived(String senderIp, String chatName, String sender, long messageId, File file);
+    }
+
+    private final Context context;
+    private final Transport transport;
+    private final PeerSecurity security;
+    // Таймаут подключения по RTT и быстрый отказ для недоступных собеседников
+    private final PeerHealth health;
+    // Число отправляемых сейчас сообщений - под блокировкой priorityLock
+    private final Object priorityLock = new Object();
+    private int pendingMessages;
+    private TransferListener listener;
+
+    public FileTransferManager(Context context, Transport transport, PeerSecurity security, PeerHealth health) {
+        this.context = context;
+        this.transport = transport;
+        this.security = security;
+        this.health = health;
+    }
+
+    public void setListener(TransferListener listener) {
+        this.listener = listener;
+    }
+
+    // Файл отклонён получателем - повторять бессмысленно
+    public static class FileRejectedException extends IOException {
+        FileRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    // Обычные сообщения имеют приоритет над чанками файлов
+    public void beginPriorityTraffic() {
+        synchronized (priorityLock) {
+            pendingMessages++;
+        }
+    }
+
+    public void endPriorityTraffic() {
+        synchronized (priorityLock) {
+            if (--pendingMessages == 0) {
+                // Чанки, ждущие в yieldToMessages, продолжают сразу же
+                priorityLock.notifyAll();
+            }
+        }
+    }
+
+    // Отправка файла с докачкой после разрыва соединения
+    // messageId - строка "📎 файл" в базе отправителя, получатель по ней отсеет дубликат при синхронизации
+    public boolean sendFile(String targetIp, int port, String chatName, String sender, long messageId, File file) {
+        for (int attempt = 1; attempt <= MAX_RESUME_ATTEMPTS; attempt++) {
+            try {
+                streamFile(targetIp, port, chatName, sender, messageId, file);
+                System.out.println("📎 Nico: File sent to " + targetIp + " - " + file.getName());
+                return true;
+            } catch (PeerHealth.CircuitOpenException e) {
+                // Собеседник недоступен - не ждём попыток докачки впустую
+                System.out.println("❌ Nico: File transfer skipped - " + e.getMessage());
+                return false;
+            } catch (FileRejectedException e) {
+                System.out.println("❌ Nico: File rejected by " + targetIp + " - " + e.getMessage());
+                return false;
+            } catch (IOException e) {
+                System.out.println("⚠️ Nico: File transfer interrupted (attempt " + attempt + ") - " + e.getMessage());
+                try {
+                    Thread.sleep(RESUME_BACKOFF_MS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        System.out.println("❌ Nico: File transfer failed - " + file.getName());
+        return false;
+    }
+
+    // Шифрованная сессия; таймаут чтения - на подтверждения чанков
+    private FrameSession connect(String targetIp, int port) throws IOException {
+        health.checkAllowed(targetIp);
+        FrameSession session;
+        try {
+            session = FrameSession.connect(transport, security, targetIp, port, health.connectTimeout(targetIp),
+                ACK_TIMEOUT_MS, null);
+        } catch (IOException e) {
+            health.onFailure(targetIp);
+            throw e;
+        }
+        health.onSuccess(targetIp, session.getConnectMillis());
+        return session;
+    }
+
+    private void streamFile(String targetIp, int port, String chatName, String sender,
+                            long messageId, File file) throws IOException {
+        try (FrameSession session = connect(targetIp, port);
+             FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+            Transport.Connection channel = session.getChannel();
+
+            long size = fileChannel.size();
+            // Формат: TRANSFER_ID|CHAT_NAME|SENDER|SIZE|MESSAGE_ID|FILE_NAME
+            String offer = String.format(Locale.US, "%s|%s|%s|%d|%d|%s",
+                transferId(file), chatName, sender, size, messageId, file.getName());
+            FrameCodec.writeTextFrame(channel, FrameCodec.TYPE_FILE_OFFER, offer);
+
+            ByteBuffer readHeader = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+            FrameCodec.Header reply = FrameCodec.readHeader(channel, readHeader);
+            if (reply.type == FrameCodec.TYPE_FILE_REJECT) {
+                throw new FileRejectedException(FrameCodec.decodeText(FrameCodec.readPayload(channel, reply)));
+            }
+            if (reply.type != FrameCodec.TYPE_FILE_ACCEPT) {
+                throw new IOException("Unexpected reply to offer: " + reply.type);
+            }
+            long acked = readOffset(channel, reply);
+            long sent = acked;
+
+            if (acked > 0) {
+                System.out.println("🔁 Nico: Resuming " + file.getName() + " from byte " + acked);
+            }
+
+            ByteBuffer chunkHeader = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + 8);
+            while (acked < size) {
+                // Заполняем окно чанками
+                while (sent < size && sent - acked < (long) WINDOW_CHUNKS * CHUNK_SIZE) {
+                    yieldToMessages();
+
+                    int length = (int) Math.min(CHUNK_SIZE, size - sent);
+                    chunkHeader.clear();
+                    chunkHeader.put(FrameCodec.TYPE_FILE_CHUNK).putInt(8 + length).putLong(sent).flip();
+                    FrameCodec.writeFully(channel, chunkHeader);
+
+                    long position = sent;
+                    long end = sent + length;
+                    while (position < end) {
+                        long transferred = fileChannel.transferTo(position, end - position, channel);
+                        if (transferred <= 0) {
+                            throw new IOException("File truncated during transfer");
+                        }
+                        position += transferred;
+                    }
+                    sent = end;
+                }
+
+                // Ждём подтверждение, чтобы сдвинуть окно
+                FrameCodec.Header ack = FrameCodec.readHeader(channel, readHeader);
+                if (ack.type != FrameCodec.TYPE_FILE_ACK) {
+                    throw new IOException("Unexpected frame during transfer: " + ack.type);
+                }
+                acked = Math.max(acked, readOffset(channel, ack));
+            }
+        }
+    }
+
+    // FILE_ACCEPT и FILE_ACK - ровно 8 байт смещения; другой размер рвёт передачу через IOException
+    private static long readOffset(Transport.Connection channel, FrameCodec.Header reply) throws IOException {
+        if (reply.length != 8) {
+            throw new IOException("Invalid offset frame " + reply.type + " of " + reply.length + " bytes");
+        }
+        return FrameCodec.readPayload(channel, reply).getLong();
+    }
+
+    // Приём файла - NetworkManager уже прочитал кадр OFFER из шифрованной сессии с senderIp
+    public void receiveFile(Transport.Connection channel, ByteBuffer offer, String senderIp) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+
+        String[] parts = FrameCodec.decodeText(offer).split("\\|", 6);
+        if (parts.length != 6 || !parts[0].matches("[0-9a-f\\-]+")) {
+            throw new IOException("Invalid file offer from " + senderIp);
+        }
+        String transferId = parts[0];
+        String chatName = parts[1];
+        String sender = parts[2];
+        long size;
+        long messageId;
+        try {
+            size = Long.parseLong(parts[3]);
+            messageId = Long.parseLong(parts[4]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid file offer from " + senderIp);
+        }
+        String fileName = safeFileName(parts[5]);
+
+        File dir = new File(context.getFilesDir(), RECEIVED_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File partFile = new File(dir, senderIp.replace('.', '_') + "_" + transferId + ".part");
+
+        // Размер из предложения проверяем до того, как что-то писать на диск:
+        // иначе собеседник может забить память устройства одним файлом
+        long remaining = size - (partFile.exists() ? partFile.length() : 0);
+        String rejection = size < 0 || size > MAX_FILE_SIZE ? "File too large: " + size + " bytes"
+            : dir.getUsableSpace() - remaining < MIN_FREE_SPACE ? "Not enough free space for " + size + " bytes"
+            : null;
+        if (rejection != null) {
+            FrameCodec.writeTextFrame(channel, FrameCodec.TYPE_FILE_REJECT, rejection);
+            System.out.println("🚫 Nico: Rejected " + fileName + " from " + senderIp + " - " + rejection);
+            return;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+             FileChannel out = raf.getChannel()) {
+            // Продолжаем с последнего целого (подтверждённого) чанка
+            long offset = out.size() >= size ? size : out.size() / CHUNK_SIZE * CHUNK_SIZE;
+            out.truncate(offset);
+
+            FrameCodec.writeFrame(channel, FrameCodec.TYPE_FILE_ACCEPT, FrameCodec.longPayload(offset));
+            System.out.println("📥 Nico: Receiving " + fileName + " (" + size + " bytes) from " + senderIp
+                + (offset > 0 ? ", resuming at " + offset : ""));
+
+            ByteBuffer position = ByteBuffer.allocate(8);
+            ByteBuffer ack = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + 8);
+            while (offset < size) {
+                FrameCodec.Header chunk = FrameCodec.readHeader(channel, header);
+                if (chunk.type != FrameCodec.TYPE_FILE_CHUNK) {
+                    throw new IOException("Expected chunk, got " + chunk.type);
+                }
+
+                position.clear();
+                FrameCodec.readFully(channel, position);
+                position.flip();
+                long chunkOffset = position.getLong();
+                int length = chunk.length - 8;
+                if (chunkOffset != offset || length <= 0 || length > CHUNK_SIZE || offset + length > size) {
+                    throw new IOException("Out of order chunk at " + chunkOffset);
+                }
+
+                long end = offset + length;
+                while (offset < end) {
+                    long received = out.transferFrom(channel, offset, end - offset);
+                    if (received <= 0) {
+                        throw new EOFException("Connection closed mid-chunk");
+                    }
+                    offset += received;
+                }
+
+                ack.clear();
+                ack.put(FrameCodec.TYPE_FILE_ACK).putInt(8).putLong(offset).flip();
+                FrameCodec.writeFully(channel, ack);
+            }
+        }
+
+        File target = uniqueFile(dir, fileName);
+        if (!partFile.renameTo(target)) {
+            throw new IOException("Cannot move " + partFile + " to " + target);
+        }
+
+        System.out.println("✅ Nico: File received - " + target.getName());
+
+        if (listener != null) {
+            listener.onFileReceived(senderIp, chatName, sender, messageId, target);
+        }
+    }
+
+    // Чанк ждёт, пока уходят обычные сообщения: будится сразу по endPriorityTraffic,
+    // а не опросом, и не дольше MAX_YIELD_PER_CHUNK_MS - поток сообщений не останавливает файл
+    private void yieldToMessages() {
+        synchronized (priorityLock) {
+            long deadline = System.currentTimeMillis() + MAX_YIELD_PER_CHUNK_MS;
+            while (pendingMessages > 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return;
+                }
+                try {
+                    priorityLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Один и тот же файл всегда получает один и тот же ID - на этом держится докачка
+    private static String transferId(File file) {
+        String key = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private static String safeFileName(String name) {
+        String cleaned = new File(name).getName().replaceAll("[\\\\/:*?\"<>|]", "_");
+        return cleaned.isEmpty() || cleaned.startsWith(".") ? "file" + cleaned : cleaned;
+    }
+
+    private static File uniqueFile(File dir, String name) {
+        File file = new File(dir, name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; file.exists(); i++) {
+            file = new File(dir, base + " (" + i + ")" + ext);
+        }
+        return file;
+    }
+}
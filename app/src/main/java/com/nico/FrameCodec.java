@@ -0,0 +1,153 @@
+package com.nico;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Бинарные кадры поверх того же TCP порта, что и текстовые сообщения.
+// Соединение начинается с байта MAGIC, дальше идут кадры:
+// TYPE(1) | LENGTH(4) | PAYLOAD(LENGTH)
+public class FrameCodec {
+    // 0xFE никогда не встречается в UTF-8, поэтому не путается с текстовой строкой
+    public static final byte MAGIC = (byte) 0xFE;
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_CONTROL_PAYLOAD = 64 * 1024;
+    // Старший бит типа - полезная нагрузка сжата (см. PayloadCompressor)
+    public static final byte FLAG_COMPRESSED = (byte) 0x80;
+
+    // Типы кадров для передачи файлов
+    public static final byte TYPE_FILE_OFFER = 1;
+    public static final byte TYPE_FILE_ACCEPT = 2;
+    public static final byte TYPE_FILE_CHUNK = 3;
+    public static final byte TYPE_FILE_ACK = 4;
+    // Получатель отказался от файла (слишком большой, нет места); полезная нагрузка - причина текстом
+    public static final byte TYPE_FILE_REJECT = 13;
+
+    // Согласование сжатия и пачки сообщений
+    public static final byte TYPE_HELLO = 5;
+    public static final byte TYPE_MESSAGES = 6;
+
+    // Синхронизация истории по водяным знакам
+    public static final byte TYPE_SYNC_REQUEST = 7;
+    public static final byte TYPE_SYNC_DONE = 8;
+
+    // Состав группового чата
+    public static final byte TYPE_GROUP_MEMBERS = 9;
+    
+    // Туннель через ретранслятор (см. RelayRouter)
+    public static final byte TYPE_RELAY = 10;
+
+    // Рукопожатие шифрованной сессии (см. PeerSecurity)
+    public static final byte TYPE_HANDSHAKE = 11;
+
+    // Кратковременные сигналы: набор текста, прочтение, присутствие (см. SignalChannel)
+    public static final byte TYPE_SIGNAL = 12;
+
+    // Подтверждение, что сообщения сохранены у получателя: COUNT(4) | ID(8)*
+    public static final byte TYPE_MESSAGES_ACK = 14;
+
+    // Заголовок кадра, прочитанный из канала
+    public static class Header {
+        public final byte type;
+        public final int length;
+
+        Header(byte type, int length) {
+            this.type = type;
+            this.length = length;
+        }
+    }
+
+    // Читаем ровно remaining() байт, иначе EOFException
+    public static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Channel closed mid-frame");
+            }
+        }
+    }
+
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Читаем только заголовок - полезная нагрузка остаётся в канале
+    public static Header readHeader(ReadableByteChannel channel, ByteBuffer headerBuffer) throws IOException {
+        headerBuffer.clear().limit(HEADER_SIZE);
+        readFully(channel, headerBuffer);
+        headerBuffer.flip();
+        byte type = headerBuffer.get();
+        int length = headerBuffer.getInt();
+        if (length < 0) {
+            throw new IOException("Negative frame length");
+        }
+        return new Header(type, length);
+    }
+
+    // Управляющий кадр целиком - размер ограничен, чтобы не раздувать heap
+    public static ByteBuffer readPayload(ReadableByteChannel channel, Header header) throws IOException {
+        if (header.length > MAX_CONTROL_PAYLOAD) {
+            throw new IOException("Control frame too large: " + header.length);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(header.length);
+        readFully(channel, payload);
+        payload.flip();
+        return payload;
+    }
+
+    public static void writeHeader(WritableByteChannel channel, ByteBuffer headerBuffer,
+                                   byte type, int length) throws IOException {
+        headerBuffer.clear();
+        headerBuffer.put(type).putInt(length).flip();
+        writeFully(channel, headerBuffer);
+    }
+
+    public static void writeFrame(WritableByteChannel channel, byte type, ByteBuffer payload) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        writeHeader(channel, header, type, payload.remaining());
+        writeFully(channel, payload);
+    }
+
+    public static void writeTextFrame(WritableByteChannel channel, byte type, String text) throws IOException {
+        writeFrame(channel, type, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static String decodeText(ByteBuffer payload) {
+        return StandardCharsets.UTF_8.decode(payload).toString();
+    }
+
+    // Строки внутри кадров: LENGTH(4) | UTF-8
+    public static byte[] utf8(String value) {
+        return (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Обрезанный кадр - IOException, а не BufferUnderflowException: длины приходят из сети
+    public static String readString(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 4) {
+            throw new IOException("Truncated string in frame");
+        }
+        int length = payload.getInt();
+        if (length < 0 || length > payload.remaining()) {
+            throw new IOException("Invalid string length in frame");
+        }
+        if (!payload.hasArray()) {
+            byte[] bytes = new byte[length];
+            payload.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        String value = new String(payload.array(), payload.arrayOffset() + payload.position(),
+            length, StandardCharsets.UTF_8);
+        payload.position(payload.position() + length);
+        return value;
+    }
+
+    public static ByteBuffer longPayload(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(value).flip();
+        return buffer;
+    }
+}
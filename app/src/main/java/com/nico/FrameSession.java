@@ -0,0 +1,396 @@
+package com.nico;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Соединение в режиме кадров с согласованием сжатия и шифрования.
+// Клиент отправляет HELLO со списком кодеков, сервер отвечает выбранным (или "none").
+// Если обе стороны назвали PeerSecurity.PROTOCOL, сервер добавляет его к ответу,
+// следует рукопожатие и все дальнейшие кадры идут через SecureChannel.
+public class FrameSession implements Closeable {
+    private static final String CODEC_NONE = "none";
+    // Пачка сообщений не больше этого размера до сжатия
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    // Свободные Deflater для encode(): отправители - короткоживущие потоки, поэтому пул,
+    // а не по одному на поток. Лишние сверх размера пула освобождаются сразу
+    private static final int ENCODE_POOL_SIZE = 4;
+    private static final ArrayBlockingQueue<PayloadCompressor> encodePool =
+        new ArrayBlockingQueue<>(ENCODE_POOL_SIZE);
+
+    // Полученный кадр (уже распакованный)
+    public static class Frame {
+        public final byte type;
+        public final ByteBuffer payload;
+
+        Frame(byte type, ByteBuffer payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    // Кадр, закодированный один раз для рассылки нескольким собеседникам:
+    // сжатая версия уходит сессиям со сжатием, исходная - остальным
+    public static class EncodedFrame {
+        public final byte type;
+        public final byte[] raw;
+        public final byte[] compressed;
+
+        EncodedFrame(byte type, byte[] raw, byte[] compressed) {
+            this.type = type;
+            this.raw = raw;
+            this.compressed = compressed;
+        }
+    }
+
+    // Меняются только при рукопожатии, до того как сессия отдана другим потокам
+    private Transport.Connection channel;
+    // Запись кадров - через очередь со склейкой, сессией могут пользоваться несколько потоков
+    private FrameWriter writer;
+    private final ByteBuffer readHeader = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+    private PayloadCompressor compressor;
+    // close() освобождает Deflater/Inflater под блокировкой compressor - после этого их не трогаем
+    private volatile boolean closed;
+    private boolean encrypted;
+    // Время установки соединения транспорта (клиентская сторона) - замер RTT для PeerHealth
+    private long connectMillis = -1;
+    // Номер соединения в записи трафика (0 - не записывается, см. TrafficCapture)
+    private int captureId;
+
+    private FrameSession(Transport.Connection channel) {
+        this.channel = channel;
+        this.writer = new FrameWriter(channel);
+    }
+
+    private void secure(Transport.Connection secureChannel) {
+        channel = secureChannel;
+        writer = new FrameWriter(secureChannel);
+        encrypted = true;
+    }
+
+    // Клиентская сторона: подключаемся и согласуем сжатие и шифрование (security = null - без него)
+    public static FrameSession connect(Transport transport, PeerSecurity security, String targetIp,
+                                       int port, int timeoutMs) throws IOException {
+        return connect(transport, security, targetIp, port, timeoutMs, null);
+    }
+    
+    // То же через ретранслятор viaIp (null - напрямую); сессия и шифрование сквозные до targetIp
+    public static FrameSession connect(Transport transport, PeerSecurity security, String targetIp,
+                                       int port, int timeoutMs, String viaIp) throws IOException {
+        return connect(transport, security, targetIp, port, timeoutMs, timeoutMs * 5, viaIp);
+    }
+    
+    // Таймауты подключения и чтения отдельно (см. PeerHealth)
+    public static FrameSession connect(Transport transport, PeerSecurity security, String targetIp,
+                                       int port, int connectTimeoutMs, int readTimeoutMs,
+                                       String viaIp) throws IOException {
+        long started = System.nanoTime();
+        Transport.Connection channel = viaIp != null
+            ? RelayRouter.openTunnel(transport, viaIp, targetIp, port, connectTimeoutMs)
+            : transport.connect(targetIp, port, connectTimeoutMs);
+        long connectMillis = (System.nanoTime() - started) / 1000000;
+        try {
+            channel.setReadTimeout(readTimeoutMs);
+            FrameSession session = new FrameSession(channel);
+            session.connectMillis = connectMillis;
+            
+            FrameCodec.writeFully(channel, ByteBuffer.wrap(new byte[]{FrameCodec.MAGIC}));
+            String offer = PayloadCompressor.CODEC_NAME + "," + CODEC_NONE
+                + (security != null ? "," + PeerSecurity.PROTOCOL : "");
+            FrameCodec.writeTextFrame(channel, FrameCodec.TYPE_HELLO, offer);
+
+            Frame reply = session.readFrame();
+            if (reply.type != FrameCodec.TYPE_HELLO) {
+                throw new IOException("Expected HELLO, got " + reply.type);
+            }
+            // Ответ: КОДЕК[,PROTOCOL]
+            String answer = FrameCodec.decodeText(reply.payload);
+            String[] chosen = answer.split(",");
+            if (PayloadCompressor.CODEC_NAME.equals(chosen[0])) {
+                session.compressor = new PayloadCompressor();
+            }
+            if (security != null) {
+                if (chosen.length > 1 && PeerSecurity.PROTOCOL.equals(chosen[1])) {
+                    session.secure(security.clientHandshake(channel, targetIp,
+                        PeerSecurity.helloTranscript(offer, answer)));
+                } else {
+                    // Открытую сессию принимающая сторона всё равно отклонит, а подмена
+                    // собеседника выглядела бы именно так
+                    throw new IOException("Peer " + targetIp + " refused encryption");
+                }
+            }
+            session.captureId = TrafficCapture.openConnection(false, targetIp);
+            return session;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Серверная сторона: HELLO уже прочитан в NetworkManager
+    public static FrameSession accept(Transport.Connection channel, FrameCodec.Header hello,
+                                      PeerSecurity security, String peerIp) throws IOException {
+        return accept(channel, hello, security, peerIp, false);
+    }
+    
+    // peerIp - настоящий отправитель (для туннеля через ретранслятор - не адрес сокета).
+    // Через ретранслятор адрес ничего не доказывает: нужна шифрованная сессия с ключом,
+    // который уже закреплён за этим собеседником при прямом соединении.
+    public static FrameSession accept(Transport.Connection channel, FrameCodec.Header hello,
+                                      PeerSecurity security, String peerIp, boolean relayed) throws IOException {
+        FrameSession session = new FrameSession(channel);
+        String offered = FrameCodec.decodeText(FrameCodec.readPayload(channel, hello));
+
+        String chosen = CODEC_NONE;
+        boolean secure = false;
+        for (String codec : offered.split(",")) {
+            if (PayloadCompressor.CODEC_NAME.equals(codec.trim())) {
+                chosen = PayloadCompressor.CODEC_NAME;
+            } else if (PeerSecurity.PROTOCOL.equals(codec.trim())) {
+                secure = security != null;
+            }
+        }
+        if (security != null && !secure && security.isPinned(peerIp)) {
+            throw new IOException("Peer " + peerIp + " did not offer encryption");
+        }
+        if (relayed && (!secure || !security.isPinned(peerIp))) {
+            throw new IOException("Relayed session from " + peerIp + " is not authenticated");
+        }
+        String answer = secure ? chosen + "," + PeerSecurity.PROTOCOL : chosen;
+        FrameCodec.writeTextFrame(channel, FrameCodec.TYPE_HELLO, answer);
+        if (!CODEC_NONE.equals(chosen)) {
+            session.compressor = new PayloadCompressor();
+        }
+        if (secure) {
+            session.secure(security.serverHandshake(channel, peerIp, PeerSecurity.helloTranscript(offered, answer)));
+        }
+        session.captureId = TrafficCapture.openConnection(true, peerIp);
+        return session;
+    }
+
+    public boolean isCompressed() {
+        return compressor != null;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // -1 для принятых соединений
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    // Канал после рукопожатия (шифрованный) - файл идёт по нему потоком, мимо очереди кадров
+    Transport.Connection getChannel() {
+        return channel;
+    }
+
+    public String getRemoteIp() {
+        return channel.getRemoteAddress();
+    }
+
+    // Низкая задержка (по умолчанию) - одиночный кадр уходит сразу;
+    // иначе кадры копятся до нескольких миллисекунд и уходят одной записью
+    public void setLowLatency(boolean lowLatency) {
+        writer.setLowLatency(lowLatency);
+    }
+
+    // Пишем кадр, сжимая его если это выгодно
+    public void writeFrame(byte type, byte[] payload) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>(2);
+        addFrame(buffers, type, payload);
+        writer.write(buffers);
+    }
+
+    // Пишем заранее закодированные кадры - без повторного сжатия, одной записью
+    public void writeEncoded(List<EncodedFrame> frames) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>(frames.size() * 2);
+        for (EncodedFrame frame : frames) {
+            TrafficCapture.frame(captureId, false, frame.type, frame.raw);
+            boolean useCompressed = compressor != null && frame.compressed != null;
+            addBody(buffers, frame.type, useCompressed ? frame.compressed : frame.raw, useCompressed);
+        }
+        writer.write(buffers);
+    }
+
+    private void addFrame(List<ByteBuffer> buffers, byte type, byte[] payload) {
+        TrafficCapture.frame(captureId, false, type, payload);
+        byte[] compressed = null;
+        if (compressor != null) {
+            // Deflater сессии один на всех писателей
+            synchronized (compressor) {
+                // Сессию закрыли - кадр всё равно не уйдёт, запись упадёт на закрытом канале
+                if (!closed) {
+                    compressed = compressor.compress(payload);
+                }
+            }
+        }
+        addBody(buffers, type, compressed != null ? compressed : payload, compressed != null);
+    }
+
+    private static void addBody(List<ByteBuffer> buffers, byte type, byte[] body, boolean compressed) {
+        byte wireType = compressed ? (byte) (type | FrameCodec.FLAG_COMPRESSED) : type;
+        ByteBuffer header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+        header.put(wireType).putInt(body.length).flip();
+        buffers.add(header);
+        buffers.add(ByteBuffer.wrap(body));
+    }
+
+    // Кодируем (и сжимаем) кадр один раз - для рассылки по нескольким сессиям.
+    // compress() сам сбрасывает Deflater, поэтому он берётся из пула, а не создаётся на кадр
+    public static EncodedFrame encode(byte type, byte[] payload) {
+        PayloadCompressor compressor = encodePool.poll();
+        if (compressor == null) {
+            compressor = new PayloadCompressor();
+        }
+        try {
+            return new EncodedFrame(type, payload, compressor.compress(payload));
+        } finally {
+            if (!encodePool.offer(compressor)) {
+                compressor.release();
+            }
+        }
+    }
+
+    // Читаем кадр и распаковываем при необходимости
+    public Frame readFrame() throws IOException {
+        FrameCodec.Header header = FrameCodec.readHeader(channel, readHeader);
+        if (header.length > PayloadCompressor.MAX_DECOMPRESSED_SIZE) {
+            throw new IOException("Frame too large: " + header.length);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(header.length);
+        FrameCodec.readFully(channel, payload);
+        payload.flip();
+
+        byte type = (byte) (header.type & ~FrameCodec.FLAG_COMPRESSED);
+        if ((header.type & FrameCodec.FLAG_COMPRESSED) != 0) {
+            if (compressor == null) {
+                throw new IOException("Compressed frame on uncompressed session");
+            }
+            // Под той же блокировкой, что и close(): Inflater не освободят посреди распаковки
+            synchronized (compressor) {
+                if (closed) {
+                    throw new IOException("Session closed");
+                }
+                payload = ByteBuffer.wrap(compressor.decompress(payload));
+            }
+        }
+        TrafficCapture.frame(captureId, true, type, payload);
+        return new Frame(type, payload);
+    }
+
+    // Пачка сообщений в одном кадре: COUNT(4) | запись*
+    // Запись: ID(8) | CHAT_NAME | SENDER | MESSAGE | TIME, строки - LENGTH(4) | UTF-8.
+    // ID - номер строки в базе отправителя, по нему получатель отсеивает дубликаты.
+    public void writeMessages(List<DatabaseHelper.Message> messages) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (byte[] batch : batchMessages(messages)) {
+            addFrame(buffers, FrameCodec.TYPE_MESSAGES, batch);
+        }
+        writer.write(buffers);
+    }
+
+    // То же самое, но закодированное один раз для рассылки нескольким собеседникам
+    public static List<EncodedFrame> encodeMessages(List<DatabaseHelper.Message> messages) {
+        List<EncodedFrame> frames = new ArrayList<>();
+        for (byte[] batch : batchMessages(messages)) {
+            frames.add(encode(FrameCodec.TYPE_MESSAGES, batch));
+        }
+        return frames;
+    }
+
+    private static List<byte[]> batchMessages(List<DatabaseHelper.Message> messages) {
+        List<byte[]> batches = new ArrayList<>();
+        List<byte[]> encoded = new ArrayList<>();
+        int batchBytes = 4;
+        for (DatabaseHelper.Message message : messages) {
+            byte[] record = encodeMessage(message);
+            if (!encoded.isEmpty() && batchBytes + record.length > MAX_BATCH_BYTES) {
+                batches.add(encodeBatch(encoded, batchBytes));
+                encoded.clear();
+                batchBytes = 4;
+            }
+            encoded.add(record);
+            batchBytes += record.length;
+        }
+        if (!encoded.isEmpty()) {
+            batches.add(encodeBatch(encoded, batchBytes));
+        }
+        return batches;
+    }
+
+    private static byte[] encodeMessage(DatabaseHelper.Message message) {
+        byte[] chatName = FrameCodec.utf8(message.chatName);
+        byte[] sender = FrameCodec.utf8(message.sender);
+        byte[] text = FrameCodec.utf8(message.text);
+        byte[] time = FrameCodec.utf8(message.time);
+
+        ByteBuffer record = ByteBuffer.allocate(8 + 16 + chatName.length + sender.length + text.length + time.length);
+        record.putLong(message.id);
+        record.putInt(chatName.length).put(chatName);
+        record.putInt(sender.length).put(sender);
+        record.putInt(text.length).put(text);
+        record.putInt(time.length).put(time);
+        return record.array();
+    }
+
+    private static byte[] encodeBatch(List<byte[]> encoded, int batchBytes) {
+        ByteBuffer batch = ByteBuffer.allocate(batchBytes);
+        batch.putInt(encoded.size());
+        for (byte[] record : encoded) {
+            batch.put(record);
+        }
+        return batch.array();
+    }
+
+    public static List<DatabaseHelper.Message> decodeMessages(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 4) {
+            throw new IOException("Truncated message batch");
+        }
+        int count = payload.getInt();
+        // Минимальная запись - 24 байта
+        if (count < 0 || count > payload.remaining() / 24) {
+            throw new IOException("Invalid batch size: " + count);
+        }
+        List<DatabaseHelper.Message> messages = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                long id = payload.getLong();
+                String chatName = FrameCodec.readString(payload);
+                String sender = FrameCodec.readString(payload);
+                String text = FrameCodec.readString(payload);
+                String time = FrameCodec.readString(payload);
+                messages.add(new DatabaseHelper.Message(id, chatName, sender, text, time, false));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message batch");
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        TrafficCapture.closeConnection(captureId);
+        captureId = 0;
+        if (compressor == null) {
+            closed = true;
+        } else {
+            synchronized (compressor) {
+                if (!closed) {
+                    closed = true;
+                    compressor.release();
+                }
+            }
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,160 @@
+package com.nico;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Исходящая очередь кадров одного соединения со склейкой записи.
+// Первый писатель становится "ведущим" и пишет всё, что накопилось в очереди, одним
+// gathering write (заголовки и тела кадров без копирования в общий буфер); остальные
+// писатели тем временем добавляют свои кадры и ждут, пока ведущий запишет и их.
+//
+// Режимы:
+// - низкая задержка (по умолчанию): простаивающее соединение пишет сразу, склейка
+//   происходит сама, пока идёт предыдущая запись;
+// - пакетный: ведущий ждёт до окно BATCH_WINDOW_NANOS или до BATCH_BYTES накопленных байт.
+//   Меньше системных вызовов и сегментов, но каждый отправитель платит окном задержки -
+//   выгодно при многих независимых отправителях, а не одном потоке, пишущем подряд.
+//
+// write() возвращается, когда кадры отданы транспорту, - ошибка записи доходит до
+// отправителя, как и раньше. После ошибки соединение считается сломанным.
+public class FrameWriter {
+    private static final long BATCH_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private final GatheringByteChannel channel;
+    private final Object lock = new Object();
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private long pendingBytes;
+    // Номера записей: выданные и уже отданные транспорту
+    private long submitted;
+    private long written;
+    private boolean flushing;
+    private IOException failure;
+    private volatile boolean lowLatency = true;
+
+    public FrameWriter(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
+    }
+
+    public boolean isLowLatency() {
+        return lowLatency;
+    }
+
+    // Буферы одного вызова уходят подряд, не перемешиваясь с чужими кадрами
+    public void write(List<ByteBuffer> buffers) throws IOException {
+        long ticket;
+        synchronized (lock) {
+            checkFailure();
+            for (ByteBuffer buffer : buffers) {
+                pending.add(buffer);
+                pendingBytes += buffer.remaining();
+            }
+            ticket = ++submitted;
+            // Ведущий в пакетном режиме ждёт - набрали бюджет, пора писать
+            if (pendingBytes >= BATCH_BYTES) {
+                lock.notifyAll();
+            }
+            // Ждём, пока запишут нас, или сами становимся ведущим
+            while (flushing) {
+                awaitLocked(0);
+                if (written >= ticket) {
+                    return;
+                }
+                checkFailure();
+            }
+            if (written >= ticket) {
+                return;
+            }
+            flushing = true;
+        }
+
+        try {
+            if (!lowLatency) {
+                awaitBatch();
+            }
+            flushUntil(ticket);
+        } finally {
+            synchronized (lock) {
+                flushing = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // Пакетный режим: ждём попутных кадров, но не дольше окна
+    private void awaitBatch() throws IOException {
+        synchronized (lock) {
+            long deadline = System.nanoTime() + BATCH_WINDOW_NANOS;
+            long left = BATCH_WINDOW_NANOS;
+            while (pendingBytes < BATCH_BYTES && left > 0) {
+                awaitLocked(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+                left = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    // Пишем очередь целиком, пока не записан ticket (и всё, что пришло вместе с ним)
+    private void flushUntil(long ticket) throws IOException {
+        while (true) {
+            ByteBuffer[] batch;
+            long upTo;
+            synchronized (lock) {
+                if (written >= ticket) {
+                    return;
+                }
+                batch = pending.toArray(new ByteBuffer[0]);
+                upTo = submitted;
+                pending = new ArrayList<>();
+                pendingBytes = 0;
+            }
+
+            try {
+                writeFully(batch);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                throw e;
+            }
+
+            synchronized (lock) {
+                written = upTo;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer[] batch) throws IOException {
+        int first = 0;
+        while (first < batch.length) {
+            channel.write(batch, first, batch.length - first);
+            while (first < batch.length && !batch[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Connection broken: " + failure.getMessage());
+        }
+    }
+
+    private void awaitLocked(long timeoutMs) throws IOException {
+        try {
+            lock.wait(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing");
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.nico;
+
+import android.content.Context;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Резервная копия истории: потоковый экспорт и импорт.
+// Экспорт идёт курсором по базе, импорт - пачками в транзакциях,
+// поэтому память не зависит от размера истории.
+//
+// Файл (gzip): MAGIC(8) | VERSION(1) | BACKUP_ID | запись* | END(1)
+// Запись: RECORD(1) | ID(8) | CREATED_AT(8) | OUTGOING(1) | CHAT_NAME | SENDER | MESSAGE | TIME
+//         | ORIGIN | ORIGIN_ID(8)
+// Строки - LENGTH(4) | UTF-8, LENGTH = -1 для NULL.
+public class HistoryBackup {
+    private static final byte[] MAGIC = "NICOHIST".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final byte RECORD = 1;
+    private static final byte END = 0;
+    // Размер пачки при импорте - одна транзакция на пачку
+    private static final int IMPORT_BATCH_SIZE = 500;
+    // Защита от повреждённого файла - длиннее строк в базе не бывает
+    private static final int MAX_STRING_BYTES = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DatabaseHelper dbHelper;
+
+    public HistoryBackup(Context context) {
+        this.dbHelper = DatabaseHelper.getInstance(context);
+    }
+
+    // Пишет всю историю в поток и закрывает его. Возвращает количество сообщений.
+    public int exportTo(OutputStream target) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(target, BUFFER_SIZE), BUFFER_SIZE))) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            writeString(out, UUID.randomUUID().toString());
+
+            int count = dbHelper.forEachMessage(message -> {
+                out.writeByte(RECORD);
+                writeMessage(out, message);
+            });
+            out.writeByte(END);
+
+            System.out.println("📤 Nico: Exported " + count + " messages");
+            return count;
+        }
+    }
+
+    // Читает копию из потока и закрывает его. Возвращает количество новых сообщений -
+    // повторный импорт той же копии ничего не добавляет.
+    public int importFrom(InputStream source) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(source, BUFFER_SIZE), BUFFER_SIZE))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a Nico history backup");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported backup version: " + version);
+            }
+            String backupOrigin = "backup:" + readString(in);
+
+            List<DatabaseHelper.Message> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            int read = 0;
+            int inserted = 0;
+            try {
+                for (byte marker = in.readByte(); marker != END; marker = in.readByte()) {
+                    if (marker != RECORD) {
+                        throw new IOException("Corrupted backup at record " + read);
+                    }
+                    batch.add(readMessage(in));
+                    read++;
+                    if (batch.size() == IMPORT_BATCH_SIZE) {
+                        inserted += dbHelper.addImportedMessages(backupOrigin, batch);
+                        batch.clear();
+                    }
+                }
+            } catch (IOException e) {
+                // Уже прочитанное сохраняем и при ошибке чтения - импорт можно просто повторить.
+                // Ошибку записи в базу (SQLException) не повторяем - та же пачка упала бы снова
+                if (!batch.isEmpty()) {
+                    inserted += dbHelper.addImportedMessages(backupOrigin, batch);
+                }
+                if (e instanceof EOFException) {
+                    throw new IOException("Truncated backup after " + read + " messages (" + inserted + " imported)");
+                }
+                throw e;
+            }
+            if (!batch.isEmpty()) {
+                inserted += dbHelper.addImportedMessages(backupOrigin, batch);
+            }
+
+            System.out.println("📥 Nico: Imported " + inserted + "/" + read + " messages");
+            return inserted;
+        }
+    }
+
+    // Формат записи общий с архивом HistoryRetention
+    static void writeMessage(DataOutputStream out, DatabaseHelper.Message message) throws IOException {
+        out.writeLong(message.id);
+        out.writeLong(message.createdAt);
+        out.writeBoolean(message.isOutgoing);
+        writeString(out, message.chatName);
+        writeString(out, message.sender);
+        writeString(out, message.text);
+        writeString(out, message.time);
+        writeString(out, message.origin);
+        out.writeLong(message.originId);
+    }
+
+    static DatabaseHelper.Message readMessage(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        long createdAt = in.readLong();
+        boolean outgoing = in.readBoolean();
+        DatabaseHelper.Message message = new DatabaseHelper.Message(id, readString(in),
+            readString(in), readString(in), readString(in), outgoing);
+        message.createdAt = createdAt;
+        message.origin = readString(in);
+        message.originId = in.readLong();
+        return message;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Invalid string length in backup: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,316 @@
+package com.nico;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.SQLException;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Срок хранения истории: старые сообщения архивируются (или удаляются) небольшими
+// пачками, после чего освободившиеся страницы возвращаются через incremental_vacuum.
+// Политика - в nico_prefs: общая и, при необходимости, своя для отдельного чата.
+// По умолчанию ограничений нет - история хранится целиком.
+// Архив возвращается в базу через restoreArchive (например, после смягчения политики).
+public class HistoryRetention {
+    private static final String PREFS_NAME = "nico_prefs";
+    private static final String KEY_MAX_AGE_DAYS = "retention_max_age_days";
+    private static final String KEY_MAX_COUNT = "retention_max_count";
+    private static final String KEY_ARCHIVE = "retention_archive";
+    private static final String KEY_LAST_RUN = "retention_last_run";
+
+    private static final long RUN_INTERVAL_MS = TimeUnit.HOURS.toMillis(24);
+    // Небольшие пачки - транзакция не держит базу дольше нескольких миллисекунд
+    private static final int BATCH_SIZE = 200;
+    private static final long BATCH_PAUSE_MS = 50;
+    private static final int VACUUM_PAGES_PER_STEP = 256;
+    private static final int MAX_VACUUM_STEPS = 64;
+
+    private static final String ARCHIVE_DIR = "archive";
+    private static final String ARCHIVE_FILE = "history.archive.gz";
+    // 1 - ID | CREATED_AT | OUTGOING | CHAT_NAME | SENDER | MESSAGE | TIME (без origin);
+    // 2 - запись в формате HistoryBackup
+    private static final int ARCHIVE_VERSION = 2;
+    // origin восстановленных из архива сообщений - повторное восстановление ничего не дублирует
+    private static final String ARCHIVE_ORIGIN = "archive";
+    private static final int RESTORE_BATCH_SIZE = 500;
+
+    private static final AtomicBoolean running = new AtomicBoolean();
+
+    // Политика хранения: 0 - без ограничения
+    public static class Policy {
+        public final int maxAgeDays;
+        public final int maxCount;
+        public final boolean archive;
+
+        public Policy(int maxAgeDays, int maxCount, boolean archive) {
+            this.maxAgeDays = maxAgeDays;
+            this.maxCount = maxCount;
+            this.archive = archive;
+        }
+
+        public boolean isUnlimited() {
+            return maxAgeDays <= 0 && maxCount <= 0;
+        }
+    }
+
+    private final Context context;
+    private final SharedPreferences prefs;
+
+    public HistoryRetention(Context context) {
+        this.context = context.getApplicationContext();
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // ===== Настройка политики =====
+
+    public Policy getGlobalPolicy() {
+        return readPolicy("", new Policy(0, 0, true));
+    }
+
+    // Своя политика чата, если задана, иначе общая
+    public Policy getPolicy(String chatName) {
+        return readPolicy(":" + chatName, getGlobalPolicy());
+    }
+
+    public void setGlobalPolicy(Policy policy) {
+        writePolicy("", policy);
+    }
+
+    public void setChatPolicy(String chatName, Policy policy) {
+        writePolicy(":" + chatName, policy);
+    }
+
+    public void clearChatPolicy(String chatName) {
+        prefs.edit()
+            .remove(KEY_MAX_AGE_DAYS + ":" + chatName)
+            .remove(KEY_MAX_COUNT + ":" + chatName)
+            .remove(KEY_ARCHIVE + ":" + chatName)
+            .apply();
+    }
+
+    private Policy readPolicy(String suffix, Policy fallback) {
+        if (!prefs.contains(KEY_MAX_AGE_DAYS + suffix)) {
+            return fallback;
+        }
+        return new Policy(
+            prefs.getInt(KEY_MAX_AGE_DAYS + suffix, 0),
+            prefs.getInt(KEY_MAX_COUNT + suffix, 0),
+            prefs.getBoolean(KEY_ARCHIVE + suffix, true));
+    }
+
+    private void writePolicy(String suffix, Policy policy) {
+        prefs.edit()
+            .putInt(KEY_MAX_AGE_DAYS + suffix, policy.maxAgeDays)
+            .putInt(KEY_MAX_COUNT + suffix, policy.maxCount)
+            .putBoolean(KEY_ARCHIVE + suffix, policy.archive)
+            .apply();
+    }
+
+    // ===== Фоновая задача =====
+
+    // Запуск не чаще раза в сутки, в фоне и с пониженным приоритетом
+    public void runIfDue() {
+        long lastRun = prefs.getLong(KEY_LAST_RUN, 0);
+        if (System.currentTimeMillis() - lastRun < RUN_INTERVAL_MS) {
+            return;
+        }
+        Thread thread = new Thread(this::run, "nico-retention");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // Возвращает количество убранных из базы сообщений
+    public int run() {
+        if (!running.compareAndSet(false, true)) {
+            return 0;
+        }
+        int removed = 0;
+        try {
+            DatabaseHelper db = DatabaseHelper.getInstance(context);
+            boolean limited = false;
+            for (String chatName : db.getChatNames(null)) {
+                Policy policy = getPolicy(chatName);
+                if (!policy.isUnlimited()) {
+                    limited = true;
+                    removed += applyPolicy(db, chatName, policy);
+                }
+            }
+            // Без политики хранения базу не трогаем вовсе
+            if (removed > 0 || limited) {
+                compact(db, removed);
+            }
+            prefs.edit().putLong(KEY_LAST_RUN, System.currentTimeMillis()).apply();
+            System.out.println("🧹 Nico: Retention finished - " + removed + " messages removed");
+
+        } catch (IOException | SQLException e) {
+            System.out.println("❌ Nico: Retention error - " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.set(false);
+        }
+        return removed;
+    }
+
+    private int applyPolicy(DatabaseHelper db, String chatName, Policy policy)
+            throws IOException, InterruptedException {
+        long cutoff = db.getRetentionCutoff(chatName,
+            TimeUnit.DAYS.toMillis(policy.maxAgeDays), policy.maxCount);
+        int removed = 0;
+
+        while (cutoff >= 0) {
+            List<DatabaseHelper.Message> batch = db.getMessagesUpTo(chatName, cutoff, BATCH_SIZE);
+            if (batch.isEmpty()) {
+                break;
+            }
+            // Сначала архив на диске, потом удаление - при сбое сообщение может
+            // попасть в архив дважды, но не потеряется
+            if (policy.archive) {
+                appendToArchive(batch);
+            }
+            removed += db.deleteMessageRange(chatName, batch.get(0).id, batch.get(batch.size() - 1).id);
+            if (batch.size() < BATCH_SIZE) {
+                break;
+            }
+            // Даём дорогу сообщениям, которые пишутся прямо сейчас
+            Thread.sleep(BATCH_PAUSE_MS);
+        }
+
+        if (removed > 0) {
+            System.out.println("🗄️ Nico: " + (policy.archive ? "Archived " : "Deleted ")
+                + removed + " old messages from " + chatName);
+        }
+        return removed;
+    }
+
+    // Возвращаем свободные страницы файлу по частям, чтобы не блокировать запись надолго.
+    // Перевод старой базы в incremental режим - полный VACUUM, переписывающий весь файл:
+    // только когда устройство заряжается и не используется, иначе в другой день
+    private void compact(DatabaseHelper db, int removed) throws InterruptedException {
+        if (isIdleAndCharging()) {
+            db.enableIncrementalVacuum();
+        }
+        if (removed == 0) {
+            return;
+        }
+        int freed = 0;
+        for (int step = 0; step < MAX_VACUUM_STEPS; step++) {
+            int pages = db.incrementalVacuum(VACUUM_PAGES_PER_STEP);
+            freed += pages;
+            if (pages < VACUUM_PAGES_PER_STEP) {
+                break;
+            }
+            Thread.sleep(BATCH_PAUSE_MS);
+        }
+        if (freed > 0) {
+            System.out.println("🧹 Nico: Released " + freed + " database pages");
+        }
+    }
+
+    private boolean isIdleAndCharging() {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        boolean charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return charging && pm != null && !pm.isInteractive();
+    }
+
+    // Возвращает весь архив в базу (с исходными id как origin_id). Сообщения старше политики
+    // снова уйдут в архив при следующем запуске - перед восстановлением политику стоит смягчить.
+    // Долго - вызывать с фонового потока. Возвращает количество добавленных сообщений.
+    public int restoreArchive() throws IOException {
+        File file = new File(new File(context.getFilesDir(), ARCHIVE_DIR), ARCHIVE_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+        DatabaseHelper db = DatabaseHelper.getInstance(context);
+        List<DatabaseHelper.Message> batch = new ArrayList<>(RESTORE_BATCH_SIZE);
+        int read = 0;
+        int inserted = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))))) {
+            for (int version = in.read(); version != -1; version = in.read()) {
+                batch.add(readArchivedMessage(in, version, read));
+                read++;
+                if (batch.size() == RESTORE_BATCH_SIZE) {
+                    inserted += db.addImportedMessages(ARCHIVE_ORIGIN, batch);
+                    batch.clear();
+                }
+            }
+        } catch (EOFException e) {
+            // Оборванный последний блок (сбой во время записи) - восстанавливаем прочитанное
+            System.out.println("⚠️ Nico: Archive truncated after " + read + " messages");
+        }
+        if (!batch.isEmpty()) {
+            inserted += db.addImportedMessages(ARCHIVE_ORIGIN, batch);
+        }
+        System.out.println("🗄️ Nico: Restored " + inserted + "/" + read + " archived messages");
+        return inserted;
+    }
+
+    // Версия - у каждой записи: старые блоки архива остаются в файле рядом с новыми
+    private static DatabaseHelper.Message readArchivedMessage(DataInputStream in, int version, int index)
+            throws IOException {
+        if (version == ARCHIVE_VERSION) {
+            return HistoryBackup.readMessage(in);
+        }
+        if (version != 1) {
+            throw new IOException("Unsupported archive record version " + version + " at " + index);
+        }
+        long id = in.readLong();
+        long createdAt = in.readLong();
+        boolean outgoing = in.readBoolean();
+        DatabaseHelper.Message message = new DatabaseHelper.Message(id, readString(in), readString(in),
+            readString(in), readString(in), outgoing);
+        message.createdAt = createdAt;
+        return message;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Архив - склеенные gzip-блоки, по одному на пачку (GZIPInputStream читает их подряд).
+    // Запись: VERSION(1) | запись в формате HistoryBackup.
+    private void appendToArchive(List<DatabaseHelper.Message> batch) throws IOException {
+        File dir = new File(context.getFilesDir(), ARCHIVE_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+
+        FileOutputStream file = new FileOutputStream(new File(dir, ARCHIVE_FILE), true);
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(file));
+            DataOutputStream out = new DataOutputStream(gzip);
+            for (DatabaseHelper.Message message : batch) {
+                out.writeByte(ARCHIVE_VERSION);
+                HistoryBackup.writeMessage(out, message);
+            }
+            gzip.finish();
+            out.flush();
+            // Строки удаляются из базы только после того, как архив на диске
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.nico;
+
+import android.content.Context;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Синхронизация истории между двумя устройствами по водяным знакам.
+// Каждая сторона сообщает, до какого id она уже получила сообщения собеседника
+// в каждом чате, и получает только то, что новее - пачками MESSAGES (со сжатием сессии).
+// Каждое устройство отдаёт только свои исходящие сообщения, адресованные запросившему
+// собеседнику; дубликаты отсекает уникальный индекс (origin, origin_id).
+public class HistorySync {
+    // Строк из базы за один запрос - память не зависит от размера истории
+    private static final int PAGE_SIZE = 200;
+
+    private final Context context;
+
+    public HistorySync(Context context) {
+        this.context = context;
+    }
+
+    // Инициатор: сначала забираем недостающее, потом отдаём своё
+    public Set<String> syncAsInitiator(FrameSession session, String peerIp) throws IOException {
+        sendRequest(session, peerIp);
+        Set<String> updatedChats = receiveUntilDone(session, peerIp);
+
+        FrameSession.Frame request = session.readFrame();
+        if (request.type != FrameCodec.TYPE_SYNC_REQUEST) {
+            throw new IOException("Expected sync request, got " + request.type);
+        }
+        serveRequest(session, request.payload, peerIp);
+        return updatedChats;
+    }
+
+    // Ответчик: NetworkManager уже получил SYNC_REQUEST
+    public Set<String> syncAsResponder(FrameSession session, ByteBuffer request, String peerIp) throws IOException {
+        serveRequest(session, request, peerIp);
+        sendRequest(session, peerIp);
+        return receiveUntilDone(session, peerIp);
+    }
+
+    // Запрос: COUNT(4) | (CHAT_NAME | LAST_REMOTE_ID(8))*
+    private void sendRequest(FrameSession session, String peerIp) throws IOException {
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+        Map<String, Long> watermarks = dbHelper.getSyncWatermarks(peerIp);
+        for (String chatName : dbHelper.getChatNames(null)) {
+            if (!watermarks.containsKey(chatName)) {
+                watermarks.put(chatName, 0L);
+            }
+        }
+
+        int size = 4;
+        Map<String, byte[]> names = new HashMap<>();
+        for (String chatName : watermarks.keySet()) {
+            byte[] name = FrameCodec.utf8(chatName);
+            names.put(chatName, name);
+            size += 4 + name.length + 8;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(size);
+        payload.putInt(watermarks.size());
+        for (Map.Entry<String, Long> entry : watermarks.entrySet()) {
+            byte[] name = names.get(entry.getKey());
+            payload.putInt(name.length).put(name).putLong(entry.getValue());
+        }
+        session.writeFrame(FrameCodec.TYPE_SYNC_REQUEST, payload.array());
+
+        System.out.println("🔄 Nico: Sync request sent to " + peerIp + " for " + watermarks.size() + " chats");
+    }
+
+    // Отдаём свои исходящие сообщения собеседнику новее его водяных знаков.
+    // Имена чатов в запросе - от собеседника, поэтому фильтр по получателю обязателен
+    private void serveRequest(FrameSession session, ByteBuffer request, String peerIp) throws IOException {
+        Map<String, Long> watermarks = new HashMap<>();
+        try {
+            int count = request.getInt();
+            for (int i = 0; i < count; i++) {
+                String chatName = FrameCodec.readString(request);
+                watermarks.put(chatName, request.getLong());
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated sync request");
+        }
+
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+        // Чаты собеседника плюс те, где он уже писал нам
+        Set<String> chats = new LinkedHashSet<>(watermarks.keySet());
+        chats.addAll(dbHelper.getChatNames(peerIp));
+
+        int sent = 0;
+        for (String chatName : chats) {
+            Long watermark = watermarks.get(chatName);
+            long afterId = watermark != null ? watermark : 0;
+
+            while (true) {
+                List<DatabaseHelper.Message> page = dbHelper.getOutgoingMessagesAfter(chatName, peerIp, afterId, PAGE_SIZE);
+                if (page.isEmpty()) {
+                    break;
+                }
+                session.writeMessages(page);
+                sent += page.size();
+                afterId = page.get(page.size() - 1).id;
+                if (page.size() < PAGE_SIZE) {
+                    break;
+                }
+            }
+        }
+
+        session.writeFrame(FrameCodec.TYPE_SYNC_DONE, new byte[0]);
+        System.out.println("🔄 Nico: Sent " + sent + " missing messages to " + peerIp);
+    }
+
+    private Set<String> receiveUntilDone(FrameSession session, String peerIp) throws IOException {
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+        Set<String> updatedChats = new LinkedHashSet<>();
+
+        while (true) {
+            FrameSession.Frame frame = session.readFrame();
+            if (frame.type == FrameCodec.TYPE_SYNC_DONE) {
+                return updatedChats;
+            }
+            if (frame.type != FrameCodec.TYPE_MESSAGES) {
+                throw new IOException("Unexpected frame during sync: " + frame.type);
+            }
+
+            List<DatabaseHelper.Message> batch = FrameSession.decodeMessages(frame.payload);
+            if (dbHelper.addSyncedMessages(peerIp, batch) > 0) {
+                for (DatabaseHelper.Message message : batch) {
+                    updatedChats.add(message.chatName);
+                }
+            }
+        }
+    }
+}
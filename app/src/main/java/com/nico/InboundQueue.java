@@ -0,0 +1,118 @@
+package com.nico;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Входящие сообщения между сокетами и базой.
+// Потоки соединений только читают и кладут сообщения в очередь своего собеседника,
+// один поток-обработчик забирает их пачками по кругу - шумный собеседник получает
+// свою долю, но не больше, и не тормозит остальных.
+//
+// Поток управления:
+// - очередь собеседника ограничена; когда она полна, поток соединения перестаёт читать
+//   сокет, TCP окно закрывается и отправитель упирается в запись;
+// - если очередь не освободилась за OFFER_TIMEOUT_MS, соединение разрываем -
+//   у отправителя доставка не удалась, сообщения вернутся через синхронизацию истории.
+public class InboundQueue {
+    private static final int MAX_QUEUED_PER_PEER = 256;
+    // Сколько сообщений одного собеседника обрабатываем подряд, прежде чем перейти к следующему
+    private static final int MAX_BATCH = 32;
+    private static final long OFFER_TIMEOUT_MS = 5000;
+
+    // Обработка пачки сообщений одного собеседника (на потоке обработчика)
+    public interface Handler {
+        void handle(String senderIp, List<DatabaseHelper.Message> batch);
+    }
+
+    private static class PeerQueue {
+        final BlockingQueue<DatabaseHelper.Message> messages = new ArrayBlockingQueue<>(MAX_QUEUED_PER_PEER);
+        // Собеседник уже стоит в очереди на обработку
+        final AtomicBoolean scheduled = new AtomicBoolean();
+    }
+
+    // Очереди не удаляются - собеседников в локальной сети единицы
+    private final Map<String, PeerQueue> queues = new ConcurrentHashMap<>();
+    private final BlockingQueue<String> ready = new LinkedBlockingQueue<>();
+    private final Handler handler;
+    private Thread worker;
+
+    public InboundQueue(Handler handler) {
+        this.handler = handler;
+    }
+
+    // Вызывается потоком соединения. Блокирует чтение, пока очередь собеседника полна;
+    // IOException - собеседник перегружает нас, соединение нужно закрыть.
+    public void offer(String senderIp, DatabaseHelper.Message message) throws IOException {
+        queues.putIfAbsent(senderIp, new PeerQueue());
+        PeerQueue queue = queues.get(senderIp);
+        ensureWorker();
+        try {
+            if (!queue.messages.offer(message, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                System.out.println("🚦 Nico: Inbound queue full for " + senderIp + ", disconnecting");
+                throw new IOException("Inbound queue overloaded");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing");
+        }
+        schedule(senderIp, queue);
+    }
+
+    // Поток обработчика стартует с первым сообщением
+    private synchronized void ensureWorker() {
+        if (worker == null) {
+            worker = new Thread(this::drain, "nico-inbound");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void schedule(String senderIp, PeerQueue queue) {
+        if (queue.scheduled.compareAndSet(false, true)) {
+            ready.add(senderIp);
+        }
+    }
+
+    private void drain() {
+        List<DatabaseHelper.Message> batch = new ArrayList<>(MAX_BATCH);
+        while (!Thread.currentThread().isInterrupted()) {
+            String senderIp;
+            try {
+                senderIp = ready.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            PeerQueue queue = queues.get(senderIp);
+            queue.scheduled.set(false);
+            queue.messages.drainTo(batch, MAX_BATCH);
+
+            if (!batch.isEmpty()) {
+                try {
+                    handler.handle(senderIp, batch);
+                } catch (RuntimeException e) {
+                    System.out.println("❌ Nico: Error processing messages from " + senderIp + " - " + e.getMessage());
+                }
+                batch.clear();
+            }
+            // Остаток - в конец круга, после других собеседников
+            if (!queue.messages.isEmpty()) {
+                schedule(senderIp, queue);
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.nico;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Живой запрос к базе: результат приходит на главный поток сразу после открытия
+// и после каждой закоммиченной записи, которая его касается (EventBus.EVENT_CHANGE).
+//
+// Пересчёт идёт на потоке чтения AsyncDatabase и получает список изменений с прошлого раза -
+// обычно это "в чат X добавлены id a..b", и Updater дочитывает только их. Изменения,
+// пришедшие во время пересчёта, склеиваются в следующий, одновременно идёт не больше одного.
+// Результат не меняется после выдачи: Updater возвращает новый объект, а не правит прежний.
+//
+// Открывается через AsyncDatabase.observe*, закрывается close() (обычно в onDestroy).
+public class LiveQuery<T> implements EventBus.Subscriber, EventBus.DropListener {
+    // Служебный вид изменения: пересчитать полностью (refresh)
+    public static final int CHANGE_RELOAD = 0;
+
+    // Вызывается на потоке чтения; previous == null - первый запрос
+    public interface Updater<T> {
+        T update(DatabaseHelper db, T previous, List<Change> changes);
+    }
+
+    // Копия EVENT_CHANGE (Event шины переиспользуется)
+    public static class Change {
+        public final int kind;
+        public final String chatName;
+        public final long fromId;
+        public final long toId;
+
+        Change(int kind, String chatName, long fromId, long toId) {
+            this.kind = kind;
+            this.chatName = chatName;
+            this.fromId = fromId;
+            this.toId = toId;
+        }
+    }
+
+    private final AsyncDatabase database;
+    // null - все чаты
+    private final String chatName;
+    private final Updater<T> updater;
+    private final AsyncDatabase.Callback<T> callback;
+    private EventBus.Subscription subscription;
+    // Всё ниже - под блокировкой this
+    private List<Change> pending = new ArrayList<>();
+    private T current;
+    private boolean scheduled;
+    private boolean closed;
+    // Только главный поток: последний отданный результат
+    private T delivered;
+
+    LiveQuery(AsyncDatabase database, String chatName, Updater<T> updater, AsyncDatabase.Callback<T> callback) {
+        this.database = database;
+        this.chatName = chatName;
+        this.updater = updater;
+        this.callback = callback;
+    }
+
+    void start() {
+        // Подписка раньше первого запроса - запись между ними не потеряется, только пересчитается
+        subscription = EventBus.getInstance().subscribe(EventBus.EVENT_CHANGE, EventBus.DELIVERY_IO, this);
+        schedule();
+    }
+
+    // Полный перезапрос (например, по кнопке обновления)
+    public void refresh() {
+        synchronized (this) {
+            pending.add(new Change(CHANGE_RELOAD, chatName, 0, 0));
+        }
+        schedule();
+    }
+
+    public void close() {
+        EventBus.getInstance().unsubscribe(subscription);
+        synchronized (this) {
+            closed = true;
+            pending.clear();
+        }
+    }
+
+    // Поток шины: только запоминаем изменение, запрос уходит в пул чтения
+    @Override
+    public void onEvent(EventBus.Event event) {
+        if (chatName != null && !chatName.equals(event.chatName)) {
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            pending.add(new Change(event.kind, event.chatName, event.value, event.upTo));
+        }
+        schedule();
+    }
+
+    // Поток шины: отстали от кольца и потеряли изменения - точечное обновление невозможно
+    @Override
+    public void onDropped(long count) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            pending.add(new Change(CHANGE_RELOAD, chatName, 0, 0));
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (scheduled || closed) {
+                return;
+            }
+            scheduled = true;
+        }
+        database.read(this::update, this::deliver);
+    }
+
+    // Поток чтения
+    private T update(DatabaseHelper db) {
+        List<Change> changes;
+        T previous;
+        synchronized (this) {
+            changes = pending;
+            pending = new ArrayList<>();
+            previous = current;
+        }
+        T result;
+        try {
+            result = updater.update(db, previous, changes);
+        } catch (RuntimeException e) {
+            // Ошибку запишет AsyncDatabase; следующее изменение перечитает всё заново
+            synchronized (this) {
+                pending.add(new Change(CHANGE_RELOAD, chatName, 0, 0));
+                scheduled = false;
+            }
+            throw e;
+        }
+        synchronized (this) {
+            current = result;
+        }
+        return result;
+    }
+
+    // Главный поток
+    private void deliver(T result) {
+        boolean more;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            scheduled = false;
+            more = !pending.isEmpty();
+        }
+        // Изменения его не коснулись - экран не трогаем
+        if (result != delivered) {
+            delivered = result;
+            callback.onResult(result);
+        }
+        if (more) {
+            schedule();
+        }
+    }
+
+    // ===== Запросы экранов =====
+
+    // Сообщения чата по возрастанию id: добавленные дочитываются, после удаления - полный запрос
+    public static Updater<List<DatabaseHelper.Message>> messages(String chatName) {
+        return (db, previous, changes) -> {
+            if (previous == null || needsReload(changes)) {
+                return db.getMessagesForChat(chatName);
+            }
+            if (!hasKind(changes, DatabaseHelper.CHANGE_INSERT)) {
+                return previous;
+            }
+            long lastId = previous.isEmpty() ? 0 : previous.get(previous.size() - 1).id;
+            List<DatabaseHelper.Message> added = db.getMessagesAfter(chatName, lastId);
+            if (added.isEmpty()) {
+                return previous;
+            }
+            List<DatabaseHelper.Message> result = new ArrayList<>(previous.size() + added.size());
+            result.addAll(previous);
+            result.addAll(added);
+            return result;
+        };
+    }
+
+    // Список чатов: у чата с новыми сообщениями перечитывается только его последнее сообщение,
+    // и он переносится в конец (там же его поставил бы полный запрос - по MAX(id))
+    public static Updater<List<DatabaseHelper.Chat>> recentChats() {
+        return (db, previous, changes) -> {
+            if (previous == null || needsReload(changes)) {
+                return db.getRecentChats();
+            }
+            List<String> updated = new ArrayList<>();
+            for (Change change : changes) {
+                if (change.kind == DatabaseHelper.CHANGE_INSERT && !updated.contains(change.chatName)) {
+                    updated.add(change.chatName);
+                }
+            }
+            if (updated.isEmpty()) {
+                return previous;
+            }
+            List<DatabaseHelper.Chat> result = new ArrayList<>(previous);
+            for (String name : updated) {
+                for (Iterator<DatabaseHelper.Chat> it = result.iterator(); it.hasNext(); ) {
+                    if (it.next().name.equals(name)) {
+                        it.remove();
+                    }
+                }
+                DatabaseHelper.Chat chat = db.getChat(name);
+                if (chat != null) {
+                    result.add(chat);
+                }
+            }
+            return result;
+        };
+    }
+
+    private static boolean needsReload(List<Change> changes) {
+        return hasKind(changes, CHANGE_RELOAD) || hasKind(changes, DatabaseHelper.CHANGE_DELETE);
+    }
+
+    private static boolean hasKind(List<Change> changes, int kind) {
+        for (Change change : changes) {
+            if (change.kind == kind) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
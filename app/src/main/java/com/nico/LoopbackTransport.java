@@ -0,0 +1,239 @@
+package com.nico;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Транспорт в памяти процесса: "устройства" - экземпляры с разными адресами в одной Network.
+// Ни сокетов, ни ядра - байты копируются через кольцевой буфер, поэтому пропускная
+// способность и задержка движка сообщений измеряются без шума сети (см. TransportBenchmark).
+public class LoopbackTransport implements Transport {
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    // Общая "сеть" для нескольких устройств
+    public static class Network {
+        private final Map<String, LoopbackServer> servers = new ConcurrentHashMap<>();
+    }
+
+    private final Network network;
+    private final String address;
+
+    public LoopbackTransport(Network network, String address) {
+        this.network = network;
+        this.address = address;
+    }
+
+    // Однонаправленный канал с ограниченным буфером: писатель ждёт, пока читатель не освободит место
+    private static class Pipe {
+        private final byte[] buffer = new byte[PIPE_CAPACITY];
+        private int head;
+        private int size;
+        private boolean writeClosed;
+        private boolean readClosed;
+
+        synchronized int read(ByteBuffer target, int timeoutMs) throws IOException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (size == 0) {
+                if (writeClosed || readClosed) {
+                    return -1;
+                }
+                long left = timeoutMs > 0 ? deadline - System.currentTimeMillis() : 0;
+                if (timeoutMs > 0 && left <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                await(left);
+            }
+            int count = Math.min(size, target.remaining());
+            for (int i = 0; i < count; i++) {
+                target.put(buffer[(head + i) % PIPE_CAPACITY]);
+            }
+            head = (head + count) % PIPE_CAPACITY;
+            size -= count;
+            notifyAll();
+            return count;
+        }
+
+        synchronized int write(ByteBuffer source) throws IOException {
+            int written = 0;
+            while (source.hasRemaining()) {
+                if (writeClosed) {
+                    throw new ClosedChannelException();
+                }
+                if (readClosed) {
+                    throw new IOException("Connection reset by peer");
+                }
+                if (size == PIPE_CAPACITY) {
+                    await(0);
+                    continue;
+                }
+                int count = Math.min(PIPE_CAPACITY - size, source.remaining());
+                int tail = (head + size) % PIPE_CAPACITY;
+                for (int i = 0; i < count; i++) {
+                    buffer[(tail + i) % PIPE_CAPACITY] = source.get();
+                }
+                size += count;
+                written += count;
+                notifyAll();
+            }
+            return written;
+        }
+
+        synchronized void closeWrite() {
+            writeClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeRead() {
+            readClosed = true;
+            notifyAll();
+        }
+
+        private void await(long timeoutMs) throws IOException {
+            try {
+                wait(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EOFException("Interrupted");
+            }
+        }
+    }
+
+    private static class LoopbackConnection implements Connection {
+        private final String remoteAddress;
+        private final Pipe in;
+        private final Pipe out;
+        private volatile int readTimeoutMs;
+        private volatile boolean open = true;
+
+        LoopbackConnection(String remoteAddress, Pipe in, Pipe out) {
+            this.remoteAddress = remoteAddress;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void setReadTimeout(int timeoutMs) {
+            readTimeoutMs = timeoutMs;
+        }
+
+        @Override
+        public void shutdownOutput() {
+            out.closeWrite();
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            return in.read(buffer, readTimeoutMs);
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            return out.write(buffer);
+        }
+
+        @Override
+        public long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(buffers[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] buffers) throws IOException {
+            return write(buffers, 0, buffers.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            in.closeRead();
+            out.closeWrite();
+        }
+    }
+
+    private static class LoopbackServer implements Server {
+        private final Network network;
+        private final String key;
+        private final BlockingQueue<Connection> pending = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        LoopbackServer(Network network, String key) {
+            this.network = network;
+            this.key = key;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            try {
+                Connection connection = pending.take();
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                return connection;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClosedChannelException();
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            network.servers.remove(key, this);
+            // Будим accept()
+            pending.add(new LoopbackConnection("", new Pipe(), new Pipe()));
+        }
+    }
+
+    @Override
+    public Connection connect(String remote, int port, int timeoutMs) throws IOException {
+        LoopbackServer server = network.servers.get(remote + ":" + port);
+        if (server == null || server.closed) {
+            throw new ConnectException("Connection refused: " + remote + ":" + port);
+        }
+        Pipe toServer = new Pipe();
+        Pipe toClient = new Pipe();
+        server.pending.add(new LoopbackConnection(address, toServer, toClient));
+        return new LoopbackConnection(remote, toClient, toServer);
+    }
+
+    @Override
+    public Server listen(int port) throws IOException {
+        String key = address + ":" + port;
+        LoopbackServer server = new LoopbackServer(network, key);
+        if (network.servers.putIfAbsent(key, server) != null) {
+            throw new IOException("Address already in use: " + key);
+        }
+        return server;
+    }
+
+    @Override
+    public String getLocalAddress() {
+        return address;
+    }
+}
@@ -7,37 +7,58 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.TextView;
+import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
+import java.util.ArrayList;
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
     
     private LinearLayout mainLayout;
-    private DatabaseHelper dbHelper;
+    private AsyncDatabase database;
     private NetworkManager networkManager;
     private TextView connectionStatus;
+    // Всё, что добавил showChatsAsButtons - удаляется при обновлении списка
+    private final List<View> chatViews = new ArrayList<>();
+    // Живой список чатов: обновляется после каждой записи в базу, даже когда экран в фоне
+    private LiveQuery<List<DatabaseHelper.Chat>> chatsQuery;
+    private List<DatabaseHelper.Chat> chats;
     
+    // Запуск: снимок списка чатов и база читаются в фоне - главный поток не ждёт диска,
+    // сеть и фоновые задачи стартуют только после первого кадра (см. StartupTrace)
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTrace.begin("MainActivity.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         
         // Находим основной layout
         mainLayout = findViewById(R.id.main_layout);
         
-        // Инициализируем базу данных
-        dbHelper = new DatabaseHelper(this);
-        
-        // Инициализируем сетевой менеджер
-        networkManager = new NetworkManager(this);
-        networkManager.startServer();
+        // Инициализируем базу данных (открывается при первом запросе, в фоне)
+        database = AsyncDatabase.getInstance(this);
         
         setupiOSStyle();
         setupConnectionStatus();
-        loadChatsFromDatabase();
+        
+        loadSnapshot();
+        observeChats();
         setupClickListeners();
+        StartupTrace.afterFirstFrame(this, this::startBackgroundServices);
         
         System.out.println("🚀 Nico Messenger started!");
+        StartupTrace.end();
+    }
+    
+    // Всё, без чего можно нарисовать экран
+    private void startBackgroundServices() {
+        StartupTrace.begin("NetworkManager.start");
+        networkManager = new NetworkManager(this);
+        networkManager.startServer();
+        StartupTrace.end();
+        
+        // Архивация старой истории и сжатие базы - раз в сутки, в фоне
+        new HistoryRetention(this).runIfDue();
     }
     
     @Override
@@ -79,22 +100,43 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
-    private void loadChatsFromDatabase() {
-        // Загружаем чаты из базы данных
-        List<DatabaseHelper.Chat> chats = dbHelper.getRecentChats();
-        
-        // Показываем чаты в виде кнопок
-        showChatsAsButtons(chats);
+    // Снимок обычно читается быстрее запроса к базе - список появляется сразу после первого кадра.
+    // Если база успела первой, снимок уже не нужен
+    private void loadSnapshot() {
+        new Thread(() -> {
+            StartupTrace.begin("ChatListSnapshot");
+            List<DatabaseHelper.Chat> snapshot = ChatListSnapshot.load(this);
+            StartupTrace.end();
+            if (snapshot.isEmpty()) {
+                return;
+            }
+            runOnUiThread(() -> {
+                if (chats == null && !isFinishing()) {
+                    showChatsAsButtons(snapshot);
+                }
+            });
+        }, "nico-snapshot").start();
     }
     
-    private void showChatsAsButtons(List<DatabaseHelper.Chat> chats) {
-        // Очищаем существующие чаты (кроме первых трёх элементов - хедер, статус и текст)
-        for (int i = 3; i < mainLayout.getChildCount(); i++) {
-            if (mainLayout.getChildAt(i) instanceof Button) {
-                mainLayout.removeViewAt(i);
-                i--; // Уменьшаем счетчик т.к. удалили элемент
+    private void observeChats() {
+        // Загружаем чаты в фоне и показываем их в виде кнопок; дальше список обновляется
+        // сам - перечитывается только чат, в который что-то записали
+        chatsQuery = database.observeRecentChats(chats -> {
+            boolean first = this.chats == null;
+            this.chats = chats;
+            showChatsAsButtons(chats);
+            if (first) {
+                StartupTrace.reportInteractive(this);
             }
+        });
+    }
+    
+    private void showChatsAsButtons(List<DatabaseHelper.Chat> chats) {
+        // Очищаем предыдущий список (список рисуется дважды: из снимка и из базы)
+        for (View view : chatViews) {
+            mainLayout.removeView(view);
         }
+        chatViews.clear();
     
         // Добавляем кнопку подключения
         addConnectButton();
@@ -115,7 +157,7 @@ public class MainActivity extends AppCompatActivity {
             chatButton.setPadding(50, 30, 50, 30);
             chatButton.setTextSize(14);
             
-            mainLayout.addView(chatButton);
+            addChatView(chatButton);
         }
         
         // Если чатов нет, показываем сообщение
@@ -126,6 +168,11 @@ public class MainActivity extends AppCompatActivity {
         System.out.println("💬 Nico: Displayed " + chats.size() + " chats from database");
     }
     
+    private void addChatView(View view) {
+        mainLayout.addView(view);
+        chatViews.add(view);
+    }
+    
     // Добавляем кнопку подключения к сети
     private void addConnectButton() {
         Button connectButton = new Button(this);
@@ -139,7 +186,7 @@ public class MainActivity extends AppCompatActivity {
         connectButton.setPadding(50, 30, 50, 30);
         connectButton.setTextSize(14);
         
-        mainLayout.addView(connectButton);
+        addChatView(connectButton);
     }
     
     // Добавляем разделитель с текстом
@@ -150,7 +197,7 @@ public class MainActivity extends AppCompatActivity {
         separator.setTextSize(14);
         separator.setPadding(20, 20, 20, 10);
         
-        mainLayout.addView(separator);
+        addChatView(separator);
     }
     
     // Сообщение когда чатов нет
@@ -162,7 +209,7 @@ public class MainActivity extends AppCompatActivity {
         noChatsText.setGravity(View.TEXT_ALIGNMENT_CENTER);
         noChatsText.setPadding(50, 40, 50, 40);
         
-        mainLayout.addView(noChatsText);
+        addChatView(noChatsText);
     }
     
     private void setupClickListeners() {
@@ -171,9 +218,27 @@ public class MainActivity extends AppCompatActivity {
         if (editButton != null) {
             editButton.setOnClickListener(v -> {
                 System.out.println("✏️ Nico: Refresh chats");
-                loadChatsFromDatabase(); // Обновляем список чатов
+                chatsQuery.refresh(); // Перечитываем список чатов целиком
                 updateConnectionStatus(); // Обновляем статус подключения
             });
+            
+            // Долгое нажатие - замер скорости базы, только в отладочной сборке
+            if (BuildConfig.DEBUG) {
+                editButton.setOnLongClickListener(v -> {
+                    Toast.makeText(this, "Running database benchmark...", Toast.LENGTH_SHORT).show();
+                    new Thread(() -> {
+                        String report = DatabaseBenchmark.run(this);
+                        runOnUiThread(() -> Toast.makeText(this, report, Toast.LENGTH_LONG).show());
+                    }).start();
+                    return true;
+                });
+            }
+        }
+        
+        // Вкладка настроек внизу экрана
+        Button settingsButton = findViewById(R.id.settingsButton);
+        if (settingsButton != null) {
+            settingsButton.setOnClickListener(v -> openSettingsActivity());
         }
         
         System.out.println("🖱️ Nico: Click listeners ready");
@@ -204,9 +269,32 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
+    // Метод для открытия экрана настроек
+    private void openSettingsActivity() {
+        try {
+            startActivity(new Intent(MainActivity.this, SettingsActivity.class));
+            System.out.println("⚙️ Nico: Opening settings screen");
+        } catch (Exception e) {
+            System.out.println("❌ Error opening settings: " + e.getMessage());
+        }
+    }
+    
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Снимок списка для первого кадра следующего запуска
+        List<DatabaseHelper.Chat> snapshot = chats;
+        if (snapshot != null) {
+            new Thread(() -> ChatListSnapshot.save(this, snapshot)).start();
+        }
+    }
+    
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (chatsQuery != null) {
+            chatsQuery.close();
+        }
         if (networkManager != null) {
             networkManager.stopServer();
         }
@@ -0,0 +1,1312 @@
+package com.nico;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+// Журнал сообщений - хранилище вместо таблицы messages (см. DatabaseHelper.enableMessageLog).
+// SQLite остаётся для метаданных: водяные знаки, группы, статусы доставки.
+//
+// Сообщения дописываются в сегменты по SEGMENT_SIZE, отображённые в память (mmap):
+// запись - кодирование в буфер, CRC и копирование в страницу, без системных вызовов и
+// транзакций. Изменений на месте нет: удаление - отдельная запись-надгробие.
+//
+// Индекс в памяти, разреженный: у каждого чата список точек входа (сегмент, смещение)
+// на каждые INDEX_INTERVAL его сообщений. Чтение чата - переход к точке и последовательный
+// проход по отображённым страницам; записи чужих чатов пропускаются по хешу имени.
+// При открытии индекс строится одним проходом по всем записям (CRC проверяется по телу целиком).
+// Выданные id не переиспользуются: уплотнение может выбросить удалённые последние сообщения,
+// поэтому следующий id сохраняется в next.id до фиксации уплотнения.
+//
+// Уплотнение (фоновый поток): закрытые сегменты переписываются так, что сообщения каждого
+// чата лежат подряд, удалённые выбрасываются. Новые файлы сначала пишутся как .tmp,
+// затем файл compact.commit фиксирует замену - после сбоя она доделывается при открытии.
+// Диапазоны id у поколений уплотнения не пересекаются, поэтому точки входа чата
+// просто сортируются по id.
+//
+// Сегмент: MAGIC(4) | FLAGS(4) | запись*, конец - LEN = 0 (файл создаётся нулями).
+// Запись: LEN(4) | CRC32(4) | тело, CRC - по телу:
+// - сообщение: KIND | CHAT_HASH(4) | ID(8) | CREATED_AT(8) | FLAGS(1) | ORIGIN_ID(8)
+//              | CHAT | SENDER | TEXT | TIME [| ORIGIN] [| RECIPIENT]
+// - надгробие: KIND | CHAT_HASH(4) | FROM_ID(8) | TO_ID(8) | CHAT
+// Строки - LEN(4) | UTF-8 (LEN = -1 - null).
+public class MessageLog implements Closeable {
+    static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int SEGMENT_MAGIC = 0x4E4C4F47; // "NLOG"
+    private static final int SEGMENT_HEADER = 8;
+    private static final int SEGMENT_COMPACTED = 1;
+    private static final int RECORD_HEADER = 8;
+
+    private static final byte KIND_MESSAGE = 1;
+    private static final byte KIND_DELETE = 2;
+    private static final int MESSAGE_OUTGOING = 1;
+    private static final int MESSAGE_HAS_ORIGIN = 2;
+    private static final int MESSAGE_HAS_RECIPIENT = 4;
+    // Смещения полей от начала тела записи
+    private static final int AT_HASH = 1;
+    private static final int AT_ID = 5;
+    private static final int AT_CREATED = 13;
+    private static final int AT_FLAGS = 21;
+    private static final int AT_ORIGIN_ID = 22;
+    private static final int AT_CHAT = 30;
+    private static final int AT_DELETE_CHAT = 21;
+
+    private static final int INDEX_INTERVAL = 64;
+    // Сколько последних id каждого собеседника в чате помним для отсева дубликатов
+    private static final int DEDUP_WINDOW = 1024;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final long COMPACT_INTERVAL_MS = 60000;
+    private static final double RECOMPACT_DEAD_RATIO = 0.5;
+    private static final String COMMIT_FILE = "compact.commit";
+    private static final String NEXT_ID_FILE = "next.id";
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final MappedByteBuffer buffer;
+        final boolean compacted;
+        // Конец записанного; пишет только владелец блокировки записи
+        int end = SEGMENT_HEADER;
+        int records;
+        int dead;
+        // Чаты, чьи надгробия лежат в этом сегменте - переносятся при уплотнении
+        final Set<String> tombstoneChats = new HashSet<>();
+
+        Segment(int number, File file, MappedByteBuffer buffer, boolean compacted) {
+            this.number = number;
+            this.file = file;
+            this.buffer = buffer;
+            this.compacted = compacted;
+        }
+    }
+
+    // Точка входа: с offset в сегменте подряд count записей этого чата, первая - firstId
+    private static class Entry {
+        final long firstId;
+        final Segment segment;
+        final int offset;
+        int count;
+
+        Entry(long firstId, Segment segment, int offset) {
+            this.firstId = firstId;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static class ChatIndex {
+        final String name;
+        final byte[] nameBytes;
+        final int hash;
+        final List<Entry> entries = new ArrayList<>();
+        // Удалённые диапазоны id: по возрастанию, не пересекаются
+        final List<long[]> deleted = new ArrayList<>();
+        final Set<String> origins = new HashSet<>();
+        int live;
+        long lastId;
+        String lastText;
+        String lastTime;
+
+        ChatIndex(String name) {
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.hash = name.hashCode();
+        }
+    }
+
+    // Последние id одного собеседника в одном чате, по возрастанию
+    private static class OriginWindow {
+        long[] ids = new long[16];
+        int size;
+        // Окно переполнялось - про id меньше ids[0] окно не знает
+        boolean evicted;
+
+        boolean covers(long id) {
+            return !evicted || (size > 0 && id >= ids[0]);
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        void add(long id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            if (size == DEDUP_WINDOW) {
+                if (at == 0) {
+                    return;
+                }
+                System.arraycopy(ids, 1, ids, 0, at - 1);
+                ids[at - 1] = id;
+                evicted = true;
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, Math.min(ids.length * 2, DEDUP_WINDOW));
+            }
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+        }
+    }
+
+    private final File directory;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Ниже - под lock (изменения - под блокировкой записи)
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, ChatIndex> chats = new HashMap<>();
+    private final Map<String, OriginWindow> windows = new HashMap<>();
+    private Segment active;
+    private long nextId = 1;
+    private final AtomicInteger nextSegment = new AtomicInteger(1);
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private volatile boolean dirty;
+    private volatile boolean closed;
+    private Thread worker;
+
+    private MessageLog(File directory) {
+        this.directory = directory;
+    }
+
+    public static MessageLog open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        MessageLog log = new MessageLog(directory);
+        long start = System.nanoTime();
+        log.load();
+        System.out.println(String.format(Locale.US, "📚 Nico: Message log opened - %d chats, %d segments, next id %d in %d ms",
+            log.chats.size(), log.segments.size(), log.nextId, (System.nanoTime() - start) / 1000000));
+        log.worker = new Thread(log::runBackground, "Nico-log");
+        log.worker.setDaemon(true);
+        log.worker.setPriority(Thread.NORM_PRIORITY - 1);
+        log.worker.start();
+        return log;
+    }
+
+    // ===== Запись =====
+
+    // Дописывает пачку, возвращает id по порядку (-1 - дубликат: то же ORIGIN/ORIGIN_ID в чате).
+    // keepIds - сохранить id сообщений (перенос из SQLite), иначе выдаются новые.
+    // createdAt = 0 - текущее время.
+    public long[] append(List<DatabaseHelper.Message> batch, boolean keepIds) throws IOException {
+        long[] ids = new long[batch.size()];
+        long now = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            // Id старше окна отсева проверяются проходом по чату - один раз на пачку
+            Map<String, Set<Long>> older = null;
+            for (int i = 0; i < batch.size(); i++) {
+                DatabaseHelper.Message message = batch.get(i);
+                ChatIndex chat = getChat(message.chatName, true);
+                if (message.origin != null) {
+                    String key = message.origin + "|" + message.chatName;
+                    OriginWindow window = windows.get(key);
+                    boolean duplicate;
+                    if (window == null || window.covers(message.originId)) {
+                        duplicate = window != null && window.contains(message.originId);
+                    } else {
+                        if (older == null) {
+                            older = new HashMap<>();
+                        }
+                        Set<Long> known = older.get(key);
+                        if (known == null) {
+                            known = collectOriginIds(chat, message.origin, window.ids[0]);
+                            older.put(key, known);
+                        }
+                        duplicate = !known.add(message.originId);
+                    }
+                    if (duplicate) {
+                        ids[i] = -1;
+                        continue;
+                    }
+                }
+                long id = keepIds ? message.id : nextId;
+                if (id < nextId) {
+                    throw new IOException("Message id " + id + " is below " + nextId);
+                }
+                nextId = id + 1;
+                Segment segment = writeRecord(encodeMessage(message, id, message.createdAt > 0 ? message.createdAt : now));
+                indexMessage(chat, segment, segment.end - scratch.position() - RECORD_HEADER, id);
+                chat.live++;
+                chat.lastId = id;
+                chat.lastText = message.text;
+                chat.lastTime = message.time;
+                if (message.origin != null) {
+                    chat.origins.add(message.origin);
+                    rememberOrigin(message.origin, message.chatName, message.originId);
+                }
+                ids[i] = id;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return ids;
+    }
+
+    // Удаляет сообщения чата с id в [fromId, toId]; возвращает, сколько было живых
+    public int delete(String chatName, long fromId, long toId) throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            ChatIndex chat = chats.get(chatName);
+            if (chat == null) {
+                return 0;
+            }
+            int[] deleted = new int[1];
+            forEachRecord(chat, fromId - 1, toId, (segment, pos, id) -> {
+                segment.dead++;
+                deleted[0]++;
+                return true;
+            });
+            if (deleted[0] == 0) {
+                return 0;
+            }
+            ensureScratch(AT_DELETE_CHAT + 4 + chat.nameBytes.length);
+            ByteBuffer body = startRecord(KIND_DELETE, chat.hash);
+            body.putLong(fromId).putLong(toId);
+            putString(body, chatName);
+            Segment segment = writeRecord(body);
+            segment.tombstoneChats.add(chatName);
+            addDeleted(chat.deleted, fromId, toId);
+            chat.live -= deleted[0];
+            if (chat.lastId >= fromId && chat.lastId <= toId) {
+                findLast(chat);
+            }
+            return deleted[0];
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ===== Чтение =====
+
+    // Сообщения чата с id в (afterId, upToId] по возрастанию, не больше limit
+    public List<DatabaseHelper.Message> read(String chatName, long afterId, long upToId, int limit) {
+        List<DatabaseHelper.Message> messages = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            ChatIndex chat = chats.get(chatName);
+            if (chat != null) {
+                forEachRecord(chat, afterId, upToId, (segment, pos, id) -> {
+                    messages.add(decodeMessage(segment.buffer, pos, chat.name));
+                    return messages.size() < limit;
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return messages;
+    }
+
+    // Чаты с сообщениями по возрастанию последнего id (как getRecentChats в SQLite)
+    public List<DatabaseHelper.Chat> getRecentChats() {
+        List<ChatIndex> list = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (ChatIndex chat : chats.values()) {
+                if (chat.live > 0) {
+                    list.add(chat);
+                }
+            }
+            Collections.sort(list, (a, b) -> Long.compare(a.lastId, b.lastId));
+            List<DatabaseHelper.Chat> result = new ArrayList<>(list.size());
+            for (ChatIndex chat : list) {
+                result.add(new DatabaseHelper.Chat(chat.name, chat.lastText, chat.lastTime));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public DatabaseHelper.Chat getChat(String chatName) {
+        lock.readLock().lock();
+        try {
+            ChatIndex chat = chats.get(chatName);
+            return chat != null && chat.live > 0 ? new DatabaseHelper.Chat(chat.name, chat.lastText, chat.lastTime) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Чаты с сообщениями (все или где есть сообщения от origin)
+    public List<String> getChatNames(String origin) {
+        List<String> names = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (ChatIndex chat : chats.values()) {
+                if (chat.live > 0 && (origin == null || chat.origins.contains(origin))) {
+                    names.add(chat.name);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return names;
+    }
+
+    public int count(String chatName) {
+        lock.readLock().lock();
+        try {
+            ChatIndex chat = chats.get(chatName);
+            return chat != null ? chat.live : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // id сообщения чата с номером index (0 - самое старое); -1 - столько сообщений нет.
+    // Читаются только заголовки записей
+    public long getIdAt(String chatName, int index) {
+        long[] found = {-1};
+        lock.readLock().lock();
+        try {
+            ChatIndex chat = chats.get(chatName);
+            if (chat != null && index >= 0 && index < chat.live) {
+                int[] left = {index};
+                forEachRecord(chat, 0, Long.MAX_VALUE, (segment, pos, id) -> {
+                    if (left[0]-- == 0) {
+                        found[0] = id;
+                        return false;
+                    }
+                    return true;
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return found[0];
+    }
+
+    // Самый новый id чата, сохранённый раньше createdBefore (мс); -1 - таких нет
+    public long getLastIdCreatedBefore(String chatName, long createdBefore) {
+        long[] found = {-1};
+        lock.readLock().lock();
+        try {
+            ChatIndex chat = chats.get(chatName);
+            if (chat != null) {
+                forEachRecord(chat, 0, Long.MAX_VALUE, (segment, pos, id) -> {
+                    if (segment.buffer.getLong(pos + RECORD_HEADER + AT_CREATED) < createdBefore) {
+                        found[0] = id;
+                    }
+                    return true;
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return found[0];
+    }
+
+    // Самый большой ORIGIN_ID живых сообщений собеседника в чате; 0 - таких нет
+    public long getLastOriginId(String chatName, String origin) {
+        long[] found = {0};
+        byte[] originBytes = origin.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            ChatIndex chat = chats.get(chatName);
+            if (chat != null && chat.origins.contains(origin)) {
+                forEachRecord(chat, 0, Long.MAX_VALUE, (segment, pos, id) -> {
+                    ByteBuffer buffer = segment.buffer;
+                    int body = pos + RECORD_HEADER;
+                    if ((buffer.get(body + AT_FLAGS) & MESSAGE_HAS_ORIGIN) != 0) {
+                        long originId = buffer.getLong(body + AT_ORIGIN_ID);
+                        if (originId > found[0] && nameEquals(buffer, originOffset(buffer, body), originBytes)) {
+                            found[0] = originId;
+                        }
+                    }
+                    return true;
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return found[0];
+    }
+
+    // Следующий id - всё, что меньше, уже в журнале
+    public long getNextId() {
+        lock.readLock().lock();
+        try {
+            return nextId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Id до lastId включительно уже заняты (например, SQLite выдавал их до переноса) -
+    // новые сообщения их не получат, даже если таких сообщений в журнале нет
+    public void reserveIds(long lastId) throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            if (lastId >= nextId) {
+                nextId = lastId + 1;
+                saveNextId(nextId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Дождаться записи на диск (обычно это делает фоновый поток раз в секунду)
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            if (active != null && !closed) {
+                active.buffer.force();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (active != null) {
+                active.buffer.force();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    // ===== Индекс =====
+
+    private interface RecordVisitor {
+        // false - остановить проход
+        boolean visit(Segment segment, int pos, long id);
+    }
+
+    // Живые записи сообщений чата с id в (afterId, upToId] по возрастанию.
+    // Вызывать под блокировкой (чтения или записи)
+    private void forEachRecord(ChatIndex chat, long afterId, long upToId, RecordVisitor visitor) {
+        List<Entry> entries = chat.entries;
+        // Последняя точка с firstId <= afterId - дальше в ней могут быть нужные id
+        int low = 0;
+        int high = entries.size() - 1;
+        int first = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (entries.get(mid).firstId <= afterId) {
+                first = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        for (int i = first; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.firstId > upToId) {
+                return;
+            }
+            long nextFirst = i + 1 < entries.size() ? entries.get(i + 1).firstId : Long.MAX_VALUE;
+            if (nextFirst <= afterId + 1 || isDeleted(chat.deleted, entry.firstId, nextFirst - 1)) {
+                continue;
+            }
+            ByteBuffer buffer = entry.segment.buffer;
+            int pos = entry.offset;
+            int end = entry.segment.end;
+            int seen = 0;
+            while (seen < entry.count && pos < end) {
+                int length = buffer.getInt(pos);
+                int body = pos + RECORD_HEADER;
+                if (buffer.get(body) == KIND_MESSAGE && buffer.getInt(body + AT_HASH) == chat.hash
+                        && nameEquals(buffer, body + AT_CHAT, chat.nameBytes)) {
+                    seen++;
+                    long id = buffer.getLong(body + AT_ID);
+                    if (id > upToId) {
+                        return;
+                    }
+                    if (id > afterId && !isDeleted(chat.deleted, id, id) && !visitor.visit(entry.segment, pos, id)) {
+                        return;
+                    }
+                }
+                pos = body + length;
+            }
+        }
+    }
+
+    // Новая точка входа - в другом сегменте или после INDEX_INTERVAL записей
+    private static void indexMessage(ChatIndex chat, Segment segment, int pos, long id) {
+        Entry last = chat.entries.isEmpty() ? null : chat.entries.get(chat.entries.size() - 1);
+        if (last != null && last.segment == segment && last.count < INDEX_INTERVAL) {
+            last.count++;
+            return;
+        }
+        Entry entry = new Entry(id, segment, pos);
+        entry.count = 1;
+        chat.entries.add(entry);
+    }
+
+    private ChatIndex getChat(String name, boolean create) {
+        ChatIndex chat = chats.get(name);
+        if (chat == null && create) {
+            chat = new ChatIndex(name);
+            chats.put(name, chat);
+        }
+        return chat;
+    }
+
+    private void rememberOrigin(String origin, String chatName, long originId) {
+        String key = origin + "|" + chatName;
+        OriginWindow window = windows.get(key);
+        if (window == null) {
+            window = new OriginWindow();
+            windows.put(key, window);
+        }
+        window.add(originId);
+    }
+
+    // Все ORIGIN_ID собеседника в чате меньше belowId (редкий путь: старый дубликат)
+    private Set<Long> collectOriginIds(ChatIndex chat, String origin, long belowId) {
+        Set<Long> ids = new HashSet<>();
+        byte[] originBytes = origin.getBytes(StandardCharsets.UTF_8);
+        forEachRecord(chat, 0, Long.MAX_VALUE, (segment, pos, id) -> {
+            ByteBuffer buffer = segment.buffer;
+            int body = pos + RECORD_HEADER;
+            if ((buffer.get(body + AT_FLAGS) & MESSAGE_HAS_ORIGIN) != 0) {
+                long originId = buffer.getLong(body + AT_ORIGIN_ID);
+                if (originId < belowId && nameEquals(buffer, originOffset(buffer, body), originBytes)) {
+                    ids.add(originId);
+                }
+            }
+            return true;
+        });
+        return ids;
+    }
+
+    // Последнее живое сообщение чата - после удаления хвоста
+    private void findLast(ChatIndex chat) {
+        chat.lastId = 0;
+        chat.lastText = null;
+        chat.lastTime = null;
+        for (int i = chat.entries.size() - 1; i >= 0 && chat.lastId == 0; i--) {
+            long from = chat.entries.get(i).firstId - 1;
+            long to = i + 1 < chat.entries.size() ? chat.entries.get(i + 1).firstId - 1 : Long.MAX_VALUE;
+            forEachRecord(chat, from, to, (segment, pos, id) -> {
+                DatabaseHelper.Message message = decodeMessage(segment.buffer, pos, chat.name);
+                chat.lastId = id;
+                chat.lastText = message.text;
+                chat.lastTime = message.time;
+                return true;
+            });
+        }
+    }
+
+    private static boolean isDeleted(List<long[]> deleted, long from, long to) {
+        int low = 0;
+        int high = deleted.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long[] range = deleted.get(mid);
+            if (range[1] < from) {
+                low = mid + 1;
+            } else if (range[0] > from) {
+                high = mid - 1;
+            } else {
+                return range[1] >= to;
+            }
+        }
+        return false;
+    }
+
+    // Вставка с объединением пересекающихся и соседних диапазонов
+    private static void addDeleted(List<long[]> deleted, long from, long to) {
+        List<long[]> merged = new ArrayList<>(deleted.size() + 1);
+        boolean placed = false;
+        for (long[] range : deleted) {
+            if (range[1] + 1 < from) {
+                merged.add(range);
+            } else if (range[0] > to + 1) {
+                if (!placed) {
+                    merged.add(new long[]{from, to});
+                    placed = true;
+                }
+                merged.add(range);
+            } else {
+                from = Math.min(from, range[0]);
+                to = Math.max(to, range[1]);
+            }
+        }
+        if (!placed) {
+            merged.add(new long[]{from, to});
+        }
+        deleted.clear();
+        deleted.addAll(merged);
+    }
+
+    // ===== Кодирование записей =====
+
+    // Тело записи собирается в scratch; вызывать под блокировкой записи
+    private ByteBuffer startRecord(byte kind, int hash) {
+        scratch.clear();
+        scratch.put(kind).putInt(hash);
+        return scratch;
+    }
+
+    private void ensureScratch(int size) {
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+        }
+    }
+
+    private ByteBuffer encodeMessage(DatabaseHelper.Message message, long id, long createdAt) {
+        byte[] chat = FrameCodec.utf8(message.chatName);
+        byte[] sender = utf8OrNull(message.sender);
+        byte[] text = utf8OrNull(message.text);
+        byte[] time = utf8OrNull(message.time);
+        byte[] origin = utf8OrNull(message.origin);
+        byte[] recipient = utf8OrNull(message.recipient);
+        ensureScratch(AT_CHAT + 4 + chat.length + length(sender) + length(text) + length(time)
+            + (origin != null ? 4 + origin.length : 0) + (recipient != null ? 4 + recipient.length : 0));
+        ByteBuffer body = startRecord(KIND_MESSAGE, message.chatName.hashCode());
+        body.putLong(id).putLong(createdAt);
+        body.put((byte) ((message.isOutgoing ? MESSAGE_OUTGOING : 0) | (origin != null ? MESSAGE_HAS_ORIGIN : 0)
+            | (recipient != null ? MESSAGE_HAS_RECIPIENT : 0)));
+        body.putLong(origin != null ? message.originId : 0);
+        putBytes(body, chat);
+        putBytes(body, sender);
+        putBytes(body, text);
+        putBytes(body, time);
+        if (origin != null) {
+            putBytes(body, origin);
+        }
+        if (recipient != null) {
+            putBytes(body, recipient);
+        }
+        return body;
+    }
+
+    // Дописывает тело из scratch в активный сегмент; вызывать под блокировкой записи
+    private Segment writeRecord(ByteBuffer body) throws IOException {
+        int length = body.position();
+        if (RECORD_HEADER + length > SEGMENT_SIZE - SEGMENT_HEADER - 4) {
+            throw new IOException("Record too large: " + length);
+        }
+        // +4: после записи должен поместиться нулевой LEN - признак конца
+        if (active == null || active.end + RECORD_HEADER + length + 4 > SEGMENT_SIZE) {
+            active = createSegment(false, false);
+            segments.add(active);
+        }
+        crc.reset();
+        crc.update(body.array(), 0, length);
+        ByteBuffer target = active.buffer.duplicate();
+        target.position(active.end + RECORD_HEADER);
+        target.put(body.array(), 0, length);
+        active.buffer.putInt(active.end + 4, (int) crc.getValue());
+        // LEN последним: оборванная запись читается как конец журнала
+        active.buffer.putInt(active.end, length);
+        active.end += RECORD_HEADER + length;
+        active.records++;
+        dirty = true;
+        return active;
+    }
+
+    private static DatabaseHelper.Message decodeMessage(ByteBuffer buffer, int pos, String chatName) {
+        ByteBuffer record = buffer.duplicate();
+        int body = pos + RECORD_HEADER;
+        record.position(body + AT_ID);
+        long id = record.getLong();
+        long createdAt = record.getLong();
+        int flags = record.get();
+        long originId = record.getLong();
+        skipString(record);
+        String sender = getString(record);
+        String text = getString(record);
+        String time = getString(record);
+        DatabaseHelper.Message message = new DatabaseHelper.Message(id, chatName, sender, text, time,
+            (flags & MESSAGE_OUTGOING) != 0);
+        message.createdAt = createdAt;
+        if ((flags & MESSAGE_HAS_ORIGIN) != 0) {
+            message.origin = getString(record);
+            message.originId = originId;
+        }
+        if ((flags & MESSAGE_HAS_RECIPIENT) != 0) {
+            message.recipient = getString(record);
+        }
+        return message;
+    }
+
+    private static int originOffset(ByteBuffer buffer, int body) {
+        int pos = body + AT_CHAT;
+        for (int i = 0; i < 4; i++) {
+            pos += 4 + Math.max(0, buffer.getInt(pos));
+        }
+        return pos;
+    }
+
+    // Строка в позиции pos совпадает с bytes (без декодирования)
+    private static boolean nameEquals(ByteBuffer buffer, int pos, byte[] bytes) {
+        if (buffer.getInt(pos) != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(pos + 4 + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] utf8OrNull(String value) {
+        return value != null ? FrameCodec.utf8(value) : null;
+    }
+
+    private static int length(byte[] bytes) {
+        return 4 + (bytes != null ? bytes.length : 0);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        putBytes(buffer, utf8OrNull(value));
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        buffer.position(buffer.position() + Math.max(0, length));
+    }
+
+    // ===== Сегменты =====
+
+    private Segment createSegment(boolean compacted, boolean temporary) throws IOException {
+        int number = nextSegment.getAndIncrement();
+        File file = segmentFile(number, temporary);
+        Segment segment = new Segment(number, file, map(file, SEGMENT_SIZE), compacted);
+        segment.buffer.putInt(0, SEGMENT_MAGIC);
+        segment.buffer.putInt(4, compacted ? SEGMENT_COMPACTED : 0);
+        return segment;
+    }
+
+    private File segmentFile(int number, boolean temporary) {
+        return new File(directory, String.format(Locale.US, "%08d.%s", number, temporary ? "tmp" : "seg"));
+    }
+
+    // Отображение остаётся действительным после закрытия файла
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Открытие: доделываем прерванное уплотнение и строим индекс одним проходом
+    private void load() throws IOException {
+        finishCommittedCompaction();
+        nextId = Math.max(nextId, loadNextId());
+        List<Integer> numbers = new ArrayList<>();
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                // Уплотнение не успело зафиксироваться - источники на месте
+                file.delete();
+            } else if (name.equals(NEXT_ID_FILE + ".tmp")) {
+                file.delete();
+            } else if (name.endsWith(".seg")) {
+                numbers.add(Integer.parseInt(name.substring(0, name.length() - 4)));
+            }
+        }
+        Collections.sort(numbers);
+
+        List<ChatIndex> withDeletes = new ArrayList<>();
+        Map<ChatIndex, long[]> lastPositions = new HashMap<>();
+        for (int number : numbers) {
+            File file = segmentFile(number, false);
+            MappedByteBuffer buffer = map(file, file.length());
+            if (buffer.capacity() < SEGMENT_HEADER || buffer.getInt(0) != SEGMENT_MAGIC) {
+                System.out.println("⚠️ Nico: Skipping damaged log segment " + file.getName());
+                continue;
+            }
+            Segment segment = new Segment(number, file, buffer, (buffer.getInt(4) & SEGMENT_COMPACTED) != 0);
+            segments.add(segment);
+            nextSegment.set(Math.max(nextSegment.get(), number + 1));
+            scanSegment(segment, withDeletes, lastPositions);
+            if (!segment.compacted) {
+                active = segment;
+            }
+        }
+
+        for (ChatIndex chat : chats.values()) {
+            // Поколения уплотнения сканируются не в порядке id - диапазоны не пересекаются
+            Collections.sort(chat.entries, (a, b) -> Long.compare(a.firstId, b.firstId));
+            long[] last = lastPositions.get(chat);
+            if (last != null) {
+                DatabaseHelper.Message message = decodeMessage(segments.get((int) last[0]).buffer, (int) last[1], chat.name);
+                chat.lastId = message.id;
+                chat.lastText = message.text;
+                chat.lastTime = message.time;
+            }
+        }
+        for (ChatIndex chat : withDeletes) {
+            // Учитываем надгробия: живые сообщения и мёртвый объём сегментов
+            chat.live = 0;
+            forEachRecord(chat, 0, Long.MAX_VALUE, (segment, pos, id) -> {
+                chat.live++;
+                return true;
+            });
+            for (Entry entry : chat.entries) {
+                entry.segment.dead += entry.count;
+            }
+            forEachRecord(chat, 0, Long.MAX_VALUE, (segment, pos, id) -> {
+                segment.dead--;
+                return true;
+            });
+            if (isDeleted(chat.deleted, chat.lastId, chat.lastId)) {
+                findLast(chat);
+            }
+        }
+    }
+
+    private void scanSegment(Segment segment, List<ChatIndex> withDeletes, Map<ChatIndex, long[]> lastPositions) {
+        MappedByteBuffer buffer = segment.buffer;
+        int pos = SEGMENT_HEADER;
+        int limit = buffer.capacity();
+        byte[] bytes = new byte[4096];
+        while (pos + RECORD_HEADER <= limit) {
+            int length = buffer.getInt(pos);
+            if (length <= 0 || pos + RECORD_HEADER + length > limit) {
+                break;
+            }
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(pos + RECORD_HEADER);
+            record.get(bytes, 0, length);
+            crc.reset();
+            crc.update(bytes, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+                // Оборванная запись (процесс убит посреди записи) - здесь конец журнала
+                System.out.println("⚠️ Nico: Log segment " + segment.file.getName() + " ends with a broken record");
+                for (int i = pos; i < Math.min(limit, pos + RECORD_HEADER + length); i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                break;
+            }
+            ByteBuffer body = ByteBuffer.wrap(bytes, 0, length);
+            byte kind = body.get();
+            body.getInt();
+            if (kind == KIND_MESSAGE) {
+                long id = body.getLong();
+                body.getLong();
+                int flags = body.get();
+                long originId = body.getLong();
+                ChatIndex chat = getChat(getString(body), true);
+                indexMessage(chat, segment, pos, id);
+                chat.live++;
+                if (id > chat.lastId) {
+                    chat.lastId = id;
+                    lastPositions.put(chat, new long[]{segments.size() - 1, pos});
+                }
+                if ((flags & MESSAGE_HAS_ORIGIN) != 0) {
+                    skipString(body);
+                    skipString(body);
+                    skipString(body);
+                    String origin = getString(body);
+                    chat.origins.add(origin);
+                    rememberOrigin(origin, chat.name, originId);
+                }
+                nextId = Math.max(nextId, id + 1);
+                segment.records++;
+            } else if (kind == KIND_DELETE) {
+                long fromId = body.getLong();
+                long toId = body.getLong();
+                ChatIndex chat = getChat(getString(body), true);
+                addDeleted(chat.deleted, fromId, toId);
+                segment.tombstoneChats.add(chat.name);
+                if (!withDeletes.contains(chat)) {
+                    withDeletes.add(chat);
+                }
+            }
+            pos += RECORD_HEADER + length;
+        }
+        segment.end = pos;
+    }
+
+    // ===== Фоновая работа: сброс на диск и уплотнение =====
+
+    private void runBackground() {
+        long nextCompaction = System.currentTimeMillis() + COMPACT_INTERVAL_MS;
+        while (!closed) {
+            synchronized (this) {
+                try {
+                    wait(FLUSH_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            // Страницы mmap и так уходят на диск сами; force - чтобы не потерять больше секунды при сбое питания
+            Segment current = active;
+            if (dirty && current != null) {
+                dirty = false;
+                current.buffer.force();
+            }
+            if (System.currentTimeMillis() >= nextCompaction && !closed) {
+                try {
+                    compactIfNeeded();
+                } catch (IOException e) {
+                    System.out.println("❌ Nico: Log compaction failed - " + e.getMessage());
+                }
+                nextCompaction = System.currentTimeMillis() + COMPACT_INTERVAL_MS;
+            }
+        }
+    }
+
+    // Закрытые сегменты дозаписи - одним поколением; поколения, где больше половины удалено, -
+    // по одному (их диапазон id при этом не меняется)
+    void compactIfNeeded() throws IOException {
+        List<Segment> sealed = new ArrayList<>();
+        List<Segment> sparse = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments) {
+                if (!segment.compacted && segment != active) {
+                    sealed.add(segment);
+                } else if (segment.compacted && segment.dead > segment.records * RECOMPACT_DEAD_RATIO) {
+                    sparse.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (!sealed.isEmpty()) {
+            compact(sealed);
+        }
+        for (Segment segment : sparse) {
+            compact(Collections.singletonList(segment));
+        }
+    }
+
+    private void compact(List<Segment> sources) throws IOException {
+        long start = System.nanoTime();
+        // План под блокировкой чтения: точки входа каждого чата в источниках
+        Map<ChatIndex, List<Entry>> plan = new LinkedHashMap<>();
+        Map<ChatIndex, List<long[]>> deleted = new HashMap<>();
+        Map<ChatIndex, List<long[]>> keptTombstones = new HashMap<>();
+        long highWater;
+        lock.readLock().lock();
+        try {
+            highWater = nextId;
+            Set<String> tombstones = new HashSet<>();
+            for (Segment segment : sources) {
+                tombstones.addAll(segment.tombstoneChats);
+            }
+            for (ChatIndex chat : chats.values()) {
+                List<Entry> entries = new ArrayList<>();
+                for (Entry entry : chat.entries) {
+                    if (sources.contains(entry.segment)) {
+                        entries.add(entry);
+                    }
+                }
+                if (!entries.isEmpty() || tombstones.contains(chat.name)) {
+                    plan.put(chat, entries);
+                    deleted.put(chat, new ArrayList<>(chat.deleted));
+                    keptTombstones.put(chat, tombstonesOutside(chat, sources));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Пишем без блокировки: источники закрыты и не меняются, читатели работают как обычно
+        List<Segment> outputs = new ArrayList<>();
+        Map<ChatIndex, List<Entry>> newEntries = new HashMap<>();
+        Map<ChatIndex, Segment> tombstoneOutputs = new HashMap<>();
+        Segment output = null;
+        CRC32 check = new CRC32();
+        byte[] bytes = new byte[4096];
+        int copied = 0;
+        for (Map.Entry<ChatIndex, List<Entry>> item : plan.entrySet()) {
+            ChatIndex chat = item.getKey();
+            List<long[]> chatDeleted = deleted.get(chat);
+            List<Entry> entries = new ArrayList<>();
+            for (Entry entry : item.getValue()) {
+                ByteBuffer buffer = entry.segment.buffer;
+                int pos = entry.offset;
+                int seen = 0;
+                while (seen < entry.count && pos < entry.segment.end) {
+                    int length = buffer.getInt(pos);
+                    int body = pos + RECORD_HEADER;
+                    if (buffer.get(body) == KIND_MESSAGE && buffer.getInt(body + AT_HASH) == chat.hash
+                            && nameEquals(buffer, body + AT_CHAT, chat.nameBytes)) {
+                        seen++;
+                        long id = buffer.getLong(body + AT_ID);
+                        if (!isDeleted(chatDeleted, id, id)) {
+                            if (bytes.length < RECORD_HEADER + length) {
+                                bytes = new byte[Math.max(RECORD_HEADER + length, bytes.length * 2)];
+                            }
+                            ByteBuffer record = buffer.duplicate();
+                            record.position(pos);
+                            record.get(bytes, 0, RECORD_HEADER + length);
+                            check.reset();
+                            check.update(bytes, RECORD_HEADER, length);
+                            if ((int) check.getValue() != buffer.getInt(pos + 4)) {
+                                System.out.println("⚠️ Nico: Dropping corrupt log record " + id + " in " + chat.name);
+                            } else {
+                                if (output == null || output.end + RECORD_HEADER + length + 4 > SEGMENT_SIZE) {
+                                    output = createSegment(true, true);
+                                    outputs.add(output);
+                                }
+                                ByteBuffer target = output.buffer.duplicate();
+                                target.position(output.end);
+                                target.put(bytes, 0, RECORD_HEADER + length);
+                                Entry last = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+                                if (last != null && last.segment == output && last.count < INDEX_INTERVAL) {
+                                    last.count++;
+                                } else {
+                                    Entry copy = new Entry(id, output, output.end);
+                                    copy.count = 1;
+                                    entries.add(copy);
+                                }
+                                output.end += RECORD_HEADER + length;
+                                output.records++;
+                                copied++;
+                            }
+                        }
+                    }
+                    pos = body + length;
+                }
+            }
+            newEntries.put(chat, entries);
+            List<long[]> kept = keptTombstones.get(chat);
+            if (!kept.isEmpty()) {
+                for (long[] range : kept) {
+                    ByteBuffer body = ByteBuffer.allocate(AT_DELETE_CHAT + 4 + chat.nameBytes.length);
+                    body.put(KIND_DELETE).putInt(chat.hash).putLong(range[0]).putLong(range[1]);
+                    putBytes(body, chat.nameBytes);
+                    if (output == null || output.end + RECORD_HEADER + body.position() + 4 > SEGMENT_SIZE) {
+                        output = createSegment(true, true);
+                        outputs.add(output);
+                    }
+                    check.reset();
+                    check.update(body.array(), 0, body.position());
+                    ByteBuffer target = output.buffer.duplicate();
+                    target.position(output.end);
+                    target.putInt(body.position()).putInt((int) check.getValue()).put(body.array(), 0, body.position());
+                    output.end += RECORD_HEADER + body.position();
+                }
+                tombstoneOutputs.put(chat, output);
+            }
+        }
+        for (Segment segment : outputs) {
+            segment.buffer.force();
+            // Уплотнённый сегмент больше не растёт - файл обрезается до данных и нулевого LEN
+            RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+            try {
+                raf.setLength(segment.end + 4);
+            } finally {
+                raf.close();
+            }
+        }
+
+        // Последние id могли уйти вместе с удалёнными сообщениями - запоминаем до фиксации
+        saveNextId(highWater);
+
+        // Фиксация: после этого файла замена считается состоявшейся даже при сбое
+        File commit = new File(directory, COMMIT_FILE);
+        File commitTmp = new File(directory, COMMIT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(commitTmp)) {
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeInt(outputs.size());
+            for (Segment segment : outputs) {
+                out.writeInt(segment.number);
+            }
+            out.writeInt(sources.size());
+            for (Segment segment : sources) {
+                out.writeInt(segment.number);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!commitTmp.renameTo(commit)) {
+            throw new IOException("Cannot commit compaction");
+        }
+
+        List<Segment> renamed = new ArrayList<>();
+        for (Segment segment : outputs) {
+            File file = segmentFile(segment.number, false);
+            if (!segment.file.renameTo(file)) {
+                throw new IOException("Cannot rename " + segment.file.getName());
+            }
+            Segment done = new Segment(segment.number, file, map(file, segment.end + 4), true);
+            done.end = segment.end;
+            done.records = segment.records;
+            renamed.add(done);
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<ChatIndex, List<Entry>> item : newEntries.entrySet()) {
+                ChatIndex chat = item.getKey();
+                List<Entry> kept = new ArrayList<>();
+                for (Entry entry : chat.entries) {
+                    if (!sources.contains(entry.segment)) {
+                        kept.add(entry);
+                    }
+                }
+                for (Entry entry : item.getValue()) {
+                    // Точки входа ссылаются на сегмент под новым именем
+                    Segment target = renamed.get(outputs.indexOf(entry.segment));
+                    Entry moved = new Entry(entry.firstId, target, entry.offset);
+                    moved.count = entry.count;
+                    kept.add(moved);
+                }
+                Collections.sort(kept, (a, b) -> Long.compare(a.firstId, b.firstId));
+                chat.entries.clear();
+                chat.entries.addAll(kept);
+                Segment tombstones = tombstoneOutputs.get(chat);
+                if (tombstones != null) {
+                    renamed.get(outputs.indexOf(tombstones)).tombstoneChats.add(chat.name);
+                }
+            }
+            segments.removeAll(sources);
+            segments.addAll(renamed);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (Segment segment : sources) {
+            segment.file.delete();
+        }
+        commit.delete();
+        System.out.println(String.format(Locale.US, "🗜️ Nico: Log compacted %d segments into %d (%d records) in %d ms",
+            sources.size(), renamed.size(), copied, (System.nanoTime() - start) / 1000000));
+    }
+
+    // Надгробия, которые ещё закрывают записи в других сегментах - их уплотнение переносит.
+    // Остальные больше не нужны: удалённых ими записей на диске не останется
+    private static List<long[]> tombstonesOutside(ChatIndex chat, List<Segment> sources) {
+        List<long[]> kept = new ArrayList<>();
+        for (long[] range : chat.deleted) {
+            for (int i = 0; i < chat.entries.size(); i++) {
+                Entry entry = chat.entries.get(i);
+                long lastId = i + 1 < chat.entries.size() ? chat.entries.get(i + 1).firstId - 1 : Long.MAX_VALUE;
+                if (!sources.contains(entry.segment) && entry.firstId <= range[1] && lastId >= range[0]) {
+                    kept.add(range);
+                    break;
+                }
+            }
+        }
+        return kept;
+    }
+
+    // Файл пишется целиком рядом и подменяет старый - оборванной записи не бывает
+    private void saveNextId(long value) throws IOException {
+        File target = new File(directory, NEXT_ID_FILE);
+        File tmp = new File(directory, NEXT_ID_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeLong(value);
+            out.flush();
+            file.getFD().sync();
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Cannot save " + NEXT_ID_FILE);
+        }
+    }
+
+    private long loadNextId() throws IOException {
+        File file = new File(directory, NEXT_ID_FILE);
+        if (!file.exists()) {
+            return 1;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readLong();
+        }
+    }
+
+    // Уплотнение зафиксировано, но не доделано (сбой) - переименовываем и удаляем источники
+    private void finishCommittedCompaction() throws IOException {
+        File commit = new File(directory, COMMIT_FILE);
+        if (!commit.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(commit))) {
+            int outputs = in.readInt();
+            for (int i = 0; i < outputs; i++) {
+                int number = in.readInt();
+                File tmp = segmentFile(number, true);
+                if (tmp.exists() && !tmp.renameTo(segmentFile(number, false))) {
+                    throw new IOException("Cannot finish compaction of " + tmp.getName());
+                }
+            }
+            int sources = in.readInt();
+            for (int i = 0; i < sources; i++) {
+                segmentFile(in.readInt(), false).delete();
+            }
+        }
+        commit.delete();
+        System.out.println("🗜️ Nico: Finished interrupted log compaction");
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Message log closed");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.nico;
+
+import androidx.core.text.PrecomputedTextCompat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Заранее посчитанная разметка текста сообщений (измерение глифов и переносы строк).
+//
+// TextView считает разметку на главном потоке при первом measure - длинный текст
+// или эмодзи заметно съедают кадр, а чат перестраивает все пузыри при каждом новом
+// сообщении. PrecomputedTextCompat делает ту же работу заранее на фоновом потоке,
+// TextView потом берёт готовый результат. До Android 9 compat-версия только прогревает
+// системный кэш разметки - тоже в фоне, выигрыш меньше, но работает так же.
+//
+// Глифы и возможные переносы от ширины не зависят (строки раскладываются при layout),
+// поэтому ключ - только id сообщения; зависят от стиля текста - параметры берутся у
+// настроенного как пузырь TextView. Старые записи вытесняются (LRU).
+// Расчёт идёт на своём потоке - потоки базы не заняты разметкой.
+public class MessageTextCache {
+    private static final int MAX_ENTRIES = 500;
+
+    private static MessageTextCache instance;
+
+    private final Map<Long, PrecomputedTextCompat> entries =
+        new LinkedHashMap<Long, PrecomputedTextCompat>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, PrecomputedTextCompat> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    // Один поток: списки считаются по очереди, в порядке прихода
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+        runnable -> new Thread(runnable, "nico-text-layout"));
+    // Параметры, с которыми посчитаны записи; сменились (шрифт, размер) - кэш устарел
+    private PrecomputedTextCompat.Params params;
+
+    private MessageTextCache() {
+    }
+
+    // Один кэш на процесс - переживает пересоздание экрана чата
+    public static synchronized MessageTextCache getInstance() {
+        if (instance == null) {
+            instance = new MessageTextCache();
+        }
+        return instance;
+    }
+
+    // Готовая разметка или null - тогда текст ставится как обычно
+    public synchronized PrecomputedTextCompat get(long messageId) {
+        return entries.get(messageId);
+    }
+
+    // Считает разметку сообщений, которых ещё нет в кэше, на потоке кэша; потом done
+    public void precompute(List<DatabaseHelper.Message> messages, PrecomputedTextCompat.Params params,
+                           Runnable done) {
+        executor.execute(() -> {
+            precompute(messages, params);
+            done.run();
+        });
+    }
+
+    private void precompute(List<DatabaseHelper.Message> messages, PrecomputedTextCompat.Params params) {
+        if (params == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!params.equals(this.params)) {
+                entries.clear();
+                this.params = params;
+            }
+        }
+        int computed = 0;
+        long start = System.nanoTime();
+        for (DatabaseHelper.Message message : messages) {
+            if (message.text == null || message.id <= 0) {
+                continue;
+            }
+            synchronized (this) {
+                if (entries.containsKey(message.id)) {
+                    continue;
+                }
+            }
+            // Сам расчёт - вне блокировки, главный поток не ждёт его в get
+            PrecomputedTextCompat text = PrecomputedTextCompat.create(message.text, params);
+            synchronized (this) {
+                if (params.equals(this.params)) {
+                    entries.put(message.id, text);
+                }
+            }
+            computed++;
+        }
+        if (computed > 0) {
+            System.out.println("🔤 Nico: Precomputed " + computed + " message layouts in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        }
+    }
+}
@@ -3,41 +3,96 @@ package com.nico;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.wifi.WifiManager;
-import android.text.format.Formatter;
 import java.io.*;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public class NetworkManager {
     private static final int PORT = 8888;
     private static final int DISCOVERY_PORT = 8889;
     private static final String DISCOVERY_MESSAGE = "NICO_DISCOVERY";
     private static final String DISCOVERY_RESPONSE = "NICO_RESPONSE";
+    // Анонс ретранслятора: кого он видит напрямую (IP через запятую)
+    private static final String DISCOVERY_ROUTES = "NICO_ROUTES";
+    // Больше соединений с одного IP не принимаем - каждое держит поток
+    private static final int MAX_CONNECTIONS_PER_PEER = 8;
+    private static final String KEY_LOW_LATENCY = "low_latency";
+    // Интервалы фоновой работы: экран включён или зарядка / экран выключен (в Doze - не запускаются)
+    private static final long HEARTBEAT_ACTIVE_MS = 45000;
+    private static final long HEARTBEAT_BACKGROUND_MS = 5 * 60000;
+    private static final long DISCOVERY_ACTIVE_MS = 2 * 60000;
+    private static final long DISCOVERY_BACKGROUND_MS = 30 * 60000;
+    private static final long OUTBOX_ACTIVE_MS = 20000;
+    private static final long OUTBOX_BACKGROUND_MS = 3 * 60000;
+    // Сообщений из очереди на повтор за один проход
+    private static final int OUTBOX_BATCH = 200;
+    // Устройство, не ответившее столько времени, убирается из списка найденных
+    private static final long DEVICE_EXPIRY_MS = 3 * DISCOVERY_ACTIVE_MS;
     
-    private ServerSocket serverSocket;
-    private DatagramSocket discoverySocket;
+    // Потоковые соединения (сообщения, файлы, ретрансляция); discovery - всегда UDP
+    private final Transport transport;
+    private Transport.Server server;
+    private MulticastSocket discoverySocket;
+    private WifiManager.MulticastLock multicastLock;
+    // Ответ собирается один раз при старте - на запросы отвечаем готовым пакетом
+    private DatagramPacket discoveryResponse;
+    private final DiscoveryRateLimiter discoveryLimiter = new DiscoveryRateLimiter();
     private boolean isRunning = false;
     private Context context;
     private SharedPreferences prefs;
-    private Map<String, String> discoveredDevices = new ConcurrentHashMap<>();
+    private Map<String, DiscoveredDevice> discoveredDevices = new ConcurrentHashMap<>();
+    private PeerDiscovery peerDiscovery;
+    private FileTransferManager fileTransfers;
+    private HistorySync historySync;
+    private RelayRouter relayRouter;
+    private PeerConnectionPool connectionPool;
+    // Ключ устройства и ключи собеседников (загружаются при первом соединении)
+    private PeerSecurity security;
+    // Параллельная рассылка участникам группы
+    private ExecutorService fanOutExecutor = Executors.newCachedThreadPool();
+    // Входящие сообщения идут в базу через ограниченные очереди по собеседникам
+    private InboundQueue inboundQueue = new InboundQueue(this::storeReceivedMessages);
+    private Map<String, Integer> connectionsPerPeer = new HashMap<>();
+    // События для экранов и сервисов - подписка через EventBus, не через NetworkManager
+    private final EventBus events = EventBus.getInstance();
+    // RTT и предохранитель по каждому собеседнику - таймауты подключений и быстрый отказ
+    private final PeerHealth health = new PeerHealth();
+    // Heartbeat, поиск и повтор доставки - общими окнами по состоянию экрана, зарядки и Doze
+    private PowerScheduler powerScheduler;
+    // В message_delivery могут быть FAILED строки (в том числе с прошлого запуска) - проверяем их
+    private volatile boolean outboxPending = true;
+    // Набор текста, прочтение, присутствие - без базы и уведомлений
+    private final SignalChannel signals = new SignalChannel(this::sendSignal, events::publishSignal);
     
-    // Интерфейс для callback'ов
-    public interface NetworkListener {
-        void onMessageReceived(String chatName, String sender, String message);
-        void onDeviceDiscovered(String ip, String deviceName);
-        void onConnectionStatusChanged(boolean connected);
+    public NetworkManager(Context context) {
+        this(context, new NioTcpTransport());
     }
     
-    private NetworkListener listener;
-    
-    public NetworkManager(Context context) {
+    public NetworkManager(Context context, Transport transport) {
         this.context = context;
+        this.transport = transport;
         this.prefs = context.getSharedPreferences("nico_prefs", Context.MODE_PRIVATE);
-    }
-    
-    public void setListener(NetworkListener listener) {
-        this.listener = listener;
+        this.security = new PeerSecurity(prefs);
+        this.fileTransfers = new FileTransferManager(context, transport, security, health);
+        this.fileTransfers.setListener(this::onFileReceived);
+        this.historySync = new HistorySync(context);
+        this.relayRouter = new RelayRouter(transport, prefs, PORT);
+        this.connectionPool = new PeerConnectionPool(transport, security, PORT, relayRouter, health);
+        this.connectionPool.setLowLatency(prefs.getBoolean(KEY_LOW_LATENCY, true));
+        this.peerDiscovery = new PeerDiscovery(prefs, DISCOVERY_PORT, DISCOVERY_MESSAGE,
+            DISCOVERY_RESPONSE, this::onDeviceFound);
+        this.powerScheduler = new PowerScheduler(context, this::onPowerProfileChanged);
+        powerScheduler.schedule("heartbeat", HEARTBEAT_ACTIVE_MS, HEARTBEAT_BACKGROUND_MS, 0, this::heartbeat);
+        powerScheduler.schedule("discovery", DISCOVERY_ACTIVE_MS, DISCOVERY_BACKGROUND_MS, 0, this::probeKnownPeers);
+        powerScheduler.schedule("outbox", OUTBOX_ACTIVE_MS, OUTBOX_BACKGROUND_MS, 0, this::retryUndelivered);
     }
     
     // Запускаем сервер для приёма сообщений
@@ -46,7 +101,7 @@ public class NetworkManager {
         
         new Thread(() -> {
             try {
-                serverSocket = new ServerSocket(PORT);
+                server = transport.listen(PORT);
                 isRunning = true;
                 
                 System.out.println("🔄 Nico: Server started on port " + PORT);
@@ -54,17 +109,21 @@ public class NetworkManager {
                 
                 // Запускаем discovery сервер
                 startDiscoveryServer();
+                powerScheduler.start();
                 
                 while (isRunning) {
                     try {
-                        Socket clientSocket = serverSocket.accept();
+                        Transport.Connection connection = server.accept();
                         System.out.println("🔗 Nico: New connection from " + 
-                            clientSocket.getInetAddress().getHostAddress());
+                            connection.getRemoteAddress());
                         
                         // Обрабатываем сообщения от клиента
-                        handleClient(clientSocket);
+                        handleClient(connection);
                         
-                    } catch (SocketException e) {
+                    } catch (IOException e) {
+                        if (isRunning) {
+                            throw e;
+                        }
                         System.out.println("🛑 Nico: Server socket closed");
                     }
                 }
@@ -75,38 +134,59 @@ public class NetworkManager {
         }).start();
     }
     
-    // Запускаем discovery сервер для обнаружения устройств
+    // Запускаем discovery сервер для обнаружения устройств.
+    // Слушает свой порт и multicast группу PeerDiscovery (broadcast тоже приходит сюда).
     private void startDiscoveryServer() {
         new Thread(() -> {
             try {
-                discoverySocket = new DatagramSocket(DISCOVERY_PORT);
+                discoverySocket = new MulticastSocket(DISCOVERY_PORT);
                 discoverySocket.setBroadcast(true);
+                joinMulticastGroup();
+                
+                String localIp = getLocalIpAddress();
+                byte[] response = (DISCOVERY_RESPONSE + "|Nico-" + localIp.replace(".", ""))
+                    .getBytes(StandardCharsets.UTF_8);
+                discoveryResponse = new DatagramPacket(response, response.length);
+                
+                // Сообщаем о себе - собеседники узнают нас без сканирования
+                sendDiscoveryResponse(new InetSocketAddress(PeerDiscovery.MULTICAST_GROUP, DISCOVERY_PORT));
+                
+                // Быстро находим известных собеседников после перезапуска
+                probeKnownPeers();
                 
                 byte[] buffer = new byte[1024];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 
                 while (isRunning) {
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    packet.setLength(buffer.length);
                     discoverySocket.receive(packet);
                     
-                    String message = new String(packet.getData(), 0, packet.getLength()).trim();
+                    String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).trim();
                     String senderIp = packet.getAddress().getHostAddress();
+                    if (senderIp.equals(localIp)) {
+                        continue; // своё же multicast/broadcast сообщение
+                    }
+                    TrafficCapture.datagram(true, senderIp, packet.getData(), packet.getOffset(), packet.getLength());
                     
                     if (DISCOVERY_MESSAGE.equals(message)) {
+                        SocketAddress requester = packet.getSocketAddress();
+                        if (!discoveryLimiter.allow(requester.toString(), senderIp, System.currentTimeMillis())) {
+                            continue; // повтор того же поиска или флуд
+                        }
                         System.out.println("🔍 Nico: Discovery request from " + senderIp);
                         
-                        // Отправляем ответ
-                        sendDiscoveryResponse(senderIp);
+                        // Отвечаем на адрес и порт запроса - ответ попадёт прямо в сокет PeerDiscovery
+                        sendDiscoveryResponse(requester);
+                        sendRouteAdvertisement(senderIp);
                         
-                    } else if (message.startsWith(DISCOVERY_RESPONSE)) {
-                        // Получили ответ на наш discovery запрос
+                    } else if (message.startsWith(DISCOVERY_RESPONSE + "|")) {
+                        // Анонс нового устройства в группе
                         String deviceName = message.substring(DISCOVERY_RESPONSE.length() + 1);
-                        discoveredDevices.put(senderIp, deviceName);
+                        peerDiscovery.remember(senderIp, deviceName);
+                        onDeviceFound(senderIp, deviceName);
                         
-                        System.out.println("✅ Nico: Discovered device - " + deviceName + " at " + senderIp);
-                        
-                        if (listener != null) {
-                            listener.onDeviceDiscovered(senderIp, deviceName);
-                        }
+                    } else if (message.startsWith(DISCOVERY_ROUTES + "|")) {
+                        onRoutesAdvertised(senderIp, message.substring(DISCOVERY_ROUTES.length() + 1), localIp);
                     }
                 }
                 
@@ -118,38 +198,193 @@ public class NetworkManager {
         }).start();
     }
     
-    // Отправляем ответ на discovery запрос
-    private void sendDiscoveryResponse(String targetIp) {
+    // Без MulticastLock Wi-Fi чип Android отбрасывает multicast пакеты
+    private void joinMulticastGroup() {
         try {
-            String deviceName = "Nico-" + getLocalIpAddress().replace(".", "");
-            String response = DISCOVERY_RESPONSE + "|" + deviceName;
-            
-            DatagramSocket socket = new DatagramSocket();
-            byte[] data = response.getBytes();
-            
-            DatagramPacket packet = new DatagramPacket(
-                data, data.length, 
-                InetAddress.getByName(targetIp), DISCOVERY_PORT
-            );
-            
-            socket.send(packet);
-            socket.close();
+            WifiManager wm = (WifiManager) context.getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
+            multicastLock = wm.createMulticastLock("nico-discovery");
+            multicastLock.setReferenceCounted(false);
+            onPowerProfileChanged(powerScheduler.getProfile());
+            discoverySocket.joinGroup(InetAddress.getByName(PeerDiscovery.MULTICAST_GROUP));
+        } catch (Exception e) {
+            // Сеть без multicast - остаются broadcast и известные собеседники
+            System.out.println("⚠️ Nico: Multicast unavailable - " + e.getMessage());
+        }
+    }
+    
+    // MulticastLock заставляет Wi-Fi будить устройство на каждый multicast пакет в сети -
+    // держим его, только пока экран включён или идёт зарядка. Broadcast и известные
+    // собеседники работают и без него.
+    private synchronized void onPowerProfileChanged(int profile) {
+        if (multicastLock == null) {
+            return;
+        }
+        if (profile == PowerScheduler.PROFILE_ACTIVE && isRunning) {
+            multicastLock.acquire();
+        } else if (multicastLock.isHeld()) {
+            multicastLock.release();
+        }
+    }
+    
+    // Проверяем постоянные соединения: простаивающие закрываем, живым - присутствие
+    // (ошибка записи убирает мёртвое соединение из пула). Присутствие идёт только по
+    // открытому соединению и не продлевает ему жизнь - иначе простой не закрылся бы никогда
+    private void heartbeat() {
+        connectionPool.closeIdle();
+        for (String ip : connectionPool.getConnectedPeers()) {
+            signals.publish(ip, SignalChannel.KIND_PRESENCE, null, SignalChannel.PRESENCE_ONLINE, false);
+        }
+    }
+    
+    // Повторяем именно недоставленные сообщения (FAILED в message_delivery - переживают
+    // перезапуск); записанные снова ждут подтверждения. Пустая очередь - без запросов к базе
+    private void retryUndelivered() {
+        if (!outboxPending) {
+            return;
+        }
+        outboxPending = false;
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+        Map<String, List<DatabaseHelper.Message>> outbox = dbHelper.getUndeliveredMessages(OUTBOX_BATCH);
+        int queued = 0;
+        for (Map.Entry<String, List<DatabaseHelper.Message>> entry : outbox.entrySet()) {
+            String ip = entry.getKey();
+            List<DatabaseHelper.Message> messages = entry.getValue();
+            queued += messages.size();
+            try {
+                connectionPool.send(ip, FrameSession.encodeMessages(messages));
+                List<Long> ids = new ArrayList<>(messages.size());
+                for (DatabaseHelper.Message message : messages) {
+                    ids.add(message.id);
+                }
+                dbHelper.markRetried(ip, ids);
+                System.out.println("📬 Nico: Redelivered " + messages.size() + " message(s) to " + ip);
+            } catch (IOException e) {
+                // Попробуем в следующем окне
+                outboxPending = true;
+            }
+        }
+        if (queued >= OUTBOX_BATCH) {
+            outboxPending = true;
+            powerScheduler.requestSoon("outbox");
+        }
+    }
+    
+    // Запись не удалась - повтор в ближайшем окне планировщика (в Doze - после выхода)
+    private void onDeliveryFailed() {
+        outboxPending = true;
+        powerScheduler.requestSoon("outbox");
+    }
+    
+    // SRTT, RTTVAR и текущий таймаут подключения к собеседнику
+    public String getPeerHealth(String ip) {
+        return health.describe(ip);
+    }
+    
+    // Энергозатратные счётчики: окна пробуждения, запуски фоновых задач, время в профилях
+    public String getPowerStats() {
+        return powerScheduler.getStats();
+    }
+    
+    // Отправляем ответ на discovery запрос - тот же пакет и тот же сокет, без аллокаций.
+    // Вызывается только с потока discovery сервера.
+    private void sendDiscoveryResponse(SocketAddress target) {
+        try {
+            discoveryResponse.setSocketAddress(target);
+            discoverySocket.send(discoveryResponse);
+            TrafficCapture.datagram(false, target.toString(), discoveryResponse.getData(),
+                discoveryResponse.getOffset(), discoveryResponse.getLength());
             
         } catch (IOException e) {
             System.out.println("❌ Nico: Failed to send discovery response");
         }
     }
     
+    // Ретранслятор сообщает на наш discovery порт, кого он видит; вызывается
+    // только с потока discovery сервера
+    private void sendRouteAdvertisement(String requesterIp) {
+        List<String> targets = relayRouter.getAdvertisedRoutes(requesterIp);
+        if (targets.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder(DISCOVERY_ROUTES).append('|');
+        for (int i = 0; i < targets.size(); i++) {
+            if (i > 0) {
+                message.append(',');
+            }
+            message.append(targets.get(i));
+        }
+        byte[] data = message.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            DatagramPacket packet = new DatagramPacket(data, data.length,
+                new InetSocketAddress(requesterIp, DISCOVERY_PORT));
+            discoverySocket.send(packet);
+            TrafficCapture.datagram(false, requesterIp, data, 0, data.length);
+        } catch (IOException e) {
+            System.out.println("❌ Nico: Failed to send relay routes to " + requesterIp);
+        }
+    }
+    
+    private void onRoutesAdvertised(String relayIp, String list, String localIp) {
+        List<String> targets = new ArrayList<>();
+        for (String ip : list.split(",")) {
+            if (!ip.isEmpty() && !ip.equals(localIp) && targets.size() < RelayRouter.MAX_ADVERTISED_ROUTES) {
+                targets.add(ip);
+            }
+        }
+        relayRouter.onRoutesAdvertised(relayIp, targets);
+        System.out.println("🔀 Nico: " + relayIp + " relays to " + targets.size() + " peer(s)");
+    }
+    
+    // Найденное устройство и когда оно последний раз отвечало
+    private static class DiscoveredDevice {
+        final String name;
+        final long lastSeen;
+        
+        DiscoveredDevice(String name, long lastSeen) {
+            this.name = name;
+            this.lastSeen = lastSeen;
+        }
+    }
+    
+    // Устройство ответило на запрос или анонсировало себя
+    private void onDeviceFound(String ip, String deviceName) {
+        relayRouter.addDirectPeer(ip);
+        if (discoveredDevices.put(ip, new DiscoveredDevice(deviceName, System.currentTimeMillis())) == null) {
+            System.out.println("✅ Nico: Discovered device - " + deviceName + " at " + ip);
+        }
+        events.publishDevice(ip, deviceName);
+    }
+    
+    // Ушедшие из сети устройства не висят в списке и не считаются доступными напрямую
+    private void expireDevices() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, DiscoveredDevice> entry : discoveredDevices.entrySet()) {
+            if (now - entry.getValue().lastSeen > DEVICE_EXPIRY_MS
+                    && discoveredDevices.remove(entry.getKey(), entry.getValue())) {
+                relayRouter.removeDirectPeer(entry.getKey());
+                System.out.println("👋 Nico: Device expired - " + entry.getValue().name + " at " + entry.getKey());
+            }
+        }
+        relayRouter.expireRoutes(DEVICE_EXPIRY_MS);
+    }
+    
     // Останавливаем сервер
     public void stopServer() {
         isRunning = false;
         try {
-            if (serverSocket != null) {
-                serverSocket.close();
+            if (server != null) {
+                server.close();
             }
             if (discoverySocket != null) {
                 discoverySocket.close();
             }
+            powerScheduler.stop();
+            onPowerProfileChanged(PowerScheduler.PROFILE_IDLE);
+            signals.close();
+            connectionPool.closeAll();
+            inboundQueue.shutdown();
+            fanOutExecutor.shutdown();
             System.out.println("🛑 Nico: Server stopped");
         } catch (IOException e) {
             System.out.println("❌ Nico: Error stopping server");
@@ -157,26 +392,42 @@ public class NetworkManager {
     }
     
     // Обработка сообщений от клиента
-    private void handleClient(Socket clientSocket) {
+    private void handleClient(Transport.Connection connection) {
+        String senderIp = connection.getRemoteAddress();
+        health.onIncoming(senderIp);
+        if (!acquireConnectionSlot(senderIp)) {
+            System.out.println("🚦 Nico: Too many connections from " + senderIp);
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Игнорируем ошибку закрытия
+            }
+            return;
+        }
+        
         new Thread(() -> {
             try {
-                BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(clientSocket.getInputStream())
-                );
-                
-                String message;
-                while ((message = reader.readLine()) != null) {
-                    System.out.println("📨 Nico: Received raw message - " + message);
-                    
-                    // Парсим сообщение
-                    processReceivedMessage(message, clientSocket.getInetAddress().getHostAddress());
+                // Только бинарные кадры: открытый текстовый протокол без HELLO позволял
+                // писать от имени любого IP в обход шифрования и закреплённых ключей
+                ByteBuffer first = ByteBuffer.allocate(1);
+                if (connection.read(first) == -1) {
+                    return;
+                }
+                if (first.get(0) != FrameCodec.MAGIC) {
+                    System.out.println("🚫 Nico: Legacy text connection from " + senderIp + " rejected");
+                    return;
                 }
+                handleFrames(connection, senderIp);
                 
             } catch (IOException e) {
                 System.out.println("❌ Nico: Client disconnected");
+            } catch (RuntimeException e) {
+                // Кривой кадр рукопожатия, ретрансляции или файла - рвём одно соединение, не процесс
+                System.out.println("🚫 Nico: Malformed connection from " + senderIp + " - " + e);
             } finally {
+                releaseConnectionSlot(senderIp);
                 try {
-                    clientSocket.close();
+                    connection.close();
                 } catch (IOException e) {
                     // Игнорируем ошибку закрытия
                 }
@@ -184,94 +435,411 @@ public class NetworkManager {
         }).start();
     }
     
+    private synchronized boolean acquireConnectionSlot(String ip) {
+        Integer count = connectionsPerPeer.get(ip);
+        if (count != null && count >= MAX_CONNECTIONS_PER_PEER) {
+            return false;
+        }
+        connectionsPerPeer.put(ip, count == null ? 1 : count + 1);
+        return true;
+    }
+    
+    private synchronized void releaseConnectionSlot(String ip) {
+        Integer count = connectionsPerPeer.get(ip);
+        if (count == null || count <= 1) {
+            connectionsPerPeer.remove(ip);
+        } else {
+            connectionsPerPeer.put(ip, count - 1);
+        }
+    }
+    
+    // Соединение в режиме кадров: ретрансляция или сессия (файлы - только внутри шифрованной сессии)
+    private void handleFrames(Transport.Connection channel, String senderIp) throws IOException {
+        FrameCodec.Header first = FrameCodec.readHeader(channel, ByteBuffer.allocate(FrameCodec.HEADER_SIZE));
+        
+        if (first.type == FrameCodec.TYPE_RELAY) {
+            String originIp = relayRouter.relay(channel, first, senderIp);
+            // Мы - цель туннеля: дальше только шифрованная сессия от настоящего отправителя
+            if (originIp != null) {
+                handleRelayed(channel, originIp);
+            }
+            
+        } else if (first.type == FrameCodec.TYPE_HELLO) {
+            runSession(FrameSession.accept(channel, first, security, senderIp), senderIp);
+            
+        } else {
+            System.out.println("⚠️ Nico: Unexpected first frame " + first.type + " from " + senderIp);
+        }
+    }
+    
+    // Внутри туннеля - ни вложенного RELAY, ни файлов без сессии: только HELLO
+    private void handleRelayed(Transport.Connection channel, String originIp) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(1);
+        FrameCodec.readFully(channel, magic);
+        if (magic.get(0) != FrameCodec.MAGIC) {
+            return;
+        }
+        FrameCodec.Header hello = FrameCodec.readHeader(channel, ByteBuffer.allocate(FrameCodec.HEADER_SIZE));
+        if (hello.type != FrameCodec.TYPE_HELLO) {
+            System.out.println("🚫 Nico: Relayed frame " + hello.type + " from " + originIp + " rejected");
+            return;
+        }
+        runSession(FrameSession.accept(channel, hello, security, originIp, true), originIp);
+    }
+    
+    // Сессия с пачками сообщений, синхронизацией, сигналами и файлами.
+    // Только шифрованная: ключ закреплён за senderIp (PeerSecurity), поэтому данные кадров
+    // приходят от этого собеседника, а не от любого устройства в сети
+    private void runSession(FrameSession session, String senderIp) throws IOException {
+        System.out.println("🤝 Nico: Frame session with " + senderIp
+            + (session.isCompressed() ? " (compressed)" : "")
+            + (session.isEncrypted() ? " (encrypted)" : ""));
+        
+        try {
+            if (!session.isEncrypted()) {
+                System.out.println("🚫 Nico: Unencrypted session from " + senderIp + " rejected");
+                return;
+            }
+            while (true) {
+                FrameSession.Frame frame = session.readFrame();
+                if (frame.type == FrameCodec.TYPE_MESSAGES) {
+                    // Полная очередь останавливает чтение этой сессии (см. InboundQueue)
+                    for (DatabaseHelper.Message message : FrameSession.decodeMessages(frame.payload)) {
+                        inboundQueue.offer(senderIp, message);
+                    }
+                } else if (frame.type == FrameCodec.TYPE_SYNC_REQUEST) {
+                    notifySynced(senderIp, historySync.syncAsResponder(session, frame.payload, senderIp));
+                } else if (frame.type == FrameCodec.TYPE_GROUP_MEMBERS) {
+                    storeGroupMembers(frame.payload, senderIp);
+                } else if (frame.type == FrameCodec.TYPE_SIGNAL) {
+                    signals.receive(senderIp, frame.payload);
+                } else if (frame.type == FrameCodec.TYPE_MESSAGES_ACK) {
+                    storeAcks(frame.payload, senderIp);
+                } else if (frame.type == FrameCodec.TYPE_FILE_OFFER) {
+                    // Дальше канал занят чанками файла - сессия заканчивается вместе с передачей
+                    fileTransfers.receiveFile(session.getChannel(), frame.payload, senderIp);
+                    return;
+                } else {
+                    System.out.println("⚠️ Nico: Unknown frame " + frame.type + " from " + senderIp);
+                }
+            }
+        } catch (java.io.EOFException e) {
+            // Собеседник закрыл сессию
+        } catch (RuntimeException e) {
+            // Разбор кадра не должен уронить поток - закрываем только эту сессию
+            System.out.println("🚫 Nico: Malformed frame from " + senderIp + " - " + e);
+        } finally {
+            session.close();
+        }
+    }
+    
     // Отправка сообщения другому устройству
     public void sendMessage(String targetIp, String chatName, String sender, String message) {
+        sendMessages(targetIp, chatName, sender, Collections.singletonList(message));
+    }
+    
+    // Отправка нескольких сообщений одной пачкой (сжимается, если собеседник поддерживает)
+    public void sendMessages(String targetIp, String chatName, String sender, List<String> messages) {
         new Thread(() -> {
+            // Сначала сохраняем: если доставить не получится, сообщения уйдут при повторе
+            DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+            String time = formatTimestamp(System.currentTimeMillis());
+            List<DatabaseHelper.Message> stored = new ArrayList<>();
+            for (String message : messages) {
+                long id = dbHelper.addMessage(chatName, sender, message, time, true, targetIp);
+                stored.add(new DatabaseHelper.Message(id, chatName, sender, message, time, true));
+            }
+            deliverMessages(targetIp, stored);
+        }).start();
+    }
+    
+    // Отправка уже сохранённого в базе сообщения (id нужен получателю для отсева дубликатов)
+    public void sendStoredMessage(String targetIp, DatabaseHelper.Message message) {
+        new Thread(() -> deliverMessages(targetIp, Collections.singletonList(message))).start();
+    }
+    
+    private void deliverMessages(String targetIp, List<DatabaseHelper.Message> messages) {
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+        // До отправки: подтверждение может прийти раньше, чем мы вернёмся из send
+        dbHelper.setDeliveryStatus(targetIp, messages, DatabaseHelper.DELIVERY_PENDING);
+        fileTransfers.beginPriorityTraffic();
+        try {
+            connectionPool.send(targetIp, FrameSession.encodeMessages(messages));
+            
+            System.out.println("✈️ Nico: Sent " + messages.size() + " message(s) to " + targetIp);
+            
+        } catch (IOException e) {
+            System.out.println("❌ Nico: Failed to send to " + targetIp + " - " + e.getMessage());
+            dbHelper.setDeliveryStatus(targetIp, messages, DatabaseHelper.DELIVERY_FAILED);
+            onDeliveryFailed();
+            
+            events.publishConnection(false);
+        } finally {
+            fileTransfers.endPriorityTraffic();
+        }
+    }
+    
+    // Сообщение в групповой чат: кодируем один раз и параллельно рассылаем всем участникам.
+    // Время рассылки ≈ время самого медленного участника, а не сумма по всем.
+    public void sendGroupMessage(String chatName, String sender, String message) {
+        new Thread(() -> {
+            String time = formatTimestamp(System.currentTimeMillis());
+            long id = DatabaseHelper.getInstance(context).addMessage(chatName, sender, message, time, true,
+                DatabaseHelper.RECIPIENT_GROUP);
+            deliverGroupMessage(new DatabaseHelper.Message(id, chatName, sender, message, time, true));
+        }).start();
+    }
+    
+    // Уже сохранённое сообщение группового чата
+    public void sendStoredGroupMessage(DatabaseHelper.Message message) {
+        new Thread(() -> deliverGroupMessage(message)).start();
+    }
+    
+    private void deliverGroupMessage(DatabaseHelper.Message message) {
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+        List<String> members = dbHelper.getGroupMembers(message.chatName);
+        List<FrameSession.EncodedFrame> frames = FrameSession.encodeMessages(Collections.singletonList(message));
+        
+        // Всем - "ждёт подтверждения" до отправки: подтверждение может прийти раньше,
+        // чем закончится рассылка остальным, и не должно быть затёрто
+        Map<String, Integer> statuses = new HashMap<>();
+        for (String ip : members) {
+            statuses.put(ip, DatabaseHelper.DELIVERY_PENDING);
+        }
+        dbHelper.setDeliveryStatuses(message.id, message.chatName, statuses);
+        
+        fileTransfers.beginPriorityTraffic();
+        try {
+            statuses = fanOut(members, frames);
+        } finally {
+            fileTransfers.endPriorityTraffic();
+        }
+        Map<String, Integer> failures = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : statuses.entrySet()) {
+            if (entry.getValue() == DatabaseHelper.DELIVERY_FAILED) {
+                failures.put(entry.getKey(), DatabaseHelper.DELIVERY_FAILED);
+            }
+        }
+        dbHelper.setDeliveryStatuses(message.id, message.chatName, failures);
+        if (!failures.isEmpty()) {
+            onDeliveryFailed();
+        }
+        
+        int failed = failures.size();
+        System.out.println("👥 Nico: Group message sent to " + (members.size() - failed)
+            + "/" + members.size() + " members of " + message.chatName);
+        // Доставленным (SENT) сообщение станет по TYPE_MESSAGES_ACK от участника.
+        // Недоставленное (FAILED) уйдёт участнику при повторе - retryUndelivered
+    }
+    
+    // Создаём или меняем группу и рассылаем её состав участникам
+    public void updateGroup(String chatName, List<String> memberIps) {
+        new Thread(() -> {
+            DatabaseHelper.getInstance(context).setGroupMembers(chatName, memberIps);
+            
+            // Участники получают полный состав, включая нас
+            List<String> everyone = new ArrayList<>(memberIps);
+            everyone.add(getLocalIpAddress());
+            
+            byte[] name = FrameCodec.utf8(chatName);
+            int size = 4 + name.length + 4;
+            List<byte[]> ips = new ArrayList<>();
+            for (String ip : everyone) {
+                byte[] bytes = FrameCodec.utf8(ip);
+                ips.add(bytes);
+                size += 4 + bytes.length;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(size);
+            payload.putInt(name.length).put(name).putInt(ips.size());
+            for (byte[] ip : ips) {
+                payload.putInt(ip.length).put(ip);
+            }
+            
+            fanOut(memberIps, Collections.singletonList(
+                FrameSession.encode(FrameCodec.TYPE_GROUP_MEMBERS, payload.array())));
+        }).start();
+    }
+    
+    // Одинаковые байты всем участникам параллельно, по соединениям из пула.
+    // Записанное в сокет - ещё не доставленное: PENDING до подтверждения получателем
+    private Map<String, Integer> fanOut(List<String> memberIps, List<FrameSession.EncodedFrame> frames) {
+        Map<String, Future<?>> pending = new LinkedHashMap<>();
+        for (String ip : memberIps) {
             try {
-                Socket socket = new Socket();
-                socket.connect(new InetSocketAddress(targetIp, PORT), 3000);
-                
-                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-                
-                // Формат: CHAT_NAME|SENDER|MESSAGE|TIMESTAMP
-                String formattedMessage = String.format("%s|%s|%s|%d", 
-                    chatName, sender, message, System.currentTimeMillis());
-                
-                writer.println(formattedMessage);
-                writer.close();
-                socket.close();
-                
-                System.out.println("✈️ Nico: Message sent to " + targetIp + " - " + message);
-                
-                // Сохраняем в базу как исходящее сообщение
-                DatabaseHelper dbHelper = new DatabaseHelper(context);
-                dbHelper.addMessage(chatName, sender, message, 
-                    formatTimestamp(System.currentTimeMillis()), true);
-                
-            } catch (IOException e) {
-                System.out.println("❌ Nico: Failed to send to " + targetIp + " - " + e.getMessage());
-                
-                if (listener != null) {
-                    listener.onConnectionStatusChanged(false);
+                pending.put(ip, fanOutExecutor.submit(() -> {
+                    connectionPool.send(ip, frames);
+                    return null;
+                }));
+            } catch (RejectedExecutionException e) {
+                // Сервер остановлен
+                pending.put(ip, null);
+            }
+        }
+        
+        Map<String, Integer> statuses = new HashMap<>();
+        for (Map.Entry<String, Future<?>> entry : pending.entrySet()) {
+            try {
+                if (entry.getValue() == null) {
+                    throw new IOException("Network manager stopped");
                 }
+                entry.getValue().get();
+                statuses.put(entry.getKey(), DatabaseHelper.DELIVERY_PENDING);
+            } catch (Exception e) {
+                System.out.println("❌ Nico: Group delivery to " + entry.getKey() + " failed");
+                statuses.put(entry.getKey(), DatabaseHelper.DELIVERY_FAILED);
             }
-        }).start();
+        }
+        return statuses;
     }
     
-    // Обработка полученного сообщения
-    private void processReceivedMessage(String message, String senderIp) {
+    // Состав группы от участника: CHAT_NAME | COUNT(4) | IP*
+    private void storeGroupMembers(ByteBuffer payload, String senderIp) throws IOException {
+        String localIp = getLocalIpAddress();
+        String chatName;
+        List<String> members = new ArrayList<>();
+        // Кадр из сети: пустой или обрезанный - IOException, сессия закроется штатно
         try {
-            String[] parts = message.split("\\|", 4);
-            if (parts.length == 4) {
-                String chatName = parts[0];
-                String sender = parts[1];
-                String text = parts[2];
-                long timestamp = Long.parseLong(parts[3]);
-                
-                System.out.println("💬 Nico: Parsed message - " + sender + ": " + text);
-                
-                // Сохраняем в базу данных
-                DatabaseHelper dbHelper = new DatabaseHelper(context);
-                dbHelper.addMessage(chatName, sender, text, formatTimestamp(timestamp), false);
-                
-                // Показываем уведомление
-                NotificationHelper.showMessageNotification(context, sender, text);
-                
-                // Уведомляем слушателя
-                if (listener != null) {
-                    listener.onMessageReceived(chatName, sender, text);
+            chatName = FrameCodec.readString(payload);
+            int count = payload.getInt();
+            if (count < 0 || count > payload.remaining() / 4) {
+                throw new IOException("Invalid group members frame from " + senderIp);
+            }
+            for (int i = 0; i < count; i++) {
+                String ip = FrameCodec.readString(payload);
+                if (!ip.equals(localIp)) {
+                    members.add(ip);
                 }
-                
-            } else {
-                System.out.println("⚠️ Nico: Invalid message format from " + senderIp);
             }
-        } catch (Exception e) {
-            System.out.println("❌ Nico: Error processing message from " + senderIp + " - " + e.getMessage());
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated group members frame from " + senderIp);
+        }
+        if (!members.contains(senderIp)) {
+            members.add(senderIp);
+        }
+        
+        // Состав меняет только участник группы; новую группу можно создать только
+        // под незанятым именем - иначе любой мог бы переписать чужую группу или личный чат
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+        List<String> current = dbHelper.getGroupMembers(chatName);
+        boolean allowed = current.isEmpty() ? dbHelper.getChat(chatName) == null : current.contains(senderIp);
+        if (!allowed) {
+            System.out.println("🚫 Nico: Ignored group update for " + chatName + " from non-member " + senderIp);
+            return;
+        }
+        dbHelper.setGroupMembers(chatName, members);
+    }
+    
+    // Докачиваем пропущенную историю в обе стороны (только разницу по водяным знакам)
+    public void syncHistory(String targetIp) {
+        new Thread(() -> {
+            try (FrameSession session = connectionPool.open(targetIp)) {
+                notifySynced(targetIp, historySync.syncAsInitiator(session, targetIp));
+            } catch (IOException e) {
+                System.out.println("❌ Nico: History sync with " + targetIp + " failed - " + e.getMessage());
+            }
+        }).start();
+    }
+    
+    private void notifySynced(String peerIp, Set<String> updatedChats) {
+        for (String chatName : updatedChats) {
+            events.publishSync(peerIp, chatName);
+        }
+    }
+    
+    // Отправка файла или картинки чанками (с докачкой после разрыва)
+    public void sendFile(String targetIp, String chatName, String sender, File file) {
+        new Thread(() -> {
+            DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+            long messageId = dbHelper.addMessage(chatName, sender, "📎 " + file.getName(),
+                formatTimestamp(System.currentTimeMillis()), true, targetIp);
+            
+            if (!fileTransfers.sendFile(targetIp, PORT, chatName, sender, messageId, file)) {
+                events.publishConnection(false);
+            }
+        }).start();
+    }
+    
+    // Файл полностью принят - сохраняем как сообщение с вложением
+    private void onFileReceived(String senderIp, String chatName, String sender, long messageId, File file) {
+        String text = "📎 " + file.getName();
+        try {
+            inboundQueue.offer(senderIp, new DatabaseHelper.Message(messageId, chatName, sender, text,
+                formatTimestamp(System.currentTimeMillis()), false));
+        } catch (IOException e) {
+            // Строка "📎" придёт при синхронизации истории
+            System.out.println("⚠️ Nico: File message from " + senderIp + " dropped - " + e.getMessage());
+        }
+    }
+    
+    // Сообщение из кадра: сохраняем, если это не дубликат, и уведомляем
+    // Пачка из InboundQueue: одна транзакция, дальше уведомления только о новых сообщениях
+    private void storeReceivedMessages(String senderIp, List<DatabaseHelper.Message> batch) {
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(context);
+        for (DatabaseHelper.Message message : dbHelper.addPeerMessages(senderIp, batch)) {
+            System.out.println("💬 Nico: Received message - " + message.sender + ": " + message.text);
+            
+            NotificationHelper.showMessageNotification(context, message.chatName, message.sender, message.text);
+            
+            events.publishMessage(message.chatName, message.sender, message.text);
+        }
+        sendAcks(senderIp, batch);
+    }
+    
+    // Подтверждаем сохранённое (и дубликаты - они сохранены раньше): отправитель
+    // отмечает доставку только по этому кадру, а не по записи в сокет
+    private void sendAcks(String senderIp, List<DatabaseHelper.Message> batch) {
+        List<Long> ids = new ArrayList<>();
+        for (DatabaseHelper.Message message : batch) {
+            if (message.id > 0) {
+                ids.add(message.id);
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(4 + 8 * ids.size());
+        payload.putInt(ids.size());
+        for (long id : ids) {
+            payload.putLong(id);
+        }
+        List<FrameSession.EncodedFrame> frames = Collections.singletonList(
+            new FrameSession.EncodedFrame(FrameCodec.TYPE_MESSAGES_ACK, payload.array(), null));
+        try {
+            // Не задерживаем поток InboundQueue подключением
+            fanOutExecutor.execute(() -> {
+                try {
+                    connectionPool.send(senderIp, frames);
+                } catch (IOException e) {
+                    // Без подтверждения сообщение останется PENDING и придёт повторно - дубликат отсеется
+                    System.out.println("⚠️ Nico: Ack to " + senderIp + " failed - " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Сервер остановлен
+        }
+    }
+    
+    // Подтверждение от собеседника: COUNT(4) | ID(8)*
+    private void storeAcks(ByteBuffer payload, String senderIp) throws IOException {
+        int count = payload.remaining() >= 4 ? payload.getInt() : -1;
+        if (count < 0 || count != payload.remaining() / 8) {
+            throw new IOException("Invalid ack frame from " + senderIp);
+        }
+        List<Long> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(payload.getLong());
         }
+        DatabaseHelper.getInstance(context).markDelivered(senderIp, ids);
     }
     
-    // Сканируем сеть на наличие других устройств Nico
+    // Сканируем сеть на наличие других устройств Nico.
+    // Сначала известные собеседники и multicast, перебор подсети - только если никто не ответил.
     public void discoverDevices() {
         new Thread(() -> {
             try {
-                String localIp = getLocalIpAddress();
-                String baseIp = localIp.substring(0, localIp.lastIndexOf(".") + 1);
-                
                 System.out.println("🔍 Nico: Starting network discovery...");
-                
-                // Очищаем список устройств
-                discoveredDevices.clear();
-                
-                // Отправляем broadcast запрос
-                sendBroadcastDiscovery();
-                
-                // Также проверяем конкретные IP в подсети
-                for (int i = 1; i <= 255; i++) {
-                    String testIp = baseIp + i;
-                    if (!testIp.equals(localIp)) {
-                        sendDirectDiscovery(testIp);
-                    }
-                }
+                int found = peerDiscovery.discover(getLocalIpAddress(), true);
+                System.out.println("🔍 Nico: Discovery finished - " + found + " devices");
                 
             } catch (Exception e) {
                 System.out.println("❌ Nico: Discovery error - " + e.getMessage());
@@ -279,85 +847,145 @@ public class NetworkManager {
         }).start();
     }
     
-    // Отправляем broadcast discovery запрос
-    private void sendBroadcastDiscovery() {
+    // Только быстрый путь - без перебора подсети
+    private void probeKnownPeers() {
+        new Thread(() -> {
+            try {
+                peerDiscovery.discover(getLocalIpAddress(), false);
+            } catch (IOException e) {
+                System.out.println("❌ Nico: Known peers probe failed - " + e.getMessage());
+            }
+            expireDevices();
+        }).start();
+    }
+    
+    // Набираем текст в чате (false - перестали или отправили). Частые вызовы склеиваются.
+    public void setTyping(String targetIp, String chatName, boolean typing) {
+        signals.publish(targetIp, SignalChannel.KIND_TYPING, chatName, typing ? 1 : 0);
+    }
+    
+    // Чат открыт на экране - сообщаем собеседнику, до какого его сообщения мы дочитали
+    public void markChatRead(String targetIp, String chatName) {
+        if (targetIp == null || targetIp.isEmpty()) return;
+        new Thread(() -> {
+            // Только то, что реально есть в чате - не водяной знак синхронизации
+            long lastReceived = DatabaseHelper.getInstance(context).getLastReceivedId(chatName, targetIp);
+            if (lastReceived > 0) {
+                signals.publish(targetIp, SignalChannel.KIND_READ, chatName, lastReceived);
+            }
+        }).start();
+    }
+    
+    public void setPresence(String targetIp, boolean online) {
+        signals.publish(targetIp, SignalChannel.KIND_PRESENCE, null,
+            online ? SignalChannel.PRESENCE_ONLINE : SignalChannel.PRESENCE_AWAY);
+    }
+    
+    // Последний сигнал собеседника, если он ещё не истёк (0 - нет)
+    public long getPeerSignal(String peerIp, byte kind, String chatName) {
+        return signals.get(peerIp, kind, chatName);
+    }
+    
+    private void sendSignal(String peerIp, byte[] payload, boolean connect) {
+        List<FrameSession.EncodedFrame> frames = Collections.singletonList(
+            new FrameSession.EncodedFrame(FrameCodec.TYPE_SIGNAL, payload, null));
+        // Подключение может занять секунды - не задерживаем сигналы остальным собеседникам
         try {
-            DatagramSocket socket = new DatagramSocket();
-            socket.setBroadcast(true);
-            
-            byte[] data = DISCOVERY_MESSAGE.getBytes();
-            DatagramPacket packet = new DatagramPacket(
-                data, data.length, 
-                InetAddress.getByName("255.255.255.255"), DISCOVERY_PORT
-            );
-            
-            socket.send(packet);
-            socket.close();
-            
-        } catch (IOException e) {
-            System.out.println("❌ Nico: Broadcast discovery failed");
+            fanOutExecutor.execute(() -> {
+                try {
+                    if (connect) {
+                        connectionPool.send(peerIp, frames);
+                    } else {
+                        connectionPool.sendIfConnected(peerIp, frames);
+                    }
+                } catch (IOException e) {
+                    // Сигнал устареет раньше, чем имеет смысл его повторять
+                    System.out.println("⚠️ Nico: Signal to " + peerIp + " dropped - " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Сервер остановлен
         }
     }
     
-    // Отправляем direct discovery запрос
-    private void sendDirectDiscovery(String ip) {
+    // Отпечаток ключа этого устройства - собеседники могут сверить его со своим списком
+    public String getIdentityFingerprint() {
+        return security != null ? security.getFingerprint() : null;
+    }
+    
+    public String getPeerFingerprint(String ip) {
+        return security != null ? security.getPeerFingerprint(ip) : null;
+    }
+    
+    // Собеседники с закреплённым ключом: последний IP -> отпечаток
+    public Map<String, String> getTrustedPeers() {
+        return security != null ? security.getTrustedPeers() : new HashMap<String, String>();
+    }
+    
+    // Собеседник сменил устройство или переустановил приложение - доверяем новому ключу
+    public void forgetPeerIdentity(String ip) {
+        if (security != null) {
+            security.forgetPeer(ip);
+        }
+    }
+    
+    // Низкая задержка (по умолчанию): одиночное сообщение уходит сразу.
+    // Выключено - исходящие кадры копятся несколько миллисекунд и уходят одной записью
+    // (меньше системных вызовов и TCP сегментов при потоке сообщений, например в группах).
+    public void setLowLatency(boolean lowLatency) {
+        prefs.edit().putBoolean(KEY_LOW_LATENCY, lowLatency).apply();
+        connectionPool.setLowLatency(lowLatency);
+    }
+    
+    public boolean isLowLatency() {
+        return prefs.getBoolean(KEY_LOW_LATENCY, true);
+    }
+    
+    // Запись трафика для воспроизведения (см. TrafficCapture, TrafficReplay).
+    // Только до перезапуска процесса - забытая запись не копит трафик неделями.
+    // Файлы - в files/captures. Возвращает файл текущей записи (null - выключено или не удалось)
+    public File setTrafficCapture(boolean enabled) {
+        if (!enabled) {
+            TrafficCapture.stop();
+            return null;
+        }
         try {
-            DatagramSocket socket = new DatagramSocket();
-            socket.setSoTimeout(1000);
-            
-            byte[] data = DISCOVERY_MESSAGE.getBytes();
-            DatagramPacket packet = new DatagramPacket(
-                data, data.length, 
-                InetAddress.getByName(ip), DISCOVERY_PORT
-            );
-            
-            socket.send(packet);
-            
-            // Ждём ответ
-            byte[] buffer = new byte[1024];
-            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-            socket.receive(response);
-            
-            String message = new String(response.getData(), 0, response.getLength()).trim();
-            if (message.startsWith(DISCOVERY_RESPONSE)) {
-                String deviceName = message.substring(DISCOVERY_RESPONSE.length() + 1);
-                discoveredDevices.put(ip, deviceName);
-                
-                System.out.println("✅ Nico: Direct discovered - " + deviceName + " at " + ip);
-                
-                if (listener != null) {
-                    listener.onDeviceDiscovered(ip, deviceName);
-                }
-            }
-            
-            socket.close();
-            
-        } catch (SocketTimeoutException e) {
-            // Таймаут - устройство не ответило
+            return TrafficCapture.start(new File(context.getFilesDir(), "captures"));
         } catch (IOException e) {
-            // Ошибка соединения
+            System.out.println("❌ Nico: Traffic capture not started - " + e.getMessage());
+            return null;
         }
     }
     
+    // Запись могла остановиться сама (лимит размера, ошибка диска)
+    public boolean isTrafficCapture() {
+        return TrafficCapture.isActive();
+    }
+    
+    // Режим ретранслятора: пересылать чужие соединения собеседникам, которых видим мы
+    public void setRelayEnabled(boolean enabled) {
+        relayRouter.setEnabled(enabled);
+    }
+    
     // Получаем список обнаруженных устройств
     public Map<String, String> getDiscoveredDevices() {
-        return new HashMap<>(discoveredDevices);
+        expireDevices();
+        Map<String, String> devices = new HashMap<>();
+        for (Map.Entry<String, DiscoveredDevice> entry : discoveredDevices.entrySet()) {
+            devices.put(entry.getKey(), entry.getValue().name);
+        }
+        return devices;
     }
     
     // Получаем локальный IP адрес
     public String getLocalIpAddress() {
-        try {
-            WifiManager wm = (WifiManager) context.getApplicationContext()
-                .getSystemService(Context.WIFI_SERVICE);
-            return Formatter.formatIpAddress(wm.getConnectionInfo().getIpAddress());
-        } catch (Exception e) {
-            return "192.168.1.100"; // Fallback IP
-        }
+        return transport.getLocalAddress();
     }
     
     // Сохраняем IP устройства для быстрого доступа
     public void saveDeviceIp(String ip, String name) {
         prefs.edit().putString("saved_device_" + name, ip).apply();
+        peerDiscovery.remember(ip, name);
     }
     
     // Загружаем сохранённый IP устройства
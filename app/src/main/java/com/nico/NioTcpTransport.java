@@ -0,0 +1,139 @@
+package com.nico;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+
+// TCP через SocketChannel - транспорт по умолчанию.
+// Запись идёт прямо в канал (FileChannel.transferTo отдаёт файл ядру без копий),
+// чтение с таймаутом - через stream-адаптер сокета, у самого канала таймаута нет.
+public class NioTcpTransport implements Transport {
+    private static final String FALLBACK_ADDRESS = "192.168.1.100";
+
+    static class NioConnection implements Connection {
+        final SocketChannel channel;
+        private ReadableByteChannel in;
+
+        NioConnection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.in = channel;
+            // Кадры склеивает FrameWriter - задержка Nagle только мешала бы одиночным сообщениям
+            channel.socket().setTcpNoDelay(true);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return channel.socket().getInetAddress().getHostAddress();
+        }
+
+        @Override
+        public void setReadTimeout(int timeoutMs) throws IOException {
+            channel.socket().setSoTimeout(timeoutMs);
+            in = timeoutMs > 0 ? Channels.newChannel(channel.socket().getInputStream()) : channel;
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            channel.socket().shutdownOutput();
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            return in.read(buffer);
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            return channel.write(buffer);
+        }
+
+        @Override
+        public long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+            return channel.write(buffers, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] buffers) throws IOException {
+            return channel.write(buffers);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Override
+    public Connection connect(String address, int port, int timeoutMs) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(address, port), timeoutMs);
+            return new NioConnection(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Server listen(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(port));
+        return new Server() {
+            @Override
+            public Connection accept() throws IOException {
+                return new NioConnection(server.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    @Override
+    public String getLocalAddress() {
+        return findLocalAddress(FALLBACK_ADDRESS);
+    }
+
+    // IPv4 адрес локальной сети: сначала Wi-Fi (wlan*), потом любой другой site-local
+    static String findLocalAddress(String fallback) {
+        String candidate = null;
+        try {
+            for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!nif.isUp() || nif.isLoopback()) {
+                    continue;
+                }
+                for (InetAddress address : Collections.list(nif.getInetAddresses())) {
+                    if (!(address instanceof Inet4Address) || !address.isSiteLocalAddress()) {
+                        continue;
+                    }
+                    if (nif.getName().startsWith("wlan")) {
+                        return address.getHostAddress();
+                    }
+                    if (candidate == null) {
+                        candidate = address.getHostAddress();
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // Нет доступа к интерфейсам - используем запасной адрес
+        }
+        return candidate != null ? candidate : fallback;
+    }
+}
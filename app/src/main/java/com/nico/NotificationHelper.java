@@ -3,29 +3,223 @@ package com.nico;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
+// Уведомления о сообщениях собираются по чатам: одно уведомление на чат обновляется
+// на месте ("N new messages" + последние строки), а не создаётся на каждое сообщение.
+// Обновления откладываются на DEBOUNCE_MS и не чаще MIN_UPDATE_INTERVAL_MS на чат,
+// поэтому вызовов NotificationManager не больше, чем открытых чатов, при любой скорости сообщений.
 public class NotificationHelper {
     private static final String CHANNEL_ID = "nico_messages";
     private static final String CHANNEL_NAME = "Nico Messages";
     private static final String CHANNEL_DESCRIPTION = "Notifications for new messages in Nico Messenger";
+    // Уведомления чатов различаются тегом (имя чата), id у всех один
+    private static final int MESSAGE_NOTIFICATION_ID = 1;
+    private static final long DEBOUNCE_MS = 400;
+    private static final long MIN_UPDATE_INTERVAL_MS = 1500;
+    private static final int MAX_INBOX_LINES = 5;
+    private static final String EXTRA_CHAT_NAME = "CHAT_NAME";
     
-    public static void showMessageNotification(Context context, String sender, String message) {
+    // Непрочитанное в одном чате
+    private static class ChatNotification {
+        int unread;
+        final LinkedList<String> lines = new LinkedList<>();
+        boolean dirty;
+        long postedAt;
+    }
+    
+    // Снимок для отправки вне блокировки
+    private static class Update {
+        final String chatName;
+        final int unread;
+        final List<String> lines;
+        
+        Update(String chatName, ChatNotification notification) {
+            this.chatName = chatName;
+            this.unread = notification.unread;
+            this.lines = new ArrayList<>(notification.lines);
+        }
+    }
+    
+    // Всё состояние - под блокировкой NotificationHelper.class
+    private static final Map<String, ChatNotification> chats = new HashMap<>();
+    private static String activeChat;
+    private static boolean flushScheduled;
+    private static Handler handler;
+    private static NotificationManager manager;
+    
+    public static void showMessageNotification(Context context, String chatName, String sender, String message) {
+        synchronized (NotificationHelper.class) {
+            // Чат открыт на экране - сообщение и так видно
+            if (chatName.equals(activeChat)) {
+                return;
+            }
+            ChatNotification notification = chats.get(chatName);
+            if (notification == null) {
+                notification = new ChatNotification();
+                chats.put(chatName, notification);
+            }
+            notification.unread++;
+            notification.lines.add(sender + ": " + message);
+            if (notification.lines.size() > MAX_INBOX_LINES) {
+                notification.lines.removeFirst();
+            }
+            notification.dirty = true;
+            scheduleFlush(context.getApplicationContext(), DEBOUNCE_MS);
+        }
+    }
+    
+    // Экран чата сообщает, что он открыт (null - закрыт); уведомление чата убираем
+    public static void setActiveChat(Context context, String chatName) {
+        synchronized (NotificationHelper.class) {
+            activeChat = chatName;
+            if (chatName == null || chats.remove(chatName) == null) {
+                return;
+            }
+        }
+        try {
+            getManager(context.getApplicationContext()).cancel(chatName, MESSAGE_NOTIFICATION_ID);
+        } catch (Exception e) {
+            System.out.println("❌ Nico: Notification cancel error - " + e.getMessage());
+        }
+    }
+    
+    // Пользователь смахнул уведомление - счётчик чата начинается заново
+    public static class DismissReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String chatName = intent.getStringExtra(EXTRA_CHAT_NAME);
+            if (chatName == null) {
+                return;
+            }
+            synchronized (NotificationHelper.class) {
+                chats.remove(chatName);
+            }
+            System.out.println("🔕 Nico: Notification dismissed - " + chatName);
+        }
+    }
+    
+    // Вызывать под блокировкой NotificationHelper.class
+    private static void scheduleFlush(Context appContext, long delayMs) {
+        if (flushScheduled) {
+            return;
+        }
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        flushScheduled = true;
+        handler.postDelayed(() -> flush(appContext), delayMs);
+    }
+    
+    private static void flush(Context appContext) {
+        List<Update> updates = new ArrayList<>();
+        synchronized (NotificationHelper.class) {
+            flushScheduled = false;
+            long now = System.currentTimeMillis();
+            long nextDelay = Long.MAX_VALUE;
+            for (Map.Entry<String, ChatNotification> entry : chats.entrySet()) {
+                ChatNotification notification = entry.getValue();
+                if (!notification.dirty) {
+                    continue;
+                }
+                long wait = notification.postedAt + MIN_UPDATE_INTERVAL_MS - now;
+                if (wait > 0) {
+                    // Этот чат недавно обновлялся - соберём ещё и обновим позже
+                    nextDelay = Math.min(nextDelay, wait);
+                    continue;
+                }
+                notification.dirty = false;
+                notification.postedAt = now;
+                updates.add(new Update(entry.getKey(), notification));
+            }
+            if (nextDelay != Long.MAX_VALUE) {
+                scheduleFlush(appContext, nextDelay);
+            }
+        }
+        
+        for (Update update : updates) {
+            post(appContext, update);
+        }
+    }
+    
+    private static void post(Context appContext, Update update) {
         try {
-            System.out.println("🔔 Nico: Attempting to show notification - " + sender + ": " + message);
+            String lastLine = update.lines.get(update.lines.size() - 1);
+            Notification.InboxStyle inbox = new Notification.InboxStyle()
+                .setBigContentTitle(update.chatName);
+            for (String line : update.lines) {
+                inbox.addLine(line);
+            }
+            if (update.unread > update.lines.size()) {
+                inbox.setSummaryText("+" + (update.unread - update.lines.size()) + " more");
+            }
             
-            // В Termux уведомления не работают, но логируем для тестирования
-            System.out.println("📱 [SIMULATED NOTIFICATION] " + sender + ": " + message);
+            Intent intent = new Intent(appContext, ChatActivity.class);
+            intent.putExtra(EXTRA_CHAT_NAME, update.chatName);
+            PendingIntent openChat = PendingIntent.getActivity(appContext, update.chatName.hashCode(), intent,
+                pendingIntentFlags());
             
-            // Здесь будет реальный код уведомлений когда соберём APK
-            // Для Termux просто логируем
+            Intent dismiss = new Intent(appContext, DismissReceiver.class);
+            dismiss.putExtra(EXTRA_CHAT_NAME, update.chatName);
+            PendingIntent onDismiss = PendingIntent.getBroadcast(appContext, update.chatName.hashCode(), dismiss,
+                pendingIntentFlags());
+            
+            Notification notification = newBuilder(appContext)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(update.chatName)
+                .setContentText(update.unread == 1 ? lastLine : update.unread + " new messages")
+                .setStyle(inbox)
+                .setNumber(update.unread)
+                // Обновление на месте не звенит повторно
+                .setOnlyAlertOnce(true)
+                .setAutoCancel(true)
+                .setContentIntent(openChat)
+                .setDeleteIntent(onDismiss)
+                .build();
+            
+            getManager(appContext).notify(update.chatName, MESSAGE_NOTIFICATION_ID, notification);
+            System.out.println("🔔 Nico: " + update.chatName + " - " + update.unread + " unread");
             
         } catch (Exception e) {
             System.out.println("❌ Nico: Notification error - " + e.getMessage());
         }
     }
     
+    // FLAG_IMMUTABLE появился в API 23
+    private static int pendingIntentFlags() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE;
+        }
+        return PendingIntent.FLAG_UPDATE_CURRENT;
+    }
+    
+    @SuppressWarnings("deprecation")
+    private static Notification.Builder newBuilder(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return new Notification.Builder(context, CHANNEL_ID);
+        }
+        return new Notification.Builder(context);
+    }
+    
+    private static synchronized NotificationManager getManager(Context appContext) {
+        if (manager == null) {
+            manager = (NotificationManager) appContext.getSystemService(Context.NOTIFICATION_SERVICE);
+            createNotificationChannel(manager);
+        }
+        return manager;
+    }
+    
     public static void showConnectionNotification(Context context, String deviceName, boolean connected) {
         try {
             String status = connected ? "Connected to " : "Disconnected from ";
@@ -46,7 +240,7 @@ public class NotificationHelper {
     }
     
     public static void showTestNotification(Context context) {
-        showMessageNotification(context, "Nico System", "Welcome to Nico Messenger! 🚀");
+        showMessageNotification(context, "Nico System", "Nico System", "Welcome to Nico Messenger! 🚀");
     }
     
     // Создаем канал уведомлений (для реального Android)
@@ -0,0 +1,101 @@
+package com.nico;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Сжатие кадров deflate с заранее заданным словарём.
+// Один экземпляр на соединение: Deflater/Inflater переиспользуются, но не потокобезопасны.
+public class PayloadCompressor {
+    public static final String CODEC_NAME = "deflate-v1";
+    // Кадры меньше порога отправляем как есть - заголовок deflate их только раздует
+    public static final int MIN_COMPRESS_SIZE = 256;
+    // Защита от "zip-бомб"
+    public static final int MAX_DECOMPRESSED_SIZE = 4 * 1024 * 1024;
+
+    // Словарь из типичного трафика: формат CHAT|SENDER|MESSAGE|TIMESTAMP и частые слова.
+    // Самые частые подстроки должны быть в конце - deflate дешевле ссылается на близкие байты.
+    // Менять только вместе с CODEC_NAME, иначе старые версии не распакуют кадры.
+    private static final byte[] DICTIONARY = (
+        "Connection test|System|Nico-192168|📎 .jpg.png.mp4.pdf"
+        + "ok okay thanks thank you sure yes no maybe later tomorrow today tonight "
+        + "where are you what when why how please sorry lol haha 😂❤️👍🙏💙🔥 "
+        + "привет как дела спасибо хорошо да нет пока ок давай где когда сейчас "
+        + "Hey! How are you? I'm on my way. See you soon. Good morning Good night "
+        + "|You|Alex|Sarah|General Chat|1700000000000\n"
+        + "|You|1710000000000\n|You|1720000000000\n|You|17").getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private byte[] scratch = new byte[8 * 1024];
+
+    // Результат: null если сжатие не выгодно, иначе ORIGINAL_LENGTH(4) | DEFLATE_DATA
+    public byte[] compress(byte[] raw) {
+        if (raw.length < MIN_COMPRESS_SIZE) {
+            return null;
+        }
+
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(raw);
+        deflater.finish();
+
+        ByteBuffer out = ByteBuffer.allocate(4 + raw.length);
+        out.putInt(raw.length);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(scratch);
+            if (n > out.remaining()) {
+                // Сжатие не помогло - отправим без него
+                return null;
+            }
+            out.put(scratch, 0, n);
+        }
+
+        byte[] result = new byte[out.position()];
+        out.flip();
+        out.get(result);
+        return result;
+    }
+
+    public byte[] decompress(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 4) {
+            throw new IOException("Truncated compressed frame");
+        }
+        int originalLength = payload.getInt();
+        if (originalLength < 0 || originalLength > MAX_DECOMPRESSED_SIZE) {
+            throw new IOException("Compressed frame too large: " + originalLength);
+        }
+
+        byte[] input = new byte[payload.remaining()];
+        payload.get(input);
+
+        inflater.reset();
+        inflater.setInput(input);
+        byte[] result = new byte[originalLength];
+        int offset = 0;
+        try {
+            while (offset < originalLength) {
+                int n = inflater.inflate(result, offset, originalLength - offset);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Compressed frame shorter than declared");
+                    }
+                }
+                offset += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        return result;
+    }
+
+    public void release() {
+        deflater.end();
+        inflater.end();
+    }
+}
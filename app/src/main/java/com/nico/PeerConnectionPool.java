@@ -0,0 +1,159 @@
+package com.nico;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Пул постоянных FrameSession до собеседников.
+// HELLO и TCP handshake происходят один раз, дальше кадры идут по готовому соединению.
+// Таймауты подключения - по RTT собеседника, недоступные собеседники отсекаются сразу (см. PeerHealth).
+public class PeerConnectionPool {
+    // Неиспользуемые соединения закрываем (при следующей отправке), чтобы не держать потоки у собеседника
+    private static final long IDLE_TIMEOUT_MS = 60000;
+
+    private static class PooledSession {
+        final FrameSession session;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        PooledSession(FrameSession session) {
+            this.session = session;
+        }
+    }
+
+    private final Transport transport;
+    private final PeerSecurity security;
+    private final int port;
+    private final RelayRouter relayRouter;
+    private final PeerHealth health;
+    private final Map<String, PooledSession> sessions = new ConcurrentHashMap<>();
+    // Отдельная блокировка на каждый IP - подключения к разным собеседникам идут параллельно
+    private final Map<String, Object> connectLocks = new ConcurrentHashMap<>();
+    private volatile boolean lowLatency = true;
+
+    public PeerConnectionPool(Transport transport, PeerSecurity security, int port, RelayRouter relayRouter,
+                              PeerHealth health) {
+        this.transport = transport;
+        this.security = security;
+        this.port = port;
+        this.relayRouter = relayRouter;
+        this.health = health;
+    }
+
+    // Режим записи для всех соединений пула (см. FrameWriter)
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
+        for (PooledSession pooled : sessions.values()) {
+            pooled.session.setLowLatency(lowLatency);
+        }
+    }
+
+    // Отправляем кадры собеседнику; одна повторная попытка, если соединение из пула протухло
+    public void send(String ip, List<FrameSession.EncodedFrame> frames) throws IOException {
+        closeIdle();
+        for (int attempt = 1; ; attempt++) {
+            PooledSession pooled = acquire(ip);
+            try {
+                // Без блокировки сессии - параллельные отправки склеиваются в FrameWriter
+                pooled.session.writeEncoded(frames);
+                pooled.lastUsed = System.currentTimeMillis();
+                return;
+            } catch (IOException e) {
+                invalidate(ip, pooled);
+                if (attempt >= 2) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Новая сессия вне пула (синхронизация истории); закрывает вызывающий
+    public FrameSession open(String ip) throws IOException {
+        health.checkAllowed(ip);
+        FrameSession session;
+        try {
+            session = FrameSession.connect(transport, security, ip, port, health.connectTimeout(ip),
+                health.readTimeout(ip), relayRouter.relayFor(ip));
+        } catch (IOException e) {
+            health.onFailure(ip);
+            throw e;
+        }
+        health.onSuccess(ip, session.getConnectMillis());
+        return session;
+    }
+
+    // Только по уже открытому соединению - ради этих кадров не подключаемся
+    public boolean sendIfConnected(String ip, List<FrameSession.EncodedFrame> frames) throws IOException {
+        PooledSession pooled = sessions.get(ip);
+        if (pooled == null || !pooled.session.isOpen()) {
+            return false;
+        }
+        try {
+            // lastUsed не трогаем - сигналы не держат простаивающее соединение открытым
+            pooled.session.writeEncoded(frames);
+            return true;
+        } catch (IOException e) {
+            invalidate(ip, pooled);
+            throw e;
+        }
+    }
+
+    private PooledSession acquire(String ip) throws IOException {
+        PooledSession pooled = sessions.get(ip);
+        if (pooled != null && pooled.session.isOpen()) {
+            return pooled;
+        }
+
+        connectLocks.putIfAbsent(ip, new Object());
+        synchronized (connectLocks.get(ip)) {
+            pooled = sessions.get(ip);
+            if (pooled == null || !pooled.session.isOpen()) {
+                pooled = new PooledSession(open(ip));
+                pooled.session.setLowLatency(lowLatency);
+                sessions.put(ip, pooled);
+                System.out.println("🔌 Nico: Pooled connection to " + ip);
+            }
+            return pooled;
+        }
+    }
+
+    private void invalidate(String ip, PooledSession pooled) {
+        sessions.remove(ip, pooled);
+        closeQuietly(pooled.session);
+    }
+
+    // Собеседники с открытым соединением
+    public List<String> getConnectedPeers() {
+        List<String> peers = new ArrayList<>();
+        for (Map.Entry<String, PooledSession> entry : sessions.entrySet()) {
+            if (entry.getValue().session.isOpen()) {
+                peers.add(entry.getKey());
+            }
+        }
+        return peers;
+    }
+
+    public void closeIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PooledSession> entry : sessions.entrySet()) {
+            if (now - entry.getValue().lastUsed > IDLE_TIMEOUT_MS) {
+                invalidate(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public void closeAll() {
+        for (Map.Entry<String, PooledSession> entry : sessions.entrySet()) {
+            invalidate(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void closeQuietly(FrameSession session) {
+        try {
+            session.close();
+        } catch (IOException e) {
+            // Игнорируем ошибку закрытия
+        }
+    }
+}
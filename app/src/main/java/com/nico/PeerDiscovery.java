@@ -0,0 +1,180 @@
+package com.nico;
+
+import android.content.SharedPreferences;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Поиск устройств Nico в порядке от дешёвого к дорогому:
+// 1. известные собеседники (кэш в nico_prefs) + запрос в multicast группу и broadcast
+// 2. только если никто не ответил - перебор всей /24 подсети.
+// Все запросы уходят с одного сокета без ожидания друг друга, ответы собираются
+// в общее окно - известный собеседник находится за миллисекунды, а не за полный скан.
+public class PeerDiscovery {
+    // Административная (site-local) область multicast - за пределы сети не уходит
+    public static final String MULTICAST_GROUP = "239.255.78.73";
+    private static final String KEY_KNOWN_PEERS = "known_peers";
+    private static final int MAX_KNOWN_PEERS = 16;
+    // Окно ответов после первого этапа (заканчивается раньше, если ответили все известные)
+    // и после перебора подсети
+    private static final int FAST_PATH_WINDOW_MS = 600;
+    private static final int SWEEP_WINDOW_MS = 1500;
+
+    // Найденное устройство
+    public interface Listener {
+        void onPeerFound(String ip, String deviceName);
+    }
+
+    private final SharedPreferences prefs;
+    private final int port;
+    private final String query;
+    private final String responsePrefix;
+    private final Listener listener;
+
+    public PeerDiscovery(SharedPreferences prefs, int port, String query, String responsePrefix, Listener listener) {
+        this.prefs = prefs;
+        this.port = port;
+        this.query = query;
+        this.responsePrefix = responsePrefix;
+        this.listener = listener;
+    }
+
+    // Блокирующий поиск, вызывать с фонового потока. Возвращает число ответивших устройств.
+    // allowSweep = false - только быстрый путь (например, при старте приложения).
+    public int discover(String localIp, boolean allowSweep) throws IOException {
+        Set<String> found = new HashSet<>();
+        byte[] data = query.getBytes(StandardCharsets.UTF_8);
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setBroadcast(true);
+
+            Set<String> expected = new HashSet<>();
+            for (String ip : getCandidates()) {
+                if (!ip.equals(localIp)) {
+                    send(socket, data, ip);
+                    expected.add(ip);
+                }
+            }
+            send(socket, data, MULTICAST_GROUP);
+            send(socket, data, "255.255.255.255");
+            collect(socket, localIp, FAST_PATH_WINDOW_MS, expected, found);
+
+            if (found.isEmpty() && allowSweep) {
+                System.out.println("🔍 Nico: No known peers answered, sweeping subnet...");
+                String baseIp = localIp.substring(0, localIp.lastIndexOf(".") + 1);
+                for (int i = 1; i <= 254; i++) {
+                    String ip = baseIp + i;
+                    if (!ip.equals(localIp)) {
+                        send(socket, data, ip);
+                    }
+                }
+                collect(socket, localIp, SWEEP_WINDOW_MS, null, found);
+            }
+        }
+        return found.size();
+    }
+
+    private void send(DatagramSocket socket, byte[] data, String ip) {
+        try {
+            socket.send(new DatagramPacket(data, data.length, InetAddress.getByName(ip), port));
+        } catch (IOException e) {
+            // Недоступный адрес (нет маршрута и т.п.) - просто пропускаем
+        }
+    }
+
+    // Собираем ответы до конца окна или до ответа всех expected (null - ждём всё окно);
+    // каждый ответ сразу уходит в listener
+    private void collect(DatagramSocket socket, String localIp, int windowMs, Set<String> expected,
+                         Set<String> found) throws IOException {
+        byte[] buffer = new byte[1024];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        long deadline = System.currentTimeMillis() + windowMs;
+
+        for (long left = windowMs; left > 0; left = deadline - System.currentTimeMillis()) {
+            socket.setSoTimeout((int) left);
+            packet.setLength(buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return;
+            }
+
+            String ip = packet.getAddress().getHostAddress();
+            String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).trim();
+            if (ip.equals(localIp) || !message.startsWith(responsePrefix + "|")) {
+                continue;
+            }
+            if (found.add(ip)) {
+                String deviceName = message.substring(responsePrefix.length() + 1);
+                remember(ip, deviceName);
+                listener.onPeerFound(ip, deviceName);
+            }
+            // Незнакомые устройства отвечают на multicast так же быстро, как известные
+            if (expected != null && !expected.isEmpty() && found.containsAll(expected)) {
+                return;
+            }
+        }
+    }
+
+    // Кого пробовать в первую очередь: кэш, текущий собеседник и сохранённые вручную адреса
+    private Set<String> getCandidates() {
+        Set<String> candidates = new LinkedHashSet<>(getKnownPeers().keySet());
+        String connectedIp = prefs.getString("connected_ip", "");
+        if (!connectedIp.isEmpty()) {
+            candidates.add(connectedIp);
+        }
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (entry.getKey().startsWith("saved_device_") && entry.getValue() instanceof String) {
+                candidates.add((String) entry.getValue());
+            }
+        }
+        return candidates;
+    }
+
+    // ===== Кэш известных собеседников =====
+    // Формат: строки "IP|NAME", самые свежие первыми
+
+    public synchronized Map<String, String> getKnownPeers() {
+        Map<String, String> peers = new LinkedHashMap<>();
+        for (String line : prefs.getString(KEY_KNOWN_PEERS, "").split("\n")) {
+            int separator = line.indexOf('|');
+            if (separator > 0) {
+                peers.put(line.substring(0, separator), line.substring(separator + 1));
+            }
+        }
+        return peers;
+    }
+
+    public synchronized void remember(String ip, String deviceName) {
+        Map<String, String> peers = getKnownPeers();
+        peers.remove(ip);
+
+        List<String> lines = new ArrayList<>();
+        lines.add(ip + "|" + deviceName.replace('\n', ' '));
+        for (Map.Entry<String, String> peer : peers.entrySet()) {
+            if (lines.size() >= MAX_KNOWN_PEERS) {
+                break;
+            }
+            lines.add(peer.getKey() + "|" + peer.getValue());
+        }
+
+        StringBuilder value = new StringBuilder();
+        for (String line : lines) {
+            if (value.length() > 0) {
+                value.append('\n');
+            }
+            value.append(line);
+        }
+        prefs.edit().putString(KEY_KNOWN_PEERS, value.toString()).apply();
+    }
+}
@@ -0,0 +1,176 @@
+package com.nico;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Состояние связи с каждым собеседником: оценка RTT и предохранитель (circuit breaker).
+//
+// RTT - по времени установки TCP соединения (один SYN/SYN-ACK), сглаживание как в TCP
+// (RFC 6298): SRTT += (R - SRTT) / 8, RTTVAR += (|R - SRTT| - RTTVAR) / 4,
+// RTO = SRTT + 4 * RTTVAR. Таймауты подключения и чтения считаются от RTO,
+// пока замеров нет - прежние фиксированные значения.
+//
+// Предохранитель: после FAILURE_THRESHOLD неудачных подключений подряд собеседник
+// считается недоступным и попытки сразу завершаются ошибкой, не занимая поток на таймаут.
+// Через паузу (растёт вдвое до MAX_COOLDOWN_MS) пропускается одна пробная попытка:
+// удалась - всё как обычно, нет - снова пауза. Входящее соединение от собеседника
+// тоже доказывает, что он в сети, и сразу снимает блокировку.
+public class PeerHealth {
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 3000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 15000;
+    // Не меньше: ядро повторяет потерянный SYN через секунду - одна потеря не должна быть отказом
+    private static final int MIN_CONNECT_TIMEOUT_MS = 1200;
+    private static final int MAX_CONNECT_TIMEOUT_MS = 10000;
+    // Чтение ждёт и обработку у собеседника (запросы к базе при синхронизации)
+    private static final int MIN_READ_TIMEOUT_MS = 8000;
+    private static final int MAX_READ_TIMEOUT_MS = 30000;
+    private static final long MIN_RTO_MS = 10;
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long BASE_COOLDOWN_MS = 5000;
+    private static final long MAX_COOLDOWN_MS = 5 * 60000;
+
+    // Собеседник заблокирован предохранителем - попытка не делалась
+    public static class CircuitOpenException extends IOException {
+        CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Peer {
+        // Миллисекунды; srtt < 0 - замеров ещё нет
+        double srtt = -1;
+        double rttvar;
+        int failures;
+        long cooldownMs = BASE_COOLDOWN_MS;
+        long openUntil;
+        boolean open;
+        boolean probing;
+    }
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    public int connectTimeout(String ip) {
+        Peer peer = peers.get(ip);
+        synchronized (this) {
+            if (peer == null || peer.srtt < 0) {
+                return DEFAULT_CONNECT_TIMEOUT_MS;
+            }
+            return clamp(4 * rto(peer), MIN_CONNECT_TIMEOUT_MS, MAX_CONNECT_TIMEOUT_MS);
+        }
+    }
+
+    public int readTimeout(String ip) {
+        Peer peer = peers.get(ip);
+        synchronized (this) {
+            if (peer == null || peer.srtt < 0) {
+                return DEFAULT_READ_TIMEOUT_MS;
+            }
+            return clamp(16 * rto(peer), MIN_READ_TIMEOUT_MS, MAX_READ_TIMEOUT_MS);
+        }
+    }
+
+    // Перед подключением: CircuitOpenException, если собеседник заблокирован.
+    // В полуоткрытом состоянии пропускает ровно одну пробную попытку.
+    public void checkAllowed(String ip) throws CircuitOpenException {
+        Peer peer = peers.get(ip);
+        if (peer == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!peer.open) {
+                return;
+            }
+            long wait = peer.openUntil - System.currentTimeMillis();
+            if (wait <= 0 && !peer.probing) {
+                peer.probing = true;
+                System.out.println("🩺 Nico: Probing " + ip + " after " + peer.failures + " failures");
+                return;
+            }
+            throw new CircuitOpenException("Peer " + ip + " unreachable, next attempt in "
+                + Math.max(wait, 0) / 1000 + "s");
+        }
+    }
+
+    // Подключение удалось; connectMillis - время TCP соединения (< 0 - без замера)
+    public void onSuccess(String ip, long connectMillis) {
+        Peer peer = getPeer(ip);
+        synchronized (this) {
+            if (peer.open) {
+                System.out.println("✅ Nico: " + ip + " reachable again");
+            }
+            peer.open = false;
+            peer.probing = false;
+            peer.failures = 0;
+            peer.cooldownMs = BASE_COOLDOWN_MS;
+            if (connectMillis >= 0) {
+                addSample(peer, connectMillis);
+            }
+        }
+    }
+
+    // Собеседник подключился к нам сам - он в сети
+    public void onIncoming(String ip) {
+        Peer peer = peers.get(ip);
+        if (peer != null && peer.open) {
+            onSuccess(ip, -1);
+        }
+    }
+
+    public void onFailure(String ip) {
+        Peer peer = getPeer(ip);
+        synchronized (this) {
+            peer.failures++;
+            if (peer.open) {
+                // Пробная попытка не удалась - пауза вдвое дольше
+                peer.cooldownMs = Math.min(peer.cooldownMs * 2, MAX_COOLDOWN_MS);
+            } else if (peer.failures < FAILURE_THRESHOLD) {
+                return;
+            }
+            peer.open = true;
+            peer.probing = false;
+            peer.openUntil = System.currentTimeMillis() + peer.cooldownMs;
+            System.out.println("🚧 Nico: " + ip + " unreachable after " + peer.failures
+                + " failures, pausing " + peer.cooldownMs / 1000 + "s");
+        }
+    }
+
+    public synchronized String describe(String ip) {
+        Peer peer = peers.get(ip);
+        if (peer == null || peer.srtt < 0) {
+            return ip + ": no samples";
+        }
+        return String.format(Locale.US, "%s: srtt %.1f ms, rttvar %.1f ms, connect timeout %d ms%s",
+            ip, peer.srtt, peer.rttvar, connectTimeout(ip), peer.open ? ", circuit open" : "");
+    }
+
+    private Peer getPeer(String ip) {
+        Peer peer = peers.get(ip);
+        if (peer == null) {
+            peers.putIfAbsent(ip, new Peer());
+            peer = peers.get(ip);
+        }
+        return peer;
+    }
+
+    // Вызывать под блокировкой this
+    private static void addSample(Peer peer, long rttMs) {
+        if (peer.srtt < 0) {
+            peer.srtt = rttMs;
+            peer.rttvar = rttMs / 2.0;
+        } else {
+            peer.rttvar += (Math.abs(rttMs - peer.srtt) - peer.rttvar) / 4;
+            peer.srtt += (rttMs - peer.srtt) / 8;
+        }
+    }
+
+    private static long rto(Peer peer) {
+        return Math.max(MIN_RTO_MS, (long) Math.ceil(peer.srtt + 4 * peer.rttvar));
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,618 @@
+package com.nico;
+
+import android.content.SharedPreferences;
+import android.util.Base64;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Ключи устройства и рукопожатие для шифрованных FrameSession.
+//
+// У каждого устройства долговременный ключ подписи (EC P-256). Ключ собеседника
+// запоминается при первом соединении (trust on first use) под своим отпечатком, а IP -
+// только подсказка, где этот ключ видели последним: известный ключ на новом адресе
+// принимается, чужой ключ на адресе известного собеседника обрывает соединение.
+//
+// HELLO (предложение клиента и ответ сервера) входит в подписи и ключи записей -
+// вмешательство в выбор сжатия или шифрования не пройдёт проверку.
+//
+// Полное рукопожатие (кадры HANDSHAKE, один лишний RTT):
+//   C -> S: FULL     | NONCE_C | EPH_C
+//   S -> C: SERVER   | NONCE_S | EPH_S | ID_S | SIG_S("srv" | HELLO | NONCE_C | NONCE_S | EPH_C | EPH_S)
+//   C -> S: AUTH     | ID_C | SIG_C("cli" | HELLO | NONCE_C | NONCE_S | EPH_C | EPH_S | ID_S)
+//   S -> C: TICKET   | TICKET
+// Ключи записей - HKDF(ECDH(EPH_C, EPH_S), NONCE_C | NONCE_S | HELLO), отдельно на каждое направление.
+//
+// Возобновление (без ECDH и подписей):
+//   C -> S: RESUME   | NONCE_C | TICKET
+//   S -> C: RESUMED  | NONCE_S      (или RETRY - билет устарел, дальше полное рукопожатие)
+// Ключи - HKDF(RESUMPTION_SECRET, NONCE_C | NONCE_S | HELLO). Билет зашифрован ключом сервера и
+// содержит секрет возобновления и ключ клиента, поэтому серверу не нужно хранить сессии.
+// Секрет знает только тот, с кем было полное рукопожатие, - подмена не пройдёт проверку записей.
+public class PeerSecurity {
+    // v2: HELLO входит в рукопожатие
+    public static final String PROTOCOL = "aead-v2";
+
+    private static final byte FULL = 1;
+    private static final byte RESUME = 2;
+    private static final byte SERVER = 3;
+    private static final byte RESUMED = 4;
+    private static final byte RETRY = 5;
+    private static final byte AUTH = 6;
+    private static final byte TICKET = 7;
+    private static final byte REJECT = 8;
+
+    private static final String KEY_IDENTITY_PRIVATE = "identity_private";
+    private static final String KEY_IDENTITY_PUBLIC = "identity_public";
+    private static final String KEY_TICKET_KEY = "ticket_key";
+    private static final String KEY_TICKET_KEY_CREATED = "ticket_key_created";
+    // Ключ собеседника по отпечатку и подсказка "IP -> отпечаток"
+    private static final String KEY_PEER_KEY_PREFIX = "peer_key_";
+    private static final String KEY_PEER_HINT_PREFIX = "peer_hint_";
+    // Старый формат: ключ по IP
+    private static final String KEY_LEGACY_PEER_PREFIX = "peer_identity_";
+
+    private static final int NONCE_SIZE = 32;
+    private static final int SECRET_SIZE = 32;
+    private static final int RECORD_KEY_SIZE = 16;
+    private static final int MAX_FIELD = 1024;
+    private static final long TICKET_LIFETIME_MS = TimeUnit.HOURS.toMillis(24);
+    private static final long TICKET_KEY_LIFETIME_MS = TimeUnit.DAYS.toMillis(7);
+
+    // Билет, полученный от сервера: отдаём его обратно при переподключении
+    private static class ClientTicket {
+        final byte[] ticket;
+        final byte[] secret;
+        final long expiresAt;
+
+        ClientTicket(byte[] ticket, byte[] secret, long expiresAt) {
+            this.ticket = ticket;
+            this.secret = secret;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Ключи записей после рукопожатия
+    private static class SessionKeys {
+        final SecretKey clientToServer;
+        final SecretKey serverToClient;
+
+        SessionKeys(SecretKey clientToServer, SecretKey serverToClient) {
+            this.clientToServer = clientToServer;
+            this.serverToClient = serverToClient;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    // null - ключи собеседников только в памяти
+    private final SharedPreferences prefs;
+    private final Map<String, byte[]> trustedKeys = new ConcurrentHashMap<>();
+    private final Map<String, String> peerHints = new ConcurrentHashMap<>();
+    // Секреты возобновления на диск не пишутся - после перезапуска полное рукопожатие
+    private final Map<String, ClientTicket> tickets = new ConcurrentHashMap<>();
+    // Ключи читаются (или создаются) при первом рукопожатии, а не при старте приложения
+    private KeyPair identity;
+    private byte[] identityPublic;
+    private SecretKey ticketKey;
+    private boolean loaded;
+
+    // Ключ устройства хранится в nico_prefs
+    public PeerSecurity(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    // Временный ключ без сохранения - для замеров и проверок вне Android
+    public static PeerSecurity createEphemeral() throws GeneralSecurityException {
+        byte[] ticketKey = new byte[SECRET_SIZE];
+        new SecureRandom().nextBytes(ticketKey);
+        PeerSecurity security = new PeerSecurity(null);
+        security.setKeys(generateKeyPair(), new SecretKeySpec(ticketKey, "AES"));
+        return security;
+    }
+
+    private void setKeys(KeyPair identity, SecretKey ticketKey) {
+        this.identity = identity;
+        this.identityPublic = identity.getPublic().getEncoded();
+        this.ticketKey = ticketKey;
+        this.loaded = true;
+    }
+
+    private synchronized void ensureLoaded() throws IOException {
+        if (loaded) {
+            return;
+        }
+        try {
+            setKeys(loadIdentity(), loadTicketKey());
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Cannot load identity key: " + e.getMessage());
+        }
+        SharedPreferences.Editor migration = null;
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+            String value = (String) entry.getValue();
+            if (key.startsWith(KEY_PEER_KEY_PREFIX)) {
+                trustedKeys.put(key.substring(KEY_PEER_KEY_PREFIX.length()), Base64.decode(value, Base64.NO_WRAP));
+            } else if (key.startsWith(KEY_PEER_HINT_PREFIX)) {
+                peerHints.put(key.substring(KEY_PEER_HINT_PREFIX.length()), value);
+            } else if (key.startsWith(KEY_LEGACY_PEER_PREFIX)) {
+                // Переносим ключ, закреплённый за IP, в новый формат
+                byte[] peerKey = Base64.decode(value, Base64.NO_WRAP);
+                String id = fingerprint(peerKey);
+                String ip = key.substring(KEY_LEGACY_PEER_PREFIX.length());
+                trustedKeys.put(id, peerKey);
+                peerHints.put(ip, id);
+                if (migration == null) {
+                    migration = prefs.edit();
+                }
+                migration.remove(key)
+                    .putString(KEY_PEER_KEY_PREFIX + id, value)
+                    .putString(KEY_PEER_HINT_PREFIX + ip, id);
+            }
+        }
+        if (migration != null) {
+            migration.apply();
+        }
+    }
+
+    // Создаётся при первом запуске
+    private KeyPair loadIdentity() throws GeneralSecurityException {
+        String privateKey = prefs.getString(KEY_IDENTITY_PRIVATE, null);
+        String publicKey = prefs.getString(KEY_IDENTITY_PUBLIC, null);
+        if (privateKey != null && publicKey != null) {
+            KeyFactory factory = KeyFactory.getInstance("EC");
+            return new KeyPair(
+                factory.generatePublic(new X509EncodedKeySpec(Base64.decode(publicKey, Base64.NO_WRAP))),
+                factory.generatePrivate(new PKCS8EncodedKeySpec(Base64.decode(privateKey, Base64.NO_WRAP))));
+        }
+        KeyPair identity = generateKeyPair();
+        prefs.edit()
+            .putString(KEY_IDENTITY_PRIVATE, Base64.encodeToString(identity.getPrivate().getEncoded(), Base64.NO_WRAP))
+            .putString(KEY_IDENTITY_PUBLIC, Base64.encodeToString(identity.getPublic().getEncoded(), Base64.NO_WRAP))
+            .apply();
+        System.out.println("🔑 Nico: Generated device identity key");
+        return identity;
+    }
+
+    // Ключ билетов переживает перезапуск, но периодически меняется
+    private SecretKey loadTicketKey() {
+        String ticketKey = prefs.getString(KEY_TICKET_KEY, null);
+        long created = prefs.getLong(KEY_TICKET_KEY_CREATED, 0);
+        byte[] ticketKeyBytes;
+        if (ticketKey == null || System.currentTimeMillis() - created > TICKET_KEY_LIFETIME_MS) {
+            ticketKeyBytes = randomBytes(SECRET_SIZE);
+            prefs.edit()
+                .putString(KEY_TICKET_KEY, Base64.encodeToString(ticketKeyBytes, Base64.NO_WRAP))
+                .putLong(KEY_TICKET_KEY_CREATED, System.currentTimeMillis())
+                .apply();
+        } else {
+            ticketKeyBytes = Base64.decode(ticketKey, Base64.NO_WRAP);
+        }
+        return new SecretKeySpec(ticketKeyBytes, "AES");
+    }
+
+    private static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    // ===== Ключи собеседников =====
+
+    // Отпечаток ключа устройства - для сверки вслух или по QR
+    public String getFingerprint() {
+        try {
+            ensureLoaded();
+        } catch (IOException e) {
+            return null;
+        }
+        return fingerprint(identityPublic);
+    }
+
+    public String getPeerFingerprint(String ip) {
+        try {
+            ensureLoaded();
+        } catch (IOException e) {
+            return null;
+        }
+        return peerHints.get(ip);
+    }
+
+    // Известные собеседники: IP, где ключ видели последним -> отпечаток
+    public Map<String, String> getTrustedPeers() {
+        try {
+            ensureLoaded();
+        } catch (IOException e) {
+            return new TreeMap<>();
+        }
+        return new TreeMap<>(peerHints);
+    }
+
+    // Собеседник уже соединялся с шифрованием - открытое соединение с ним не принимаем
+    public boolean isPinned(String ip) throws IOException {
+        ensureLoaded();
+        return peerHints.containsKey(ip);
+    }
+
+    // Забыть ключ собеседника (переустановил приложение, сменил телефон)
+    public synchronized void forgetPeer(String ip) {
+        tickets.remove(ip);
+        String id = peerHints.remove(ip);
+        if (id != null) {
+            trustedKeys.remove(id);
+        }
+        if (prefs != null) {
+            SharedPreferences.Editor editor = prefs.edit().remove(KEY_PEER_HINT_PREFIX + ip);
+            if (id != null) {
+                editor.remove(KEY_PEER_KEY_PREFIX + id);
+            }
+            editor.apply();
+        }
+    }
+
+    private synchronized void checkPin(String ip, byte[] peerKey) throws IOException {
+        String id = fingerprint(peerKey);
+        byte[] trusted = trustedKeys.get(id);
+        if (trusted != null && !MessageDigest.isEqual(trusted, peerKey)) {
+            throw new IOException("Identity key of " + ip + " collides with trusted " + id);
+        }
+        String hinted = peerHints.get(ip);
+        if (id.equals(hinted)) {
+            return;
+        }
+        if (trusted == null) {
+            if (hinted != null) {
+                throw new IOException("Identity key of " + ip + " changed: " + id);
+            }
+            trustedKeys.put(id, peerKey);
+            if (prefs != null) {
+                prefs.edit().putString(KEY_PEER_KEY_PREFIX + id, Base64.encodeToString(peerKey, Base64.NO_WRAP)).apply();
+            }
+            System.out.println("🔑 Nico: Trusted new peer " + ip + " - " + id);
+        } else {
+            System.out.println("🔑 Nico: Known peer " + id + " is now at " + ip);
+        }
+
+        // Ключ один, адрес последний: прежние подсказки на этот ключ убираем
+        SharedPreferences.Editor editor = prefs != null ? prefs.edit() : null;
+        for (Map.Entry<String, String> hint : peerHints.entrySet()) {
+            if (hint.getValue().equals(id) && peerHints.remove(hint.getKey(), id) && editor != null) {
+                editor.remove(KEY_PEER_HINT_PREFIX + hint.getKey());
+            }
+        }
+        peerHints.put(ip, id);
+        if (editor != null) {
+            editor.putString(KEY_PEER_HINT_PREFIX + ip, id).apply();
+        }
+    }
+
+    private static String fingerprint(byte[] key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key);
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                if (i > 0 && i % 2 == 0) {
+                    result.append(':');
+                }
+                result.append(String.format("%02x", digest[i]));
+            }
+            return result.toString();
+        } catch (GeneralSecurityException e) {
+            return "?";
+        }
+    }
+
+    // ===== Клиент =====
+
+    // Вызывается после HELLO, в котором обе стороны выбрали PROTOCOL;
+    // hello - предложение клиента и ответ сервера (см. helloTranscript)
+    public Transport.Connection clientHandshake(Transport.Connection channel, String peerIp, byte[] hello)
+            throws IOException {
+        ensureLoaded();
+        try {
+            byte[] nonceC = randomBytes(NONCE_SIZE);
+            ClientTicket ticket = tickets.get(peerIp);
+            if (ticket != null && ticket.expiresAt > System.currentTimeMillis()) {
+                send(channel, message(RESUME).put(nonceC).put(withLength(ticket.ticket)));
+                ByteBuffer reply = receive(channel);
+                byte step = reply.get();
+                if (step == RESUMED) {
+                    byte[] nonceS = readFixed(reply, NONCE_SIZE);
+                    SessionKeys keys = deriveKeys(ticket.secret, nonceC, nonceS, hello);
+                    return new SecureChannel(channel, keys.clientToServer, keys.serverToClient);
+                }
+                if (step != RETRY) {
+                    throw new IOException("Unexpected handshake step " + step);
+                }
+                tickets.remove(peerIp);
+            }
+            return clientFullHandshake(channel, peerIp, nonceC, hello);
+
+        } catch (GeneralSecurityException | BufferUnderflowException e) {
+            throw new IOException("Handshake with " + peerIp + " failed: " + e);
+        }
+    }
+
+    private Transport.Connection clientFullHandshake(Transport.Connection channel, String peerIp, byte[] nonceC,
+                                                     byte[] hello)
+            throws IOException, GeneralSecurityException {
+        KeyPair ephemeral = generateKeyPair();
+        byte[] ephC = ephemeral.getPublic().getEncoded();
+        send(channel, message(FULL).put(nonceC).put(withLength(ephC)));
+
+        ByteBuffer reply = receive(channel);
+        byte step = reply.get();
+        if (step != SERVER) {
+            throw new IOException("Unexpected handshake step " + step);
+        }
+        byte[] nonceS = readFixed(reply, NONCE_SIZE);
+        byte[] ephS = readField(reply);
+        byte[] idS = readField(reply);
+        byte[] sigS = readField(reply);
+        if (!verify(idS, sigS, transcript("srv", hello, nonceC, nonceS, ephC, ephS))) {
+            throw new IOException("Bad server signature from " + peerIp);
+        }
+        checkPin(peerIp, idS);
+
+        byte[] sigC = sign(transcript("cli", hello, nonceC, nonceS, ephC, ephS, idS));
+        send(channel, message(AUTH).put(withLength(identityPublic)).put(withLength(sigC)));
+
+        byte[] shared = agree(ephemeral, ephS);
+        ByteBuffer ticketMessage = receive(channel);
+        step = ticketMessage.get();
+        if (step == REJECT) {
+            throw new IOException("Peer " + peerIp + " rejected our identity");
+        }
+        if (step != TICKET) {
+            throw new IOException("Unexpected handshake step " + step);
+        }
+        byte[] secret = expand(extract(concat(nonceC, nonceS), shared), "resume", SECRET_SIZE);
+        tickets.put(peerIp, new ClientTicket(readField(ticketMessage), secret,
+            System.currentTimeMillis() + TICKET_LIFETIME_MS));
+
+        SessionKeys keys = deriveKeys(shared, nonceC, nonceS, hello);
+        return new SecureChannel(channel, keys.clientToServer, keys.serverToClient);
+    }
+
+    // ===== Сервер =====
+
+    public Transport.Connection serverHandshake(Transport.Connection channel, String peerIp, byte[] hello)
+            throws IOException {
+        ensureLoaded();
+        try {
+            ByteBuffer request = receive(channel);
+            byte step = request.get();
+            byte[] nonceC = readFixed(request, NONCE_SIZE);
+
+            if (step == RESUME) {
+                byte[] secret = openTicket(readField(request), peerIp);
+                if (secret != null) {
+                    byte[] nonceS = randomBytes(NONCE_SIZE);
+                    send(channel, message(RESUMED).put(nonceS));
+                    SessionKeys keys = deriveKeys(secret, nonceC, nonceS, hello);
+                    return new SecureChannel(channel, keys.serverToClient, keys.clientToServer);
+                }
+                send(channel, message(RETRY));
+                request = receive(channel);
+                step = request.get();
+                nonceC = readFixed(request, NONCE_SIZE);
+            }
+            if (step != FULL) {
+                throw new IOException("Unexpected handshake step " + step);
+            }
+            return serverFullHandshake(channel, peerIp, nonceC, readField(request), hello);
+
+        } catch (GeneralSecurityException | BufferUnderflowException e) {
+            throw new IOException("Handshake with " + peerIp + " failed: " + e);
+        }
+    }
+
+    private Transport.Connection serverFullHandshake(Transport.Connection channel, String peerIp,
+                                                     byte[] nonceC, byte[] ephC, byte[] hello)
+            throws IOException, GeneralSecurityException {
+        KeyPair ephemeral = generateKeyPair();
+        byte[] ephS = ephemeral.getPublic().getEncoded();
+        byte[] nonceS = randomBytes(NONCE_SIZE);
+        byte[] sigS = sign(transcript("srv", hello, nonceC, nonceS, ephC, ephS));
+        send(channel, message(SERVER).put(nonceS).put(withLength(ephS))
+            .put(withLength(identityPublic)).put(withLength(sigS)));
+
+        ByteBuffer auth = receive(channel);
+        if (auth.get() != AUTH) {
+            throw new IOException("Expected handshake AUTH from " + peerIp);
+        }
+        byte[] idC = readField(auth);
+        byte[] sigC = readField(auth);
+        if (!verify(idC, sigC, transcript("cli", hello, nonceC, nonceS, ephC, ephS, identityPublic))) {
+            send(channel, message(REJECT));
+            throw new IOException("Bad client signature from " + peerIp);
+        }
+        try {
+            checkPin(peerIp, idC);
+        } catch (IOException e) {
+            send(channel, message(REJECT));
+            throw e;
+        }
+
+        byte[] shared = agree(ephemeral, ephC);
+        byte[] secret = expand(extract(concat(nonceC, nonceS), shared), "resume", SECRET_SIZE);
+        send(channel, message(TICKET).put(withLength(sealTicket(secret, idC))));
+
+        SessionKeys keys = deriveKeys(shared, nonceC, nonceS, hello);
+        return new SecureChannel(channel, keys.serverToClient, keys.clientToServer);
+    }
+
+    // Билет: IV(12) | AES-GCM(EXPIRES_AT(8) | SECRET(32) | ID_C)
+    private byte[] sealTicket(byte[] secret, byte[] clientId) throws GeneralSecurityException {
+        byte[] iv = randomBytes(12);
+        ByteBuffer plain = ByteBuffer.allocate(8 + SECRET_SIZE + clientId.length);
+        plain.putLong(System.currentTimeMillis() + TICKET_LIFETIME_MS).put(secret).put(clientId);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, ticketKey, new GCMParameterSpec(128, iv));
+        return concat(iv, cipher.doFinal(plain.array()));
+    }
+
+    // Секрет возобновления или null, если билет чужой, устарел или выдан другому устройству
+    private byte[] openTicket(byte[] ticket, String peerIp) {
+        if (ticket.length < 12 + 16 + 8 + SECRET_SIZE) {
+            return null;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, ticketKey, new GCMParameterSpec(128, ticket, 0, 12));
+            ByteBuffer plain = ByteBuffer.wrap(cipher.doFinal(ticket, 12, ticket.length - 12));
+            if (plain.getLong() < System.currentTimeMillis()) {
+                return null;
+            }
+            byte[] secret = readFixed(plain, SECRET_SIZE);
+            byte[] clientId = readFixed(plain, plain.remaining());
+            checkPin(peerIp, clientId);
+            return secret;
+        } catch (GeneralSecurityException | IOException e) {
+            return null;
+        }
+    }
+
+    // ===== Криптография =====
+
+    private SessionKeys deriveKeys(byte[] secret, byte[] nonceC, byte[] nonceS, byte[] hello)
+            throws GeneralSecurityException {
+        byte[] prk = extract(concat(concat(nonceC, nonceS), hello), secret);
+        return new SessionKeys(
+            new SecretKeySpec(expand(prk, "c2s", RECORD_KEY_SIZE), "AES"),
+            new SecretKeySpec(expand(prk, "s2c", RECORD_KEY_SIZE), "AES"));
+    }
+
+    // HKDF-SHA256 (RFC 5869)
+    private static byte[] extract(byte[] salt, byte[] input) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        return mac.doFinal(input);
+    }
+
+    // Нужно не больше одного блока HMAC (32 байта)
+    private static byte[] expand(byte[] prk, String label, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        mac.update(("nico " + label).getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 1);
+        return Arrays.copyOf(mac.doFinal(), length);
+    }
+
+    private static byte[] agree(KeyPair ephemeral, byte[] peerPublic) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(ephemeral.getPrivate());
+        agreement.doPhase(decodePublic(peerPublic), true);
+        return agreement.generateSecret();
+    }
+
+    private byte[] sign(byte[] data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(identity.getPrivate());
+        signature.update(data);
+        return signature.sign();
+    }
+
+    private static boolean verify(byte[] publicKey, byte[] signatureBytes, byte[] data) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initVerify(decodePublic(publicKey));
+        signature.update(data);
+        return signature.verify(signatureBytes);
+    }
+
+    private static PublicKey decodePublic(byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    // HELLO обеих сторон в том виде, как он прошёл по сети
+    public static byte[] helloTranscript(String offered, String chosen) {
+        return transcript("hello", offered.getBytes(StandardCharsets.UTF_8), chosen.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] transcript(String label, byte[]... parts) {
+        byte[] result = label.getBytes(StandardCharsets.UTF_8);
+        for (byte[] part : parts) {
+            result = concat(result, withLength(part));
+        }
+        return result;
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    // ===== Кадры рукопожатия: STEP(1) | поля, переменные поля - LENGTH(4) | BYTES =====
+
+    private static ByteBuffer message(byte step) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * MAX_FIELD);
+        buffer.put(step);
+        return buffer;
+    }
+
+    private static byte[] withLength(byte[] field) {
+        return ByteBuffer.allocate(4 + field.length).putInt(field.length).put(field).array();
+    }
+
+    private static void send(Transport.Connection channel, ByteBuffer message) throws IOException {
+        message.flip();
+        FrameCodec.writeFrame(channel, FrameCodec.TYPE_HANDSHAKE, message);
+    }
+
+    private static ByteBuffer receive(Transport.Connection channel) throws IOException {
+        FrameCodec.Header header = FrameCodec.readHeader(channel, ByteBuffer.allocate(FrameCodec.HEADER_SIZE));
+        if (header.type != FrameCodec.TYPE_HANDSHAKE) {
+            throw new IOException("Expected handshake, got frame " + header.type);
+        }
+        return FrameCodec.readPayload(channel, header);
+    }
+
+    private static byte[] readField(ByteBuffer message) throws IOException {
+        int length = message.getInt();
+        if (length < 0 || length > MAX_FIELD) {
+            throw new IOException("Invalid handshake field length: " + length);
+        }
+        return readFixed(message, length);
+    }
+
+    private static byte[] readFixed(ByteBuffer message, int length) throws IOException {
+        if (length > message.remaining()) {
+            throw new IOException("Truncated handshake message");
+        }
+        byte[] field = new byte[length];
+        message.get(field);
+        return field;
+    }
+}
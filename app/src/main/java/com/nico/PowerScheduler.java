@@ -0,0 +1,244 @@
+package com.nico;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Периодическая фоновая работа сети (heartbeat, поиск собеседников, повтор доставки)
+// с интервалами по состоянию устройства:
+// - ACTIVE: экран включён или идёт зарядка - короткие интервалы;
+// - BACKGROUND: экран выключен, батарея - интервалы в разы длиннее;
+// - IDLE: Doze - сети всё равно нет, задачи не запускаются.
+//
+// Задачи не будят радио по отдельности: когда подходит срок одной, вместе с ней
+// выполняются все, чей срок наступит в ближайшие FLEX их интервала, - одно общее
+// окно вместо нескольких пробуждений. Поток планировщика спит обычным wait и
+// не держит wake lock: в глубоком сне окно просто сдвигается до пробуждения устройства.
+// Входящие соединения от этого не зависят - сервер слушает порт всё время.
+public class PowerScheduler {
+    public static final int PROFILE_ACTIVE = 0;
+    public static final int PROFILE_BACKGROUND = 1;
+    public static final int PROFILE_IDLE = 2;
+    private static final String[] PROFILE_NAMES = {"active", "background", "idle"};
+
+    // Задача, чей срок наступит в пределах этой доли интервала, идёт в текущее окно
+    private static final double FLEX = 0.5;
+
+    // Смена профиля (вызывается с потока, получившего broadcast)
+    public interface ProfileListener {
+        void onProfileChanged(int profile);
+    }
+
+    private static class Job {
+        final String name;
+        // Интервал по профилям; 0 - в этом профиле не запускается
+        final long[] intervals;
+        final Runnable action;
+        long lastRun;
+        boolean requested;
+        int runs;
+
+        Job(String name, long[] intervals, Runnable action) {
+            this.name = name;
+            this.intervals = intervals;
+            this.action = action;
+            this.lastRun = System.currentTimeMillis();
+        }
+    }
+
+    private final Context context;
+    private final ProfileListener profileListener;
+    // Всё состояние - под блокировкой this
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private boolean screenOn = true;
+    private boolean charging;
+    private boolean deviceIdle;
+    private int profile = PROFILE_ACTIVE;
+    private long profileSince = System.currentTimeMillis();
+    private final long[] profileTime = new long[PROFILE_NAMES.length];
+    private int windows;
+    private Thread worker;
+    private boolean running;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                update(true, charging, deviceIdle);
+            } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+                update(false, charging, deviceIdle);
+            } else if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+                update(screenOn, true, deviceIdle);
+            } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+                update(screenOn, false, deviceIdle);
+            } else if (Build.VERSION.SDK_INT >= 23 && PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED.equals(action)) {
+                update(screenOn, charging, getPowerManager().isDeviceIdleMode());
+            }
+        }
+    };
+
+    public PowerScheduler(Context context, ProfileListener profileListener) {
+        this.context = context.getApplicationContext();
+        this.profileListener = profileListener;
+    }
+
+    // Задача с интервалами для ACTIVE, BACKGROUND и IDLE (0 - не запускать)
+    public synchronized void schedule(String name, long activeMs, long backgroundMs, long idleMs, Runnable action) {
+        jobs.put(name, new Job(name, new long[]{activeMs, backgroundMs, idleMs}, action));
+        notifyAll();
+    }
+
+    // Выполнить задачу в ближайшем окне (например, после неудачной доставки).
+    // В IDLE не будит - задача дождётся выхода из Doze.
+    public synchronized void requestSoon(String name) {
+        Job job = jobs.get(name);
+        if (job != null && !job.requested) {
+            job.requested = true;
+            notifyAll();
+        }
+    }
+
+    public void start() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        if (Build.VERSION.SDK_INT >= 23) {
+            filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+        }
+        context.registerReceiver(receiver, filter);
+
+        // Текущее состояние: заряд - из последнего (sticky) broadcast батареи
+        PowerManager pm = getPowerManager();
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        update(pm == null || pm.isInteractive(),
+            battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0,
+            pm != null && Build.VERSION.SDK_INT >= 23 && pm.isDeviceIdleMode());
+
+        synchronized (this) {
+            running = true;
+            worker = new Thread(this::run, "Nico-scheduler");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public void stop() {
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (IllegalArgumentException e) {
+            // Не был зарегистрирован
+        }
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        System.out.println("🔋 Nico: " + getStats());
+    }
+
+    public synchronized int getProfile() {
+        return profile;
+    }
+
+    // Счётчики для оценки расхода: окна пробуждения, запуски задач, время в профилях
+    public synchronized String getStats() {
+        long now = System.currentTimeMillis();
+        StringBuilder stats = new StringBuilder("Power: ").append(windows).append(" wake windows");
+        for (Job job : jobs.values()) {
+            stats.append(", ").append(job.name).append(' ').append(job.runs);
+        }
+        for (int i = 0; i < PROFILE_NAMES.length; i++) {
+            long time = profileTime[i] + (i == profile ? now - profileSince : 0);
+            stats.append(", ").append(PROFILE_NAMES[i]).append(' ').append(time / 1000).append('s');
+        }
+        return stats.toString();
+    }
+
+    private void update(boolean screenOn, boolean charging, boolean deviceIdle) {
+        int newProfile = deviceIdle ? PROFILE_IDLE
+            : screenOn || charging ? PROFILE_ACTIVE : PROFILE_BACKGROUND;
+        synchronized (this) {
+            this.screenOn = screenOn;
+            this.charging = charging;
+            this.deviceIdle = deviceIdle;
+            if (newProfile == profile) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            profileTime[profile] += now - profileSince;
+            profileSince = now;
+            profile = newProfile;
+            // Интервалы поменялись - пересчитываем ближайшее окно
+            notifyAll();
+        }
+        System.out.println("🔋 Nico: Power profile " + PROFILE_NAMES[newProfile]);
+        profileListener.onProfileChanged(newProfile);
+    }
+
+    private void run() {
+        while (true) {
+            List<Job> due = new ArrayList<>();
+            synchronized (this) {
+                if (!running) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                long wakeAt = Long.MAX_VALUE;
+                boolean windowOpen = false;
+                for (Job job : jobs.values()) {
+                    long interval = job.intervals[profile];
+                    if (interval <= 0) {
+                        continue;
+                    }
+                    if (job.requested || job.lastRun + interval <= now) {
+                        windowOpen = true;
+                    } else {
+                        wakeAt = Math.min(wakeAt, job.lastRun + interval);
+                    }
+                }
+                if (windowOpen) {
+                    // Окно открыто - забираем всё, что скоро и так пришлось бы запускать
+                    for (Job job : jobs.values()) {
+                        long interval = job.intervals[profile];
+                        if (interval > 0 && (job.requested || job.lastRun + interval - (long) (interval * FLEX) <= now)) {
+                            job.requested = false;
+                            job.lastRun = now;
+                            job.runs++;
+                            due.add(job);
+                        }
+                    }
+                    windows++;
+                } else {
+                    try {
+                        wait(wakeAt == Long.MAX_VALUE ? 0 : Math.max(1, wakeAt - now));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+
+            for (Job job : due) {
+                try {
+                    job.action.run();
+                } catch (RuntimeException e) {
+                    System.out.println("❌ Nico: Scheduled " + job.name + " failed - " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private PowerManager getPowerManager() {
+        return (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+}
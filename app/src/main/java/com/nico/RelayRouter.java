@@ -0,0 +1,278 @@
+package com.nico;
+
+import android.content.SharedPreferences;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Режим ретранслятора для сетей, где устройства не видят друг друга напрямую
+// (гостевой Wi-Fi, разные точки доступа). Соединение начинается кадром RELAY:
+// HOPS(1) | TARGET_IP | ORIGIN_IP, строки - LENGTH(4) | UTF-8 (ORIGIN пустой у отправителя).
+// Ретранслятор подключается к следующему ретранслятору с HOPS - 1 или к самой цели
+// с HOPS = 0 (цель узнаёт настоящего отправителя), и дальше просто перекачивает байты
+// в обе стороны, не разбирая кадры - HELLO, сжатие и сессия идут между конечными устройствами.
+//
+// Таблица маршрутов строится из discovery: найденные собеседники доступны напрямую,
+// а включённый ретранслятор в ответ на поиск анонсирует, кого видит он (ROUTES).
+// Заявленному в запросе отправителю верим только от такого ретранслятора, и дальше
+// NetworkManager требует шифрованную сессию с уже известным ключом этого отправителя.
+public class RelayRouter {
+    public static final int MAX_HOPS = 3;
+    // Больше адресов в анонс не помещаем - datagram должен влезть в буфер discovery
+    public static final int MAX_ADVERTISED_ROUTES = 32;
+    private static final String KEY_ENABLED = "relay_enabled";
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    // Direct буфер - ядро копирует сокет в сокет без промежуточного массива в heap
+    private static final int SPLICE_BUFFER_SIZE = 16 * 1024;
+
+    private final Transport transport;
+    private final SharedPreferences prefs;
+    private final int port;
+    // Напрямую доступные собеседники (по данным discovery)
+    private final Set<String> directPeers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // Цель -> ретранслятор, анонсировавший её последним
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    private static class Route {
+        final String viaIp;
+        final long seenAt;
+
+        Route(String viaIp, long seenAt) {
+            this.viaIp = viaIp;
+            this.seenAt = seenAt;
+        }
+    }
+
+    public RelayRouter(Transport transport, SharedPreferences prefs, int port) {
+        this.transport = transport;
+        this.prefs = prefs;
+        this.port = port;
+    }
+
+    // ===== Настройка =====
+
+    // Ретрансляция чужого трафика выключена по умолчанию
+    public boolean isEnabled() {
+        return prefs.getBoolean(KEY_ENABLED, false);
+    }
+
+    public void setEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_ENABLED, enabled).apply();
+    }
+
+    public void addDirectPeer(String ip) {
+        directPeers.add(ip);
+    }
+
+    // Собеседник давно не отвечал на discovery - он и его маршруты больше недоступны
+    public void removeDirectPeer(String ip) {
+        directPeers.remove(ip);
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            if (entry.getValue().viaIp.equals(ip)) {
+                routes.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // Кого анонсировать в ответ на поиск от requesterIp (только если ретрансляция включена)
+    public List<String> getAdvertisedRoutes(String requesterIp) {
+        List<String> targets = new ArrayList<>();
+        if (!isEnabled()) {
+            return targets;
+        }
+        for (String ip : directPeers) {
+            if (targets.size() >= MAX_ADVERTISED_ROUTES) {
+                break;
+            }
+            if (!ip.equals(requesterIp)) {
+                targets.add(ip);
+            }
+        }
+        return targets;
+    }
+
+    // Анонс ретранслятора viaIp: кого он видит напрямую. Заменяет его прежний анонс
+    public void onRoutesAdvertised(String viaIp, List<String> targets) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            if (entry.getValue().viaIp.equals(viaIp) && !targets.contains(entry.getKey())) {
+                routes.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String targetIp : targets) {
+            if (!targetIp.equals(viaIp)) {
+                routes.put(targetIp, new Route(viaIp, now));
+            }
+        }
+    }
+
+    // Маршруты, не подтверждённые анонсом дольше maxAgeMs
+    public void expireRoutes(long maxAgeMs) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            if (now - entry.getValue().seenAt > maxAgeMs) {
+                routes.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // Ретранслятор, от которого есть действующий анонс
+    public boolean isKnownRelay(String ip) {
+        for (Route route : routes.values()) {
+            if (route.viaIp.equals(ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Через кого подключаться к собеседнику; null - напрямую
+    public String relayFor(String targetIp) {
+        if (directPeers.contains(targetIp)) {
+            return null;
+        }
+        Route route = routes.get(targetIp);
+        return route != null ? route.viaIp : null;
+    }
+
+    // Маршрут для ретрансляции: цель, следующий ретранслятор или null
+    private String nextHop(String targetIp) {
+        if (directPeers.contains(targetIp)) {
+            return targetIp;
+        }
+        Route route = routes.get(targetIp);
+        return route != null ? route.viaIp : null;
+    }
+
+    // ===== Клиентская сторона =====
+
+    // Открываем туннель: дальше по каналу можно говорить с целью как напрямую
+    public static Transport.Connection openTunnel(Transport transport, String viaIp, String targetIp,
+                                                  int port, int timeoutMs) throws IOException {
+        return connect(transport, viaIp, port, timeoutMs, MAX_HOPS, targetIp, "");
+    }
+
+    private static Transport.Connection connect(Transport transport, String ip, int port, int timeoutMs,
+                                                int hops, String targetIp, String originIp) throws IOException {
+        Transport.Connection channel = transport.connect(ip, port, timeoutMs);
+        try {
+            byte[] target = FrameCodec.utf8(targetIp);
+            byte[] origin = FrameCodec.utf8(originIp);
+            int length = 1 + 4 + target.length + 4 + origin.length;
+            ByteBuffer request = ByteBuffer.allocate(1 + FrameCodec.HEADER_SIZE + length);
+            request.put(FrameCodec.MAGIC)
+                .put(FrameCodec.TYPE_RELAY).putInt(length)
+                .put((byte) hops)
+                .putInt(target.length).put(target)
+                .putInt(origin.length).put(origin)
+                .flip();
+            FrameCodec.writeFully(channel, request);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // ===== Ретранслятор =====
+
+    // NetworkManager уже прочитал заголовок кадра RELAY.
+    // Мы - цель (HOPS = 0): возвращаем IP настоящего отправителя, дальше в канале обычные кадры.
+    // Иначе ретранслируем до конца туннеля и возвращаем null.
+    // ORIGIN из запроса принимаем только от известного ретранслятора: напрямую
+    // подключившийся отправитель - это и есть адрес сокета.
+    public String relay(Transport.Connection inbound, FrameCodec.Header header, String senderIp) throws IOException {
+        ByteBuffer request = FrameCodec.readPayload(inbound, header);
+        int hops;
+        String targetIp;
+        String originIp;
+        try {
+            hops = request.get() & 0xFF;
+            targetIp = FrameCodec.readString(request);
+            originIp = FrameCodec.readString(request);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Invalid relay request from " + senderIp);
+        }
+        boolean fromRelay = isKnownRelay(senderIp);
+        if (hops == 0) {
+            if (!fromRelay || originIp.isEmpty()) {
+                System.out.println("🚫 Nico: Relayed connection from unknown relay " + senderIp);
+                return null;
+            }
+            return originIp;
+        }
+
+        if (!isEnabled()) {
+            System.out.println("🚫 Nico: Relay disabled, rejecting tunnel from " + senderIp + " -> " + targetIp);
+            return null;
+        }
+        if (!fromRelay) {
+            if (!originIp.isEmpty()) {
+                System.out.println("🚫 Nico: Spoofed relay origin " + originIp + " from " + senderIp);
+                return null;
+            }
+            originIp = senderIp;
+        } else if (originIp.isEmpty()) {
+            originIp = senderIp;
+        }
+        String nextHop = nextHop(targetIp);
+        if (nextHop == null || nextHop.equals(senderIp) || hops > MAX_HOPS) {
+            System.out.println("🚫 Nico: No route " + originIp + " -> " + targetIp + " (hops " + hops + ")");
+            return null;
+        }
+        if (!nextHop.equals(targetIp) && hops < 2) {
+            System.out.println("🚫 Nico: Hop limit reached " + originIp + " -> " + targetIp);
+            return null;
+        }
+
+        // К цели - с HOPS = 0, к следующему ретранслятору - с уменьшенным HOPS
+        Transport.Connection outbound = connect(transport, nextHop, port, CONNECT_TIMEOUT_MS,
+            nextHop.equals(targetIp) ? 0 : hops - 1, targetIp, originIp);
+
+        System.out.println("🔀 Nico: Relaying " + originIp + " -> " + targetIp
+            + (nextHop.equals(targetIp) ? "" : " via " + nextHop));
+        try {
+            Thread back = new Thread(() -> splice(outbound, inbound), "nico-relay");
+            back.start();
+            splice(inbound, outbound);
+            back.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            outbound.close();
+        }
+        return null;
+    }
+
+    // Перекачиваем байты в одну сторону, пока источник не закроется
+    private static void splice(Transport.Connection from, Transport.Connection to) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SPLICE_BUFFER_SIZE);
+        try {
+            while (from.read(buffer) >= 0) {
+                buffer.flip();
+                FrameCodec.writeFully(to, buffer);
+                buffer.clear();
+            }
+            // Полузакрытие - другая сторона ещё может дописать ответ
+            to.shutdownOutput();
+        } catch (IOException e) {
+            // Одна сторона оборвала связь - закрываем туннель целиком
+            closeQuietly(from);
+            closeQuietly(to);
+        }
+    }
+
+    private static void closeQuietly(Transport.Connection channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Игнорируем ошибку закрытия
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.nico;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// Шифрованный канал поверх соединения транспорта: AES-GCM записи
+// LENGTH(4) | CIPHERTEXT + TAG(16), у каждого направления свой ключ.
+// Nonce - счётчик записей, поэтому не передаётся и не повторяется.
+// Cipher и буферы создаются один раз на соединение - на сообщение остаются
+// только init + doFinal (единицы микросекунд для коротких кадров).
+//
+// FrameSession и FrameWriter работают поверх без изменений: пачка кадров,
+// склеенная FrameWriter, уходит одной записью.
+public class SecureChannel implements Transport.Connection {
+    // Открытый текст одной записи
+    static final int MAX_RECORD = 64 * 1024;
+    private static final int TAG_BITS = 128;
+    private static final int TAG_SIZE = TAG_BITS / 8;
+    private static final int NONCE_SIZE = 12;
+
+    private final Transport.Connection inner;
+    private final SecretKey writeKey;
+    private final SecretKey readKey;
+    private final Cipher encryptor;
+    private final Cipher decryptor;
+    private final byte[] writeNonce = new byte[NONCE_SIZE];
+    private final byte[] readNonce = new byte[NONCE_SIZE];
+    private long writeCounter;
+    private long readCounter;
+    // Чтение и запись идут с разных потоков независимо
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+
+    private final ByteBuffer plainOut = ByteBuffer.allocate(MAX_RECORD);
+    private final ByteBuffer recordOut = ByteBuffer.allocate(4 + MAX_RECORD + TAG_SIZE);
+    private final ByteBuffer lengthIn = ByteBuffer.allocate(4);
+    private final ByteBuffer recordIn = ByteBuffer.allocate(MAX_RECORD + TAG_SIZE);
+    // Расшифрованный остаток последней записи, который ещё не прочитали
+    private final ByteBuffer plainIn = ByteBuffer.allocate(MAX_RECORD);
+
+    SecureChannel(Transport.Connection inner, SecretKey writeKey, SecretKey readKey) throws IOException {
+        this.inner = inner;
+        this.writeKey = writeKey;
+        this.readKey = readKey;
+        try {
+            this.encryptor = Cipher.getInstance("AES/GCM/NoPadding");
+            this.decryptor = Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM unavailable: " + e.getMessage());
+        }
+        plainIn.flip();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return inner.getRemoteAddress();
+    }
+
+    @Override
+    public void setReadTimeout(int timeoutMs) throws IOException {
+        inner.setReadTimeout(timeoutMs);
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        inner.shutdownOutput();
+    }
+
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        synchronized (readLock) {
+            if (!plainIn.hasRemaining()) {
+                if (!readRecord()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(plainIn.remaining(), target.remaining());
+            int limit = plainIn.limit();
+            plainIn.limit(plainIn.position() + count);
+            target.put(plainIn);
+            plainIn.limit(limit);
+            return count;
+        }
+    }
+
+    private boolean readRecord() throws IOException {
+        lengthIn.clear();
+        if (inner.read(lengthIn) < 0) {
+            return false;
+        }
+        FrameCodec.readFully(inner, lengthIn);
+        lengthIn.flip();
+        int length = lengthIn.getInt();
+        if (length < TAG_SIZE || length > MAX_RECORD + TAG_SIZE) {
+            throw new IOException("Invalid encrypted record length: " + length);
+        }
+
+        recordIn.clear().limit(length);
+        try {
+            FrameCodec.readFully(inner, recordIn);
+        } catch (EOFException e) {
+            throw new IOException("Connection closed mid-record");
+        }
+        recordIn.flip();
+
+        plainIn.clear();
+        try {
+            decryptor.init(Cipher.DECRYPT_MODE, readKey, nextNonce(readNonce, readCounter++));
+            decryptor.doFinal(recordIn, plainIn);
+        } catch (GeneralSecurityException e) {
+            // Чужой ключ, подмена или повтор записи - дальше канал доверия не заслуживает
+            inner.close();
+            throw new IOException("Record authentication failed");
+        }
+        plainIn.flip();
+        return true;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        return (int) write(new ByteBuffer[]{source}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources) throws IOException {
+        return write(sources, 0, sources.length);
+    }
+
+    // Буферы склеиваются в записи до MAX_RECORD, каждая запись - одна запись в транспорт
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            return writeRecords(sources, offset, length);
+        }
+    }
+
+    private long writeRecords(ByteBuffer[] sources, int offset, int length) throws IOException {
+        long total = 0;
+        int index = offset;
+        int end = offset + length;
+        while (index < end) {
+            plainOut.clear();
+            while (index < end && plainOut.hasRemaining()) {
+                ByteBuffer source = sources[index];
+                int count = Math.min(source.remaining(), plainOut.remaining());
+                int limit = source.limit();
+                source.limit(source.position() + count);
+                plainOut.put(source);
+                source.limit(limit);
+                total += count;
+                if (!source.hasRemaining()) {
+                    index++;
+                }
+            }
+            plainOut.flip();
+            if (plainOut.hasRemaining()) {
+                writeRecord();
+            }
+        }
+        return total;
+    }
+
+    private void writeRecord() throws IOException {
+        recordOut.clear();
+        recordOut.putInt(plainOut.remaining() + TAG_SIZE);
+        try {
+            encryptor.init(Cipher.ENCRYPT_MODE, writeKey, nextNonce(writeNonce, writeCounter++));
+            encryptor.doFinal(plainOut, recordOut);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Encryption failed: " + e.getMessage());
+        }
+        recordOut.flip();
+        FrameCodec.writeFully(inner, recordOut);
+    }
+
+    // Nonce: 4 нулевых байта | номер записи (8)
+    private static GCMParameterSpec nextNonce(byte[] nonce, long counter) {
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE_SIZE - 1 - i] = (byte) (counter >>> (8 * i));
+        }
+        return new GCMParameterSpec(TAG_BITS, nonce);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return inner.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        inner.close();
+    }
+}
@@ -1,16 +1,41 @@
 package com.nico;
 
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.view.View;
+import android.widget.Button;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
 
 public class SettingsActivity extends AppCompatActivity {
     
+    private static final int REQUEST_EXPORT = 1;
+    private static final int REQUEST_IMPORT = 2;
+    private static final String BACKUP_MIME_TYPE = "application/gzip";
+    
+    private LinearLayout settingsLayout;
+    private NetworkManager networkManager;
+    
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_settings);
         
+        settingsLayout = findViewById(R.id.settings_layout);
+        networkManager = new NetworkManager(this);
+        
         setupiOSStyle();
+        setupNetworkSection();
+        setupSecuritySection();
+        setupHistorySection();
         System.out.println("⚙️ Nico: Settings Activity started");
     }
     
@@ -18,4 +43,195 @@ public class SettingsActivity extends AppCompatActivity {
         getWindow().setStatusBarColor(0xFFF2F2F7);
         getWindow().setNavigationBarColor(0xFFF2F2F7);
     }
+    
+    // ===== Сеть =====
+    
+    private void setupNetworkSection() {
+        addSeparator("Network:");
+        
+        // Выключено - сообщения копятся несколько миллисекунд и уходят одной записью
+        addToggle("⚡ Low Latency\nSend each message immediately",
+            networkManager.isLowLatency(), networkManager::setLowLatency);
+        
+        // Для разбора проблем с сетью (TrafficReplay); до перезапуска приложения
+        addToggle("🎙️ Traffic Capture\nRecord network traffic until restart",
+            networkManager.isTrafficCapture(), enabled -> runInBackground(() -> {
+                File file = networkManager.setTrafficCapture(enabled);
+                if (!enabled) {
+                    return "Traffic capture stopped";
+                }
+                return file != null ? "Capturing to " + file.getName() : "Traffic capture not started";
+            }));
+    }
+    
+    // ===== Безопасность: сверка и сброс ключей собеседников =====
+    
+    private void setupSecuritySection() {
+        addSeparator("Security:");
+        
+        String own = networkManager.getIdentityFingerprint();
+        addButton("🔑 This Device\n" + (own != null ? own : "Key not available"), v ->
+            Toast.makeText(this, "Compare this code with the one your contact sees for you",
+                Toast.LENGTH_LONG).show());
+        
+        Map<String, String> peers = networkManager.getTrustedPeers();
+        if (peers.isEmpty()) {
+            addSeparator("No verified contacts yet");
+            return;
+        }
+        for (Map.Entry<String, String> peer : peers.entrySet()) {
+            String ip = peer.getKey();
+            Button button = addButton("👤 " + ip + "\n" + peer.getValue() + "\nHold to forget this key", v ->
+                Toast.makeText(this, "Ask " + ip + " to open Settings and compare the code",
+                    Toast.LENGTH_LONG).show());
+            // Собеседник сменил телефон или переустановил приложение - следующий ключ примем заново
+            button.setOnLongClickListener(v -> {
+                networkManager.forgetPeerIdentity(ip);
+                button.setText("👤 " + ip + "\nKey forgotten - will trust the next one");
+                button.setOnLongClickListener(null);
+                System.out.println("🔑 Nico: Forgot identity of " + ip);
+                return true;
+            });
+        }
+    }
+    
+    // ===== История: резервная копия и архив =====
+    
+    private void setupHistorySection() {
+        addSeparator("History:");
+        
+        // Файл выбирает пользователь (Storage Access Framework) - разрешения на память не нужны
+        addButton("📤 Export History\nSave all chats to a backup file", v -> {
+            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType(BACKUP_MIME_TYPE);
+            intent.putExtra(Intent.EXTRA_TITLE, "nico-history.gz");
+            startActivityForResult(intent, REQUEST_EXPORT);
+        });
+        
+        addButton("📥 Import History\nAdd chats from a backup file", v -> {
+            Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType("*/*");
+            startActivityForResult(intent, REQUEST_IMPORT);
+        });
+        
+        addButton("🗄️ Restore Archive\nReturn archived old messages to chats", v -> {
+            Toast.makeText(this, "Restoring archive...", Toast.LENGTH_SHORT).show();
+            runInBackground(() -> {
+                int restored = new HistoryRetention(this).restoreArchive();
+                return "Restored " + restored + " messages";
+            });
+        });
+        
+        // Включается один раз: история переносится из SQLite, обратно не переключается
+        DatabaseHelper dbHelper = DatabaseHelper.getInstance(this);
+        String logText = "📚 Message Log\nFaster storage for long histories, can't be turned off";
+        Button[] logButton = new Button[1];
+        logButton[0] = addButton(toggleText(logText, dbHelper.isMessageLogEnabled()), v -> {
+            if (dbHelper.isMessageLogEnabled()) {
+                Toast.makeText(this, "Message log is already on", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            Toast.makeText(this, "Moving history to the message log...", Toast.LENGTH_SHORT).show();
+            runInBackground(() -> {
+                dbHelper.enableMessageLog();
+                runOnUiThread(() -> logButton[0].setText(toggleText(logText, true)));
+                return "Message log enabled";
+            });
+        });
+    }
+    
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        Uri uri = data.getData();
+        
+        if (requestCode == REQUEST_EXPORT) {
+            Toast.makeText(this, "Exporting history...", Toast.LENGTH_SHORT).show();
+            runInBackground(() -> {
+                OutputStream out = getContentResolver().openOutputStream(uri);
+                if (out == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                // exportTo закрывает поток сам
+                return "Exported " + new HistoryBackup(this).exportTo(out) + " messages";
+            });
+        } else if (requestCode == REQUEST_IMPORT) {
+            Toast.makeText(this, "Importing history...", Toast.LENGTH_SHORT).show();
+            runInBackground(() -> {
+                InputStream in = getContentResolver().openInputStream(uri);
+                if (in == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                return "Imported " + new HistoryBackup(this).importFrom(in) + " new messages";
+            });
+        }
+    }
+    
+    // Долгая операция с диском или базой; результат - текстом во всплывающем сообщении
+    private interface Task {
+        String run() throws IOException;
+    }
+    
+    private void runInBackground(Task task) {
+        new Thread(() -> {
+            String result;
+            try {
+                result = task.run();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("❌ Nico: Settings action failed - " + e.getMessage());
+                result = "Failed: " + e.getMessage();
+            }
+            String message = result;
+            runOnUiThread(() -> Toast.makeText(this, message, Toast.LENGTH_LONG).show());
+        }).start();
+    }
+    
+    // ===== Элементы экрана =====
+    
+    private void addSeparator(String text) {
+        TextView separator = new TextView(this);
+        separator.setText(text);
+        separator.setTextColor(0xFF8E8E93);
+        separator.setTextSize(14);
+        separator.setPadding(20, 20, 20, 10);
+        
+        settingsLayout.addView(separator);
+    }
+    
+    // Переключатель настройки: кнопка с текущим состоянием в подписи
+    private interface Toggle {
+        void set(boolean enabled);
+    }
+    
+    private void addToggle(String text, boolean initial, Toggle toggle) {
+        boolean[] enabled = {initial};
+        Button[] button = new Button[1];
+        button[0] = addButton(toggleText(text, initial), v -> {
+            enabled[0] = !enabled[0];
+            toggle.set(enabled[0]);
+            button[0].setText(toggleText(text, enabled[0]));
+        });
+    }
+    
+    private static String toggleText(String text, boolean enabled) {
+        return text + (enabled ? " - ON" : " - OFF");
+    }
+    
+    private Button addButton(String text, View.OnClickListener listener) {
+        Button button = new Button(this);
+        button.setText(text);
+        button.setBackgroundColor(0xFFFFFFFF);
+        button.setTextColor(0xFF000000);
+        button.setPadding(50, 30, 50, 30);
+        button.setTextSize(14);
+        button.setOnClickListener(listener);
+        
+        settingsLayout.addView(button);
+        return button;
+    }
 }
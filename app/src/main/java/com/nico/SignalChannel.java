@@ -0,0 +1,332 @@
+package com.nico;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Кратковременные сигналы: "печатает", "прочитано до", "в сети".
+// В базу не пишутся и уведомлений не вызывают - идут кадрами SIGNAL по уже открытой
+// сессии из пула (то же шифрование и ретрансляция, что у сообщений).
+//
+// Отправитель: по каждому (собеседник, вид, чат) хранится только последнее значение,
+// повтор того же значения не отправляется, пока не подошло время обновить его у получателя.
+// Собеседнику уходит не больше одного кадра за MIN_INTERVAL_MS - все изменения за это время
+// склеиваются в один кадр.
+// Получатель: у каждого сигнала срок жизни (TTL из кадра), по истечении он пропадает сам -
+// собеседник может просто исчезнуть, не отправив "перестал печатать".
+//
+// Кадр: COUNT(1) | (KIND(1) | TTL_MS(4) | VALUE(8) | CHAT_NAME)*
+public class SignalChannel {
+    public static final byte KIND_TYPING = 1;
+    // VALUE - id последнего прочитанного сообщения в базе отправителя сообщений
+    public static final byte KIND_READ = 2;
+    // Чат не указывается; VALUE - PRESENCE_*
+    public static final byte KIND_PRESENCE = 3;
+
+    public static final long PRESENCE_ONLINE = 1;
+    public static final long PRESENCE_AWAY = 2;
+
+    private static final long MIN_INTERVAL_MS = 300;
+    private static final long TYPING_TTL_MS = TimeUnit.SECONDS.toMillis(6);
+    private static final long READ_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long PRESENCE_TTL_MS = TimeUnit.SECONDS.toMillis(90);
+    private static final int MAX_SIGNALS_PER_FRAME = 255;
+    private static final int MAX_RECEIVED = 1024;
+
+    // Отправка кадра; connect = false - только по уже открытому соединению
+    public interface Sender {
+        void send(String peerIp, byte[] payload, boolean connect) throws IOException;
+    }
+
+    // value = 0 - сигнал снят или истёк
+    public interface Listener {
+        void onSignal(String peerIp, byte kind, String chatName, long value);
+    }
+
+    private static class Outgoing {
+        long value;
+        // Ради этого сигнала можно подключиться (false - только по открытому соединению)
+        boolean connect;
+        long sentValue;
+        long sentAt;
+        boolean dirty;
+    }
+
+    private static class Received {
+        final long value;
+        final long expiresAt;
+
+        Received(long value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Peer {
+        // Ключ - KIND | CHAT_NAME
+        final Map<String, Outgoing> outgoing = new HashMap<>();
+        long nextSendAt;
+        boolean pending;
+    }
+
+    private final Sender sender;
+    private final Listener listener;
+    // Всё состояние - под блокировкой this
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final Map<String, Received> received = new HashMap<>();
+    private Thread worker;
+    private boolean closed;
+
+    public SignalChannel(Sender sender, Listener listener) {
+        this.sender = sender;
+        this.listener = listener;
+    }
+
+    // Новое значение сигнала для собеседника; уйдёт вместе с остальными изменениями.
+    // "Печатает" ради себя не подключается, остальные - подключаются
+    public void publish(String peerIp, byte kind, String chatName, long value) {
+        publish(peerIp, kind, chatName, value, kind != KIND_TYPING);
+    }
+
+    public synchronized void publish(String peerIp, byte kind, String chatName, long value, boolean connect) {
+        if (closed || peerIp == null || peerIp.isEmpty()) {
+            return;
+        }
+        Peer peer = peers.get(peerIp);
+        if (peer == null) {
+            peer = new Peer();
+            peers.put(peerIp, peer);
+        }
+        String key = key(kind, chatName);
+        Outgoing signal = peer.outgoing.get(key);
+        if (signal == null) {
+            signal = new Outgoing();
+            peer.outgoing.put(key, signal);
+        }
+        long now = System.currentTimeMillis();
+        // Прочитанное только растёт
+        if (kind == KIND_READ && value <= signal.value) {
+            return;
+        }
+        signal.value = value;
+        // Ещё не отправленное изменение, которому было можно подключаться, так и остаётся
+        signal.connect = connect || (signal.dirty && signal.connect);
+        // То же значение ещё живо у получателя - не отправляем (нажатия клавиш при наборе)
+        boolean fresh = signal.sentAt == 0 ? value == 0 : now - signal.sentAt < ttl(kind) / 2;
+        if (value == signal.sentValue && fresh) {
+            signal.dirty = false;
+            return;
+        }
+        signal.dirty = true;
+        if (!peer.pending) {
+            peer.pending = true;
+            ensureWorker();
+            notifyAll();
+        }
+    }
+
+    // Текущее значение сигнала от собеседника (0 - нет или истёк)
+    public synchronized long get(String peerIp, byte kind, String chatName) {
+        Received signal = received.get(peerIp + "|" + key(kind, chatName));
+        return signal != null && signal.expiresAt > System.currentTimeMillis() ? signal.value : 0;
+    }
+
+    // Кадр SIGNAL от собеседника
+    public void receive(String peerIp, ByteBuffer payload) throws IOException {
+        List<Object[]> changed = new ArrayList<>();
+        try {
+            int count = payload.get() & 0xFF;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < count; i++) {
+                    byte kind = payload.get();
+                    long ttl = Math.min(payload.getInt() & 0xFFFFFFFFL, READ_TTL_MS);
+                    long value = payload.getLong();
+                    String chatName = FrameCodec.readString(payload);
+                    String key = peerIp + "|" + key(kind, chatName);
+                    Received previous = value != 0 ? received.put(key, new Received(value, now + ttl))
+                        : received.remove(key);
+                    if (previous == null ? value != 0 : previous.value != value) {
+                        changed.add(new Object[]{peerIp, kind, chatName, value});
+                    }
+                }
+                // Собеседник не может раздуть таблицу бесконечными именами чатов:
+                // вытесняем те, что истекут раньше всех, и сообщаем, что они сняты
+                while (received.size() > MAX_RECEIVED) {
+                    String[] key = evictSoonest();
+                    changed.add(new Object[]{key[0], Byte.parseByte(key[1]), key[2], 0L});
+                }
+                if (!received.isEmpty()) {
+                    ensureWorker();
+                    notifyAll();
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated signal frame from " + peerIp);
+        }
+        for (Object[] signal : changed) {
+            listener.onSignal((String) signal[0], (Byte) signal[1], (String) signal[2], (Long) signal[3]);
+        }
+    }
+
+    // Вызывать под блокировкой this; возвращает ключ (собеседник, вид, чат)
+    private String[] evictSoonest() {
+        String soonest = null;
+        long soonestAt = Long.MAX_VALUE;
+        for (Map.Entry<String, Received> entry : received.entrySet()) {
+            if (entry.getValue().expiresAt < soonestAt) {
+                soonest = entry.getKey();
+                soonestAt = entry.getValue().expiresAt;
+            }
+        }
+        received.remove(soonest);
+        return soonest.split("\\|", 3);
+    }
+
+    public synchronized void close() {
+        closed = true;
+        peers.clear();
+        received.clear();
+        notifyAll();
+    }
+
+    // Вызывать под блокировкой this
+    private void ensureWorker() {
+        if (worker == null) {
+            worker = new Thread(this::run, "Nico-signals");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    // Один поток на все сигналы: отправляет накопленное и снимает истёкшее
+    private void run() {
+        while (true) {
+            Map<String, byte[]> frames = new HashMap<>();
+            Map<String, Boolean> connect = new HashMap<>();
+            List<String[]> expired = new ArrayList<>();
+            synchronized (this) {
+                if (closed) {
+                    worker = null;
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                long wakeAt = Long.MAX_VALUE;
+                for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+                    Peer peer = entry.getValue();
+                    if (!peer.pending) {
+                        continue;
+                    }
+                    if (peer.nextSendAt > now) {
+                        wakeAt = Math.min(wakeAt, peer.nextSendAt);
+                        continue;
+                    }
+                    boolean[] needsConnection = new boolean[1];
+                    byte[] frame = encodeDirty(peer, now, needsConnection);
+                    // Не поместилось в кадр - уйдёт следующим
+                    peer.pending = hasDirty(peer);
+                    wakeAt = peer.pending ? Math.min(wakeAt, now + MIN_INTERVAL_MS) : wakeAt;
+                    peer.nextSendAt = now + MIN_INTERVAL_MS;
+                    if (frame != null) {
+                        frames.put(entry.getKey(), frame);
+                        connect.put(entry.getKey(), needsConnection[0]);
+                    }
+                }
+                for (Iterator<Map.Entry<String, Received>> it = received.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<String, Received> entry = it.next();
+                    if (entry.getValue().expiresAt <= now) {
+                        it.remove();
+                        expired.add(entry.getKey().split("\\|", 3));
+                    } else {
+                        wakeAt = Math.min(wakeAt, entry.getValue().expiresAt);
+                    }
+                }
+                if (frames.isEmpty() && expired.isEmpty()) {
+                    try {
+                        wait(wakeAt == Long.MAX_VALUE ? 0 : Math.max(1, wakeAt - now));
+                    } catch (InterruptedException e) {
+                        worker = null;
+                        return;
+                    }
+                    continue;
+                }
+            }
+
+            for (Map.Entry<String, byte[]> entry : frames.entrySet()) {
+                try {
+                    sender.send(entry.getKey(), entry.getValue(), connect.get(entry.getKey()));
+                } catch (IOException e) {
+                    // Сигнал устареет раньше, чем имеет смысл его повторять
+                    System.out.println("⚠️ Nico: Signal to " + entry.getKey() + " dropped - " + e.getMessage());
+                }
+            }
+            for (String[] key : expired) {
+                listener.onSignal(key[0], Byte.parseByte(key[1]), key[2], 0);
+            }
+        }
+    }
+
+    // Вызывать под блокировкой this
+    private static byte[] encodeDirty(Peer peer, long now, boolean[] needsConnection) {
+        List<byte[]> names = new ArrayList<>();
+        List<Object[]> signals = new ArrayList<>();
+        int size = 1;
+        for (Map.Entry<String, Outgoing> entry : peer.outgoing.entrySet()) {
+            Outgoing signal = entry.getValue();
+            if (!signal.dirty || signals.size() >= MAX_SIGNALS_PER_FRAME) {
+                continue;
+            }
+            String[] key = entry.getKey().split("\\|", 2);
+            byte kind = Byte.parseByte(key[0]);
+            byte[] name = FrameCodec.utf8(key[1]);
+            signals.add(new Object[]{kind, signal.value});
+            names.add(name);
+            size += 1 + 4 + 8 + 4 + name.length;
+            needsConnection[0] |= signal.connect;
+            signal.dirty = false;
+            signal.sentValue = signal.value;
+            signal.sentAt = now;
+        }
+        if (signals.isEmpty()) {
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.put((byte) signals.size());
+        for (int i = 0; i < signals.size(); i++) {
+            byte kind = (Byte) signals.get(i)[0];
+            frame.put(kind).putInt((int) ttl(kind)).putLong((Long) signals.get(i)[1]);
+            frame.putInt(names.get(i).length).put(names.get(i));
+        }
+        return frame.array();
+    }
+
+    private static boolean hasDirty(Peer peer) {
+        for (Outgoing signal : peer.outgoing.values()) {
+            if (signal.dirty) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(byte kind, String chatName) {
+        return kind + "|" + (chatName != null ? chatName : "");
+    }
+
+    private static long ttl(byte kind) {
+        switch (kind) {
+            case KIND_TYPING:
+                return TYPING_TTL_MS;
+            case KIND_READ:
+                return READ_TTL_MS;
+            default:
+                return PRESENCE_TTL_MS;
+        }
+    }
+}
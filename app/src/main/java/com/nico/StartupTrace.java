@@ -0,0 +1,78 @@
+package com.nico;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+// Именованные секции запуска для systrace/Perfetto ("Nico:<фаза>") и две метки в логе:
+// - первый кадр: окно впервые отрисовано (из снимка списка чатов);
+// - готовность: данные из базы на экране, сеть запущена (Activity.reportFullyDrawn).
+// Время - от старта процесса (на API < 24 - от первого обращения к этому классу).
+public class StartupTrace {
+    private static final String PREFIX = "Nico:";
+    private static final long CLASS_LOADED = SystemClock.uptimeMillis();
+
+    private static boolean firstFrameLogged;
+    private static boolean interactiveLogged;
+
+    public static void begin(String section) {
+        Trace.beginSection(PREFIX + section);
+    }
+
+    public static void end() {
+        Trace.endSection();
+    }
+
+    // action выполнится на главном потоке сразу после первой отрисовки окна -
+    // сюда откладываем всё, без чего первый кадр обходится. Закрытый экран action не запускает.
+    public static void afterFirstFrame(Activity activity, Runnable action) {
+        View decor = activity.getWindow().getDecorView();
+        decor.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decor.getViewTreeObserver().removeOnPreDrawListener(this);
+                // post - после текущего прохода отрисовки
+                decor.post(() -> {
+                    logFirstFrame(activity);
+                    if (!activity.isFinishing() && !activity.isDestroyed()) {
+                        action.run();
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    // Экран полностью готов к работе
+    public static void reportInteractive(Activity activity) {
+        synchronized (StartupTrace.class) {
+            if (interactiveLogged) {
+                return;
+            }
+            interactiveLogged = true;
+        }
+        activity.reportFullyDrawn();
+        System.out.println("⏱️ Nico: Time to interactive " + sinceStart() + " ms ("
+            + activity.getClass().getSimpleName() + ")");
+    }
+
+    private static void logFirstFrame(Activity activity) {
+        synchronized (StartupTrace.class) {
+            if (firstFrameLogged) {
+                return;
+            }
+            firstFrameLogged = true;
+        }
+        System.out.println("⏱️ Nico: Time to first frame " + sinceStart() + " ms ("
+            + activity.getClass().getSimpleName() + ")");
+    }
+
+    private static long sinceStart() {
+        long start = Build.VERSION.SDK_INT >= 24 ? Process.getStartUptimeMillis() : CLASS_LOADED;
+        return SystemClock.uptimeMillis() - start;
+    }
+}
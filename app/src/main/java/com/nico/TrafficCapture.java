@@ -0,0 +1,238 @@
+package com.nico;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Запись сетевого трафика для воспроизведения (см. TrafficReplay): входящие и исходящие
+// кадры сессий, строки старого текстового протокола и пакеты discovery сервера - с временем.
+//
+// Пишется то, что видит приёмный конвейер: кадры уже расшифрованы и распакованы, поэтому
+// запись воспроизводится без ключей собеседников. Содержимое файлов и ретрансляция чужих
+// туннелей не пишутся - это объём, а не нагрузка на конвейер. Сессии, открытые до start(),
+// тоже не попадают в запись.
+// Выключено - каждая точка записи стоит одного чтения volatile поля.
+//
+// Файл: MAGIC(4) | VERSION(1) | START_MILLIS(8) | запись*
+// Запись: KIND(1) | DELTA_MICROS(varint) | CONN(varint) | тело по KIND:
+// - KIND_OPEN:      INCOMING(1) | PEER
+// - KIND_CLOSE:     -
+// - KIND_FRAME_*:   TYPE(1) | LEN(varint) | PAYLOAD
+// - KIND_LINE_IN:   LEN(varint) | UTF-8 (только в старых записях - текстового протокола больше нет)
+// - KIND_DATAGRAM_*: PEER | LEN(varint) | DATA (CONN = 0)
+// PEER - LEN(varint) | UTF-8; DELTA_MICROS - от предыдущей записи.
+public class TrafficCapture {
+    static final int MAGIC = 0x4E434150; // "NCAP"
+    static final int VERSION = 1;
+
+    static final byte KIND_OPEN = 1;
+    static final byte KIND_CLOSE = 2;
+    static final byte KIND_FRAME_IN = 3;
+    static final byte KIND_FRAME_OUT = 4;
+    static final byte KIND_LINE_IN = 5;
+    static final byte KIND_DATAGRAM_IN = 6;
+    static final byte KIND_DATAGRAM_OUT = 7;
+
+    // Запись не должна съесть память устройства - по достижении останавливается сама
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+    // Все записи каталога вместе - перед новой записью удаляем самые старые
+    private static final long MAX_DIRECTORY_BYTES = 256L * 1024 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static volatile TrafficCapture active;
+
+    private final File file;
+    private final DataOutputStream out;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    // Ниже - под блокировкой this
+    private long lastNanos;
+    private long lastFlush;
+    private long records;
+
+    private TrafficCapture(File file) throws IOException {
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        lastNanos = System.nanoTime();
+        lastFlush = System.currentTimeMillis();
+    }
+
+    // Начинаем запись в новый файл каталога; уже идёт - возвращает её файл
+    public static synchronized File start(File directory) throws IOException {
+        TrafficCapture current = active;
+        if (current != null) {
+            return current.file;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        pruneOldCaptures(directory);
+        File file = new File(directory, "nico-" + System.currentTimeMillis() + ".ncap");
+        active = new TrafficCapture(file);
+        System.out.println("🎙️ Nico: Capturing traffic to " + file.getName());
+        return file;
+    }
+
+    // Освобождаем место под новую запись: старые файлы уходят, пока с ней не влезем в лимит
+    private static void pruneOldCaptures(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".ncap"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        for (int i = 0; i < files.length && total + MAX_BYTES > MAX_DIRECTORY_BYTES; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+                System.out.println("🗑️ Nico: Old traffic capture deleted - " + files[i].getName());
+            }
+        }
+    }
+
+    public static synchronized void stop() {
+        TrafficCapture current = active;
+        if (current == null) {
+            return;
+        }
+        active = null;
+        current.finish();
+    }
+
+    public static boolean isActive() {
+        return active != null;
+    }
+
+    // ===== Точки записи (вызываются с сетевых потоков) =====
+
+    // Новое соединение; 0 - запись выключена, остальные вызовы с этим номером ничего не делают
+    public static int openConnection(boolean incoming, String peerIp) {
+        TrafficCapture capture = active;
+        if (capture == null) {
+            return 0;
+        }
+        int connection = capture.nextConnection.incrementAndGet();
+        capture.record(KIND_OPEN, connection, incoming ? 1 : 0, peerIp, null, 0, 0);
+        return connection;
+    }
+
+    public static void closeConnection(int connection) {
+        TrafficCapture capture = active;
+        if (capture != null && connection != 0) {
+            capture.record(KIND_CLOSE, connection, -1, null, null, 0, 0);
+        }
+    }
+
+    // payload не сдвигается
+    public static void frame(int connection, boolean inbound, byte type, ByteBuffer payload) {
+        TrafficCapture capture = active;
+        if (capture == null || connection == 0) {
+            return;
+        }
+        ByteBuffer copy = payload.duplicate();
+        byte[] data;
+        int offset;
+        if (copy.hasArray()) {
+            data = copy.array();
+            offset = copy.arrayOffset() + copy.position();
+        } else {
+            data = new byte[copy.remaining()];
+            copy.get(data);
+            offset = 0;
+        }
+        capture.record(inbound ? KIND_FRAME_IN : KIND_FRAME_OUT, connection, type & 0xFF, null,
+            data, offset, payload.remaining());
+    }
+
+    public static void frame(int connection, boolean inbound, byte type, byte[] payload) {
+        TrafficCapture capture = active;
+        if (capture != null && connection != 0) {
+            capture.record(inbound ? KIND_FRAME_IN : KIND_FRAME_OUT, connection, type & 0xFF, null,
+                payload, 0, payload.length);
+        }
+    }
+
+    public static void datagram(boolean inbound, String peerIp, byte[] data, int offset, int length) {
+        TrafficCapture capture = active;
+        if (capture != null) {
+            capture.record(inbound ? KIND_DATAGRAM_IN : KIND_DATAGRAM_OUT, 0, -1, peerIp, data, offset, length);
+        }
+    }
+
+    // flag >= 0 - байт перед телом (INCOMING или TYPE)
+    private synchronized void record(byte kind, int connection, int flag, String peer,
+                                     byte[] data, int offset, int length) {
+        if (active != this) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            out.writeByte(kind);
+            writeVarint(TimeUnit.NANOSECONDS.toMicros(now - lastNanos));
+            // Сдвигаем опорное время на записанные микросекунды - ошибка округления не копится
+            lastNanos += TimeUnit.NANOSECONDS.toMicros(now - lastNanos) * 1000;
+            writeVarint(connection);
+            if (flag >= 0) {
+                out.writeByte(flag);
+            }
+            if (peer != null) {
+                byte[] name = FrameCodec.utf8(peer);
+                writeVarint(name.length);
+                out.write(name);
+            }
+            if (data != null) {
+                writeVarint(length);
+                out.write(data, offset, length);
+            }
+            records++;
+            long millis = System.currentTimeMillis();
+            if (millis - lastFlush >= FLUSH_INTERVAL_MS || kind == KIND_CLOSE) {
+                // Процесс могут убить в любой момент - на диске не больше секунды недописанного
+                out.flush();
+                lastFlush = millis;
+            }
+            if (out.size() >= MAX_BYTES) {
+                System.out.println("⚠️ Nico: Traffic capture reached " + MAX_BYTES / (1024 * 1024) + " MB");
+                stopAsync();
+            }
+        } catch (IOException e) {
+            System.out.println("❌ Nico: Traffic capture failed - " + e.getMessage());
+            stopAsync();
+        }
+    }
+
+    // Вызывается под блокировкой this - stop() берёт блокировку класса, поэтому отдельным потоком
+    private void stopAsync() {
+        active = null;
+        new Thread(this::finish).start();
+    }
+
+    private synchronized void finish() {
+        try {
+            out.close();
+            System.out.println("🎙️ Nico: Traffic capture saved - " + records + " records, "
+                + file.length() / 1024 + " KB in " + file.getName());
+        } catch (IOException e) {
+            System.out.println("❌ Nico: Traffic capture not saved - " + e.getMessage());
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,296 @@
+package com.nico;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Воспроизведение записи TrafficCapture: записи отдаются приёмнику в исходном темпе
+// (realtime) или так быстро, как он успевает. Замер - время в приёмнике и отставание от
+// исходного расписания: одна и та же запись с устройства становится повторяемым замером.
+//
+// Без Android: main() гонит запись через приёмный конвейер сообщений (Pipeline) -
+// разбор кадров, InboundQueue с её обратным давлением, SignalChannel, лимит discovery.
+// Вместо базы - счётчик сообщений, то есть замеряется всё до записи на диск.
+//   java -cp classes com.nico.TrafficReplay nico-1700000000000.ncap [--realtime]
+public class TrafficReplay {
+    // Запись лога; payload - только на время вызова onRecord
+    public static class Record {
+        public byte kind;
+        // От начала записи
+        public long timeMicros;
+        public int connection;
+        // Для соединений - собеседник из KIND_OPEN, для пакетов - отправитель или получатель
+        public String peerIp;
+        // Соединение принято нами (а не открыто к собеседнику)
+        public boolean incoming;
+        public byte type;
+        public ByteBuffer payload;
+
+        public boolean isInbound() {
+            return kind == TrafficCapture.KIND_FRAME_IN || kind == TrafficCapture.KIND_LINE_IN
+                || kind == TrafficCapture.KIND_DATAGRAM_IN;
+        }
+    }
+
+    public interface Receiver {
+        void onRecord(Record record) throws IOException;
+    }
+
+    public static class Stats {
+        public long records;
+        public long frames;
+        public long bytes;
+        public long elapsedNanos;
+        public long receiverNanos;
+        public long maxReceiverNanos;
+        // Насколько позже исходного времени отдана самая запоздавшая запись (realtime)
+        public long maxLagMicros;
+        public long capturedMicros;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                "%d records (%d frames, %d KB) in %.1f ms (captured %.1f s), receiver %.1f ms, "
+                    + "max %.2f ms per record, max lag %.1f ms",
+                records, frames, bytes / 1024, elapsedNanos / 1e6, capturedMicros / 1e6,
+                receiverNanos / 1e6, maxReceiverNanos / 1e6, maxLagMicros / 1e3);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: TrafficReplay <capture.ncap> [--realtime]");
+            return;
+        }
+        boolean realtime = args.length > 1 && "--realtime".equals(args[1]);
+        Pipeline pipeline = new Pipeline();
+        Stats stats = replay(new File(args[0]), pipeline, realtime);
+        pipeline.finish();
+        System.out.println("Replay:   " + stats);
+        System.out.println("Pipeline: " + pipeline);
+    }
+
+    public static Stats replay(File file, Receiver receiver, boolean realtime) throws IOException {
+        Stats stats = new Stats();
+        Map<Integer, Record> connections = new HashMap<>();
+        Record record = new Record();
+        long start = System.nanoTime();
+        long time = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != TrafficCapture.MAGIC) {
+                throw new IOException("Not a traffic capture: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version != TrafficCapture.VERSION) {
+                throw new IOException("Unsupported capture version " + version);
+            }
+            in.readLong(); // время начала записи - для человека, не для воспроизведения
+
+            while (true) {
+                int kind = in.read();
+                if (kind == -1) {
+                    break;
+                }
+                time += readVarint(in);
+                record.kind = (byte) kind;
+                record.timeMicros = time;
+                record.connection = (int) readVarint(in);
+                record.peerIp = null;
+                record.incoming = false;
+                record.type = 0;
+                record.payload = null;
+
+                switch (record.kind) {
+                    case TrafficCapture.KIND_OPEN:
+                        record.incoming = in.readUnsignedByte() != 0;
+                        record.peerIp = readString(in);
+                        Record connection = new Record();
+                        connection.peerIp = record.peerIp;
+                        connection.incoming = record.incoming;
+                        connections.put(record.connection, connection);
+                        break;
+                    case TrafficCapture.KIND_CLOSE:
+                        setConnection(record, connections.remove(record.connection));
+                        break;
+                    case TrafficCapture.KIND_FRAME_IN:
+                    case TrafficCapture.KIND_FRAME_OUT:
+                        setConnection(record, connections.get(record.connection));
+                        record.type = in.readByte();
+                        record.payload = readBytes(in);
+                        stats.frames++;
+                        break;
+                    case TrafficCapture.KIND_LINE_IN:
+                        setConnection(record, connections.get(record.connection));
+                        record.payload = readBytes(in);
+                        break;
+                    case TrafficCapture.KIND_DATAGRAM_IN:
+                    case TrafficCapture.KIND_DATAGRAM_OUT:
+                        record.peerIp = readString(in);
+                        record.payload = readBytes(in);
+                        break;
+                    default:
+                        throw new IOException("Corrupt capture: record kind " + kind);
+                }
+
+                if (realtime) {
+                    long due = start + TimeUnit.MICROSECONDS.toNanos(time);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } else {
+                        stats.maxLagMicros = Math.max(stats.maxLagMicros, TimeUnit.NANOSECONDS.toMicros(-wait));
+                    }
+                }
+                if (record.payload != null) {
+                    stats.bytes += record.payload.remaining();
+                }
+                long before = System.nanoTime();
+                receiver.onRecord(record);
+                long spent = System.nanoTime() - before;
+                stats.receiverNanos += spent;
+                stats.maxReceiverNanos = Math.max(stats.maxReceiverNanos, spent);
+                stats.records++;
+            }
+        } catch (EOFException e) {
+            // Запись оборвалась посреди записи (процесс убит) - воспроизводим, что успело
+            System.out.println("⚠️ Nico: Capture truncated after " + stats.records + " records");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Replay interrupted");
+        }
+        stats.elapsedNanos = System.nanoTime() - start;
+        stats.capturedMicros = time;
+        return stats;
+    }
+
+    private static void setConnection(Record record, Record connection) {
+        if (connection != null) {
+            record.peerIp = connection.peerIp;
+            record.incoming = connection.incoming;
+        }
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt capture: varint too long");
+    }
+
+    private static ByteBuffer readBytes(DataInputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length > PayloadCompressor.MAX_DECOMPRESSED_SIZE) {
+            throw new IOException("Corrupt capture: record of " + length + " bytes");
+        }
+        byte[] data = new byte[(int) length];
+        in.readFully(data);
+        return ByteBuffer.wrap(data);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        ByteBuffer data = readBytes(in);
+        return new String(data.array(), StandardCharsets.UTF_8);
+    }
+
+    // Приёмный конвейер без Android: то же, что делает NetworkManager с входящими данными,
+    // до записи в базу. Разбирает только входящее на принятых нами соединениях и discovery -
+    // исходящее и ответы на наши запросы считаются, но не обрабатываются.
+    public static class Pipeline implements Receiver {
+        private static final long DRAIN_TIMEOUT_MS = 30000;
+
+        private final AtomicLong stored = new AtomicLong();
+        private final AtomicLong signalChanges = new AtomicLong();
+        private final InboundQueue inboundQueue = new InboundQueue(this::store);
+        // Отправлять некуда - сигналы только принимаются и истекают
+        private final SignalChannel signals = new SignalChannel((ip, payload, connect) -> { },
+            (ip, kind, chatName, value) -> signalChanges.incrementAndGet());
+        private final DiscoveryRateLimiter discoveryLimiter = new DiscoveryRateLimiter();
+        private long queued;
+        private long signalFrames;
+        private long groupFrames;
+        private long lines;
+        private long discoveryRequests;
+        private long discoveryAllowed;
+        private long skipped;
+        private long failed;
+
+        @Override
+        public void onRecord(Record record) throws IOException {
+            if (record.kind == TrafficCapture.KIND_DATAGRAM_IN) {
+                String message = new String(record.payload.array(), StandardCharsets.UTF_8).trim();
+                if (message.startsWith("NICO_DISCOVERY")) {
+                    discoveryRequests++;
+                    // Порт запроса в записи не сохраняется - повторы считаем по адресу
+                    if (discoveryLimiter.allow(record.peerIp, record.peerIp,
+                            TimeUnit.MICROSECONDS.toMillis(record.timeMicros))) {
+                        discoveryAllowed++;
+                    }
+                }
+                return;
+            }
+            if (!record.isInbound() || !record.incoming) {
+                skipped++;
+                return;
+            }
+            try {
+                if (record.kind == TrafficCapture.KIND_LINE_IN) {
+                    lines++;
+                } else if (record.type == FrameCodec.TYPE_MESSAGES) {
+                    for (DatabaseHelper.Message message : FrameSession.decodeMessages(record.payload)) {
+                        inboundQueue.offer(record.peerIp, message);
+                        queued++;
+                    }
+                } else if (record.type == FrameCodec.TYPE_SIGNAL) {
+                    signals.receive(record.peerIp, record.payload);
+                    signalFrames++;
+                } else if (record.type == FrameCodec.TYPE_GROUP_MEMBERS) {
+                    groupFrames++;
+                } else {
+                    skipped++;
+                }
+            } catch (IOException e) {
+                // На устройстве это закрыло бы соединение - здесь считаем и идём дальше
+                failed++;
+            }
+        }
+
+        // Ждём, пока обработчик InboundQueue разберёт всё поставленное
+        public void finish() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+            while (stored.get() < queued && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            inboundQueue.shutdown();
+            signals.close();
+        }
+
+        private void store(String senderIp, List<DatabaseHelper.Message> batch) {
+            stored.addAndGet(batch.size());
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                "%d/%d messages stored, %d signal frames (%d changes), %d group updates, %d text lines, "
+                    + "discovery %d/%d answered, %d skipped, %d failed",
+                stored.get(), queued, signalFrames, signalChanges.get(), groupFrames, lines,
+                discoveryAllowed, discoveryRequests, skipped, failed);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.nico;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+
+// Транспорт для потоковых соединений движка сообщений (FrameSession, файлы, ретрансляция).
+// Реализации: NioTcpTransport (по умолчанию), BlockingTcpTransport и LoopbackTransport -
+// в памяти процесса, без сети и Android, для замеров и проверок (см. TransportBenchmark).
+// Discovery по UDP работает отдельно - ему нужны broadcast и multicast реальной сети.
+public interface Transport {
+
+    // Установленное соединение - обычный блокирующий ByteChannel.
+    // Запись из нескольких буферов - одним системным вызовом, где транспорт это умеет (FrameWriter).
+    interface Connection extends ByteChannel, GatheringByteChannel {
+        String getRemoteAddress();
+
+        // Таймаут блокирующего чтения (0 - без таймаута)
+        void setReadTimeout(int timeoutMs) throws IOException;
+
+        // Полузакрытие: мы больше не пишем, но ещё читаем
+        void shutdownOutput() throws IOException;
+    }
+
+    // Слушающая сторона
+    interface Server extends Closeable {
+        Connection accept() throws IOException;
+    }
+
+    Connection connect(String address, int port, int timeoutMs) throws IOException;
+
+    Server listen(int port) throws IOException;
+
+    // Адрес, по которому нас видят собеседники
+    String getLocalAddress();
+}
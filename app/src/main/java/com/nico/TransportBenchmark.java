@@ -0,0 +1,234 @@
+package com.nico;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.crypto.spec.SecretKeySpec;
+
+// Замер движка сообщений поверх разных транспортов: одна и та же FrameSession
+// (HELLO, сжатие, пачки MESSAGES) через LoopbackTransport и через настоящий TCP.
+// Разница показывает, сколько стоит сама сеть, а сколько - кодирование кадров.
+// Отдельно - цена шифрования: на одно сообщение и на рукопожатие (полное и возобновлённое).
+// Без Android: запускается обычной JVM (main) или из кода приложения через run().
+public class TransportBenchmark {
+    private static final int PORT = 18888;
+    private static final int BATCHES = 200;
+    private static final int MESSAGES_PER_BATCH = 50;
+    private static final int ROUND_TRIPS = 500;
+    // Параллельные отправители одиночных сообщений - проверка склейки записи (FrameWriter)
+    private static final int SENDERS = 4;
+    private static final int MESSAGES_PER_SENDER = 2000;
+    private static final int TIMEOUT_MS = 3000;
+    private static final int RECORDS = 20000;
+    private static final int RECORD_BYTES = 120;
+    private static final int HANDSHAKES = 50;
+
+    public static void main(String[] args) throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        LoopbackTransport serverLoopback = new LoopbackTransport(network, "10.0.0.1");
+        LoopbackTransport clientLoopback = new LoopbackTransport(network, "10.0.0.2");
+        PeerSecurity serverSecurity = PeerSecurity.createEphemeral();
+        PeerSecurity clientSecurity = PeerSecurity.createEphemeral();
+
+        System.out.println("Loopback: " + run(serverLoopback, clientLoopback, "10.0.0.1", null, null));
+        System.out.println("Loopback: " + run(serverLoopback, clientLoopback, "10.0.0.1",
+            serverSecurity, clientSecurity));
+        System.out.println("NIO TCP:  " + run(new NioTcpTransport(), new NioTcpTransport(), "127.0.0.1", null, null));
+        System.out.println("NIO TCP:  " + run(new NioTcpTransport(), new NioTcpTransport(), "127.0.0.1",
+            serverSecurity, clientSecurity));
+        System.out.println("TCP:      " + run(new BlockingTcpTransport(), new BlockingTcpTransport(), "127.0.0.1",
+            null, null));
+        System.out.println("AEAD:     " + measureRecords(serverLoopback, clientLoopback, "10.0.0.1"));
+        System.out.println("Connect:  " + measureHandshakes(serverLoopback, clientLoopback, "10.0.0.1",
+            serverSecurity, clientSecurity));
+    }
+
+    // Пропускная способность (пачки сообщений в одну сторону) и задержка (запрос-ответ).
+    // security = null - без шифрования.
+    public static String run(Transport serverTransport, Transport clientTransport, String serverAddress,
+                             PeerSecurity serverSecurity, PeerSecurity clientSecurity)
+            throws IOException, InterruptedException {
+        Transport.Server server = serverTransport.listen(PORT);
+        Thread echo = new Thread(() -> serve(server, serverSecurity), "nico-bench-server");
+        echo.start();
+
+        try (FrameSession session = FrameSession.connect(clientTransport, clientSecurity,
+                serverAddress, PORT, TIMEOUT_MS)) {
+            List<DatabaseHelper.Message> batch = new ArrayList<>(MESSAGES_PER_BATCH);
+            for (int i = 0; i < MESSAGES_PER_BATCH; i++) {
+                batch.add(new DatabaseHelper.Message(i + 1, "Benchmark", "Bench",
+                    "Benchmark message number " + i, "12:00", true));
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < BATCHES; i++) {
+                session.writeMessages(batch);
+            }
+            // Сервер подтверждает, когда прочитал всё
+            session.writeFrame(FrameCodec.TYPE_SYNC_REQUEST, new byte[0]);
+            expectDone(session);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            List<DatabaseHelper.Message> single = batch.subList(0, 1);
+            start = System.nanoTime();
+            for (int i = 0; i < ROUND_TRIPS; i++) {
+                session.writeMessages(single);
+                session.writeFrame(FrameCodec.TYPE_SYNC_REQUEST, new byte[0]);
+                expectDone(session);
+            }
+            double latencyMicros = (System.nanoTime() - start) / 1e3 / ROUND_TRIPS;
+
+            double lowLatencyRate = runConcurrent(session, single, true);
+            double batchedRate = runConcurrent(session, single, false);
+
+            return String.format(Locale.US,
+                "%.0f msg/s, %.0f µs round trip, %d senders %.0f msg/s (batched %.0f)%s",
+                BATCHES * MESSAGES_PER_BATCH / seconds, latencyMicros,
+                SENDERS, lowLatencyRate, batchedRate,
+                (session.isCompressed() ? " (compressed)" : "") + (session.isEncrypted() ? " (encrypted)" : ""));
+        } finally {
+            server.close();
+            echo.join(TIMEOUT_MS);
+        }
+    }
+
+    // Несколько потоков пишут по одному сообщению в общую сессию
+    private static double runConcurrent(FrameSession session, List<DatabaseHelper.Message> single,
+                                        boolean lowLatency) throws IOException, InterruptedException {
+        session.setLowLatency(lowLatency);
+        List<Thread> senders = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < SENDERS; i++) {
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int j = 0; j < MESSAGES_PER_SENDER; j++) {
+                        session.writeMessages(single);
+                    }
+                } catch (IOException e) {
+                    System.out.println("❌ Nico: Benchmark sender failed - " + e.getMessage());
+                }
+            });
+            senders.add(sender);
+            sender.start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        session.writeFrame(FrameCodec.TYPE_SYNC_REQUEST, new byte[0]);
+        expectDone(session);
+        session.setLowLatency(true);
+        return SENDERS * MESSAGES_PER_SENDER / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // Цена шифрования одного сообщения: запись + чтение через SecureChannel против открытого канала
+    public static String measureRecords(Transport serverTransport, Transport clientTransport, String serverAddress)
+            throws IOException {
+        byte[] keyBytes = new byte[16];
+        SecretKeySpec key = new SecretKeySpec(keyBytes, "AES");
+        double[] micros = new double[2];
+
+        for (int mode = 0; mode < 2; mode++) {
+            try (Transport.Server server = serverTransport.listen(PORT);
+                 Transport.Connection client = clientTransport.connect(serverAddress, PORT, TIMEOUT_MS);
+                 Transport.Connection accepted = server.accept()) {
+                Transport.Connection writer = mode == 0 ? client : new SecureChannel(client, key, key);
+                Transport.Connection reader = mode == 0 ? accepted : new SecureChannel(accepted, key, key);
+                ByteBuffer out = ByteBuffer.allocate(RECORD_BYTES);
+                ByteBuffer in = ByteBuffer.allocate(RECORD_BYTES);
+
+                // Прогрев JIT, потом замер
+                for (int round = 0; round < 2; round++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < RECORDS; i++) {
+                        out.clear();
+                        FrameCodec.writeFully(writer, out);
+                        in.clear();
+                        FrameCodec.readFully(reader, in);
+                    }
+                    micros[mode] = (System.nanoTime() - start) / 1e3 / RECORDS;
+                }
+            }
+        }
+        return String.format(Locale.US, "%d-byte message %.2f µs plain, %.2f µs encrypted (+%.2f µs)",
+            RECORD_BYTES, micros[0], micros[1], micros[1] - micros[0]);
+    }
+
+    // Подключение с полным рукопожатием против возобновления по билету
+    public static String measureHandshakes(Transport serverTransport, Transport clientTransport, String serverAddress,
+                                           PeerSecurity serverSecurity, PeerSecurity clientSecurity)
+            throws IOException, InterruptedException {
+        Transport.Server server = serverTransport.listen(PORT);
+        Thread acceptor = new Thread(() -> serve(server, serverSecurity), "nico-bench-server");
+        acceptor.start();
+        try {
+            double[] millis = new double[2];
+            for (int mode = 0; mode < 2; mode++) {
+                long total = 0;
+                for (int i = 0; i < HANDSHAKES; i++) {
+                    if (mode == 0) {
+                        // Без билета и без сохранённого ключа - каждый раз полное рукопожатие
+                        clientSecurity.forgetPeer(serverAddress);
+                    }
+                    long start = System.nanoTime();
+                    FrameSession session = FrameSession.connect(clientTransport, clientSecurity,
+                        serverAddress, PORT, TIMEOUT_MS);
+                    total += System.nanoTime() - start;
+                    session.close();
+                }
+                millis[mode] = total / 1e6 / HANDSHAKES;
+            }
+            return String.format(Locale.US, "full handshake %.2f ms, resumed %.2f ms", millis[0], millis[1]);
+        } finally {
+            server.close();
+            acceptor.join(TIMEOUT_MS);
+        }
+    }
+
+    private static void expectDone(FrameSession session) throws IOException {
+        FrameSession.Frame reply = session.readFrame();
+        if (reply.type != FrameCodec.TYPE_SYNC_DONE) {
+            throw new IOException("Unexpected reply: " + reply.type);
+        }
+    }
+
+    // Сторона сервера: принимает соединения, пока сервер не закроют
+    private static void serve(Transport.Server server, PeerSecurity security) {
+        while (true) {
+            Transport.Connection connection;
+            try {
+                connection = server.accept();
+            } catch (IOException e) {
+                return;
+            }
+            new Thread(() -> serveConnection(connection, security)).start();
+        }
+    }
+
+    // Разбирает пачки и отвечает SYNC_DONE на каждый SYNC_REQUEST
+    private static void serveConnection(Transport.Connection connection, PeerSecurity security) {
+        try {
+            FrameCodec.readFully(connection, ByteBuffer.allocate(1));
+            FrameCodec.Header hello = FrameCodec.readHeader(connection,
+                ByteBuffer.allocate(FrameCodec.HEADER_SIZE));
+            FrameSession session = FrameSession.accept(connection, hello, security, connection.getRemoteAddress());
+            while (true) {
+                FrameSession.Frame frame = session.readFrame();
+                if (frame.type == FrameCodec.TYPE_MESSAGES) {
+                    FrameSession.decodeMessages(frame.payload);
+                } else if (frame.type == FrameCodec.TYPE_SYNC_REQUEST) {
+                    session.writeFrame(FrameCodec.TYPE_SYNC_DONE, new byte[0]);
+                }
+            }
+        } catch (IOException e) {
+            // Клиент закрыл соединение - замер окончен
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Игнорируем ошибку закрытия
+            }
+        }
+    }
+}